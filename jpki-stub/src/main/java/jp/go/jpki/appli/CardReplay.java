@@ -0,0 +1,212 @@
+package jp.go.jpki.appli;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * jpki-wrapper の内部モジュールが記録したカードとの JNI 呼び出し (net.osdn.jpki.wrapper.cardRecording) を再生します。
+ * <p>
+ * システム プロパティ jpki.stub.replay に記録ファイルを指定すると、スタブの各呼び出しは同じ種類の記録を先頭から順に 1 件ずつ取り出し、
+ * その所要時間だけ待ってから、記録がエラーであれば同じエラー コードで失敗し、成功であればスタブの本来の処理を行います。
+ * 記録を使い切ると先頭に戻ります。取り出す順番は呼び出しの種類ごとに決まるので、同じ記録からは同じ応答の列が得られます。
+ * jpki.stub.replay の値を変えると、次の呼び出しで記録を読み込み直し、先頭から再生します。
+ * jpki.stub.replaySpeed (既定値 1.0) を指定すると、待ち時間をその値で割ります。
+ * <p>
+ * main はファイルを集計し、呼び出しの種類ごとの件数、所要時間の百分位数、エラーの内訳を出力します。
+ * <pre>
+ * java -cp JPKICryptSignJNI64.jar jp.go.jpki.appli.CardReplay FILE
+ * </pre>
+ */
+public final class CardReplay {
+
+	/* package private */ static final int OP_ACQUIRE_CONTEXT = 1;
+	/* package private */ static final int OP_RELEASE_CONTEXT = 2;
+	/* package private */ static final int OP_GET_USER_KEY = 3;
+	/* package private */ static final int OP_DESTROY_KEY = 4;
+	/* package private */ static final int OP_GET_CERTIFICATE = 5;
+	/* package private */ static final int OP_GET_ROOT_CERTIFICATE = 6;
+	/* package private */ static final int OP_CREATE_HASH = 7;
+	/* package private */ static final int OP_HASH_DATA = 8;
+	/* package private */ static final int OP_SIGN_HASH = 9;
+	/* package private */ static final int OP_DESTROY_HASH = 10;
+
+	private static final String[] OP_NAMES = {
+		null, "cryptAcquireContext", "cryptReleaseContext", "cryptGetUserKey", "cryptDestroyKey",
+		"cryptGetCertificateValue", "cryptGetRootCertificateValue", "cryptCreateHash", "cryptHashData",
+		"cryptSignHash", "cryptDestroyHash"
+	};
+
+	private static final int VERSION = 1;
+
+	private static CardReplay instance;
+	private static String loadedPath;
+
+	private final Record[][] records = new Record[OP_NAMES.length][];
+	private final AtomicLong[] positions = new AtomicLong[OP_NAMES.length];
+	private final double speed;
+
+	private CardReplay(List<Record> all, double speed) {
+		for(int op = 1; op < OP_NAMES.length; op++) {
+			List<Record> list = new ArrayList<Record>();
+			for(Record r : all) {
+				if(r.op == op) {
+					list.add(r);
+				}
+			}
+			records[op] = list.toArray(new Record[list.size()]);
+			positions[op] = new AtomicLong();
+		}
+		this.speed = speed;
+	}
+
+	/**
+	 * jpki.stub.replay が指定されていれば、その記録を読み込んだインスタンスを返します。指定されていなければ null を返します。
+	 */
+	/* package private */ static synchronized CardReplay getInstance() throws JPKICryptSignJNIException {
+		String path = System.getProperty("jpki.stub.replay");
+		if(path == null || path.isEmpty()) {
+			instance = null;
+			loadedPath = null;
+		} else if(!path.equals(loadedPath)) {
+			try {
+				double speed = Double.parseDouble(System.getProperty("jpki.stub.replaySpeed", "1.0"));
+				instance = new CardReplay(read(new File(path)), speed);
+			} catch(IOException | NumberFormatException e) {
+				throw new JPKICryptSignJNIException(JPKICryptSignJNIException.JPKI_ERR_UNKNOWN, 0, "cannot load replay: " + e);
+			}
+			loadedPath = path;
+		}
+		return instance;
+	}
+
+	/**
+	 * op の次の記録を再生します。op の記録がない場合は待たずに戻ります。
+	 */
+	/* package private */ void replay(int op) throws JPKICryptSignJNIException {
+		Record[] list = records[op];
+		if(list.length == 0) {
+			return;
+		}
+		Record r = list[(int)(positions[op].getAndIncrement() % list.length)];
+		long micros = (long)(r.durationMicros / speed);
+		if(micros > 0) {
+			try {
+				Thread.sleep(micros / 1000, (int)(micros % 1000) * 1000);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new JPKICryptSignJNIException(JPKICryptSignJNIException.JPKI_ERR_WINDOWS, JPKICryptSignJNIException.JPKI_WIN_NOT_READY, "interrupted");
+			}
+		}
+		if(r.errorCode != 0 || r.winErrorCode != 0) {
+			throw new JPKICryptSignJNIException(r.errorCode, r.winErrorCode, "replayed error of " + OP_NAMES[op]);
+		}
+	}
+
+	private static List<Record> read(File file) throws IOException {
+		List<Record> list = new ArrayList<Record>();
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			while(true) {
+				int version = in.read();
+				if(version == -1) {
+					break;
+				}
+				try {
+					if(version != VERSION) {
+						throw new IOException("unsupported record version: " + version);
+					}
+					Record r = new Record();
+					r.op = in.readUnsignedByte();
+					in.readShort();
+					r.startMicros = in.readLong();
+					r.durationMicros = in.readInt();
+					r.errorCode = in.readInt();
+					r.winErrorCode = in.readInt();
+					r.dataLength = in.readInt();
+					if(r.op > 0 && r.op < OP_NAMES.length) {
+						list.add(r);
+					}
+				} catch(EOFException e) {
+					throw new IOException("truncated record at " + list.size(), e);
+				}
+			}
+		}
+		return list;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if(args.length != 1) {
+			System.err.println("usage: CardReplay FILE");
+			System.exit(2);
+			return;
+		}
+		List<Record> all = read(new File(args[0]));
+		if(all.isEmpty()) {
+			System.out.println("no records");
+			return;
+		}
+		long first = Long.MAX_VALUE;
+		long last = Long.MIN_VALUE;
+		for(Record r : all) {
+			first = Math.min(first, r.startMicros);
+			last = Math.max(last, r.startMicros + r.durationMicros);
+		}
+		System.out.printf("%d records over %.3f s%n", all.size(), (last - first) / 1e6);
+		System.out.printf("%-30s %8s %9s %9s %9s %9s %7s%n", "call (ms)", "count", "p50", "p95", "p99", "max", "errors");
+		for(int op = 1; op < OP_NAMES.length; op++) {
+			List<Record> list = new ArrayList<Record>();
+			Map<String, Integer> errors = new TreeMap<String, Integer>();
+			for(Record r : all) {
+				if(r.op == op) {
+					list.add(r);
+					if(r.errorCode != 0 || r.winErrorCode != 0) {
+						String key = String.format("%d/0x%08X", r.errorCode, r.winErrorCode);
+						Integer n = errors.get(key);
+						errors.put(key, (n != null) ? n + 1 : 1);
+					}
+				}
+			}
+			if(list.isEmpty()) {
+				continue;
+			}
+			long[] durations = new long[list.size()];
+			for(int i = 0; i < durations.length; i++) {
+				durations[i] = list.get(i).durationMicros;
+			}
+			Arrays.sort(durations);
+			int errorCount = 0;
+			for(int n : errors.values()) {
+				errorCount += n;
+			}
+			System.out.printf("%-30s %8d %9.1f %9.1f %9.1f %9.1f %7d%n", OP_NAMES[op], durations.length,
+					percentile(durations, 50) / 1e3, percentile(durations, 95) / 1e3, percentile(durations, 99) / 1e3,
+					durations[durations.length - 1] / 1e3, errorCount);
+			for(Map.Entry<String, Integer> e : errors.entrySet()) {
+				System.out.printf("  error %s (errorCode/winErrorCode): %d%n", e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	private static long percentile(long[] sorted, int p) {
+		int index = (int)Math.ceil(p / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+
+	private static class Record {
+		int op;
+		long startMicros;
+		int durationMicros;
+		int errorCode;
+		int winErrorCode;
+		int dataLength;
+	}
+}
@@ -0,0 +1,247 @@
+package jp.go.jpki.appli;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+/**
+ * 負荷試験用の JPKI 署名 JNI のスタブです。IC カードの代わりにソフトウェアの RSA 鍵で署名します。
+ * <p>
+ * 鍵と証明書 (自己署名のルート証明書と、それが発行した署名用証明書) は JVM ごとに 1 回生成します。
+ * 次のシステム プロパティで IC カードの応答時間を模擬できます。
+ * <ul>
+ * <li>jpki.stub.acquireDelay ... cryptAcquireContext の遅延 (ミリ秒)</li>
+ * <li>jpki.stub.signDelay ... cryptSignHash の遅延 (ミリ秒)</li>
+ * <li>jpki.stub.ignoreInterrupt ... true を指定すると、応答しないカードを待つネイティブ呼び出しのように、遅延の間に割り込まれても戻りません</li>
+ * <li>jpki.stub.notReady ... true を指定すると、カードが挿入されていないときのように、cryptAcquireContext が遅延の後に
+ *     JPKI_WIN_NOT_READY (SCARD_E_NOT_READY) で失敗します</li>
+ * </ul>
+ * jpki.stub.replay に jpki-wrapper で記録したカードの呼び出し (net.osdn.jpki.wrapper.cardRecording) を指定すると、
+ * 上の遅延の代わりに記録した所要時間とエラーを再生します ({@link CardReplay} を参照)。
+ * <p>
+ * 解放済みのコンテキスト、またはそのコンテキストで作成したハッシュを使う呼び出しは JPKI_WIN_ERR_BAD_UID で失敗し、
+ * {@link #getReleasedContextUseCount()} に数えられます。
+ * 64 ビット版の API のみを提供します。
+ */
+public class JPKICryptSignJNI {
+
+	public static final int JPKI_CALG_SHA_256 = 32780;
+	public static final int JPKI_CALG_SHA1 = 32772;
+	public static final int JPKI_VERIFYCONTEXT = -268435456;
+
+	private static final byte[] SHA256_DIGEST_INFO_PREFIX = {
+		0x30, 0x31, 0x30, 0x0d, 0x06, 0x09, 0x60, (byte)0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x02, 0x01, 0x05, 0x00, 0x04, 0x20
+	};
+
+	private static KeyPair userKey;
+	private static byte[] userCertificate;
+	private static byte[] rootCertificate;
+
+	private static final AtomicLong handles = new AtomicLong(1);
+	private static final Map<Long, MessageDigest> hashes = new ConcurrentHashMap<Long, MessageDigest>();
+	private static final Map<Long, Long> hashContexts = new ConcurrentHashMap<Long, Long>();
+	private static final Set<Long> contexts = ConcurrentHashMap.<Long>newKeySet();
+	private static final AtomicLong releasedContextUses = new AtomicLong();
+
+	public JPKICryptSignJNI() {
+		try {
+			initialize();
+		} catch(Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static synchronized void initialize() throws Exception {
+		if(userKey != null) {
+			return;
+		}
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		KeyPair rootKey = generator.generateKeyPair();
+		KeyPair key = generator.generateKeyPair();
+
+		long now = System.currentTimeMillis();
+		Date notBefore = new Date(now - 24L * 60 * 60 * 1000);
+		Date notAfter = new Date(now + 365L * 24 * 60 * 60 * 1000);
+		X500Name rootName = new X500Name("CN=JPKI Stub CA,O=JPKI Stub,C=JP");
+		X500Name userName = new X500Name("CN=JPKI Stub User,O=JPKI Stub,C=JP");
+		ContentSigner rootSigner = new JcaContentSignerBuilder("SHA256withRSA").build(rootKey.getPrivate());
+
+		JcaX509v3CertificateBuilder root = new JcaX509v3CertificateBuilder(rootName, BigInteger.ONE, notBefore, notAfter, rootName, rootKey.getPublic());
+		root.addExtension(Extension.basicConstraints, true, new BasicConstraints(true));
+		root.addExtension(Extension.keyUsage, true, new KeyUsage(KeyUsage.keyCertSign | KeyUsage.cRLSign));
+
+		JcaX509v3CertificateBuilder user = new JcaX509v3CertificateBuilder(rootName, BigInteger.valueOf(now), notBefore, notAfter, userName, key.getPublic());
+		user.addExtension(Extension.keyUsage, true, new KeyUsage(KeyUsage.digitalSignature | KeyUsage.nonRepudiation));
+
+		rootCertificate = root.build(rootSigner).getEncoded();
+		userCertificate = user.build(rootSigner).getEncoded();
+		userKey = key;
+	}
+
+	public long cryptAcquireContext(int flags) throws JPKICryptSignJNIException {
+		if(!replay(CardReplay.OP_ACQUIRE_CONTEXT)) {
+			delay("jpki.stub.acquireDelay");
+			if(Boolean.getBoolean("jpki.stub.notReady")) {
+				throw new JPKICryptSignJNIException(JPKICryptSignJNIException.JPKI_ERR_WINDOWS, JPKICryptSignJNIException.JPKI_WIN_NOT_READY, "card is not ready");
+			}
+		}
+		long hProv = handles.incrementAndGet();
+		contexts.add(hProv);
+		return hProv;
+	}
+
+	public void cryptReleaseContext(long hProv) throws JPKICryptSignJNIException {
+		replay(CardReplay.OP_RELEASE_CONTEXT);
+		if(!contexts.remove(hProv)) {
+			throw releasedContext(hProv);
+		}
+	}
+
+	public long cryptGetUserKey(long hProv) throws JPKICryptSignJNIException {
+		replay(CardReplay.OP_GET_USER_KEY);
+		checkContext(hProv);
+		return handles.incrementAndGet();
+	}
+
+	public void cryptDestroyKey(long hKey) throws JPKICryptSignJNIException {
+		replay(CardReplay.OP_DESTROY_KEY);
+	}
+
+	public byte[] cryptGetCertificateValue(long hProv) throws JPKICryptSignJNIException {
+		replay(CardReplay.OP_GET_CERTIFICATE);
+		return userCertificate.clone();
+	}
+
+	public byte[] cryptGetRootCertificateValue(long hProv) throws JPKICryptSignJNIException {
+		replay(CardReplay.OP_GET_ROOT_CERTIFICATE);
+		checkContext(hProv);
+		return rootCertificate.clone();
+	}
+
+	public long cryptCreateHash(long hProv, int algorithm) throws JPKICryptSignJNIException {
+		replay(CardReplay.OP_CREATE_HASH);
+		checkContext(hProv);
+		if(algorithm != JPKI_CALG_SHA_256) {
+			throw new JPKICryptSignJNIException(JPKICryptSignJNIException.JPKI_ERR_PARAM, 0, "unsupported algorithm: " + algorithm);
+		}
+		long hHash = handles.incrementAndGet();
+		try {
+			hashes.put(hHash, MessageDigest.getInstance("SHA-256"));
+			hashContexts.put(hHash, hProv);
+		} catch(Exception e) {
+			throw new JPKICryptSignJNIException(JPKICryptSignJNIException.JPKI_ERR_UNKNOWN, 0, e.toString());
+		}
+		return hHash;
+	}
+
+	public void cryptHashData(long hHash, byte[] data) throws JPKICryptSignJNIException {
+		replay(CardReplay.OP_HASH_DATA);
+		getHash(hHash).update(data);
+	}
+
+	public byte[] cryptSignHash(long hHash) throws JPKICryptSignJNIException {
+		if(!replay(CardReplay.OP_SIGN_HASH)) {
+			delay("jpki.stub.signDelay");
+		}
+		byte[] digest = getHash(hHash).digest();
+		byte[] digestInfo = new byte[SHA256_DIGEST_INFO_PREFIX.length + digest.length];
+		System.arraycopy(SHA256_DIGEST_INFO_PREFIX, 0, digestInfo, 0, SHA256_DIGEST_INFO_PREFIX.length);
+		System.arraycopy(digest, 0, digestInfo, SHA256_DIGEST_INFO_PREFIX.length, digest.length);
+		try {
+			Signature signature = Signature.getInstance("NONEwithRSA");
+			signature.initSign(userKey.getPrivate());
+			signature.update(digestInfo);
+			return signature.sign();
+		} catch(Exception e) {
+			throw new JPKICryptSignJNIException(JPKICryptSignJNIException.JPKI_ERR_UNKNOWN, 0, e.toString());
+		}
+	}
+
+	public void cryptDestroyHash(long hHash) throws JPKICryptSignJNIException {
+		replay(CardReplay.OP_DESTROY_HASH);
+		getHash(hHash);
+		hashes.remove(hHash);
+		hashContexts.remove(hHash);
+	}
+
+	/**
+	 * 解放済みのコンテキストを使おうとした呼び出しの数を返します。
+	 */
+	public static long getReleasedContextUseCount() {
+		return releasedContextUses.get();
+	}
+
+	private static MessageDigest getHash(long hHash) throws JPKICryptSignJNIException {
+		MessageDigest md = hashes.get(hHash);
+		if(md == null) {
+			throw new JPKICryptSignJNIException(JPKICryptSignJNIException.JPKI_ERR_WINDOWS, JPKICryptSignJNIException.JPKI_WIN_ERR_BAD_HASH, "invalid hash handle: " + hHash);
+		}
+		checkContext(hashContexts.get(hHash));
+		return md;
+	}
+
+	private static void checkContext(long hProv) throws JPKICryptSignJNIException {
+		if(!contexts.contains(hProv)) {
+			throw releasedContext(hProv);
+		}
+	}
+
+	private static JPKICryptSignJNIException releasedContext(long hProv) {
+		releasedContextUses.incrementAndGet();
+		return new JPKICryptSignJNIException(JPKICryptSignJNIException.JPKI_ERR_WINDOWS, JPKICryptSignJNIException.JPKI_WIN_ERR_BAD_UID, "invalid context handle: " + hProv);
+	}
+
+	/**
+	 * 記録の再生が有効であれば op の次の記録を再生して true を返します。
+	 */
+	private static boolean replay(int op) throws JPKICryptSignJNIException {
+		CardReplay replay = CardReplay.getInstance();
+		if(replay == null) {
+			return false;
+		}
+		replay.replay(op);
+		return true;
+	}
+
+	private static void delay(String property) throws JPKICryptSignJNIException {
+		long millis = Long.getLong(property, 0L);
+		if(millis > 0 && Boolean.getBoolean("jpki.stub.ignoreInterrupt")) {
+			long deadline = System.nanoTime() + millis * 1000000L;
+			boolean interrupted = false;
+			long remaining;
+			while((remaining = deadline - System.nanoTime()) > 0) {
+				try {
+					Thread.sleep(remaining / 1000000L, (int)(remaining % 1000000L));
+				} catch(InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if(interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		} else if(millis > 0) {
+			try {
+				Thread.sleep(millis);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new JPKICryptSignJNIException(JPKICryptSignJNIException.JPKI_ERR_WINDOWS, JPKICryptSignJNIException.JPKI_WIN_NOT_READY, "interrupted");
+			}
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package jp.go.jpki.appli;
+
+/**
+ * 負荷試験用スタブの例外です。エラーコードの値は JPKI 利用者ソフトと同じです。
+ */
+public class JPKICryptSignJNIException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int JPKI_ERR_PARAM = 1;
+	public static final int JPKI_ERR_WINDOWS = 2;
+	public static final int JPKI_ERR_NOMEMORY = 8;
+	public static final int JPKI_ERR_JAVA_NOMEMORY = 9;
+	public static final int JPKI_ERR_UNKNOWN = 99;
+	public static final int JPKI_WIN_ERR_BAD_HASH = -2146893822;
+	public static final int JPKI_WIN_ERR_BAD_HASH_STATE = -2146893812;
+	public static final int JPKI_WIN_ERR_BAD_KEY = -2146893821;
+	public static final int JPKI_WIN_ERR_BAD_UID = -2146893823;
+	public static final int JPKI_WIN_ERR_BAD_VER = -2146893817;
+	public static final int JPKI_WIN_CANCELLED_BY_USER = -2146434962;
+	public static final int JPKI_WIN_NOT_READY = -2146435056;
+	public static final int JPKI_WIN_CHV_BLOCKED = -2146434964;
+	public static final int JPKI_WIN_ERR_NO_MEMORY = -2146893810;
+	public static final int JPKI_WIN_UNKNOWN_CARD = -2146435059;
+
+	private int errorCode;
+	private int winErrorCode;
+
+	public JPKICryptSignJNIException() {
+	}
+
+	public JPKICryptSignJNIException(int errorCode, int winErrorCode, String message) {
+		super(message);
+		this.errorCode = errorCode;
+		this.winErrorCode = winErrorCode;
+	}
+
+	public int getErrorCode() {
+		return errorCode;
+	}
+
+	public int getWinErrorCode() {
+		return winErrorCode;
+	}
+}
@@ -0,0 +1,47 @@
+package jp.go.jpki.appli;
+
+/**
+ * 負荷試験用スタブの基本 4 情報です。
+ */
+public class JPKIUserCertBasicData {
+
+	private final String name;
+	private final String dateOfBirth;
+	private final String gender;
+	private final String address;
+	private final String substituteCharacterOfName;
+	private final String substituteCharacterOfAddress;
+
+	public JPKIUserCertBasicData(String name, String dateOfBirth, String gender, String address, String substituteCharacterOfName, String substituteCharacterOfAddress) {
+		this.name = name;
+		this.dateOfBirth = dateOfBirth;
+		this.gender = gender;
+		this.address = address;
+		this.substituteCharacterOfName = substituteCharacterOfName;
+		this.substituteCharacterOfAddress = substituteCharacterOfAddress;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getDateOfBirth() {
+		return dateOfBirth;
+	}
+
+	public String getGender() {
+		return gender;
+	}
+
+	public String getAddress() {
+		return address;
+	}
+
+	public String getSubstituteCharacterOfName() {
+		return substituteCharacterOfName;
+	}
+
+	public String getSubstituteCharacterOfAddress() {
+		return substituteCharacterOfAddress;
+	}
+}
@@ -0,0 +1,21 @@
+package jp.go.jpki.appli;
+
+/**
+ * 負荷試験用スタブの例外です。エラーコードの値は JPKI 利用者ソフトと同じです。
+ */
+public class JPKIUserCertException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int JPKI_USER_FALSE_DECODE_CERT = -104;
+
+	private final int errorCode;
+
+	public JPKIUserCertException(int errorCode) {
+		this.errorCode = errorCode;
+	}
+
+	public int getErrorCode() {
+		return errorCode;
+	}
+}
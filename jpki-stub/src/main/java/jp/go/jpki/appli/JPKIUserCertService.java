@@ -0,0 +1,33 @@
+package jp.go.jpki.appli;
+
+import java.io.ByteArrayInputStream;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x500.style.BCStyle;
+import org.bouncycastle.asn1.x500.style.IETFUtils;
+
+/**
+ * 負荷試験用の JPKI 利用者証明書サービスのスタブです。証明書の CN を氏名として返します。
+ */
+public class JPKIUserCertService {
+
+	private final byte[] certificate;
+
+	public JPKIUserCertService(byte[] certificate) {
+		this.certificate = certificate;
+	}
+
+	public JPKIUserCertBasicData getBasicData() throws JPKIUserCertException {
+		try {
+			X509Certificate cert = (X509Certificate)CertificateFactory.getInstance("X.509")
+					.generateCertificate(new ByteArrayInputStream(certificate));
+			X500Name subject = X500Name.getInstance(cert.getSubjectX500Principal().getEncoded());
+			String name = IETFUtils.valueToString(subject.getRDNs(BCStyle.CN)[0].getFirst().getValue());
+			return new JPKIUserCertBasicData(name, "", "", "", name, "");
+		} catch(Exception e) {
+			throw new JPKIUserCertException(JPKIUserCertException.JPKI_USER_FALSE_DECODE_CERT);
+		}
+	}
+}
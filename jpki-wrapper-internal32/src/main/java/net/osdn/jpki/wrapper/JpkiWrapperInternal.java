@@ -3,12 +3,89 @@ package net.osdn.jpki.wrapper;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.interactive.digitalsignature.SignatureOptions;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Date;
+import java.util.concurrent.Callable;
 
 public interface JpkiWrapperInternal {
 
+    int ERROR_SELF_CHECK_FAILED = 1001;
+
+    int STAGE_ACQUIRE = 1;
+    int STAGE_CERTIFICATE = 2;
+    int STAGE_SIGN = 3;
+    int STAGE_TIMESTAMP = 4;
+
     void addSignature(OutputStream output, PDDocument document, String name, String reason, Date date, String location, String contact, SignatureOptions options, String applicationName, String applicationVersion) throws IOException;
 
+    /**
+     * カードから署名者証明書とルート証明書 (DER) を読み取ります。署名と同じようにカード セッションと段階を通知します。
+     */
+    byte[][] getCertificates() throws IOException;
+
+    /**
+     * content に対する分離署名の CMS SignedData (DER) をカードで作成します。署名と同じようにカード セッションと段階を通知します。
+     */
+    byte[] signData(byte[] content) throws IOException;
+
+    void setSelfCheck(boolean enabled);
+
+    void setExactSignatureSize(boolean enabled);
+
+    void setListener(Listener listener);
+
+    void setTimeStamper(TimeStamper timeStamper);
+
+    void setCardCaller(CardCaller caller);
+
+    interface TimeStamper {
+
+        /**
+         * 署名値の SHA-256 ダイジェストに対する RFC 3161 タイムスタンプ トークン (DER エンコードされた ContentInfo) を返します。
+         * カードを解放した後に呼ばれます。
+         */
+        byte[] getTimeStampToken(byte[] signatureDigest) throws IOException;
+
+        /**
+         * 署名にトークン用に確保するバイト数の見積もりを返します。見積もれない場合は 0 を返します。
+         * カードを使う前に呼ばれます。
+         */
+        int estimateTokenSize() throws IOException;
+    }
+
+    interface CardCaller {
+
+        /**
+         * カードとの JNI 呼び出しを実行し、その結果を返します。呼び出しがスローした例外はそのままスローします。
+         * 実行するスレッドは実装が選びます。cleanup が true の呼び出し (ハンドルの解放) は、完了を待つ間に割り込まれても取り消しません。
+         */
+        <T> T call(Callable<T> call, boolean cleanup) throws Exception;
+    }
+
+    interface Listener {
+
+        /** JPKICryptSignProvider を生成する (cryptAcquireContext を呼ぶ) 直前に呼ばれます。 */
+        void cardSessionOpening() throws IOException;
+
+        /** JPKICryptSignProvider を閉じた (cryptReleaseContext を呼んだ) 後に呼ばれます。 */
+        void cardSessionClosed();
+
+        /**
+         * カードを使用する段階の開始時に呼ばれます。
+         * context を閉じるとカードのコンテキストが解放され、応答待ちの呼び出しは失敗して戻ります。
+         */
+        void stageStarted(int stage, Closeable context) throws IOException;
+
+        /** カードを使用する段階が正常に終了したときに呼ばれます。 */
+        void stageFinished(int stage);
+
+        /**
+         * 署名済みの文書を出力し終えたときに呼ばれます。
+         * contentDigest は /ByteRange の SHA-256 ダイジェスト、certificates は署名者証明書とルート証明書 (DER) です。
+         */
+        void signatureCreated(byte[] contentDigest, byte[][] certificates, String name, String reason, Date date);
+    }
+
 }
@@ -0,0 +1,104 @@
+package net.osdn.jpki.wrapper.internal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import jp.go.jpki.appli.JPKICryptSignJNIException;
+
+/**
+ * カードとの JNI 呼び出しの種類、開始時刻、所要時間、エラー コードをファイルに記録します。
+ * <p>
+ * システム プロパティ net.osdn.jpki.wrapper.cardRecording にファイルを指定すると有効になり、ファイルの末尾に追記します。
+ * 鍵、証明書、ハッシュ値、署名値などの内容は記録しません (cryptHashData は渡したデータの長さだけを記録します)。
+ * 記録は jpki-stub の CardReplay で集計したり、スタブの応答として再生したりできます。
+ * <p>
+ * 1 件の記録は次の 28 バイトの固定長 (ビッグ エンディアン) です。
+ * <pre>
+ * version(1) op(1) reserved(2) startMicros(8) durationMicros(4) errorCode(4) winErrorCode(4) dataLength(4)
+ * </pre>
+ * startMicros はエポックからのマイクロ秒です。記録の書き込みに失敗しても署名処理は続行し、以降は記録しません。
+ */
+final class CardRecorder {
+
+	static final String PROPERTY = "net.osdn.jpki.wrapper.cardRecording";
+
+	static final int RECORD_LENGTH = 28;
+	static final byte VERSION = 1;
+
+	static final byte OP_ACQUIRE_CONTEXT = 1;
+	static final byte OP_RELEASE_CONTEXT = 2;
+	static final byte OP_GET_USER_KEY = 3;
+	static final byte OP_DESTROY_KEY = 4;
+	static final byte OP_GET_CERTIFICATE = 5;
+	static final byte OP_GET_ROOT_CERTIFICATE = 6;
+	static final byte OP_CREATE_HASH = 7;
+	static final byte OP_HASH_DATA = 8;
+	static final byte OP_SIGN_HASH = 9;
+	static final byte OP_DESTROY_HASH = 10;
+
+	private static final long EPOCH_OFFSET_NANOS = System.currentTimeMillis() * 1000000L - System.nanoTime();
+
+	private static String path;
+	private static FileChannel channel;
+	private static boolean failed;
+
+	private CardRecorder() {
+	}
+
+	static boolean isEnabled() {
+		String p = System.getProperty(PROPERTY);
+		return p != null && !p.isEmpty();
+	}
+
+	/**
+	 * startNanos (System.nanoTime) に始まり、いま終わった呼び出しを記録します。e は成功した場合 null です。
+	 */
+	static void record(byte op, long startNanos, JPKICryptSignJNIException e, int dataLength) {
+		long end = System.nanoTime();
+		ByteBuffer buf = ByteBuffer.allocate(RECORD_LENGTH);
+		buf.put(VERSION);
+		buf.put(op);
+		buf.putShort((short)0);
+		buf.putLong((startNanos + EPOCH_OFFSET_NANOS) / 1000L);
+		buf.putInt((int)Math.min(Integer.MAX_VALUE, (end - startNanos) / 1000L));
+		buf.putInt((e != null) ? e.getErrorCode() : 0);
+		buf.putInt((e != null) ? e.getWinErrorCode() : 0);
+		buf.putInt(dataLength);
+		buf.flip();
+		synchronized (CardRecorder.class) {
+			if(failed) {
+				return;
+			}
+			try {
+				FileChannel ch = open();
+				if(ch != null) {
+					// APPEND で開いているので、1 回の write で書いた記録はほかのプロセスの記録と混ざりません。
+					while(buf.hasRemaining()) {
+						ch.write(buf);
+					}
+				}
+			} catch(IOException ex) {
+				failed = true;
+				System.err.println("card recording disabled: " + ex);
+			}
+		}
+	}
+
+	private static FileChannel open() throws IOException {
+		String p = System.getProperty(PROPERTY);
+		if(p == null || p.isEmpty()) {
+			return null;
+		}
+		if(!p.equals(path)) {
+			if(channel != null) {
+				try { channel.close(); } catch(IOException e) {}
+			}
+			channel = FileChannel.open(Paths.get(p), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			path = p;
+		}
+		return channel;
+	}
+}
@@ -2,8 +2,11 @@ package net.osdn.jpki.wrapper.internal;
 
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 
+import net.osdn.jpki.wrapper.JpkiWrapperInternal;
 import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
 import org.bouncycastle.operator.ContentSigner;
 import org.bouncycastle.operator.DefaultSignatureAlgorithmIdentifierFinder;
@@ -21,13 +24,19 @@ public class JPKIContentSigner implements ContentSigner {
 		SHA256withRSA = finder.find("SHA256withRSA");
 	}
 	
-	private JPKICryptSignJNI jpkiCryptSign;
-	private int hProv;
+	private JPKICryptSignProvider jpki;
 	private ByteArrayOutputStream out = new ByteArrayOutputStream();
+	private JpkiWrapperInternal.Listener listener;
 	
 	public JPKIContentSigner(JPKICryptSignProvider jpki) {
-		this.jpkiCryptSign = jpki.getJPKICryptSignJNI();
-		this.hProv = jpki.getProviderHandle();
+		this.jpki = jpki;
+	}
+	
+	/**
+	 * カードで署名値を計算する間を署名の段階 (STAGE_SIGN) として listener に通知するように設定します。
+	 */
+	public void setListener(JpkiWrapperInternal.Listener listener) {
+		this.listener = listener;
 	}
 	
 	@Override
@@ -42,24 +51,22 @@ public class JPKIContentSigner implements ContentSigner {
 
 	@Override
 	public byte[] getSignature() {
-		int hHash = 0;
 		try {
 			byte[] message = out.toByteArray();
 			
-			hHash = jpkiCryptSign.cryptCreateHash(hProv, JPKICryptSignJNI.JPKI_CALG_SHA_256);
-			jpkiCryptSign.cryptHashData(hHash, message);
-			byte[] bSign = jpkiCryptSign.cryptSignHash(hHash);
+			if(listener != null) {
+				listener.stageStarted(JpkiWrapperInternal.STAGE_SIGN, jpki);
+			}
+			byte[] bSign = jpki.signHash(JPKICryptSignJNI.JPKI_CALG_SHA_256, message);
+			if(listener != null) {
+				listener.stageFinished(JpkiWrapperInternal.STAGE_SIGN);
+			}
 			
 			return bSign;
 		} catch (JPKICryptSignJNIException e) {
 			throw new RuntimeException(e);
-		} finally {
-			if(hHash != 0) {
-				try {
-					jpkiCryptSign.cryptDestroyHash(hHash);
-					hHash = 0;
-				} catch (JPKICryptSignJNIException e) {}
-			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
 		}
 	}
 }
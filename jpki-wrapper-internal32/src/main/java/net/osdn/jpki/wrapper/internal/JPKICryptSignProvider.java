@@ -4,56 +4,135 @@ package net.osdn.jpki.wrapper.internal;
 import java.io.Closeable;
 import java.io.IOException;
 
+import net.osdn.jpki.wrapper.JpkiWrapperInternal;
+
 import jp.go.jpki.appli.JPKICryptSignJNI;
 import jp.go.jpki.appli.JPKICryptSignJNIException;
 
+/**
+ * カードのコンテキストを 1 つ保持し、そのコンテキストを使うカードの呼び出しを行います。
+ * <p>
+ * 期限切れや取り消しのときは、署名処理とは別のスレッドから {@link #close()} が呼ばれます。
+ * 閉じた後に始まる呼び出しは {@link JPKICryptSignJNIException} で失敗します。
+ * 閉じたときに呼び出し中であれば、コンテキストはその呼び出しが戻ったときに解放するので、解放済みのハンドルで JNI を呼び出すことはありません。
+ * close は呼び出しが戻るのを待たずに戻ります。
+ */
 public class JPKICryptSignProvider implements Closeable {
 	
-	private JPKICryptSignJNI jpkiCryptSign;
+	private final JPKICryptSignJNI jpkiCryptSign;
 	private int hProv;
+	private boolean closed;
+	private int calls;
 	
-	public JPKICryptSignProvider() throws JPKICryptSignJNIException {
-		jpkiCryptSign = new JPKICryptSignJNI();
+	/**
+	 * @param caller JNI 呼び出しを実行するスレッドを選ぶ CardCaller。null の場合は呼び出し元のスレッドで実行します。
+	 */
+	public JPKICryptSignProvider(JpkiWrapperInternal.CardCaller caller) throws JPKICryptSignJNIException {
+		// 記録が有効な場合は、JNI 呼び出しの種類と所要時間を記録するサブクラスを使います。
+		JPKICryptSignJNI jni = CardRecorder.isEnabled() ? new RecordingJPKICryptSignJNI() : new JPKICryptSignJNI();
+		jpkiCryptSign = (caller != null) ? new PinnedJPKICryptSignJNI(jni, caller) : jni;
 		hProv = jpkiCryptSign.cryptAcquireContext(0);
 	}
 	
+	/**
+	 * JNI を返します。このインスタンスのコンテキストを使う呼び出しには、{@link #close()} と競合しないようにこのクラスのメソッドを使ってください。
+	 */
 	public JPKICryptSignJNI getJPKICryptSignJNI() {
 		return jpkiCryptSign;
 	}
 	
-	/* package private */ int getProviderHandle() {
-		return hProv;
-	}
-	
 	public byte[] getCertificate() throws JPKICryptSignJNIException {
+		int context = begin();
 		int hKey = 0;
 		try {
-			hKey = jpkiCryptSign.cryptGetUserKey(hProv);
+			hKey = jpkiCryptSign.cryptGetUserKey(context);
 			byte[] cert = jpkiCryptSign.cryptGetCertificateValue(hKey);
 			return cert;
 		} finally {
-			if(jpkiCryptSign != null && hKey != 0) {
-				jpkiCryptSign.cryptDestroyKey(hKey);
+			try {
+				if(hKey != 0) {
+					jpkiCryptSign.cryptDestroyKey(hKey);
+				}
+			} finally {
+				end();
 			}
 		}
 	}
 	
 	public byte[] getRootCertificate() throws JPKICryptSignJNIException {
-		return jpkiCryptSign.cryptGetRootCertificateValue(hProv);
+		int context = begin();
+		try {
+			return jpkiCryptSign.cryptGetRootCertificateValue(context);
+		} finally {
+			end();
+		}
+	}
+	
+	/**
+	 * message のハッシュをカードで署名し、署名値を返します。ハッシュのハンドルはコンテキストを解放する前に破棄します。
+	 */
+	/* package private */ byte[] signHash(int algorithm, byte[] message) throws JPKICryptSignJNIException {
+		int context = begin();
+		int hHash = 0;
+		try {
+			hHash = jpkiCryptSign.cryptCreateHash(context, algorithm);
+			jpkiCryptSign.cryptHashData(hHash, message);
+			return jpkiCryptSign.cryptSignHash(hHash);
+		} finally {
+			try {
+				if(hHash != 0) {
+					jpkiCryptSign.cryptDestroyHash(hHash);
+				}
+			} catch (JPKICryptSignJNIException e) {
+			} finally {
+				end();
+			}
+		}
+	}
+	
+	private synchronized int begin() throws JPKICryptSignJNIException {
+		if(closed) {
+			throw new JPKICryptSignJNIException(JPKICryptSignJNIException.JPKI_ERR_WINDOWS, JPKICryptSignJNIException.JPKI_WIN_ERR_BAD_UID,
+					"card context has been closed");
+		}
+		calls++;
+		return hProv;
+	}
+	
+	private void end() {
+		int release = 0;
+		synchronized (this) {
+			calls--;
+			if(closed && calls == 0) {
+				release = hProv;
+				hProv = 0;
+			}
+		}
+		if(release != 0) {
+			// 呼び出し中に閉じられていたので、最後の呼び出しが戻ったここで解放します。
+			try { jpkiCryptSign.cryptReleaseContext(release); } catch (JPKICryptSignJNIException e) {}
+		}
 	}
 	
 	@Override
 	public void close() throws IOException {
-		if(jpkiCryptSign != null) {
-			if(hProv != 0) {
-				try {
-					jpkiCryptSign.cryptReleaseContext(hProv);
-					hProv = 0;
-				} catch (JPKICryptSignJNIException e) {
-					throw new IOException(e);
-				}
+		int release = 0;
+		synchronized (this) {
+			if(closed) {
+				return;
+			}
+			closed = true;
+			if(calls == 0) {
+				release = hProv;
+				hProv = 0;
+			}
+		}
+		if(release != 0) {
+			try {
+				jpkiCryptSign.cryptReleaseContext(release);
+			} catch (JPKICryptSignJNIException e) {
+				throw new IOException(e);
 			}
 		}
-		jpkiCryptSign = null;
 	}
 }
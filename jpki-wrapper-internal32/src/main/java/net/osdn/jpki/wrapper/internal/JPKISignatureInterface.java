@@ -2,20 +2,39 @@ package net.osdn.jpki.wrapper.internal;
 
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPublicKey;
 import java.util.Arrays;
 
-import org.apache.pdfbox.io.IOUtils;
+import net.osdn.jpki.wrapper.JpkiWrapperInternal;
 import org.apache.pdfbox.pdmodel.interactive.digitalsignature.SignatureInterface;
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.cms.AttributeTable;
+import org.bouncycastle.asn1.cms.CMSObjectIdentifiers;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
 import org.bouncycastle.cert.jcajce.JcaCertStore;
 import org.bouncycastle.cms.CMSProcessableByteArray;
 import org.bouncycastle.cms.CMSSignedData;
 import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.cms.CMSTypedData;
 import org.bouncycastle.cms.SignerInfoGenerator;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.SignerInformationStore;
 import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
 import org.bouncycastle.operator.ContentSigner;
 import org.bouncycastle.operator.DigestCalculatorProvider;
@@ -23,34 +42,201 @@ import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
 
 public class JPKISignatureInterface implements SignatureInterface {
 
+	private static final int SIZE_MARGIN = 32;
+	
 	private JPKICryptSignProvider jpki;
+	private X509Certificate userCert;
+	private X509Certificate rootCert;
+	private byte[] contentDigest;
+	private byte[] signedData;
+	private JpkiWrapperInternal.Listener listener;
+	private JpkiWrapperInternal.TimeStamper timeStamper;
+	private Closeable cardSession;
 	
 	public JPKISignatureInterface(JPKICryptSignProvider jpki) {
 		this.jpki = jpki;
 	}
 	
+	public JPKISignatureInterface(JPKICryptSignProvider jpki, X509Certificate userCert, X509Certificate rootCert) {
+		this.jpki = jpki;
+		this.userCert = userCert;
+		this.rootCert = rootCert;
+	}
+	
+	public void setListener(JpkiWrapperInternal.Listener listener) {
+		this.listener = listener;
+	}
+	
+	/**
+	 * 署名値にタイムスタンプ トークンを付加するように設定します。
+	 * トークンを取得する前に cardSession を閉じて、ほかの署名処理がカードを使えるようにします。
+	 */
+	public void setTimeStamper(JpkiWrapperInternal.TimeStamper timeStamper, Closeable cardSession) {
+		this.timeStamper = timeStamper;
+		this.cardSession = cardSession;
+	}
+	
 	@Override
 	public byte[] sign(InputStream content) throws IOException {
 		try {
-        	X509Certificate userCert = generateCertificate(jpki.getCertificate());
-        	X509Certificate rootCert = generateCertificate(jpki.getRootCertificate());
-        	JcaCertStore certs = new JcaCertStore(Arrays.asList(userCert, rootCert));
-        	
-			DigestCalculatorProvider digestCalculatorProvider = new JcaDigestCalculatorProviderBuilder().build();
-			ContentSigner contentSigner = new JPKIContentSigner(jpki);
-			SignerInfoGenerator signerInfoGenerator = new JcaSignerInfoGeneratorBuilder(digestCalculatorProvider).build(contentSigner, userCert);
-			CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
-			generator.addSignerInfoGenerator(signerInfoGenerator);
-			generator.addCertificates(certs);
+			if(userCert == null) {
+				userCert = generateCertificate(jpki.getCertificate());
+			}
+			if(rootCert == null) {
+				rootCert = generateCertificate(jpki.getRootCertificate());
+			}
+			// 署名の段階 (STAGE_SIGN) は JPKIContentSigner がカードを呼び出す間だけです。文書のハッシュの計算は含みません。
+			JPKIContentSigner contentSigner = new JPKIContentSigner(jpki);
+			contentSigner.setListener(listener);
+			CMSSignedDataGenerator generator = createGenerator(contentSigner, userCert, rootCert);
 			
-			CMSProcessableByteArray message = new CMSProcessableByteArray(IOUtils.toByteArray(content));
-			CMSSignedData signedData = generator.generate(message, false);
-			return signedData.getEncoded();
+			// 署名対象をバイト配列にコピーせず、ハッシュを計算しながら読み進めます。
+			CMSProcessableInputStream message = new CMSProcessableInputStream(content);
+			CMSSignedData cms = generator.generate(message, false);
+			contentDigest = message.getDigest();
+			if(timeStamper != null) {
+				cms = addTimeStampToken(cms);
+			}
+			signedData = cms.getEncoded();
+			return signedData;
+		} catch(IOException e) {
+			throw e;
 		} catch(Exception e) {
 			throw new IOException(e);
 		}
 	}
 	
+	private CMSSignedData addTimeStampToken(CMSSignedData cms) throws Exception {
+		// 以降はカードを使わないので、ネットワークの往復を待つ間にほかの署名処理がカードを使えるように解放します。
+		if(cardSession != null) {
+			cardSession.close();
+		}
+		if(listener != null) {
+			listener.stageStarted(JpkiWrapperInternal.STAGE_TIMESTAMP, null);
+		}
+		SignerInformation signer = cms.getSignerInfos().getSigners().iterator().next();
+		byte[] digest = MessageDigest.getInstance("SHA-256").digest(signer.getSignature());
+		byte[] token = timeStamper.getTimeStampToken(digest);
+		if(listener != null) {
+			listener.stageFinished(JpkiWrapperInternal.STAGE_TIMESTAMP);
+		}
+		
+		ASN1EncodableVector attributes = new ASN1EncodableVector();
+		AttributeTable unsigned = signer.getUnsignedAttributes();
+		if(unsigned != null) {
+			attributes.addAll(unsigned.toASN1EncodableVector());
+		}
+		attributes.add(new Attribute(PKCSObjectIdentifiers.id_aa_signatureTimeStampToken, new DERSet(ASN1Primitive.fromByteArray(token))));
+		signer = SignerInformation.replaceUnsignedAttributes(signer, new AttributeTable(attributes));
+		return CMSSignedData.replaceSigners(cms, new SignerInformationStore(signer));
+	}
+	
+	/**
+	 * 署名に必要な /Contents のバイト数を返します。
+	 * カードを使わずに同じ証明書と鍵長のダミー署名で CMS を生成し、その長さに余裕分を加えた値です。
+	 */
+	public static int getRequiredSize(X509Certificate userCert, X509Certificate rootCert) throws IOException {
+		try {
+			int signatureLength = 256;
+			PublicKey publicKey = userCert.getPublicKey();
+			if(publicKey instanceof RSAPublicKey) {
+				signatureLength = (((RSAPublicKey)publicKey).getModulus().bitLength() + 7) / 8;
+			}
+			CMSSignedDataGenerator generator = createGenerator(new DummyContentSigner(signatureLength), userCert, rootCert);
+			byte[] encoded = generator.generate(new CMSProcessableByteArray(new byte[0]), false).getEncoded();
+			return encoded.length + SIZE_MARGIN;
+		} catch(Exception e) {
+			throw new IOException(e);
+		}
+	}
+	
+	private static CMSSignedDataGenerator createGenerator(ContentSigner contentSigner, X509Certificate userCert, X509Certificate rootCert) throws Exception {
+		JcaCertStore certs = new JcaCertStore(Arrays.asList(userCert, rootCert));
+		DigestCalculatorProvider digestCalculatorProvider = new JcaDigestCalculatorProviderBuilder().build();
+		SignerInfoGenerator signerInfoGenerator = new JcaSignerInfoGeneratorBuilder(digestCalculatorProvider).build(contentSigner, userCert);
+		CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
+		generator.addSignerInfoGenerator(signerInfoGenerator);
+		generator.addCertificates(certs);
+		return generator;
+	}
+	
+	public byte[] getContentDigest() {
+		return contentDigest;
+	}
+	
+	public byte[] getSignedData() {
+		return signedData;
+	}
+	
+	/**
+	 * 署名対象の入力ストリームを 1 回だけ読み、その SHA-256 ダイジェストを記録します。
+	 * 分離署名では CMSSignedDataGenerator が write を 1 回だけ呼びます。
+	 */
+	private static class CMSProcessableInputStream implements CMSTypedData {
+		
+		private final InputStream in;
+		private final MessageDigest md;
+		private byte[] digest;
+		
+		public CMSProcessableInputStream(InputStream in) throws NoSuchAlgorithmException {
+			this.in = in;
+			this.md = MessageDigest.getInstance("SHA-256");
+		}
+		
+		@Override
+		public ASN1ObjectIdentifier getContentType() {
+			return CMSObjectIdentifiers.data;
+		}
+		
+		@Override
+		public Object getContent() {
+			return in;
+		}
+		
+		@Override
+		public void write(OutputStream out) throws IOException {
+			if(digest != null) {
+				throw new IOException("content has already been read");
+			}
+			byte[] buf = new byte[65536];
+			int len;
+			while((len = in.read(buf)) != -1) {
+				md.update(buf, 0, len);
+				out.write(buf, 0, len);
+			}
+			digest = md.digest();
+		}
+		
+		public byte[] getDigest() {
+			return digest;
+		}
+	}
+	
+	private static class DummyContentSigner implements ContentSigner {
+		
+		private int signatureLength;
+		private OutputStream out = new ByteArrayOutputStream();
+		
+		public DummyContentSigner(int signatureLength) {
+			this.signatureLength = signatureLength;
+		}
+		
+		@Override
+		public AlgorithmIdentifier getAlgorithmIdentifier() {
+			return JPKIContentSigner.SHA256withRSA;
+		}
+		
+		@Override
+		public OutputStream getOutputStream() {
+			return out;
+		}
+		
+		@Override
+		public byte[] getSignature() {
+			return new byte[signatureLength];
+		}
+	}
+	
 	public static X509Certificate generateCertificate(byte[] bytes) throws CertificateException {
 		CertificateFactory factory = CertificateFactory.getInstance("X.509");
 		InputStream in = null;
@@ -0,0 +1,141 @@
+package net.osdn.jpki.wrapper.internal;
+
+import java.util.concurrent.Callable;
+
+import net.osdn.jpki.wrapper.JpkiWrapperInternal;
+
+import jp.go.jpki.appli.JPKICryptSignJNI;
+import jp.go.jpki.appli.JPKICryptSignJNIException;
+
+/**
+ * JPKICryptSignProvider と JPKIContentSigner が使う JNI 呼び出しを {@link JpkiWrapperInternal.CardCaller} に渡して実行します。
+ * 仮想スレッドで署名する場合も、カードとの JNI 呼び出しだけはプラットフォーム スレッドで実行されます。
+ * ハンドルを解放する呼び出しは、待機中に割り込まれても取り消さないように後始末として渡します。
+ */
+/* package private */ class PinnedJPKICryptSignJNI extends JPKICryptSignJNI {
+
+	private final JPKICryptSignJNI delegate;
+	private final JpkiWrapperInternal.CardCaller caller;
+
+	PinnedJPKICryptSignJNI(JPKICryptSignJNI delegate, JpkiWrapperInternal.CardCaller caller) {
+		this.delegate = delegate;
+		this.caller = caller;
+	}
+
+	@Override
+	public int cryptAcquireContext(final int flags) throws JPKICryptSignJNIException {
+		return call(new Callable<Integer>() {
+			@Override
+			public Integer call() throws JPKICryptSignJNIException {
+				return delegate.cryptAcquireContext(flags);
+			}
+		}, false);
+	}
+
+	@Override
+	public void cryptReleaseContext(final int hProv) throws JPKICryptSignJNIException {
+		call(new Callable<Void>() {
+			@Override
+			public Void call() throws JPKICryptSignJNIException {
+				delegate.cryptReleaseContext(hProv);
+				return null;
+			}
+		}, true);
+	}
+
+	@Override
+	public int cryptGetUserKey(final int hProv) throws JPKICryptSignJNIException {
+		return call(new Callable<Integer>() {
+			@Override
+			public Integer call() throws JPKICryptSignJNIException {
+				return delegate.cryptGetUserKey(hProv);
+			}
+		}, false);
+	}
+
+	@Override
+	public void cryptDestroyKey(final int hKey) throws JPKICryptSignJNIException {
+		call(new Callable<Void>() {
+			@Override
+			public Void call() throws JPKICryptSignJNIException {
+				delegate.cryptDestroyKey(hKey);
+				return null;
+			}
+		}, true);
+	}
+
+	@Override
+	public byte[] cryptGetCertificateValue(final int hKey) throws JPKICryptSignJNIException {
+		return call(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws JPKICryptSignJNIException {
+				return delegate.cryptGetCertificateValue(hKey);
+			}
+		}, false);
+	}
+
+	@Override
+	public byte[] cryptGetRootCertificateValue(final int hProv) throws JPKICryptSignJNIException {
+		return call(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws JPKICryptSignJNIException {
+				return delegate.cryptGetRootCertificateValue(hProv);
+			}
+		}, false);
+	}
+
+	@Override
+	public int cryptCreateHash(final int hProv, final int algorithm) throws JPKICryptSignJNIException {
+		return call(new Callable<Integer>() {
+			@Override
+			public Integer call() throws JPKICryptSignJNIException {
+				return delegate.cryptCreateHash(hProv, algorithm);
+			}
+		}, false);
+	}
+
+	@Override
+	public void cryptHashData(final int hHash, final byte[] data) throws JPKICryptSignJNIException {
+		call(new Callable<Void>() {
+			@Override
+			public Void call() throws JPKICryptSignJNIException {
+				delegate.cryptHashData(hHash, data);
+				return null;
+			}
+		}, false);
+	}
+
+	@Override
+	public byte[] cryptSignHash(final int hHash) throws JPKICryptSignJNIException {
+		return call(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws JPKICryptSignJNIException {
+				return delegate.cryptSignHash(hHash);
+			}
+		}, false);
+	}
+
+	@Override
+	public void cryptDestroyHash(final int hHash) throws JPKICryptSignJNIException {
+		call(new Callable<Void>() {
+			@Override
+			public Void call() throws JPKICryptSignJNIException {
+				delegate.cryptDestroyHash(hHash);
+				return null;
+			}
+		}, true);
+	}
+
+	private <T> T call(Callable<T> call, boolean cleanup) throws JPKICryptSignJNIException {
+		try {
+			return caller.call(call, cleanup);
+		} catch(JPKICryptSignJNIException e) {
+			throw e;
+		} catch(RuntimeException e) {
+			throw e;
+		} catch(Exception e) {
+			// 呼び出しの完了を待つ間に割り込まれた場合などです。
+			throw new JPKICryptSignJNIException(JPKICryptSignJNIException.JPKI_ERR_UNKNOWN, 0, e.toString());
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package net.osdn.jpki.wrapper.internal;
+
+import jp.go.jpki.appli.JPKICryptSignJNI;
+import jp.go.jpki.appli.JPKICryptSignJNIException;
+
+/**
+ * JPKICryptSignProvider と JPKIContentSigner が使う JNI 呼び出しを {@link CardRecorder} に記録します。
+ * 引数と戻り値はそのまま受け渡し、内容は記録しません。
+ */
+/* package private */ class RecordingJPKICryptSignJNI extends JPKICryptSignJNI {
+
+	@Override
+	public int cryptAcquireContext(int flags) throws JPKICryptSignJNIException {
+		long start = System.nanoTime();
+		try {
+			int hProv = super.cryptAcquireContext(flags);
+			CardRecorder.record(CardRecorder.OP_ACQUIRE_CONTEXT, start, null, 0);
+			return hProv;
+		} catch(JPKICryptSignJNIException e) {
+			CardRecorder.record(CardRecorder.OP_ACQUIRE_CONTEXT, start, e, 0);
+			throw e;
+		}
+	}
+
+	@Override
+	public void cryptReleaseContext(int hProv) throws JPKICryptSignJNIException {
+		long start = System.nanoTime();
+		try {
+			super.cryptReleaseContext(hProv);
+			CardRecorder.record(CardRecorder.OP_RELEASE_CONTEXT, start, null, 0);
+		} catch(JPKICryptSignJNIException e) {
+			CardRecorder.record(CardRecorder.OP_RELEASE_CONTEXT, start, e, 0);
+			throw e;
+		}
+	}
+
+	@Override
+	public int cryptGetUserKey(int hProv) throws JPKICryptSignJNIException {
+		long start = System.nanoTime();
+		try {
+			int hKey = super.cryptGetUserKey(hProv);
+			CardRecorder.record(CardRecorder.OP_GET_USER_KEY, start, null, 0);
+			return hKey;
+		} catch(JPKICryptSignJNIException e) {
+			CardRecorder.record(CardRecorder.OP_GET_USER_KEY, start, e, 0);
+			throw e;
+		}
+	}
+
+	@Override
+	public void cryptDestroyKey(int hKey) throws JPKICryptSignJNIException {
+		long start = System.nanoTime();
+		try {
+			super.cryptDestroyKey(hKey);
+			CardRecorder.record(CardRecorder.OP_DESTROY_KEY, start, null, 0);
+		} catch(JPKICryptSignJNIException e) {
+			CardRecorder.record(CardRecorder.OP_DESTROY_KEY, start, e, 0);
+			throw e;
+		}
+	}
+
+	@Override
+	public byte[] cryptGetCertificateValue(int hKey) throws JPKICryptSignJNIException {
+		long start = System.nanoTime();
+		try {
+			byte[] cert = super.cryptGetCertificateValue(hKey);
+			CardRecorder.record(CardRecorder.OP_GET_CERTIFICATE, start, null, 0);
+			return cert;
+		} catch(JPKICryptSignJNIException e) {
+			CardRecorder.record(CardRecorder.OP_GET_CERTIFICATE, start, e, 0);
+			throw e;
+		}
+	}
+
+	@Override
+	public byte[] cryptGetRootCertificateValue(int hProv) throws JPKICryptSignJNIException {
+		long start = System.nanoTime();
+		try {
+			byte[] cert = super.cryptGetRootCertificateValue(hProv);
+			CardRecorder.record(CardRecorder.OP_GET_ROOT_CERTIFICATE, start, null, 0);
+			return cert;
+		} catch(JPKICryptSignJNIException e) {
+			CardRecorder.record(CardRecorder.OP_GET_ROOT_CERTIFICATE, start, e, 0);
+			throw e;
+		}
+	}
+
+	@Override
+	public int cryptCreateHash(int hProv, int algorithm) throws JPKICryptSignJNIException {
+		long start = System.nanoTime();
+		try {
+			int hHash = super.cryptCreateHash(hProv, algorithm);
+			CardRecorder.record(CardRecorder.OP_CREATE_HASH, start, null, 0);
+			return hHash;
+		} catch(JPKICryptSignJNIException e) {
+			CardRecorder.record(CardRecorder.OP_CREATE_HASH, start, e, 0);
+			throw e;
+		}
+	}
+
+	@Override
+	public void cryptHashData(int hHash, byte[] data) throws JPKICryptSignJNIException {
+		long start = System.nanoTime();
+		try {
+			super.cryptHashData(hHash, data);
+			CardRecorder.record(CardRecorder.OP_HASH_DATA, start, null, data.length);
+		} catch(JPKICryptSignJNIException e) {
+			CardRecorder.record(CardRecorder.OP_HASH_DATA, start, e, data.length);
+			throw e;
+		}
+	}
+
+	@Override
+	public byte[] cryptSignHash(int hHash) throws JPKICryptSignJNIException {
+		long start = System.nanoTime();
+		try {
+			byte[] signature = super.cryptSignHash(hHash);
+			CardRecorder.record(CardRecorder.OP_SIGN_HASH, start, null, 0);
+			return signature;
+		} catch(JPKICryptSignJNIException e) {
+			CardRecorder.record(CardRecorder.OP_SIGN_HASH, start, e, 0);
+			throw e;
+		}
+	}
+
+	@Override
+	public void cryptDestroyHash(int hHash) throws JPKICryptSignJNIException {
+		long start = System.nanoTime();
+		try {
+			super.cryptDestroyHash(hHash);
+			CardRecorder.record(CardRecorder.OP_DESTROY_HASH, start, null, 0);
+		} catch(JPKICryptSignJNIException e) {
+			CardRecorder.record(CardRecorder.OP_DESTROY_HASH, start, e, 0);
+			throw e;
+		}
+	}
+}
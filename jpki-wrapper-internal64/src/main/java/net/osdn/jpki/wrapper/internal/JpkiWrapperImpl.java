@@ -1,7 +1,12 @@
 package net.osdn.jpki.wrapper.internal;
 
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 
@@ -23,6 +28,44 @@ import jp.go.jpki.appli.JPKIUserCertService;
 
 public class JpkiWrapperImpl implements JpkiWrapperInternal {
 	
+	private volatile boolean selfCheck;
+	private volatile boolean exactSignatureSize = true;
+	private volatile RequiredSize requiredSize;
+	private volatile Listener listener;
+	private volatile TimeStamper timeStamper;
+	private volatile CardCaller cardCaller;
+	
+	/** トークンの長さを見積もれないときにタイムスタンプ トークン用に確保するバイト数 */
+	private static final int DEFAULT_TIMESTAMP_TOKEN_SIZE = 8192;
+	
+	/** 見積もったトークンの長さに加えて確保するバイト数 */
+	private static final int TIMESTAMP_TOKEN_MARGIN = 1024;
+	
+	@Override
+	public void setSelfCheck(boolean enabled) {
+		selfCheck = enabled;
+	}
+	
+	@Override
+	public void setExactSignatureSize(boolean enabled) {
+		exactSignatureSize = enabled;
+	}
+	
+	@Override
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+	
+	@Override
+	public void setTimeStamper(TimeStamper timeStamper) {
+		this.timeStamper = timeStamper;
+	}
+	
+	@Override
+	public void setCardCaller(CardCaller caller) {
+		this.cardCaller = caller;
+	}
+	
 	@Override
 	public void addSignature(OutputStream output, PDDocument document, String name, String reason, Date date, String location, String contact, SignatureOptions options, String applicationName, String applicationVersion) throws IOException {
 		try {
@@ -34,22 +77,124 @@ public class JpkiWrapperImpl implements JpkiWrapperInternal {
 		}
 	}
 	
+	@Override
+	public byte[][] getCertificates() throws IOException {
+		Listener listener = this.listener;
+		CardSession session = new CardSession(listener);
+		try {
+			if(listener != null) {
+				listener.cardSessionOpening();
+				session.opened = true;
+				listener.stageStarted(STAGE_ACQUIRE, null);
+			}
+			JPKICryptSignProvider jpki = session.jpki = new JPKICryptSignProvider(cardCaller);
+			if(listener != null) {
+				listener.stageFinished(STAGE_ACQUIRE);
+				listener.stageStarted(STAGE_CERTIFICATE, jpki);
+			}
+			byte[][] certificates = new byte[][] { jpki.getCertificate(), jpki.getRootCertificate() };
+			if(listener != null) {
+				listener.stageFinished(STAGE_CERTIFICATE);
+			}
+			return certificates;
+		} catch (JPKICryptSignJNIException e) {
+			throw new IOException(String.format("!ErrorCode=%d,WinErrorCode=%d", e.getErrorCode(), e.getWinErrorCode()), e);
+		} finally {
+			session.close();
+		}
+	}
+	
+	@Override
+	public byte[] signData(byte[] content) throws IOException {
+		Listener listener = this.listener;
+		TimeStamper timeStamper = this.timeStamper;
+		CardSession session = new CardSession(listener);
+		try {
+			if(listener != null) {
+				listener.cardSessionOpening();
+				session.opened = true;
+				listener.stageStarted(STAGE_ACQUIRE, null);
+			}
+			JPKICryptSignProvider jpki = session.jpki = new JPKICryptSignProvider(cardCaller);
+			if(listener != null) {
+				listener.stageFinished(STAGE_ACQUIRE);
+				listener.stageStarted(STAGE_CERTIFICATE, jpki);
+			}
+			X509Certificate userCertificate;
+			X509Certificate rootCertificate;
+			try {
+				userCertificate = JPKISignatureInterface.generateCertificate(jpki.getCertificate());
+				rootCertificate = JPKISignatureInterface.generateCertificate(jpki.getRootCertificate());
+			} catch(CertificateException e) {
+				throw new IOException(e);
+			}
+			if(listener != null) {
+				listener.stageFinished(STAGE_CERTIFICATE);
+			}
+			JPKISignatureInterface signatureInterface = new JPKISignatureInterface(jpki, userCertificate, rootCertificate);
+			signatureInterface.setListener(listener);
+			if(timeStamper != null) {
+				signatureInterface.setTimeStamper(timeStamper, session);
+			}
+			return signatureInterface.sign(new ByteArrayInputStream(content));
+		} catch (JPKICryptSignJNIException e) {
+			throw new IOException(String.format("!ErrorCode=%d,WinErrorCode=%d", e.getErrorCode(), e.getWinErrorCode()), e);
+		} finally {
+			session.close();
+		}
+	}
+	
 	private void addSignatureWithJNIException(OutputStream output, PDDocument document, String name, String reason, Date date, String location, String contact, SignatureOptions options, String applicationName, String applicationVersion) throws IOException, JPKICryptSignJNIException, JPKIUserCertException {
 		int accessPermissions = getMDPPermission(document);
 		if (accessPermissions == 1) {
 			throw new IOException("この文書の変更は許可されていません。");
 		}
 		
+		Listener listener = this.listener;
+		TimeStamper timeStamper = this.timeStamper;
+		boolean estimateSize = exactSignatureSize && (options == null || options.getPreferredSignatureSize() == 0);
+		int timeStampTokenSize = 0;
+		if(timeStamper != null && estimateSize) {
+			// カードを使う前に見積もります。
+			int estimate = timeStamper.estimateTokenSize();
+			timeStampTokenSize = (estimate > 0) ? estimate + TIMESTAMP_TOKEN_MARGIN : DEFAULT_TIMESTAMP_TOKEN_SIZE;
+		}
+		CardSession session = new CardSession(listener);
 		JPKICryptSignProvider jpki = null;
+		SignatureOptions createdOptions = null;
 		try {
-			jpki = new JPKICryptSignProvider();
+			if(listener != null) {
+				listener.cardSessionOpening();
+				session.opened = true;
+			}
+			if(listener != null) {
+				listener.stageStarted(STAGE_ACQUIRE, null);
+			}
+			jpki = session.jpki = new JPKICryptSignProvider(cardCaller);
+			if(listener != null) {
+				listener.stageFinished(STAGE_ACQUIRE);
+				listener.stageStarted(STAGE_CERTIFICATE, jpki);
+			}
+
+			byte[] cert = jpki.getCertificate();
+			byte[] rootCert = jpki.getRootCertificate();
+			X509Certificate userCertificate;
+			X509Certificate rootCertificate;
+			try {
+				userCertificate = JPKISignatureInterface.generateCertificate(cert);
+				rootCertificate = JPKISignatureInterface.generateCertificate(rootCert);
+			} catch(CertificateException e) {
+				throw new IOException(e);
+			}
 
 			if(name == null) {
-				byte[] cert = jpki.getCertificate();
 				JPKIUserCertService ucs = new JPKIUserCertService(cert);
 				JPKIUserCertBasicData basicData = ucs.getBasicData();
 				name = basicData.getName();
 			}
+			if(listener != null) {
+				listener.stageFinished(STAGE_CERTIFICATE);
+			}
 			if(reason == null) {
 				reason = name + " によって署名されています。";
 			}
@@ -80,16 +225,90 @@ public class JpkiWrapperImpl implements JpkiWrapperInternal {
 				propBuild.setPDPropBuildApp(dict);
 				signature.setPropBuild(propBuild);
 			}
+			if(estimateSize) {
+				if(options == null) {
+					options = createdOptions = new SignatureOptions();
+				}
+				options.setPreferredSignatureSize(getRequiredSize(cert, rootCert, userCertificate, rootCertificate) + timeStampTokenSize);
+			}
+			JPKISignatureInterface signatureInterface = new JPKISignatureInterface(jpki, userCertificate, rootCertificate);
+			signatureInterface.setListener(listener);
+			if(timeStamper != null) {
+				signatureInterface.setTimeStamper(timeStamper, session);
+			}
 			if(options != null) {
-				document.addSignature(signature, new JPKISignatureInterface(jpki), options);
+				document.addSignature(signature, signatureInterface, options);
+			} else {
+				document.addSignature(signature, signatureInterface);
+			}
+			if(selfCheck) {
+				SelfCheckOutputStream out = new SelfCheckOutputStream(output, signature, signatureInterface);
+				document.saveIncremental(out);
+				try {
+					out.verify();
+				} catch(IOException e) {
+					throw new IOException(String.format("!ErrorCode=%d,WinErrorCode=%d", ERROR_SELF_CHECK_FAILED, 0), e);
+				}
 			} else {
-				document.addSignature(signature, new JPKISignatureInterface(jpki));
+				document.saveIncremental(output);
+			}
+			if(listener != null) {
+				listener.signatureCreated(signatureInterface.getContentDigest(), new byte[][] { cert, rootCert }, name, reason, date);
 			}
-			document.saveIncremental(output);
 		} finally {
+			if(createdOptions != null) {
+				try { createdOptions.close(); } catch(Exception e) {}
+			}
+			session.close();
+		}
+	}
+	
+	/**
+	 * カードのコンテキストを解放して cardSessionClosed を通知します。
+	 * タイムスタンプを取得する前と処理の終了時の両方から閉じられるので、2 回目以降は何もしません。
+	 */
+	private static class CardSession implements Closeable {
+		final Listener listener;
+		JPKICryptSignProvider jpki;
+		boolean opened;
+		
+		CardSession(Listener listener) {
+			this.listener = listener;
+		}
+		
+		@Override
+		public void close() {
 			if(jpki != null) {
 				try { jpki.close(); } catch(Exception e) {}
+				jpki = null;
 			}
+			if(opened) {
+				opened = false;
+				listener.cardSessionClosed();
+			}
+		}
+	}
+	
+	private int getRequiredSize(byte[] cert, byte[] rootCert, X509Certificate userCertificate, X509Certificate rootCertificate) throws IOException {
+		// カードの証明書は変わらないので、同じ証明書に対する計算結果は使い回します。
+		RequiredSize cache = requiredSize;
+		if(cache != null && Arrays.equals(cache.cert, cert) && Arrays.equals(cache.rootCert, rootCert)) {
+			return cache.size;
+		}
+		int size = JPKISignatureInterface.getRequiredSize(userCertificate, rootCertificate);
+		requiredSize = new RequiredSize(cert, rootCert, size);
+		return size;
+	}
+	
+	private static class RequiredSize {
+		final byte[] cert;
+		final byte[] rootCert;
+		final int size;
+		
+		RequiredSize(byte[] cert, byte[] rootCert, int size) {
+			this.cert = cert;
+			this.rootCert = rootCert;
+			this.size = size;
 		}
 	}
 	
@@ -0,0 +1,134 @@
+package net.osdn.jpki.wrapper.internal;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.PDSignature;
+
+/**
+ * 書き込まれる署名済み PDF を通過させながら /ByteRange の範囲だけを再ハッシュし、
+ * 署名時に計算したダイジェストおよび /Contents の内容と照合します。
+ * PDF の再解析や出力ファイルの読み直しは行いません。
+ */
+public class SelfCheckOutputStream extends FilterOutputStream {
+
+	private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+
+	private PDSignature signature;
+	private JPKISignatureInterface signatureInterface;
+	private MessageDigest digest;
+	private long[] byteRange;
+	private byte[] contents;
+	private long position;
+	private String error;
+
+	public SelfCheckOutputStream(OutputStream out, PDSignature signature, JPKISignatureInterface signatureInterface) {
+		super(out);
+		this.signature = signature;
+		this.signatureInterface = signatureInterface;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte)b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		if(len <= 0 || error != null) {
+			return;
+		}
+		if(byteRange == null) {
+			// COSWriter は署名を計算した後で出力を書き込むので、この時点で /ByteRange は確定しています。
+			prepare();
+			if(error != null) {
+				return;
+			}
+		}
+		long start = position;
+		long end = position + len;
+		update(b, off, start, end, byteRange[0], byteRange[0] + byteRange[1]);
+		update(b, off, start, end, byteRange[2], byteRange[2] + byteRange[3]);
+		compareContents(b, off, start, end, byteRange[0] + byteRange[1], byteRange[2]);
+		position = end;
+	}
+
+	public void verify() throws IOException {
+		if(error == null && byteRange == null) {
+			error = "nothing was written to the output";
+		}
+		if(error == null && position != byteRange[2] + byteRange[3]) {
+			error = "output length " + position + " does not match /ByteRange end " + (byteRange[2] + byteRange[3]);
+		}
+		if(error == null && !Arrays.equals(digest.digest(), signatureInterface.getContentDigest())) {
+			error = "digest of /ByteRange differs from the digest that was signed";
+		}
+		if(error != null) {
+			throw new IOException("Signature self-check failed: " + error);
+		}
+	}
+
+	private void prepare() {
+		int[] range = signature.getByteRange();
+		if(range == null || range.length != 4 || range[0] != 0 || range[2] < range[1]) {
+			error = "invalid /ByteRange " + Arrays.toString(range);
+			return;
+		}
+		byte[] signedData = signatureInterface.getSignedData();
+		if(signedData == null || signatureInterface.getContentDigest() == null) {
+			error = "signature was not created";
+			return;
+		}
+		if(signedData.length * 2 + 2 > range[2] - range[1]) {
+			error = "signature (" + signedData.length + " bytes) does not fit in /Contents";
+			return;
+		}
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch(NoSuchAlgorithmException e) {
+			error = e.toString();
+			return;
+		}
+		byteRange = new long[] { range[0], range[1], range[2], range[3] };
+		contents = signedData;
+	}
+
+	private void update(byte[] b, int off, long start, long end, long rangeStart, long rangeEnd) {
+		long from = Math.max(start, rangeStart);
+		long to = Math.min(end, rangeEnd);
+		if(from < to) {
+			digest.update(b, off + (int)(from - start), (int)(to - from));
+		}
+	}
+
+	private void compareContents(byte[] b, int off, long start, long end, long gapStart, long gapEnd) {
+		long from = Math.max(start, gapStart);
+		long to = Math.min(end, gapEnd);
+		for(long p = from; p < to; p++) {
+			int actual = b[off + (int)(p - start)] & 0xFF;
+			if(Character.toUpperCase(actual) != expectedContentsByte(p - gapStart, gapEnd - gapStart)) {
+				error = "/Contents at offset " + p + " does not match the signature";
+				return;
+			}
+		}
+	}
+
+	private int expectedContentsByte(long i, long length) {
+		if(i == 0) {
+			return '<';
+		} else if(i == length - 1) {
+			return '>';
+		}
+		long hex = i - 1;
+		if(hex < contents.length * 2L) {
+			int v = contents[(int)(hex / 2)] & 0xFF;
+			return HEX[(hex % 2 == 0) ? (v >> 4) : (v & 0x0F)];
+		}
+		return '0';
+	}
+}
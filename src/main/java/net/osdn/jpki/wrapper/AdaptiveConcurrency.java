@@ -0,0 +1,399 @@
+package net.osdn.jpki.wrapper;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * IC カードの使用率とヒープの空きに応じて、同時に準備する文書の数を調整します。
+ * <p>
+ * 文書の読み込みや署名前の準備を並列に行い、カードでの署名を順番に行う使い方では、並列数が少ないとカードが待たされ、
+ * 多いとカードの順番を待つ文書がヒープを占有します。このクラスは処理中の文書の数 (準備中の文書とカードの順番を待つ文書の合計) を
+ * 上限 {@link #getLimit()} までに制限し、一定の間隔 (ウィンドウ) ごとに次のように上限を見直します。
+ * <ul>
+ * <li>ヒープの空きが {@link #setMinHeapHeadroom(double)} を下回ったら、上限を 3/4 に減らします。</li>
+ * <li>カードの順番を待っている文書が 2 件を超えたら、1 件を残して減らします (1 回に減らすのは超過分の半分まで)。</li>
+ * <li>カードの使用率が {@link #setTargetUtilization(double)} に届かず、順番を待っている文書がなく、
+ *     処理中の文書が上限に達していたら、上限を 1 増やします。最初に順番待ちが生じるまでは 2 倍ずつ増やします。</li>
+ * </ul>
+ * カードが律速している間は、文書 1 件の処理時間は上限に比例して延びます。順番を待っている文書の数は、
+ * 順番待ちのない処理時間の推定値 (基準値) との比から上限 × (1 - 基準値 / 処理時間) として推定します。
+ * 基準値はウィンドウで最も短かった処理時間で更新します。それより長くなった場合も、ウィンドウごとに差の 1/4 ずつ近づけるので、
+ * 文書が大きくなるなどして処理時間そのものが延びたときに、順番待ちと取り違えて上限を減らし続けることはありません。
+ * カードの使用時間はカードのコンテキストを取得する段階の開始から署名値を計算する段階の終了までで、
+ * {@link JpkiWrapper#setStageListener(JpkiStageListener)} にこのインスタンスを設定すると計測されます。
+ * ヒープの使用量は、若い世代についてはガベージ コレクション直後の値を使います。
+ * <p>
+ * 調整するのは処理中の文書の数の上限だけで、スレッドの数やカードの順番待ちの列は直接は変えません。
+ * スレッド プールで処理する場合は maxLimit 個のワーカー スレッドを用意し、文書をプールに投入する前に {@link #acquire()} を呼んでください。
+ * 投入する側が待つので、プールのキューに文書が溜まることはなく、同時に動くワーカーは上限までになります。
+ * カードの順番を待つ文書は処理中の文書の一部なので、その数は上限から準備中の文書の数を引いた分を超えません。
+ * BatchSigner の --adaptive では、--threads がワーカーの数と上限の最大値になります。
+ * <p>
+ * 文書ごとに {@link #acquire()} を呼んで処理を始め、終わったら戻り値を {@link #release(long)} に渡してください。
+ * 判断の結果と計測値は {@link #getMetrics()} で取得できます。このクラスはスレッド セーフです。
+ */
+public class AdaptiveConcurrency implements JpkiStageListener {
+
+	private static final double MAX_QUEUED = 2.0;
+	private static final double MIN_QUEUED = 1.0;
+
+	/** 基準値より長い処理時間に、基準値をウィンドウごとに近づける割合 */
+	private static final double BASELINE_DECAY = 0.25;
+
+	private final int minLimit;
+	private final int maxLimit;
+	private double targetUtilization = 0.95;
+	private double minHeapHeadroom = 0.2;
+	private long windowNanos = TimeUnit.MILLISECONDS.toNanos(500);
+
+	private final ThreadLocal<Long> cardSessionStart = new ThreadLocal<Long>();
+
+	private int limit;
+	private int inFlight;
+	private boolean slowStart = true;
+	private long baselineDocumentNanos = Long.MAX_VALUE;
+	private long increases;
+	private long decreases;
+	private String decision = "start";
+
+	private long windowStart = nanoTime();
+	private int windowPeakInFlight;
+	private long windowCardBusy;
+	private int windowCardSessions;
+	private long windowSign;
+	private int windowSigns;
+	private long windowDocumentNanos;
+	private long windowMinDocumentNanos = Long.MAX_VALUE;
+	private int windowDocuments;
+
+	private Metrics metrics;
+
+	/**
+	 * 上限を minLimit から maxLimit の範囲で調整します。最初の上限は minLimit です。
+	 */
+	public AdaptiveConcurrency(int minLimit, int maxLimit) {
+		if(minLimit < 1 || maxLimit < minLimit) {
+			throw new IllegalArgumentException("invalid limits: " + minLimit + ", " + maxLimit);
+		}
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.limit = minLimit;
+		this.metrics = new Metrics(this, 0, 0, 0, 0, 0, heapHeadroom());
+	}
+
+	/**
+	 * 目標とするカードの使用率 (0 より大きく 1 以下) を設定します。既定値は 0.95 です。
+	 */
+	public synchronized void setTargetUtilization(double utilization) {
+		if(!(utilization > 0 && utilization <= 1)) {
+			throw new IllegalArgumentException("utilization: " + utilization);
+		}
+		targetUtilization = utilization;
+	}
+
+	/**
+	 * 最大ヒープ サイズに対して確保しておく空きの割合 (0 以上 1 未満) を設定します。既定値は 0.2 です。
+	 */
+	public synchronized void setMinHeapHeadroom(double headroom) {
+		if(!(headroom >= 0 && headroom < 1)) {
+			throw new IllegalArgumentException("headroom: " + headroom);
+		}
+		minHeapHeadroom = headroom;
+	}
+
+	/**
+	 * 上限を見直す最短の間隔を設定します。既定値は 500 ミリ秒です。
+	 * カードのセッションが 1 回も終わっていないウィンドウでは見直しません。
+	 */
+	public synchronized void setWindow(long window, TimeUnit unit) {
+		windowNanos = unit.toNanos(window);
+	}
+
+	/**
+	 * 処理中の文書の数が上限を下回るまで待ってから、文書の処理を始めます。戻り値を {@link #release(long)} に渡してください。
+	 */
+	public synchronized long acquire() throws InterruptedException {
+		while(inFlight >= limit) {
+			wait();
+		}
+		inFlight++;
+		if(inFlight > windowPeakInFlight) {
+			windowPeakInFlight = inFlight;
+		}
+		return nanoTime();
+	}
+
+	/**
+	 * 文書の処理を終えます。acquired には {@link #acquire()} の戻り値を指定します。失敗した文書でも呼んでください。
+	 */
+	public synchronized void release(long acquired) {
+		long now = nanoTime();
+		inFlight--;
+		windowDocumentNanos += now - acquired;
+		windowMinDocumentNanos = Math.min(windowMinDocumentNanos, now - acquired);
+		windowDocuments++;
+		evaluate(now);
+		notifyAll();
+	}
+
+	public synchronized int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * 直近のウィンドウで計測した値と、上限についての判断を返します。
+	 */
+	public synchronized Metrics getMetrics() {
+		return metrics;
+	}
+
+	@Override
+	public void stageFinished(JpkiStage stage, long elapsedNanos) {
+		long now = nanoTime();
+		if(stage == JpkiStage.ACQUIRE) {
+			cardSessionStart.set(now - elapsedNanos);
+		} else if(stage == JpkiStage.SIGN) {
+			Long start = cardSessionStart.get();
+			cardSessionStart.remove();
+			synchronized (this) {
+				if(start != null) {
+					windowCardBusy += now - start;
+					windowCardSessions++;
+				}
+				windowSign += elapsedNanos;
+				windowSigns++;
+				evaluate(now);
+				notifyAll();
+			}
+		}
+	}
+
+	private void evaluate(long now) {
+		long elapsed = now - windowStart;
+		if(elapsed < windowNanos || windowCardSessions == 0) {
+			return;
+		}
+		double utilization = Math.min(1.0, (double)windowCardBusy / elapsed);
+		double headroom = heapHeadroom();
+		long cardNanos = windowCardBusy / windowCardSessions;
+		long documentNanos = (windowDocuments > 0) ? windowDocumentNanos / windowDocuments : 0;
+		long preparationNanos = Math.max(0, documentNanos - cardNanos);
+		long signNanos = (windowSigns > 0) ? windowSign / windowSigns : 0;
+
+		double queued = 0;
+		if(documentNanos > 0) {
+			updateBaseline(windowMinDocumentNanos);
+			queued = Math.max(0.0, limit * (1.0 - (double)baselineDocumentNanos / documentNanos));
+		}
+
+		if(headroom < minHeapHeadroom) {
+			slowStart = false;
+			int reduced = Math.max(minLimit, limit * 3 / 4);
+			if(reduced < limit) {
+				limit = reduced;
+				decreases++;
+				decision = "decrease: heap headroom " + percent(headroom);
+			} else {
+				decision = "hold: heap headroom " + percent(headroom) + " at minimum limit";
+			}
+		} else if(queued > MAX_QUEUED) {
+			// カードの順番待ちが多すぎます。1 件を残して減らしますが、推定の誤差を考えて 1 回に減らすのは超過分の半分までにします。
+			slowStart = false;
+			int reduced = Math.max(minLimit, limit - Math.max(1, (int)((queued - MIN_QUEUED) / 2)));
+			if(reduced < limit) {
+				limit = reduced;
+				decreases++;
+				decision = String.format("decrease: %.1f documents waiting for the card", queued);
+			} else {
+				decision = String.format("hold: %.1f documents waiting for the card at minimum limit", queued);
+			}
+		} else if(utilization < targetUtilization && queued < MIN_QUEUED) {
+			if(windowPeakInFlight >= limit && limit < maxLimit) {
+				limit = slowStart ? Math.min(maxLimit, limit * 2) : limit + 1;
+				increases++;
+				decision = "increase: card utilization " + percent(utilization);
+			} else if(limit >= maxLimit) {
+				decision = "hold: card utilization " + percent(utilization) + " at maximum limit";
+			} else {
+				decision = "hold: card utilization " + percent(utilization) + " below limit (input bound)";
+			}
+		} else {
+			if(queued >= MIN_QUEUED) {
+				slowStart = false;
+			}
+			decision = String.format("hold: card utilization %s, %.1f documents waiting for the card", percent(utilization), queued);
+		}
+		metrics = new Metrics(this, utilization, queued, cardNanos, signNanos, preparationNanos, headroom);
+
+		windowStart = now;
+		windowPeakInFlight = inFlight;
+		windowCardBusy = 0;
+		windowCardSessions = 0;
+		windowSign = 0;
+		windowSigns = 0;
+		windowDocumentNanos = 0;
+		windowMinDocumentNanos = Long.MAX_VALUE;
+		windowDocuments = 0;
+	}
+
+	/**
+	 * ウィンドウで最も短かった処理時間で基準値を更新します。短くなった場合はその値に下げ、長くなった場合は差の一部だけ上げます。
+	 */
+	private void updateBaseline(long fastestNanos) {
+		if(fastestNanos <= baselineDocumentNanos) {
+			baselineDocumentNanos = fastestNanos;
+		} else {
+			baselineDocumentNanos += (long)((fastestNanos - baselineDocumentNanos) * BASELINE_DECAY);
+		}
+	}
+
+	/* package private */ long nanoTime() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * 最大ヒープ サイズに対する空きの割合を返します。
+	 * 若い世代は次のガベージ コレクションで空くので、直前のガベージ コレクション直後の使用量を数えます。
+	 * 古い世代 (使用量のしきい値を設定できるプール) は現在の使用量を数えます。
+	 */
+	/* package private */ double heapHeadroom() {
+		long max = Runtime.getRuntime().maxMemory();
+		if(max == Long.MAX_VALUE || max <= 0) {
+			return 1.0;
+		}
+		long used = 0;
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() != MemoryType.HEAP) {
+				continue;
+			}
+			MemoryUsage usage = pool.isUsageThresholdSupported() ? pool.getUsage() : pool.getCollectionUsage();
+			if(usage == null) {
+				usage = pool.getUsage();
+			}
+			if(usage != null) {
+				used += usage.getUsed();
+			}
+		}
+		return Math.max(0.0, 1.0 - (double)used / max);
+	}
+
+	private static String percent(double ratio) {
+		return String.format("%.0f%%", ratio * 100);
+	}
+
+	/**
+	 * ある時点の上限と、直近のウィンドウで計測した値です。
+	 */
+	public static class Metrics {
+
+		private final long time;
+		private final int limit;
+		private final int inFlight;
+		private final long increases;
+		private final long decreases;
+		private final String decision;
+		private final double cardUtilization;
+		private final double queuedDocuments;
+		private final long cardSessionNanos;
+		private final long signNanos;
+		private final long preparationNanos;
+		private final double heapHeadroom;
+
+		private Metrics(AdaptiveConcurrency controller, double cardUtilization, double queuedDocuments, long cardSessionNanos, long signNanos, long preparationNanos, double heapHeadroom) {
+			this.time = System.currentTimeMillis();
+			this.limit = controller.limit;
+			this.inFlight = controller.inFlight;
+			this.increases = controller.increases;
+			this.decreases = controller.decreases;
+			this.decision = controller.decision;
+			this.cardUtilization = cardUtilization;
+			this.queuedDocuments = queuedDocuments;
+			this.cardSessionNanos = cardSessionNanos;
+			this.signNanos = signNanos;
+			this.preparationNanos = preparationNanos;
+			this.heapHeadroom = heapHeadroom;
+		}
+
+		/** 計測した日時 */
+		public Date getTime() {
+			return new Date(time);
+		}
+
+		/** 判断した後の上限 */
+		public int getLimit() {
+			return limit;
+		}
+
+		/** 判断した時点で処理中の文書の数 */
+		public int getInFlight() {
+			return inFlight;
+		}
+
+		/** これまでに上限を増やした回数 */
+		public long getIncreases() {
+			return increases;
+		}
+
+		/** これまでに上限を減らした回数 */
+		public long getDecreases() {
+			return decreases;
+		}
+
+		/** 直近の判断とその理由 */
+		public String getDecision() {
+			return decision;
+		}
+
+		/** カードを使用していた時間の割合 */
+		public double getCardUtilization() {
+			return cardUtilization;
+		}
+
+		/** カードの順番を待っている文書の数の推定値 */
+		public double getQueuedDocuments() {
+			return queuedDocuments;
+		}
+
+		/** 1 文書あたりのカードの使用時間 (ナノ秒) */
+		public long getCardSessionNanos() {
+			return cardSessionNanos;
+		}
+
+		/** 1 文書あたりの署名値を計算する段階の時間 (ナノ秒) */
+		public long getSignNanos() {
+			return signNanos;
+		}
+
+		/** 1 文書あたりのカードを使用していない時間 (準備とカードの順番待ち、ナノ秒) */
+		public long getPreparationNanos() {
+			return preparationNanos;
+		}
+
+		/** 最大ヒープ サイズに対する空きの割合 */
+		public double getHeapHeadroom() {
+			return heapHeadroom;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("time=%1$tFT%1$tT.%1$tL%1$tz%n", time));
+			sb.append("limit=").append(limit).append(System.lineSeparator());
+			sb.append("inFlight=").append(inFlight).append(System.lineSeparator());
+			sb.append("increases=").append(increases).append(System.lineSeparator());
+			sb.append("decreases=").append(decreases).append(System.lineSeparator());
+			sb.append("decision=").append(decision).append(System.lineSeparator());
+			sb.append(String.format("cardUtilization=%.3f%n", cardUtilization));
+			sb.append(String.format("queuedDocuments=%.1f%n", queuedDocuments));
+			sb.append(String.format("cardSessionMillis=%.1f%n", cardSessionNanos / 1e6));
+			sb.append(String.format("signMillis=%.1f%n", signNanos / 1e6));
+			sb.append(String.format("preparationMillis=%.1f%n", preparationNanos / 1e6));
+			sb.append(String.format("heapHeadroom=%.3f%n", heapHeadroom));
+			return sb.toString();
+		}
+	}
+}
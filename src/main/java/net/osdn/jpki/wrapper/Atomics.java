@@ -0,0 +1,24 @@
+package net.osdn.jpki.wrapper;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 複数のスレッドから更新される統計値を扱うユーティリティーです。
+ */
+final class Atomics {
+
+	private Atomics() {
+	}
+
+	/**
+	 * value が現在の値より大きい場合に max を value に更新します。
+	 */
+	static void updateMax(AtomicLong max, long value) {
+		long current;
+		while(value > (current = max.get())) {
+			if(max.compareAndSet(current, value)) {
+				break;
+			}
+		}
+	}
+}
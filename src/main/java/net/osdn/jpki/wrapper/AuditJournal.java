@@ -0,0 +1,561 @@
+package net.osdn.jpki.wrapper;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * 署名の記録を追記していく監査ジャーナルです。
+ * <p>
+ * 各レコードは長さと CRC32 を前置したバイナリー形式で追記されます。
+ * {@link #append(AuditRecord)} はレコードがディスクに書き込まれるまで戻りませんが、
+ * 同時に追記された複数のレコードはコミット間隔の間まとめられ、1 回の fsync で永続化されます (グループ コミット)。
+ * 開くときに末尾の書きかけのレコードを検出して切り詰めるので、クラッシュ後もそのまま追記を再開できます。
+ * 途中に破損したレコードがあっても、その後ろの正しいレコードは切り詰めずに残し、読み取るときは破損した範囲を飛ばします。
+ * <p>
+ * コミットを待つ間は {@link ReentrantLock} で待機するので、仮想スレッドから追記してもキャリアは解放されます。
+ * <p>
+ * 記録の検索には {@link #scan(File, Visitor)} またはコマンドラインの {@link #main(String[])} を使います。
+ */
+public class AuditJournal implements Closeable {
+
+	private static final byte[] MAGIC = { 'J', 'P', 'K', 'I', 'A', 'U', 'D', '1' };
+	private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+	private static final int HEADER_SIZE = 8;
+	/** 文字列を writeUTF で書いていた形式です。読み取りだけに対応します。 */
+	private static final int VERSION_UTF = 1;
+	/** 文字列を長さ (int) と UTF-8 のバイト列で書く形式です。 */
+	private static final int VERSION = 2;
+
+	public interface Visitor {
+		/**
+		 * @return 走査を続ける場合は true
+		 */
+		boolean visit(AuditRecord record) throws IOException;
+	}
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final Thread committer;
+	private volatile long commitWindowNanos = TimeUnit.MILLISECONDS.toNanos(2);
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	private Batch pending = new Batch();
+	private boolean closed;
+	private long lastGoodPosition;
+
+	private long commitCount;
+	private long recordCount;
+
+	public AuditJournal(File file) throws IOException {
+		this.file = file;
+		this.raf = new RandomAccessFile(file, "rw");
+		this.channel = raf.getChannel();
+		try {
+			recover();
+		} catch(IOException e) {
+			raf.close();
+			throw e;
+		}
+		committer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				commitLoop();
+			}
+		}, "jpki-audit-journal");
+		committer.setDaemon(true);
+		committer.start();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * 最初のレコードが到着してから fsync するまでに、ほかのレコードの到着を待つ時間を設定します。
+	 * 長くするとスループットが上がり、短くすると 1 件あたりの待ち時間が減ります。既定は 2 ミリ秒です。
+	 */
+	public void setCommitWindow(long window, TimeUnit unit) {
+		commitWindowNanos = unit.toNanos(window);
+	}
+
+	/**
+	 * レコードを追記し、ディスクに永続化されるまで待ちます。
+	 */
+	public void append(AuditRecord record) throws IOException {
+		ByteBuffer frame = encode(record);
+		lock.lock();
+		try {
+			if(closed) {
+				throw new IOException("audit journal is closed: " + file);
+			}
+			// 成否はレコードが入ったまとまりごとに記録されるので、後のコミットの成功で失敗が隠れることはありません。
+			Batch batch = pending;
+			batch.frames.add(frame);
+			changed.signalAll();
+			while(!batch.done) {
+				try {
+					changed.await();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("interrupted while waiting for the audit journal commit", e);
+				}
+			}
+			if(batch.failure != null) {
+				throw new IOException("failed to write the audit journal: " + file, batch.failure);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getCommitCount() {
+		lock.lock();
+		try {
+			return commitCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getRecordCount() {
+		lock.lock();
+		try {
+			return recordCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			if(closed) {
+				return;
+			}
+			closed = true;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			committer.join();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		raf.close();
+	}
+
+	private void commitLoop() {
+		for(;;) {
+			Batch batch;
+			lock.lock();
+			try {
+				while(pending.frames.isEmpty() && !closed) {
+					try {
+						changed.await();
+					} catch(InterruptedException e) {
+						return;
+					}
+				}
+				if(pending.frames.isEmpty()) {
+					return;
+				}
+				long window = commitWindowNanos;
+				long deadline = System.nanoTime() + window;
+				while(!closed && window > 0) {
+					long remaining = deadline - System.nanoTime();
+					if(remaining <= 0) {
+						break;
+					}
+					try {
+						changed.awaitNanos(remaining);
+					} catch(InterruptedException e) {
+						break;
+					}
+				}
+				batch = pending;
+				pending = new Batch();
+			} finally {
+				lock.unlock();
+			}
+			IOException error = null;
+			try {
+				ByteBuffer[] buffers = batch.frames.toArray(new ByteBuffer[0]);
+				long remaining = 0;
+				for(ByteBuffer buf : buffers) {
+					remaining += buf.remaining();
+				}
+				while(remaining > 0) {
+					remaining -= channel.write(buffers);
+				}
+				channel.force(false);
+			} catch(IOException e) {
+				error = e;
+				try {
+					// 書きかけのレコードを残さないように、最後に永続化した位置まで戻します。
+					channel.truncate(lastGoodPosition);
+					channel.position(lastGoodPosition);
+				} catch(IOException ignore) {
+				}
+			}
+			lock.lock();
+			try {
+				if(error == null) {
+					commitCount++;
+					recordCount += batch.frames.size();
+					lastGoodPosition = positionQuietly();
+				}
+				batch.failure = error;
+				batch.done = true;
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * 1 回の fsync でまとめて書き込むレコードと、その結果です。
+	 */
+	private static class Batch {
+		final List<ByteBuffer> frames = new ArrayList<ByteBuffer>();
+		boolean done;
+		IOException failure;
+	}
+
+	private long positionQuietly() {
+		try {
+			return channel.position();
+		} catch(IOException e) {
+			return lastGoodPosition;
+		}
+	}
+
+	private void recover() throws IOException {
+		long size = channel.size();
+		if(size < MAGIC.length) {
+			channel.truncate(0);
+			channel.position(0);
+			channel.write(ByteBuffer.wrap(MAGIC));
+			channel.force(true);
+			lastGoodPosition = MAGIC.length;
+			return;
+		}
+		// 最後の正しいレコードより後ろは書きかけの末尾なので切り詰めます。途中の破損は scan が飛ばすのでそのまま残します。
+		long end = scan(channel, null);
+		if(end < 0) {
+			throw new IOException("not an audit journal: " + file);
+		}
+		if(end < size) {
+			channel.truncate(end);
+			channel.force(true);
+		}
+		channel.position(end);
+		lastGoodPosition = end;
+	}
+
+	private static ByteBuffer encode(AuditRecord record) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0);
+		out.writeInt(0);
+		out.writeByte(VERSION);
+		out.writeLong(record.getTimeMillis());
+		byte[] digest = record.documentDigest();
+		out.writeShort(digest.length);
+		out.write(digest);
+		byte[] serial = record.getSerialNumber().toByteArray();
+		out.writeShort(serial.length);
+		out.write(serial);
+		writeString(out, record.getName());
+		writeString(out, record.getReason());
+		writeString(out, record.getOutput());
+		out.flush();
+
+		byte[] frame = bytes.toByteArray();
+		int length = frame.length - HEADER_SIZE;
+		if(length > MAX_RECORD_SIZE) {
+			throw new IOException("audit record is too large: " + length + " bytes");
+		}
+		CRC32 crc = new CRC32();
+		crc.update(frame, HEADER_SIZE, length);
+		ByteBuffer buf = ByteBuffer.wrap(frame);
+		buf.putInt(0, length);
+		buf.putInt(4, (int)crc.getValue());
+		return buf;
+	}
+
+	private static AuditRecord decode(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		int version = in.readUnsignedByte();
+		if(version != VERSION && version != VERSION_UTF) {
+			throw new IOException("unsupported audit record version: " + version);
+		}
+		long time = in.readLong();
+		byte[] digest = readBytes(in, in.readUnsignedShort());
+		byte[] serial = readBytes(in, in.readUnsignedShort());
+		String name = (version == VERSION_UTF) ? in.readUTF() : readString(in);
+		String reason = (version == VERSION_UTF) ? in.readUTF() : readString(in);
+		String output = (version == VERSION_UTF) ? in.readUTF() : readString(in);
+		if(in.available() != 0) {
+			throw new IOException("trailing bytes in audit record");
+		}
+		return new AuditRecord(time, digest, serial.length > 0 ? new BigInteger(serial) : BigInteger.ZERO, name, reason, output);
+	}
+
+	/**
+	 * 文字列を長さと UTF-8 のバイト列で書きます。writeUTF と違い、64 KB を超える文字列も書けます。
+	 */
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return new String(readBytes(in, in.readInt()), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * length バイトを読み取ります。破損したレコードの長さで大きな配列を確保しないように、残りのバイト数を超える長さは拒否します。
+	 */
+	private static byte[] readBytes(DataInputStream in, int length) throws IOException {
+		if(length < 0 || length > in.available()) {
+			throw new EOFException("invalid length in audit record: " + length);
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	/**
+	 * ジャーナルを先頭から順に読み取ります。破損したレコードは飛ばし、次の正しいレコードから読み取りを続けます。
+	 * 末尾の書きかけのレコードに達した時点で終了します。
+	 */
+	public static void scan(File file, Visitor visitor) throws IOException {
+		try(FileInputStream in = new FileInputStream(file)) {
+			if(scan(in.getChannel(), visitor) < 0) {
+				throw new IOException("not an audit journal: " + file);
+			}
+		}
+	}
+
+	/**
+	 * @return 最後の正しいレコードの終端位置。ヘッダーが正しくない場合は -1
+	 */
+	private static long scan(FileChannel channel, Visitor visitor) throws IOException {
+		long size = channel.size();
+		ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+		if(read(channel, magic, 0) < MAGIC.length || !Arrays.equals(magic.array(), MAGIC)) {
+			return -1;
+		}
+		long position = MAGIC.length;
+		long end = position;
+		CRC32 crc = new CRC32();
+		byte[] payload = new byte[256];
+		DataInputStream in = open(channel, position);
+		while(position < size) {
+			AuditRecord record = null;
+			int length = 0;
+			try {
+				length = in.readInt();
+				int checksum = in.readInt();
+				if(length > 0 && length <= MAX_RECORD_SIZE && position + HEADER_SIZE + length <= size) {
+					if(payload.length < length) {
+						payload = new byte[Math.max(length, payload.length * 2)];
+					}
+					in.readFully(payload, 0, length);
+					crc.reset();
+					crc.update(payload, 0, length);
+					if((int)crc.getValue() == checksum) {
+						record = decode(Arrays.copyOf(payload, length));
+					}
+				}
+			} catch(IOException e) {
+				record = null;
+			}
+			if(record == null) {
+				// 破損したレコードです。後ろに正しいレコードがあればそこから続け、なければ書きかけの末尾として終了します。
+				position = findRecord(channel, position + 1, size);
+				if(position < 0) {
+					break;
+				}
+				in = open(channel, position);
+				continue;
+			}
+			position += HEADER_SIZE + length;
+			end = position;
+			if(visitor != null && !visitor.visit(record)) {
+				break;
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * from 以降で正しいレコードが始まる最初の位置を返します。見つからなければ -1 を返します。
+	 */
+	private static long findRecord(FileChannel channel, long from, long size) throws IOException {
+		ByteBuffer window = ByteBuffer.allocate(65536);
+		long windowStart = from;
+		window.limit(0);
+		CRC32 crc = new CRC32();
+		for(long p = from; p + HEADER_SIZE + 1 <= size; p++) {
+			if(p + HEADER_SIZE + 1 > windowStart + window.limit()) {
+				window.clear();
+				read(channel, window, p);
+				window.flip();
+				windowStart = p;
+				if(window.limit() < HEADER_SIZE + 1) {
+					break;
+				}
+			}
+			int i = (int)(p - windowStart);
+			int length = window.getInt(i);
+			int version = window.get(i + HEADER_SIZE) & 0xFF;
+			if(length <= 0 || length > MAX_RECORD_SIZE || p + HEADER_SIZE + length > size || (version != VERSION && version != VERSION_UTF)) {
+				continue;
+			}
+			ByteBuffer payload = ByteBuffer.allocate(length);
+			if(read(channel, payload, p + HEADER_SIZE) < length) {
+				continue;
+			}
+			crc.reset();
+			crc.update(payload.array(), 0, length);
+			if((int)crc.getValue() != window.getInt(i + 4)) {
+				continue;
+			}
+			try {
+				decode(payload.array());
+			} catch(IOException e) {
+				continue;
+			}
+			return p;
+		}
+		return -1;
+	}
+
+	private static DataInputStream open(FileChannel channel, long position) throws IOException {
+		channel.position(position);
+		// チャネルを閉じないように、このストリームは閉じずに捨てます。
+		return new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 65536));
+	}
+
+	/**
+	 * position から buf がいっぱいになるか終端に達するまで読み取り、読み取ったバイト数を返します。
+	 */
+	private static int read(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		int total = 0;
+		while(buf.hasRemaining()) {
+			int n = channel.read(buf, position + total);
+			if(n < 0) {
+				break;
+			}
+			total += n;
+		}
+		return total;
+	}
+
+	/**
+	 * ジャーナルを検索して 1 行に 1 件ずつ出力します。
+	 * <pre>
+	 * java net.osdn.jpki.wrapper.AuditJournal journal-file [--serial hex] [--digest hex-prefix]
+	 *     [--since yyyy-MM-dd[THH:mm:ss]] [--until yyyy-MM-dd[THH:mm:ss]] [--output substring] [--count]
+	 * </pre>
+	 */
+	public static void main(String[] args) throws IOException, ParseException {
+		if(args.length == 0) {
+			System.err.println("usage: AuditJournal journal-file [--serial hex] [--digest hex-prefix] [--since date] [--until date] [--output substring] [--count]");
+			System.exit(2);
+		}
+		File file = new File(args[0]);
+		BigInteger serial = null;
+		String digest = null;
+		long since = Long.MIN_VALUE;
+		long until = Long.MAX_VALUE;
+		String output = null;
+		boolean countOnly = false;
+		for(int i = 1; i < args.length; i++) {
+			String arg = args[i];
+			if(arg.equals("--count")) {
+				countOnly = true;
+			} else if(i + 1 < args.length && arg.equals("--serial")) {
+				serial = new BigInteger(args[++i], 16);
+			} else if(i + 1 < args.length && arg.equals("--digest")) {
+				digest = args[++i].toLowerCase();
+			} else if(i + 1 < args.length && arg.equals("--since")) {
+				since = parseDate(args[++i]);
+			} else if(i + 1 < args.length && arg.equals("--until")) {
+				until = parseDate(args[++i]);
+			} else if(i + 1 < args.length && arg.equals("--output")) {
+				output = args[++i];
+			} else {
+				System.err.println("unknown option: " + arg);
+				System.exit(2);
+			}
+		}
+		final BigInteger fSerial = serial;
+		final String fDigest = digest;
+		final long fSince = since;
+		final long fUntil = until;
+		final String fOutput = output;
+		final boolean fCountOnly = countOnly;
+		final long[] count = new long[1];
+		scan(file, new Visitor() {
+			@Override
+			public boolean visit(AuditRecord record) {
+				if(fSerial != null && !fSerial.equals(record.getSerialNumber())) {
+					return true;
+				}
+				if(record.getTimeMillis() < fSince || record.getTimeMillis() >= fUntil) {
+					return true;
+				}
+				if(fDigest != null && !AuditRecord.toHex(record.documentDigest()).startsWith(fDigest)) {
+					return true;
+				}
+				if(fOutput != null && !record.getOutput().contains(fOutput)) {
+					return true;
+				}
+				count[0]++;
+				if(!fCountOnly) {
+					System.out.println(record);
+				}
+				return true;
+			}
+		});
+		if(fCountOnly) {
+			System.out.println(count[0]);
+		}
+	}
+
+	private static long parseDate(String s) throws ParseException {
+		String pattern = (s.indexOf('T') >= 0) ? "yyyy-MM-dd'T'HH:mm:ss" : "yyyy-MM-dd";
+		return new SimpleDateFormat(pattern).parse(s).getTime();
+	}
+}
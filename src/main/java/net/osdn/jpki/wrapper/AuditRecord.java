@@ -0,0 +1,77 @@
+package net.osdn.jpki.wrapper;
+
+import java.math.BigInteger;
+import java.util.Date;
+
+/**
+ * 監査ジャーナルに記録される 1 件の署名の記録です。
+ */
+public class AuditRecord {
+
+	private final long time;
+	private final byte[] documentDigest;
+	private final BigInteger serialNumber;
+	private final String name;
+	private final String reason;
+	private final String output;
+
+	public AuditRecord(long time, byte[] documentDigest, BigInteger serialNumber, String name, String reason, String output) {
+		this.time = time;
+		this.documentDigest = documentDigest != null ? documentDigest.clone() : new byte[0];
+		this.serialNumber = serialNumber != null ? serialNumber : BigInteger.ZERO;
+		this.name = name != null ? name : "";
+		this.reason = reason != null ? reason : "";
+		this.output = output != null ? output : "";
+	}
+
+	/** 署名日時 */
+	public Date getTime() {
+		return new Date(time);
+	}
+
+	/** 署名対象の /ByteRange の SHA-256 ダイジェスト */
+	public byte[] getDocumentDigest() {
+		return documentDigest.clone();
+	}
+
+	/** 署名者証明書のシリアル番号 */
+	public BigInteger getSerialNumber() {
+		return serialNumber;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getReason() {
+		return reason;
+	}
+
+	/** 出力先のパスまたはエントリー名。ストリームに出力した場合は空文字列です。 */
+	public String getOutput() {
+		return output;
+	}
+
+	/* package private */ long getTimeMillis() {
+		return time;
+	}
+
+	/* package private */ byte[] documentDigest() {
+		return documentDigest;
+	}
+
+	public static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for(byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0x0F, 16));
+			sb.append(Character.forDigit(b & 0x0F, 16));
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%1$tFT%1$tT.%1$tL%1$tz\t%2$s\t%3$s\t%4$s\t%5$s\t%6$s",
+				time, toHex(documentDigest), serialNumber.toString(16), name, reason, output);
+	}
+}
@@ -0,0 +1,359 @@
+package net.osdn.jpki.wrapper;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * 多数の文書を 1 回のカード署名でまとめて封印します。
+ * <p>
+ * 追加した文書ごとに SHA-256 ダイジェストを計算し、それらを葉とする Merkle 木 (RFC 6962 と同じ構成) の根に対して、
+ * {@link JpkiWrapper#signData(byte[])} で分離署名の CMS SignedData を 1 つだけ作成します。
+ * パスワードの入力もカードの署名操作も、文書の数にかかわらず 1 回です。
+ * 文書ごとの {@link BatchSealProof} には、その文書から根までの経路と根の署名が含まれ、ほかの文書なしで検証できます。
+ * <p>
+ * 葉は SHA-256(0x00 || 文書のダイジェスト || 名前 (UTF-8))、節は SHA-256(0x01 || 左 || 右) です。
+ * 署名の対象は根 (32 バイト) と葉の数 (8 バイト、ビッグ エンディアン) を連結した 40 バイトです。
+ * <p>
+ * 文書の追加は複数のスレッドから同時に行えます。ダイジェストの計算はロックの外で行い、葉の順番は追加を終えた順になります。
+ * <pre>
+ * java -cp jpki-wrapper.jar;lib/* net.osdn.jpki.wrapper.BatchSeal seal -o DIR (file | directory)...
+ * java -cp jpki-wrapper.jar;lib/* net.osdn.jpki.wrapper.BatchSeal verify PROOF DOCUMENT
+ * </pre>
+ */
+public class BatchSeal {
+
+	private static final String USAGE =
+			"usage: BatchSeal seal -o DIR [options] (file | directory)...\n" +
+			"         -o, --output DIR      write manifest.txt and one .seal proof per document under DIR\n" +
+			"             --tsa URL         add an RFC 3161 timestamp from this TSA to the root signature\n" +
+			"             --jpki-path DIR   JPKI user software (or jpki-stub) directory\n" +
+			"       BatchSeal verify PROOF DOCUMENT\n";
+
+	/* package private */ static final int DIGEST_LENGTH = 32;
+	/* package private */ static final byte LEAF_PREFIX = 0x00;
+	/* package private */ static final byte NODE_PREFIX = 0x01;
+
+	private final List<String> names = new ArrayList<String>();
+	private final List<byte[]> digests = new ArrayList<byte[]>();
+	private final List<byte[]> leaves = new ArrayList<byte[]>();
+	private byte[][][] levels;
+	private byte[] signature;
+
+	/**
+	 * 入力ストリームを最後まで読み、その SHA-256 ダイジェストを葉として追加します。ストリームは閉じません。
+	 * 追加した葉の番号を返します。
+	 */
+	public int add(String name, InputStream in) throws IOException {
+		MessageDigest md = newDigest();
+		byte[] buf = new byte[65536];
+		int len;
+		while((len = in.read(buf)) != -1) {
+			md.update(buf, 0, len);
+		}
+		return addDigest(name, md.digest());
+	}
+
+	public int add(String name, File file) throws IOException {
+		try(InputStream in = new FileInputStream(file)) {
+			return add(name, in);
+		}
+	}
+
+	/**
+	 * 計算済みの SHA-256 ダイジェストを葉として追加します。追加した葉の番号を返します。
+	 */
+	public int addDigest(String name, byte[] digest) {
+		if(name == null) {
+			throw new NullPointerException("name");
+		}
+		if(digest.length != DIGEST_LENGTH) {
+			throw new IllegalArgumentException("SHA-256 digest must be 32 bytes: " + digest.length);
+		}
+		byte[] leaf = leafHash(digest, name);
+		synchronized (this) {
+			if(levels != null) {
+				throw new IllegalStateException("already sealed");
+			}
+			names.add(name);
+			digests.add(digest.clone());
+			leaves.add(leaf);
+			return leaves.size() - 1;
+		}
+	}
+
+	public synchronized int size() {
+		return leaves.size();
+	}
+
+	/**
+	 * Merkle 木を確定し、根に署名します。カードを使用するのはこの 1 回だけです。
+	 * 呼び出した後は文書を追加できません。
+	 */
+	public void seal(JpkiWrapper wrapper) throws JpkiException, IOException {
+		byte[] root;
+		int count;
+		synchronized (this) {
+			if(signature != null) {
+				throw new IllegalStateException("already sealed");
+			}
+			if(leaves.isEmpty()) {
+				throw new IllegalStateException("no documents");
+			}
+			root = getRoot();
+			count = leaves.size();
+		}
+		byte[] signed = wrapper.signData(getSignedContent(root, count));
+		synchronized (this) {
+			signature = signed;
+		}
+	}
+
+	/**
+	 * Merkle 木の根を返します。まだ木を確定していなければ確定します。
+	 */
+	public synchronized byte[] getRoot() {
+		if(levels == null) {
+			if(leaves.isEmpty()) {
+				throw new IllegalStateException("no documents");
+			}
+			levels = buildLevels(leaves.toArray(new byte[leaves.size()][]));
+		}
+		return levels[levels.length - 1][0].clone();
+	}
+
+	/**
+	 * 根に対する CMS SignedData (DER) を返します。まだ署名していない場合は null を返します。
+	 */
+	public synchronized byte[] getSignature() {
+		return (signature != null) ? signature.clone() : null;
+	}
+
+	/**
+	 * index 番目の文書の包含証明を返します。{@link #seal(JpkiWrapper)} の後に呼んでください。
+	 */
+	public synchronized BatchSealProof getProof(int index) {
+		if(signature == null) {
+			throw new IllegalStateException("not sealed");
+		}
+		if(index < 0 || index >= leaves.size()) {
+			throw new IndexOutOfBoundsException("index: " + index);
+		}
+		List<byte[]> path = new ArrayList<byte[]>();
+		int i = index;
+		for(int level = 0; level < levels.length - 1; level++) {
+			byte[][] nodes = levels[level];
+			int sibling = i ^ 1;
+			// 右端の節に兄弟がない場合は、そのまま上の段に繰り上がります。
+			if(sibling < nodes.length) {
+				path.add(nodes[sibling]);
+			}
+			i >>= 1;
+		}
+		return new BatchSealProof(names.get(index), digests.get(index), index, leaves.size(),
+				levels[levels.length - 1][0], path.toArray(new byte[path.size()][]), signature);
+	}
+
+	/**
+	 * 根、葉の数、署名とすべての葉 (番号、ダイジェスト、名前) をテキストで出力します。ストリームは閉じません。
+	 */
+	public synchronized void writeManifest(OutputStream out) throws IOException {
+		if(signature == null) {
+			throw new IllegalStateException("not sealed");
+		}
+		PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+		writer.print(BatchSealProof.MANIFEST_HEADER + "\n");
+		writer.print("root=" + AuditRecord.toHex(levels[levels.length - 1][0]) + "\n");
+		writer.print("count=" + leaves.size() + "\n");
+		writer.print("signature=" + Base64.getEncoder().encodeToString(signature) + "\n");
+		for(int i = 0; i < leaves.size(); i++) {
+			writer.print("leaf=" + i + " " + AuditRecord.toHex(digests.get(i)) + " " + names.get(i) + "\n");
+		}
+		writer.flush();
+		if(writer.checkError()) {
+			throw new IOException("failed to write manifest");
+		}
+	}
+
+	/* package private */ static byte[] getSignedContent(byte[] root, long count) {
+		return ByteBuffer.allocate(DIGEST_LENGTH + 8).put(root).putLong(count).array();
+	}
+
+	/* package private */ static byte[] leafHash(byte[] digest, String name) {
+		MessageDigest md = newDigest();
+		md.update(LEAF_PREFIX);
+		md.update(digest);
+		md.update(name.getBytes(StandardCharsets.UTF_8));
+		return md.digest();
+	}
+
+	/* package private */ static byte[] nodeHash(byte[] left, byte[] right) {
+		MessageDigest md = newDigest();
+		md.update(NODE_PREFIX);
+		md.update(left);
+		md.update(right);
+		return md.digest();
+	}
+
+	/* package private */ static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * 葉から根までの各段を作ります。段の節の数が奇数のときは、右端の節をそのまま上の段に繰り上げます。
+	 * この構成で得られる根は RFC 6962 の MTH と同じです。
+	 */
+	private static byte[][][] buildLevels(byte[][] leaves) {
+		List<byte[][]> levels = new ArrayList<byte[][]>();
+		byte[][] nodes = leaves;
+		levels.add(nodes);
+		while(nodes.length > 1) {
+			byte[][] parents = new byte[(nodes.length + 1) / 2][];
+			for(int i = 0; i < parents.length; i++) {
+				int left = i * 2;
+				parents[i] = (left + 1 < nodes.length) ? nodeHash(nodes[left], nodes[left + 1]) : nodes[left];
+			}
+			levels.add(parents);
+			nodes = parents;
+		}
+		return levels.toArray(new byte[levels.size()][][]);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int status;
+		try {
+			if(args.length > 0 && args[0].equals("seal")) {
+				status = seal(Arrays.copyOfRange(args, 1, args.length));
+			} else if(args.length == 3 && args[0].equals("verify")) {
+				status = verify(new File(args[1]), new File(args[2]));
+			} else {
+				throw new IllegalArgumentException("missing command");
+			}
+		} catch(IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.print(USAGE);
+			status = 2;
+		}
+		System.exit(status);
+	}
+
+	private static int seal(String[] args) throws Exception {
+		File outputDirectory = null;
+		String tsa = null;
+		List<File> roots = new ArrayList<File>();
+		for(int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if(arg.startsWith("-") && arg.length() > 1) {
+				if(i + 1 >= args.length) {
+					throw new IllegalArgumentException("missing value for " + arg);
+				}
+				String value = args[++i];
+				if(arg.equals("-o") || arg.equals("--output")) {
+					outputDirectory = new File(value);
+				} else if(arg.equals("--tsa")) {
+					tsa = value;
+				} else if(arg.equals("--jpki-path")) {
+					System.setProperty(JpkiWrapper.INSTALL_PATH_PROPERTY, value);
+				} else {
+					throw new IllegalArgumentException("unknown option: " + arg);
+				}
+			} else {
+				roots.add(new File(arg));
+			}
+		}
+		if(outputDirectory == null) {
+			throw new IllegalArgumentException("missing --output");
+		}
+		List<File> files = new ArrayList<File>();
+		List<String> names = new ArrayList<String>();
+		for(File root : roots) {
+			collect(root, root.isDirectory() ? "" : root.getName(), files, names);
+		}
+		if(files.isEmpty()) {
+			throw new IllegalArgumentException("no input files");
+		}
+
+		long start = System.nanoTime();
+		BatchSeal batch = new BatchSeal();
+		for(int i = 0; i < files.size(); i++) {
+			batch.add(names.get(i), files.get(i));
+		}
+		JpkiWrapper wrapper = new JpkiWrapper();
+		wrapper.setApplicationName("jpki-wrapper BatchSeal");
+		if(tsa != null) {
+			wrapper.setTimeStampClient(new HttpTimeStampClient(tsa));
+		}
+		batch.seal(wrapper);
+
+		if(!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+			throw new IOException("cannot create directory: " + outputDirectory);
+		}
+		try(OutputStream out = new BufferedOutputStream(new FileOutputStream(new File(outputDirectory, "manifest.txt")))) {
+			batch.writeManifest(out);
+		}
+		for(int i = 0; i < batch.size(); i++) {
+			File proofFile = new File(outputDirectory, names.get(i) + ".seal");
+			File parent = proofFile.getParentFile();
+			if(!parent.isDirectory() && !parent.mkdirs()) {
+				throw new IOException("cannot create directory: " + parent);
+			}
+			try(OutputStream out = new BufferedOutputStream(new FileOutputStream(proofFile))) {
+				batch.getProof(i).write(out);
+			}
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("sealed %d documents with 1 card signature in %.3f s%n", batch.size(), seconds);
+		System.out.println("root=" + AuditRecord.toHex(batch.getRoot()));
+		return 0;
+	}
+
+	private static int verify(File proofFile, File document) throws IOException {
+		BatchSealProof proof;
+		try(InputStream in = new FileInputStream(proofFile)) {
+			proof = BatchSealProof.read(in);
+		}
+		try(InputStream in = new FileInputStream(document)) {
+			X509Certificate signer = proof.verify(in);
+			System.out.printf("OK %s (%d/%d) signed by %s%n", proof.getName(), proof.getIndex() + 1, proof.getCount(),
+					signer.getSubjectX500Principal().getName());
+			return 0;
+		} catch(BatchSealProof.VerificationException e) {
+			System.out.println("NG " + proof.getName() + ": " + e.getMessage());
+			return 1;
+		}
+	}
+
+	private static void collect(File file, String relativeName, List<File> files, List<String> names) {
+		if(file.isDirectory()) {
+			File[] children = file.listFiles();
+			if(children != null) {
+				Arrays.sort(children);
+				for(File child : children) {
+					collect(child, relativeName.isEmpty() ? child.getName() : relativeName + "/" + child.getName(), files, names);
+				}
+			}
+		} else if(file.isFile()) {
+			files.add(file);
+			names.add(relativeName);
+		}
+	}
+}
@@ -0,0 +1,317 @@
+package net.osdn.jpki.wrapper;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.util.Store;
+
+/**
+ * {@link BatchSeal} で封印した 1 つの文書の包含証明です。
+ * <p>
+ * 文書のダイジェストと名前、葉の番号と数、葉から根までの兄弟の節、根に対する CMS SignedData を持ち、
+ * ほかの文書やマニフェストなしで {@link #verify(InputStream)} で検証できます。
+ * {@link #write(OutputStream)} と {@link #read(InputStream)} は key=value 形式のテキストを読み書きします。
+ */
+public class BatchSealProof {
+
+	/* package private */ static final String HEADER = "JPKI-BATCH-SEAL-PROOF 1";
+	/* package private */ static final String MANIFEST_HEADER = "JPKI-BATCH-SEAL-MANIFEST 1";
+
+	private final String name;
+	private final byte[] digest;
+	private final int index;
+	private final int count;
+	private final byte[] root;
+	private final byte[][] path;
+	private final byte[] signature;
+
+	/* package private */ BatchSealProof(String name, byte[] digest, int index, int count, byte[] root, byte[][] path, byte[] signature) {
+		this.name = name;
+		this.digest = digest;
+		this.index = index;
+		this.count = count;
+		this.root = root;
+		this.path = path;
+		this.signature = signature;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/** 文書の SHA-256 ダイジェスト */
+	public byte[] getDigest() {
+		return digest.clone();
+	}
+
+	/** 葉の番号 (0 から始まります) */
+	public int getIndex() {
+		return index;
+	}
+
+	/** 同時に封印した文書の数 */
+	public int getCount() {
+		return count;
+	}
+
+	public byte[] getRoot() {
+		return root.clone();
+	}
+
+	/** 根に対する分離署名の CMS SignedData (DER) */
+	public byte[] getSignature() {
+		return signature.clone();
+	}
+
+	/**
+	 * 文書を最後まで読み、この証明で封印されていることを検証します。ストリームは閉じません。
+	 * 検証に成功した場合は署名者証明書を返します。
+	 * <p>
+	 * 署名者証明書が CMS に含まれるルート証明書で発行されていることまでは確認しますが、
+	 * そのルート証明書を信頼するかどうかは呼び出し側で {@link #getCertificates()} を使って判断してください。
+	 */
+	public X509Certificate verify(InputStream document) throws IOException, VerificationException {
+		MessageDigest md = BatchSeal.newDigest();
+		byte[] buf = new byte[65536];
+		int len;
+		while((len = document.read(buf)) != -1) {
+			md.update(buf, 0, len);
+		}
+		return verify(md.digest());
+	}
+
+	/**
+	 * 文書の SHA-256 ダイジェストがこの証明で封印されていることを検証します。検証に成功した場合は署名者証明書を返します。
+	 */
+	public X509Certificate verify(byte[] documentDigest) throws VerificationException {
+		if(!MessageDigest.isEqual(digest, documentDigest)) {
+			throw new VerificationException("document digest does not match");
+		}
+		if(!MessageDigest.isEqual(root, computeRoot())) {
+			throw new VerificationException("inclusion proof does not lead to the root");
+		}
+		return verifySignature();
+	}
+
+	/**
+	 * CMS に含まれる証明書 (署名者証明書とルート証明書) を返します。
+	 */
+	public List<X509Certificate> getCertificates() throws VerificationException {
+		try {
+			CMSSignedData cms = new CMSSignedData(signature);
+			List<X509Certificate> certificates = new ArrayList<X509Certificate>();
+			@SuppressWarnings("unchecked")
+			Collection<X509CertificateHolder> holders = cms.getCertificates().getMatches(null);
+			for(X509CertificateHolder holder : holders) {
+				certificates.add(toCertificate(holder));
+			}
+			return certificates;
+		} catch(CMSException | IOException | CertificateException e) {
+			throw new VerificationException("malformed signature", e);
+		}
+	}
+
+	/**
+	 * 葉から経路をたどって根を計算します (RFC 9162 2.1.3.2)。経路の長さが葉の番号と数に合わない場合は null を返します。
+	 */
+	private byte[] computeRoot() {
+		if(index < 0 || index >= count) {
+			return null;
+		}
+		long fn = index;
+		long sn = count - 1;
+		byte[] r = BatchSeal.leafHash(digest, name);
+		for(byte[] p : path) {
+			if(sn == 0) {
+				return null;
+			}
+			if((fn & 1) == 1 || fn == sn) {
+				r = BatchSeal.nodeHash(p, r);
+				while((fn & 1) == 0 && fn != 0) {
+					fn >>= 1;
+					sn >>= 1;
+				}
+			} else {
+				r = BatchSeal.nodeHash(r, p);
+			}
+			fn >>= 1;
+			sn >>= 1;
+		}
+		return (sn == 0) ? r : null;
+	}
+
+	private X509Certificate verifySignature() throws VerificationException {
+		try {
+			CMSSignedData cms = new CMSSignedData(new CMSProcessableByteArray(BatchSeal.getSignedContent(root, count)), signature);
+			Collection<SignerInformation> signers = cms.getSignerInfos().getSigners();
+			if(signers.size() != 1) {
+				throw new VerificationException("expected exactly one signer: " + signers.size());
+			}
+			SignerInformation signer = signers.iterator().next();
+			@SuppressWarnings("unchecked")
+			Store<X509CertificateHolder> store = cms.getCertificates();
+			@SuppressWarnings("unchecked")
+			Collection<X509CertificateHolder> matches = store.getMatches(signer.getSID());
+			if(matches.isEmpty()) {
+				throw new VerificationException("signer certificate not found");
+			}
+			X509Certificate signerCertificate = toCertificate(matches.iterator().next());
+			if(!signer.verify(new JcaSimpleSignerInfoVerifierBuilder().build(signerCertificate))) {
+				throw new VerificationException("signature does not verify");
+			}
+			@SuppressWarnings("unchecked")
+			Collection<X509CertificateHolder> all = store.getMatches(null);
+			boolean issued = false;
+			for(X509CertificateHolder holder : all) {
+				X509Certificate certificate = toCertificate(holder);
+				if(!certificate.equals(signerCertificate) && certificate.getSubjectX500Principal().equals(signerCertificate.getIssuerX500Principal())) {
+					try {
+						signerCertificate.verify(certificate.getPublicKey());
+						issued = true;
+						break;
+					} catch(Exception e) {
+						// 同じ名前の別の証明書かもしれないので、ほかの候補を確認します。
+					}
+				}
+			}
+			if(!issued) {
+				throw new VerificationException("signer certificate is not issued by the included root certificate");
+			}
+			return signerCertificate;
+		} catch(VerificationException e) {
+			throw e;
+		} catch(Exception e) {
+			throw new VerificationException("signature does not verify: " + e.getMessage(), e);
+		}
+	}
+
+	private static X509Certificate toCertificate(X509CertificateHolder holder) throws IOException, CertificateException {
+		CertificateFactory factory = CertificateFactory.getInstance("X.509");
+		return (X509Certificate)factory.generateCertificate(new ByteArrayInputStream(holder.getEncoded()));
+	}
+
+	/**
+	 * 証明を key=value 形式のテキスト (UTF-8) で出力します。ストリームは閉じません。
+	 */
+	public void write(OutputStream out) throws IOException {
+		PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+		writer.print(HEADER + "\n");
+		writer.print("name=" + name + "\n");
+		writer.print("digest=" + AuditRecord.toHex(digest) + "\n");
+		writer.print("index=" + index + "\n");
+		writer.print("count=" + count + "\n");
+		writer.print("root=" + AuditRecord.toHex(root) + "\n");
+		for(byte[] node : path) {
+			writer.print("path=" + AuditRecord.toHex(node) + "\n");
+		}
+		writer.print("signature=" + Base64.getEncoder().encodeToString(signature) + "\n");
+		writer.flush();
+		if(writer.checkError()) {
+			throw new IOException("failed to write proof");
+		}
+	}
+
+	/**
+	 * {@link #write(OutputStream)} で出力した証明を読み取ります。
+	 */
+	public static BatchSealProof read(InputStream in) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		String line = reader.readLine();
+		if(!HEADER.equals(line)) {
+			throw new IOException("not a batch seal proof");
+		}
+		String name = null;
+		byte[] digest = null;
+		Integer index = null;
+		Integer count = null;
+		byte[] root = null;
+		List<byte[]> path = new ArrayList<byte[]>();
+		byte[] signature = null;
+		try {
+			while((line = reader.readLine()) != null) {
+				if(line.isEmpty()) {
+					continue;
+				}
+				int i = line.indexOf('=');
+				if(i < 0) {
+					throw new IOException("malformed line: " + line);
+				}
+				String key = line.substring(0, i);
+				String value = line.substring(i + 1);
+				if(key.equals("name")) {
+					name = value;
+				} else if(key.equals("digest")) {
+					digest = fromHex(value);
+				} else if(key.equals("index")) {
+					index = Integer.parseInt(value);
+				} else if(key.equals("count")) {
+					count = Integer.parseInt(value);
+				} else if(key.equals("root")) {
+					root = fromHex(value);
+				} else if(key.equals("path")) {
+					path.add(fromHex(value));
+				} else if(key.equals("signature")) {
+					signature = Base64.getDecoder().decode(value);
+				}
+			}
+		} catch(IllegalArgumentException e) {
+			throw new IOException("malformed proof: " + e.getMessage(), e);
+		}
+		if(name == null || digest == null || index == null || count == null || root == null || signature == null) {
+			throw new IOException("incomplete batch seal proof");
+		}
+		return new BatchSealProof(name, digest, index, count, root, path.toArray(new byte[path.size()][]), signature);
+	}
+
+	private static byte[] fromHex(String s) {
+		if(s.length() % 2 != 0) {
+			throw new IllegalArgumentException("odd hex length");
+		}
+		byte[] bytes = new byte[s.length() / 2];
+		for(int i = 0; i < bytes.length; i++) {
+			int hi = Character.digit(s.charAt(i * 2), 16);
+			int lo = Character.digit(s.charAt(i * 2 + 1), 16);
+			if(hi < 0 || lo < 0) {
+				throw new IllegalArgumentException("invalid hex: " + s);
+			}
+			bytes[i] = (byte)((hi << 4) | lo);
+		}
+		return bytes;
+	}
+
+	/**
+	 * 文書が証明と一致しない、経路が根に至らない、または根の署名を検証できないことを表します。
+	 */
+	public static class VerificationException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		public VerificationException(String message) {
+			super(message);
+		}
+
+		public VerificationException(String message, Throwable cause) {
+			super(message, cause);
+		}
+	}
+}
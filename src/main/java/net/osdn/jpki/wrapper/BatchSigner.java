@@ -0,0 +1,491 @@
+package net.osdn.jpki.wrapper;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ファイルやディレクトリーの PDF にまとめて署名するコマンドライン ツールです。
+ * <p>
+ * 終了時に 1 秒あたりの文書数、段階ごとの待ち時間の百分位数 (p50/p95/p99)、入出力のバイト数、ヒープの最大使用量を出力します。
+ * 負荷試験では jpki-stub をビルドし、--jpki-path にその出力先 (jpki-stub/build/libs) を指定すると IC カードなしで実行できます。
+ * <pre>
+ * java -cp jpki-wrapper.jar;lib/* net.osdn.jpki.wrapper.BatchSigner [options] (file | directory)...
+ * </pre>
+ * 実行に必要なライブラリーは copyLibraries タスクで build/package/lib/ に集められます。
+ */
+public class BatchSigner {
+
+	private static final String USAGE =
+			"usage: BatchSigner [options] (file | directory)...\n" +
+			"  -o, --output DIR      write signed files under DIR (default: next to the input with -signed suffix)\n" +
+			"      --zip FILE        write signed files as entries of the ZIP archive FILE\n" +
+			"  -t, --threads N       number of documents processed in parallel (default: 1)\n" +
+			"      --adaptive        adjust the number of documents in flight (up to --threads) to keep the card busy\n" +
+			"  -n, --repeat N        sign every input N times (load test)\n" +
+			"      --discard         do not write the signed output\n" +
+			"      --name NAME       signer name (default: name on the card)\n" +
+			"      --reason REASON\n" +
+			"      --location LOCATION\n" +
+			"      --contact CONTACT\n" +
+			"      --timeout SEC     per-document deadline\n" +
+			"      --arbiter FILE    share the card with other processes through this lock file\n" +
+			"      --tsa URL         add RFC 3161 timestamps from this TSA\n" +
+			"      --ltv             embed DSS/VRI revocation data\n" +
+			"      --journal FILE    append audit records to FILE\n" +
+			"      --self-check      verify every output after signing\n" +
+			"      --record-card FILE  append the timing and error codes of card calls to FILE (replay with jpki-stub)\n" +
+			"      --jpki-path DIR   JPKI user software (or jpki-stub) directory\n";
+
+	private final List<File> inputs = new ArrayList<File>();
+	private final List<String> relativeNames = new ArrayList<String>();
+	private File outputDirectory;
+	private File zipFile;
+	private int threads = 1;
+	private int repeat = 1;
+	private boolean discard;
+	private AdaptiveConcurrency adaptive;
+	private String name;
+	private String reason;
+	private String location;
+	private String contact;
+
+	private final Samples totalSamples = new Samples();
+	private final Samples[] stageSamples = new Samples[JpkiStage.values().length];
+	private final AtomicLong succeeded = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+
+	public static void main(String[] args) throws Exception {
+		System.exit(execute(args));
+	}
+
+	/**
+	 * 引数に従って署名し、終了コードを返します。すべて成功した場合は 0、失敗した文書がある場合は 1、引数が正しくない場合は 2 を返します。
+	 */
+	static int execute(String[] args) throws Exception {
+		BatchSigner batch = new BatchSigner();
+		JpkiWrapper wrapper;
+		List<Closeable> resources = new ArrayList<Closeable>();
+		try {
+			wrapper = batch.configure(args, resources);
+		} catch(IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.print(USAGE);
+			return 2;
+		}
+		boolean ok;
+		try {
+			ok = batch.run(wrapper);
+		} finally {
+			for(Closeable resource : resources) {
+				try { resource.close(); } catch(Exception e) {}
+			}
+		}
+		return ok ? 0 : 1;
+	}
+
+	private JpkiWrapper configure(String[] args, List<Closeable> resources) throws Exception {
+		Long timeout = null;
+		File arbiterFile = null;
+		String tsa = null;
+		boolean ltv = false;
+		File journalFile = null;
+		boolean selfCheck = false;
+		boolean adaptiveEnabled = false;
+		List<File> roots = new ArrayList<File>();
+
+		for(int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if(arg.equals("--discard")) {
+				discard = true;
+			} else if(arg.equals("--adaptive")) {
+				adaptiveEnabled = true;
+			} else if(arg.equals("--ltv")) {
+				ltv = true;
+			} else if(arg.equals("--self-check")) {
+				selfCheck = true;
+			} else if(arg.startsWith("-") && arg.length() > 1) {
+				if(i + 1 >= args.length) {
+					throw new IllegalArgumentException("missing value for " + arg);
+				}
+				String value = args[++i];
+				if(arg.equals("-o") || arg.equals("--output")) {
+					outputDirectory = new File(value);
+				} else if(arg.equals("--zip")) {
+					zipFile = new File(value);
+				} else if(arg.equals("-t") || arg.equals("--threads")) {
+					threads = parsePositive(arg, value);
+				} else if(arg.equals("-n") || arg.equals("--repeat")) {
+					repeat = parsePositive(arg, value);
+				} else if(arg.equals("--name")) {
+					name = value;
+				} else if(arg.equals("--reason")) {
+					reason = value;
+				} else if(arg.equals("--location")) {
+					location = value;
+				} else if(arg.equals("--contact")) {
+					contact = value;
+				} else if(arg.equals("--timeout")) {
+					timeout = (long)parsePositive(arg, value);
+				} else if(arg.equals("--arbiter")) {
+					arbiterFile = new File(value);
+				} else if(arg.equals("--tsa")) {
+					tsa = value;
+				} else if(arg.equals("--journal")) {
+					journalFile = new File(value);
+				} else if(arg.equals("--record-card")) {
+					System.setProperty(JpkiWrapper.CARD_RECORDING_PROPERTY, new File(value).getAbsolutePath());
+				} else if(arg.equals("--jpki-path")) {
+					System.setProperty(JpkiWrapper.INSTALL_PATH_PROPERTY, value);
+				} else {
+					throw new IllegalArgumentException("unknown option: " + arg);
+				}
+			} else {
+				roots.add(new File(arg));
+			}
+		}
+		for(File root : roots) {
+			collect(root, root.isDirectory() ? "" : null);
+		}
+		if(inputs.isEmpty()) {
+			throw new IllegalArgumentException("no input PDF files");
+		}
+
+		final JpkiWrapper wrapper = new JpkiWrapper();
+		wrapper.setApplicationName("jpki-wrapper BatchSigner");
+		if(timeout != null) {
+			wrapper.setTimeout(timeout, TimeUnit.SECONDS);
+		}
+		if(threads > 1) {
+			// 並列に処理する場合も IC カードは 1 枚なので、プロセス内で順番に使うようにします。
+			wrapper.setCardScheduler(new CardScheduler(), CardScheduler.Priority.BATCH, "batch");
+		}
+		if(arbiterFile != null) {
+			wrapper.setCardArbiter(new CardArbiter(arbiterFile));
+		}
+		if(tsa != null) {
+			final BoundedTimeStampClient client = new BoundedTimeStampClient(new HttpTimeStampClient(tsa), threads);
+			wrapper.setTimeStampClient(client);
+			resources.add(new Closeable() {
+				@Override
+				public void close() {
+					System.out.println("tsa: " + client.getReport());
+					client.close();
+				}
+			});
+		}
+		if(ltv) {
+			final RevocationCache cache = new RevocationCache();
+			wrapper.setRevocationCache(cache);
+			resources.add(new Closeable() {
+				@Override
+				public void close() {
+					System.out.println("revocation: " + cache);
+				}
+			});
+		}
+		if(journalFile != null) {
+			AuditJournal journal = new AuditJournal(journalFile);
+			wrapper.setAuditJournal(journal);
+			resources.add(journal);
+		}
+		wrapper.setSelfCheck(selfCheck);
+		for(JpkiStage stage : JpkiStage.values()) {
+			stageSamples[stage.ordinal()] = new Samples();
+		}
+		if(adaptiveEnabled) {
+			adaptive = new AdaptiveConcurrency(1, threads);
+		}
+		final AdaptiveConcurrency controller = adaptive;
+		wrapper.setStageListener(new JpkiStageListener() {
+			@Override
+			public void stageFinished(JpkiStage stage, long elapsedNanos) {
+				stageSamples[stage.ordinal()].add(elapsedNanos);
+				if(controller != null) {
+					controller.stageFinished(stage, elapsedNanos);
+				}
+			}
+		});
+		return wrapper;
+	}
+
+	private static int parsePositive(String option, String value) {
+		try {
+			int n = Integer.parseInt(value);
+			if(n > 0) {
+				return n;
+			}
+		} catch(NumberFormatException e) {
+			// 下で報告します。
+		}
+		throw new IllegalArgumentException("invalid value for " + option + ": " + value);
+	}
+
+	private void collect(File file, String relativeName) {
+		if(file.isDirectory()) {
+			File[] children = file.listFiles();
+			if(children == null) {
+				return;
+			}
+			Arrays.sort(children);
+			for(File child : children) {
+				collect(child, (relativeName == null || relativeName.isEmpty()) ? child.getName() : relativeName + File.separator + child.getName());
+			}
+		} else if(file.isFile() && file.getName().toLowerCase(Locale.ROOT).endsWith(".pdf")) {
+			inputs.add(file);
+			relativeNames.add(relativeName != null ? relativeName : file.getName());
+		}
+	}
+
+	private boolean run(final JpkiWrapper wrapper) throws InterruptedException, IOException {
+		HeapSampler heap = new HeapSampler();
+		heap.start();
+		ZipArchiveSink sink = null;
+		if(zipFile != null && !discard) {
+			if(zipFile.getParentFile() != null) {
+				zipFile.getParentFile().mkdirs();
+			}
+			sink = new ZipArchiveSink(new BufferedOutputStream(new FileOutputStream(zipFile), 64 * 1024));
+			// 書き込み待ちのエントリーがメモリーに溜まりすぎないように、投入を待たせます。
+			sink.setMaxPendingEntries(threads * 4);
+		}
+		ExecutorService executor = JobExecutors.newJobExecutor("jpki-batch-", threads);
+		long started = System.nanoTime();
+		try {
+			for(int r = 0; r < repeat; r++) {
+				for(int i = 0; i < inputs.size(); i++) {
+					final File input = inputs.get(i);
+					final File output = (sink == null) ? getOutputFile(input, relativeNames.get(i), r) : null;
+					// 適応制御では、処理中の文書が上限に達している間はここで待ちます。
+					final long admitted = (adaptive != null) ? adaptive.acquire() : 0;
+					final ZipArchiveSink.Entry entry = (sink != null) ? sink.reserve(getEntryName(relativeNames.get(i), r)) : null;
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								sign(wrapper, input, output, entry);
+							} finally {
+								if(adaptive != null) {
+									adaptive.release(admitted);
+								}
+							}
+						}
+					});
+				}
+			}
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			if(sink != null) {
+				sink.close();
+			}
+			heap.interrupt();
+		}
+		long elapsed = System.nanoTime() - started;
+		report(elapsed, heap.getPeak());
+		if(sink != null) {
+			System.out.printf("zip: %d entries, %s -> %s%n", sink.getEntries().size(), formatBytes(sink.getBytesWritten()), zipFile);
+		}
+		return failed.get() == 0;
+	}
+
+	private String getEntryName(String relativeName, int round) {
+		String base = relativeName.substring(0, relativeName.length() - 4).replace(File.separatorChar, '/');
+		return base + ((repeat > 1) ? "-" + (round + 1) + ".pdf" : ".pdf");
+	}
+
+	private File getOutputFile(File input, String relativeName, int round) {
+		if(discard) {
+			return null;
+		}
+		String base = relativeName.substring(0, relativeName.length() - 4);
+		String suffix = (repeat > 1) ? "-" + (round + 1) + ".pdf" : ".pdf";
+		if(outputDirectory != null) {
+			return new File(outputDirectory, base + suffix);
+		}
+		return new File(input.getParentFile(), new File(base).getName() + "-signed" + suffix);
+	}
+
+	private void sign(JpkiWrapper wrapper, File input, File output, ZipArchiveSink.Entry entry) {
+		long started = System.nanoTime();
+		try(PDDocument document = PDDocument.load(input)) {
+			bytesIn.addAndGet(input.length());
+			if(output != null && output.getParentFile() != null) {
+				output.getParentFile().mkdirs();
+			}
+			if(entry != null) {
+				wrapper.addSignature(entry, document, name, reason, null, location, contact, null);
+				bytesOut.addAndGet(entry.getSize());
+			} else if(output != null) {
+				wrapper.addSignature(output, document, name, reason, null, location, contact, null);
+				bytesOut.addAndGet(output.length());
+			} else {
+				CountingOutputStream out = new CountingOutputStream(new NullOutputStream());
+				wrapper.addSignature(out, document, name, reason, null, location, contact, null);
+				bytesOut.addAndGet(out.count);
+			}
+			totalSamples.add(System.nanoTime() - started);
+			succeeded.incrementAndGet();
+		} catch(Exception e) {
+			if(entry != null) {
+				entry.abort();
+			}
+			failed.incrementAndGet();
+			System.err.println(input + ": " + e);
+		}
+	}
+
+	private void report(long elapsedNanos, long peakHeap) {
+		double seconds = elapsedNanos / 1e9;
+		System.out.printf("documents: %d signed, %d failed in %.3f s (%.2f docs/s, %d %s threads)%n",
+				succeeded.get(), failed.get(), seconds, succeeded.get() / seconds, threads,
+				JobExecutors.isVirtualThreadSupported() ? "virtual" : "platform");
+		System.out.printf("bytes: in %s, out %s%n", formatBytes(bytesIn.get()), formatBytes(bytesOut.get()));
+		System.out.printf("%-12s %8s %9s %9s %9s %9s%n", "latency(ms)", "count", "p50", "p95", "p99", "max");
+		printLatency("total", totalSamples);
+		for(JpkiStage stage : JpkiStage.values()) {
+			printLatency(stage.name(), stageSamples[stage.ordinal()]);
+		}
+		System.out.printf("peak heap: %s (max %s)%n", formatBytes(peakHeap), formatBytes(Runtime.getRuntime().maxMemory()));
+		if(adaptive != null) {
+			AdaptiveConcurrency.Metrics m = adaptive.getMetrics();
+			System.out.printf("adaptive: limit %d (max %d), %d increases, %d decreases, card utilization %.1f%%, last decision: %s%n",
+					m.getLimit(), threads, m.getIncreases(), m.getDecreases(), m.getCardUtilization() * 100, m.getDecision());
+		}
+	}
+
+	private static void printLatency(String label, Samples samples) {
+		long[] values = samples.sorted();
+		if(values.length == 0) {
+			return;
+		}
+		System.out.printf("%-12s %8d %9.1f %9.1f %9.1f %9.1f%n", label, values.length,
+				percentile(values, 50) / 1e6, percentile(values, 95) / 1e6, percentile(values, 99) / 1e6, values[values.length - 1] / 1e6);
+	}
+
+	private static long percentile(long[] sorted, int p) {
+		int index = (int)Math.ceil(p / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+
+	private static String formatBytes(long bytes) {
+		if(bytes < 1024) {
+			return bytes + " B";
+		} else if(bytes < 1024 * 1024) {
+			return String.format("%.1f KB", bytes / 1024.0);
+		} else if(bytes < 1024L * 1024 * 1024) {
+			return String.format("%.1f MB", bytes / (1024.0 * 1024));
+		}
+		return String.format("%.2f GB", bytes / (1024.0 * 1024 * 1024));
+	}
+
+	private static class Samples {
+
+		private long[] values = new long[256];
+		private int size;
+
+		synchronized void add(long value) {
+			if(size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+
+		synchronized long[] sorted() {
+			long[] copy = Arrays.copyOf(values, size);
+			Arrays.sort(copy);
+			return copy;
+		}
+	}
+
+	/**
+	 * ヒープ全体の使用量を一定間隔で読み取り、その最大値を記録します。
+	 * メモリー プールごとのピークは別々の時点の値なので、合計すると実際のピークより大きくなります。
+	 */
+	private static class HeapSampler extends Thread {
+
+		private static final long INTERVAL_MILLIS = 10;
+
+		private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		private volatile long peak;
+
+		HeapSampler() {
+			super("jpki-batch-heap");
+			setDaemon(true);
+			sample();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while(!isInterrupted()) {
+					sample();
+					Thread.sleep(INTERVAL_MILLIS);
+				}
+			} catch(InterruptedException e) {
+				// 計測を終了します。
+			}
+		}
+
+		private synchronized void sample() {
+			long used = memory.getHeapMemoryUsage().getUsed();
+			if(used > peak) {
+				peak = used;
+			}
+		}
+
+		long getPeak() {
+			sample();
+			return peak;
+		}
+	}
+
+	private static class CountingOutputStream extends FilterOutputStream {
+
+		long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+
+	private static class NullOutputStream extends OutputStream {
+
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package net.osdn.jpki.wrapper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * タイムスタンプ局に同時に問い合わせる要求の数を制限する {@link TimeStampClient} です。
+ * <p>
+ * {@link #getTimeStampToken(byte[])} はトークンを受け取るまで呼び出したスレッドを待たせます。このクラス自体は次の文書の処理を先に進めません。
+ * TSA の往復時間がカードの処理と重なるのは、{@link JpkiWrapper} がカードを解放してからトークンを要求するので、
+ * 複数のスレッドで署名すると、あるスレッドがトークンを待つ間にほかのスレッドがカードを使えるためです。
+ * このクラスは、そのとき TSA に同時に送る要求を concurrency 件までに抑え、超えた要求をキューで待たせます。
+ * 待ち時間とスループットは {@link #getReport()} で確認できます。
+ */
+public class BoundedTimeStampClient implements TimeStampClient, Closeable {
+
+	private final TimeStampClient delegate;
+	private final ExecutorService executor;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicLong maxInFlight = new AtomicLong();
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong failureCount = new AtomicLong();
+	private final AtomicLong totalLatency = new AtomicLong();
+	private final AtomicLong maxLatency = new AtomicLong();
+	private final AtomicLong totalServiceTime = new AtomicLong();
+	private final AtomicLong firstSubmitted = new AtomicLong();
+	private final AtomicLong lastCompleted = new AtomicLong();
+
+	/**
+	 * @param delegate 実際に TSA に問い合わせるクライアント。複数のスレッドから同時に呼ばれます。
+	 * @param concurrency 同時に問い合わせる要求の最大数
+	 */
+	public BoundedTimeStampClient(TimeStampClient delegate, int concurrency) {
+		if(concurrency < 1) {
+			throw new IllegalArgumentException("concurrency must be positive: " + concurrency);
+		}
+		this.delegate = delegate;
+		this.executor = JobExecutors.newJobExecutor("jpki-tsa-", concurrency);
+	}
+
+	/**
+	 * 要求をキューに入れ、トークンを受け取る Future を返します。
+	 */
+	public Future<byte[]> submit(final byte[] digest) {
+		final long submitted = System.nanoTime();
+		firstSubmitted.compareAndSet(0, submitted);
+		return executor.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws IOException {
+				long started = System.nanoTime();
+				Atomics.updateMax(maxInFlight, inFlight.incrementAndGet());
+				boolean succeeded = false;
+				try {
+					byte[] token = delegate.getTimeStampToken(digest);
+					succeeded = true;
+					return token;
+				} finally {
+					inFlight.decrementAndGet();
+					long completed = System.nanoTime();
+					requestCount.incrementAndGet();
+					if(!succeeded) {
+						failureCount.incrementAndGet();
+					}
+					totalLatency.addAndGet(completed - submitted);
+					Atomics.updateMax(maxLatency, completed - submitted);
+					totalServiceTime.addAndGet(completed - started);
+					lastCompleted.set(completed);
+				}
+			}
+		});
+	}
+
+	@Override
+	public byte[] getTimeStampToken(byte[] digest) throws IOException {
+		Future<byte[]> future = submit(digest);
+		try {
+			return future.get();
+		} catch(InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while waiting for the time stamp token", e);
+		} catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) {
+				throw (IOException)cause;
+			} else if(cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	@Override
+	public int estimateTokenSize() throws IOException {
+		return delegate.estimateTokenSize();
+	}
+
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	public long getFailureCount() {
+		return failureCount.get();
+	}
+
+	/** キューで待った時間を含む、要求から応答までの平均時間 */
+	public long getAverageLatency(TimeUnit unit) {
+		long count = requestCount.get();
+		return (count > 0) ? unit.convert(totalLatency.get() / count, TimeUnit.NANOSECONDS) : 0;
+	}
+
+	public long getMaxLatency(TimeUnit unit) {
+		return unit.convert(maxLatency.get(), TimeUnit.NANOSECONDS);
+	}
+
+	/** TSA との往復に要した平均時間 */
+	public long getAverageServiceTime(TimeUnit unit) {
+		long count = requestCount.get();
+		return (count > 0) ? unit.convert(totalServiceTime.get() / count, TimeUnit.NANOSECONDS) : 0;
+	}
+
+	/** 最初の要求から最後の応答までの 1 秒あたりの応答数 */
+	public double getThroughput() {
+		long first = firstSubmitted.get();
+		long last = lastCompleted.get();
+		long count = requestCount.get();
+		if(count == 0 || last <= first) {
+			return 0.0;
+		}
+		return count * 1e9 / (last - first);
+	}
+
+	/**
+	 * 待ち時間とスループットの報告を返します。
+	 */
+	public String getReport() {
+		return String.format("requests=%d, failures=%d, throughput=%.1f/s, latency(avg)=%dms, latency(max)=%dms, service(avg)=%dms, in-flight(max)=%d",
+				getRequestCount(), getFailureCount(), getThroughput(),
+				getAverageLatency(TimeUnit.MILLISECONDS), getMaxLatency(TimeUnit.MILLISECONDS),
+				getAverageServiceTime(TimeUnit.MILLISECONDS), maxInFlight.get());
+	}
+
+	@Override
+	public String toString() {
+		return "BoundedTimeStampClient[" + delegate + ", " + getReport() + "]";
+	}
+
+	@Override
+	public void close() {
+		executor.shutdown();
+	}
+
+	/**
+	 * TSA に要求を連続して送り、報告を出力します。
+	 * <pre>
+	 * java net.osdn.jpki.wrapper.BoundedTimeStampClient url [requests] [concurrency]
+	 * </pre>
+	 */
+	public static void main(String[] args) throws Exception {
+		if(args.length == 0) {
+			System.err.println("usage: BoundedTimeStampClient url [requests] [concurrency]");
+			System.exit(2);
+		}
+		int requests = (args.length > 1) ? Integer.parseInt(args[1]) : 100;
+		int concurrency = (args.length > 2) ? Integer.parseInt(args[2]) : 8;
+		try(BoundedTimeStampClient bounded = new BoundedTimeStampClient(new HttpTimeStampClient(args[0]), concurrency)) {
+			List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>(requests);
+			for(int i = 0; i < requests; i++) {
+				futures.add(bounded.submit(sha256(Integer.toString(i).getBytes("UTF-8"))));
+			}
+			for(Future<byte[]> future : futures) {
+				try {
+					future.get();
+				} catch(ExecutionException e) {
+					System.err.println(e.getCause());
+				}
+			}
+			System.out.println(bounded.getReport());
+		}
+	}
+
+	private static byte[] sha256(byte[] data) throws NoSuchAlgorithmException {
+		return MessageDigest.getInstance("SHA-256").digest(data);
+	}
+}
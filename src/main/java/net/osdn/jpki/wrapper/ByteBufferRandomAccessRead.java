@@ -0,0 +1,129 @@
+package net.osdn.jpki.wrapper;
+
+import org.apache.pdfbox.io.RandomAccessRead;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * ByteBuffer (ヒープまたはダイレクト) をコピーせずに PDFBox のパーサーに読ませます。
+ * 増分保存で元の文書を出力に書き写すときも、署名対象のハッシュを計算するときも、このバッファーから直接読みます。
+ */
+/* package private */ class ByteBufferRandomAccessRead implements RandomAccessRead {
+
+	private final ByteBuffer buffer;
+	private final int length;
+	private int position;
+	private boolean closed;
+
+	/**
+	 * source の position から limit までを読みます。source の position と limit は変更しません。
+	 */
+	ByteBufferRandomAccessRead(ByteBuffer source) {
+		this.buffer = source.slice();
+		this.length = buffer.remaining();
+	}
+
+	@Override
+	public int read() throws IOException {
+		checkClosed();
+		if(position >= length) {
+			return -1;
+		}
+		return buffer.get(position++) & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b) throws IOException {
+		return read(b, 0, b.length);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		checkClosed();
+		if(position >= length) {
+			return -1;
+		}
+		int n = Math.min(len, length - position);
+		ByteBuffer view = buffer.duplicate();
+		// Java 9 以降でコンパイルしても Java 8 で動くように、Buffer のメソッドとして呼びます。
+		((Buffer)view).position(position);
+		view.get(b, off, n);
+		position += n;
+		return n;
+	}
+
+	@Override
+	public long getPosition() throws IOException {
+		checkClosed();
+		return position;
+	}
+
+	@Override
+	public void seek(long newPosition) throws IOException {
+		checkClosed();
+		if(newPosition < 0) {
+			throw new IOException("invalid position: " + newPosition);
+		}
+		position = (int)Math.min(newPosition, length);
+	}
+
+	@Override
+	public long length() throws IOException {
+		checkClosed();
+		return length;
+	}
+
+	@Override
+	public boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public int peek() throws IOException {
+		checkClosed();
+		return (position < length) ? buffer.get(position) & 0xFF : -1;
+	}
+
+	@Override
+	public void rewind(int bytes) throws IOException {
+		checkClosed();
+		seek(position - bytes);
+	}
+
+	@Override
+	public byte[] readFully(int len) throws IOException {
+		checkClosed();
+		if(len > length - position) {
+			throw new EOFException("premature end of buffer");
+		}
+		byte[] b = new byte[len];
+		read(b, 0, len);
+		return b;
+	}
+
+	@Override
+	public boolean isEOF() throws IOException {
+		checkClosed();
+		return position >= length;
+	}
+
+	@Override
+	public int available() throws IOException {
+		checkClosed();
+		return length - position;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+	}
+
+	private void checkClosed() throws IOException {
+		if(closed) {
+			throw new IOException("buffer is closed");
+		}
+	}
+}
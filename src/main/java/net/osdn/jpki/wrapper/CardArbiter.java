@@ -0,0 +1,373 @@
+package net.osdn.jpki.wrapper;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.FileLockInterruptionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 同じ端末で動く複数の JVM の間で IC カードの使用を調停します。
+ * <p>
+ * 共有ファイルに整理券 (次に発行する番号と現在処理中の番号) を記録し、{@link FileChannel#lock()} で
+ * 更新を排他することで、到着順 (FIFO) にカードを貸し出します。
+ * 貸し出し (リース) には期限があり、保持者のプロセスが異常終了しても期限切れで次の待機者に進みます。
+ * 同じ JVM 内の複数のインスタンスやスレッドが同じファイルを指定しても構いません。
+ * 順番待ちには {@link ReentrantLock} を使うので、仮想スレッドが待っている間もキャリアは解放されます。
+ */
+public class CardArbiter {
+
+	private static final int MAGIC = 0x4A504B49; // "JPKI"
+	private static final int MAX_ABANDONED = 64;
+	private static final int STATE_SIZE = 4 + 8 + 8 + 8 + 4 + 4 + 8 * MAX_ABANDONED;
+
+	private static final ConcurrentMap<String, Monitor> monitors = new ConcurrentHashMap<String, Monitor>();
+
+	private final File file;
+	private final Monitor monitor;
+	private volatile long leaseTimeoutMillis = TimeUnit.MINUTES.toMillis(10);
+	private volatile long claimTimeoutMillis = TimeUnit.SECONDS.toMillis(5);
+	private volatile long acquireTimeoutMillis = TimeUnit.MINUTES.toMillis(10);
+	private volatile long pollIntervalMillis = 20;
+
+	private final AtomicLong acquireCount = new AtomicLong();
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	private final AtomicLong timeoutCount = new AtomicLong();
+	private final AtomicLong reclaimCount = new AtomicLong();
+
+	public CardArbiter(File file) throws IOException {
+		this.file = file.getCanonicalFile();
+		Monitor m = new Monitor();
+		Monitor prev = monitors.putIfAbsent(this.file.getPath(), m);
+		this.monitor = (prev != null) ? prev : m;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * リースの有効期限を設定します。保持者がこの時間を超えて返却しない場合、待機者はリースを回収して先に進みます。
+	 */
+	public void setLeaseTimeout(long timeout, TimeUnit unit) {
+		leaseTimeoutMillis = unit.toMillis(timeout);
+	}
+
+	/**
+	 * 順番が回ってきた整理券が引き取られるまでの猶予を設定します。猶予を過ぎた整理券は飛ばされます。
+	 */
+	public void setClaimTimeout(long timeout, TimeUnit unit) {
+		claimTimeoutMillis = unit.toMillis(timeout);
+	}
+
+	/**
+	 * {@link #acquire()} が順番を待つ最大時間を設定します。
+	 */
+	public void setAcquireTimeout(long timeout, TimeUnit unit) {
+		acquireTimeoutMillis = unit.toMillis(timeout);
+	}
+
+	public long getAcquireTimeout(TimeUnit unit) {
+		return unit.convert(acquireTimeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public void setPollInterval(long interval, TimeUnit unit) {
+		pollIntervalMillis = Math.max(1, unit.toMillis(interval));
+	}
+
+	public Lease acquire() throws JpkiException, IOException {
+		return acquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public Lease acquire(long timeout, TimeUnit unit) throws JpkiException, IOException {
+		final long start = System.nanoTime();
+		long deadline = start + unit.toNanos(timeout);
+		final long[] ticket = { -1 };
+		try {
+			for(;;) {
+				monitor.lock.lock();
+				try {
+					Lease lease = update(new Update<Lease>() {
+						@Override
+						public Lease apply(State state, long now) {
+							if(ticket[0] < 0 || ticket[0] < state.serving) {
+								// 初回、または順番が来たときに引き取れず飛ばされた場合は並び直します。
+								ticket[0] = state.next++;
+								if(state.serving == ticket[0]) {
+									state.expiresAt = now + claimTimeoutMillis;
+								}
+							}
+							if(state.serving < ticket[0] && state.expiresAt != 0 && now > state.expiresAt) {
+								reclaimCount.incrementAndGet();
+								state.advance(now, claimTimeoutMillis);
+							}
+							if(state.serving != ticket[0]) {
+								return null;
+							}
+							state.claimed = true;
+							state.expiresAt = now + leaseTimeoutMillis;
+							return new Lease(ticket[0]);
+						}
+					});
+					if(lease != null) {
+						ticket[0] = -1;
+						long waited = System.nanoTime() - start;
+						acquireCount.incrementAndGet();
+						totalWaitNanos.addAndGet(waited);
+						Atomics.updateMax(maxWaitNanos, waited);
+						return lease;
+					}
+					long remaining = deadline - System.nanoTime();
+					if(remaining <= 0) {
+						timeoutCount.incrementAndGet();
+						throw new JpkiException(JpkiException.WRAPPER_E_CARD_BUSY, 0,
+								new IOException("timed out waiting for the card lease on " + file));
+					}
+					try {
+						monitor.changed.await(Math.max(1, Math.min(pollIntervalMillis, TimeUnit.NANOSECONDS.toMillis(remaining))), TimeUnit.MILLISECONDS);
+					} catch(InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new JpkiException(JpkiException.WRAPPER_E_CARD_BUSY, 0, e);
+					}
+				} finally {
+					monitor.lock.unlock();
+				}
+			}
+		} finally {
+			if(ticket[0] >= 0) {
+				abandon(ticket[0]);
+			}
+		}
+	}
+
+	private void release(final long ticket) throws IOException {
+		monitor.lock.lock();
+		try {
+			update(new Update<Void>() {
+				@Override
+				public Void apply(State state, long now) {
+					if(state.serving == ticket) {
+						state.advance(now, claimTimeoutMillis);
+					}
+					return null;
+				}
+			});
+			monitor.changed.signalAll();
+		} finally {
+			monitor.lock.unlock();
+		}
+	}
+
+	private void abandon(final long ticket) throws IOException {
+		monitor.lock.lock();
+		try {
+			update(new Update<Void>() {
+				@Override
+				public Void apply(State state, long now) {
+					if(state.serving == ticket) {
+						state.advance(now, claimTimeoutMillis);
+					} else if(state.serving < ticket && !state.isAbandoned(ticket) && state.abandonedCount < MAX_ABANDONED) {
+						state.abandoned[state.abandonedCount++] = ticket;
+					}
+					return null;
+				}
+			});
+			monitor.changed.signalAll();
+		} finally {
+			monitor.lock.unlock();
+		}
+	}
+
+	/**
+	 * 共有ファイルをロックして状態を更新します。
+	 * <p>
+	 * FileChannel は割り込まれると閉じられてしまうので、割り込み状態を解除してから更新し、終わってから元に戻します。
+	 * 更新中に割り込まれた場合はファイルを開き直してやり直します。
+	 * 割り込まれたスレッド (期限切れで中断された署名処理など) でも、整理券の放棄やリースの返却を確実に記録するためです。
+	 * やり直しても結果が変わらないように、各更新は同じ状態に 2 回適用しても同じ結果になるように書かれています。
+	 */
+	private <T> T update(Update<T> update) throws IOException {
+		boolean interrupted = Thread.interrupted();
+		try {
+			for(;;) {
+				try(RandomAccessFile raf = new RandomAccessFile(file, "rw");
+						FileChannel channel = raf.getChannel()) {
+					FileLock lock = channel.lock();
+					try {
+						State state = State.read(channel);
+						T result = update.apply(state, System.currentTimeMillis());
+						state.write(channel);
+						return result;
+					} finally {
+						if(lock.isValid()) {
+							lock.release();
+						}
+					}
+				} catch(ClosedByInterruptException | FileLockInterruptionException e) {
+					interrupted |= Thread.interrupted();
+				}
+			}
+		} finally {
+			if(interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	public long getAcquireCount() {
+		return acquireCount.get();
+	}
+
+	public long getTotalWaitTime(TimeUnit unit) {
+		return unit.convert(totalWaitNanos.get(), TimeUnit.NANOSECONDS);
+	}
+
+	public long getMaxWaitTime(TimeUnit unit) {
+		return unit.convert(maxWaitNanos.get(), TimeUnit.NANOSECONDS);
+	}
+
+	public long getTimeoutCount() {
+		return timeoutCount.get();
+	}
+
+	/**
+	 * 期限切れのリースや引き取られなかった整理券を回収した回数を返します。
+	 */
+	public long getReclaimCount() {
+		return reclaimCount.get();
+	}
+
+	@Override
+	public String toString() {
+		long count = acquireCount.get();
+		return "CardArbiter[file=" + file
+				+ ", acquired=" + count
+				+ ", avgWaitMs=" + (count > 0 ? TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get() / count) : 0)
+				+ ", maxWaitMs=" + TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get())
+				+ ", timeouts=" + timeoutCount.get()
+				+ ", reclaimed=" + reclaimCount.get() + "]";
+	}
+
+	public class Lease implements Closeable {
+
+		private final long ticket;
+		private boolean released;
+
+		private Lease(long ticket) {
+			this.ticket = ticket;
+		}
+
+		public long getTicket() {
+			return ticket;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if(!released) {
+				released = true;
+				release(ticket);
+			}
+		}
+	}
+
+	/**
+	 * 同じファイルを使うインスタンスで共有するロックです。
+	 */
+	private static class Monitor {
+		final ReentrantLock lock = new ReentrantLock();
+		final Condition changed = lock.newCondition();
+	}
+
+	private interface Update<T> {
+		T apply(State state, long now);
+	}
+
+	private static class State {
+		long next;
+		long serving;
+		long expiresAt;
+		boolean claimed;
+		int abandonedCount;
+		long[] abandoned = new long[MAX_ABANDONED];
+
+		static State read(FileChannel channel) throws IOException {
+			State state = new State();
+			ByteBuffer buf = ByteBuffer.allocate(STATE_SIZE);
+			channel.position(0);
+			while(buf.hasRemaining() && channel.read(buf) > 0) {
+			}
+			if(buf.position() == STATE_SIZE) {
+				buf.flip();
+				if(buf.getInt() == MAGIC) {
+					state.next = buf.getLong();
+					state.serving = buf.getLong();
+					state.expiresAt = buf.getLong();
+					state.claimed = buf.getInt() != 0;
+					state.abandonedCount = Math.min(Math.max(buf.getInt(), 0), MAX_ABANDONED);
+					for(int i = 0; i < state.abandonedCount; i++) {
+						state.abandoned[i] = buf.getLong();
+					}
+				}
+			}
+			return state;
+		}
+
+		void write(FileChannel channel) throws IOException {
+			ByteBuffer buf = ByteBuffer.allocate(STATE_SIZE);
+			buf.putInt(MAGIC);
+			buf.putLong(next);
+			buf.putLong(serving);
+			buf.putLong(expiresAt);
+			buf.putInt(claimed ? 1 : 0);
+			buf.putInt(abandonedCount);
+			for(int i = 0; i < abandonedCount; i++) {
+				buf.putLong(abandoned[i]);
+			}
+			buf.position(STATE_SIZE);
+			buf.flip();
+			channel.position(0);
+			while(buf.hasRemaining()) {
+				channel.write(buf);
+			}
+		}
+
+		void advance(long now, long claimTimeoutMillis) {
+			serving++;
+			while(serving < next && removeAbandoned(serving)) {
+				serving++;
+			}
+			claimed = false;
+			expiresAt = (serving < next) ? now + claimTimeoutMillis : 0;
+		}
+
+		boolean isAbandoned(long ticket) {
+			for(int i = 0; i < abandonedCount; i++) {
+				if(abandoned[i] == ticket) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private boolean removeAbandoned(long ticket) {
+			for(int i = 0; i < abandonedCount; i++) {
+				if(abandoned[i] == ticket) {
+					abandoned[i] = abandoned[--abandonedCount];
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,412 @@
+package net.osdn.jpki.wrapper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 同じ JVM 内で IC カードを使う処理に、優先度と呼び出し元 (テナント) ごとの公平性に基づいて順番を割り当てます。
+ * <p>
+ * カードが空くと、待っている処理のうち優先度の高いクラスから 1 件を選びます。同じクラスの中では、テナントごとの重みに比例して
+ * カードを使えるように、重み付き公平キューイング (WFQ) の仮想終了時刻が最も早い処理を選びます。
+ * 優先度の低い処理も、{@link #setAgingInterval(long, TimeUnit)} を待つごとに 1 段ずつ高いクラスとして扱われるので、
+ * 優先度の高い処理が途切れなくても飢餓状態にはなりません。仮想時刻はすべてのクラスで共通なので、繰り上げられた処理の仮想終了時刻は
+ * 繰り上げ先のクラスの処理とそのまま比べられます。順番を待つ間にタイムアウトした処理の分はテナントに課金しません。
+ * カードは空いていれば必ず貸し出すので、順番を入れ替えても全体の処理量はほとんど変わりません。
+ * <p>
+ * {@link JpkiWrapper#setCardScheduler(CardScheduler, Priority, String)} で設定した JpkiWrapper は、
+ * カードのコンテキストを取得する前に順番を待ち、カードを解放した後に次の処理に譲ります。
+ * 複数の JpkiWrapper で同じインスタンスを共有してください。{@link CardArbiter} も設定されている場合は、
+ * このクラスで順番を得た後に CardArbiter のリースを取得します。ほかのプロセスとの間の順番は CardArbiter の到着順のままです。
+ * 順番待ちには {@link ReentrantLock} を使うので、仮想スレッドが待っている間もキャリアは解放されます。
+ */
+public class CardScheduler {
+
+	/**
+	 * 優先度のクラスです。宣言の順に優先されます。
+	 */
+	public enum Priority {
+
+		/** 利用者が画面の前で結果を待っている処理 */
+		INTERACTIVE,
+
+		/** 既定のクラス */
+		NORMAL,
+
+		/** 夜間の一括処理など、待たせてもよい処理 */
+		BATCH
+	}
+
+	private static final int WAIT_SAMPLES = 1024;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	private final List<Waiter> waiters = new ArrayList<Waiter>();
+	private final Map<String, Integer> weights = new HashMap<String, Integer>();
+	private final Map<String, Double> lastFinish = new HashMap<String, Double>();
+	private double virtualTime;
+	private final Stats[] stats = new Stats[Priority.values().length];
+	private boolean busy;
+	private long sequence;
+	private volatile long agingIntervalNanos = TimeUnit.SECONDS.toNanos(5);
+	private volatile long acquireTimeoutMillis = TimeUnit.MINUTES.toMillis(10);
+
+	public CardScheduler() {
+		for(int i = 0; i < stats.length; i++) {
+			stats[i] = new Stats();
+		}
+	}
+
+	/**
+	 * テナントの重みを設定します。既定値は 1 です。同じクラスで競合したとき、テナントは重みに比例した回数だけカードを使えます。
+	 */
+	public void setWeight(String tenant, int weight) {
+		if(weight < 1) {
+			throw new IllegalArgumentException("weight: " + weight);
+		}
+		lock.lock();
+		try {
+			weights.put(tenant, weight);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 待っている処理を 1 段高いクラスとして扱うまでの時間を設定します。既定値は 5 秒です。0 を指定すると繰り上げません。
+	 */
+	public void setAgingInterval(long interval, TimeUnit unit) {
+		agingIntervalNanos = unit.toNanos(interval);
+	}
+
+	/**
+	 * {@link #acquire(Priority, String)} が順番を待つ最大時間を設定します。既定値は 10 分です。
+	 */
+	public void setAcquireTimeout(long timeout, TimeUnit unit) {
+		acquireTimeoutMillis = unit.toMillis(timeout);
+	}
+
+	public long getAcquireTimeout(TimeUnit unit) {
+		return unit.convert(acquireTimeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public Permit acquire(Priority priority, String tenant) throws JpkiException {
+		return acquire(priority, tenant, acquireTimeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 順番が来るまで待ち、カードを使う許可を返します。カードを使い終わったら許可を閉じてください。
+	 * timeout を過ぎても順番が来ない場合は {@link JpkiException#WRAPPER_E_CARD_BUSY} で失敗します。
+	 */
+	public Permit acquire(Priority priority, String tenant, long timeout, TimeUnit unit) throws JpkiException {
+		if(priority == null) {
+			priority = Priority.NORMAL;
+		}
+		if(tenant == null) {
+			tenant = "";
+		}
+		long start = System.nanoTime();
+		long deadline = start + unit.toNanos(timeout);
+		lock.lock();
+		try {
+			if(!busy && waiters.isEmpty()) {
+				busy = true;
+				return grant(priority, start, false);
+			}
+			Waiter waiter = enqueue(priority, tenant, start);
+			try {
+				while(!waiter.granted) {
+					long remaining = deadline - System.nanoTime();
+					if(remaining <= 0) {
+						stats[priority.ordinal()].timeouts++;
+						throw new JpkiException(JpkiException.WRAPPER_E_CARD_BUSY, 0,
+								new IOException("timed out waiting for the card scheduler"));
+					}
+					changed.awaitNanos(remaining);
+				}
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				if(waiter.granted) {
+					// 割り込みと同時に順番が来た場合は、受け取らずに次の処理に譲ります。
+					release();
+				}
+				throw new JpkiException(JpkiException.WRAPPER_E_CARD_BUSY, 0, e);
+			} finally {
+				if(!waiter.granted && waiters.remove(waiter)) {
+					stats[priority.ordinal()].queued--;
+					refund(waiter);
+				}
+			}
+			return grant(priority, start, waiter.aged);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private Waiter enqueue(Priority priority, String tenant, long now) {
+		// 仮想開始時刻は仮想時刻とテナントの直前の仮想終了時刻の遅い方で、1 回の使用を重みで割った分だけ進めます。
+		Integer weight = weights.get(tenant);
+		String key = priority.ordinal() + ":" + tenant;
+		Double previous = lastFinish.get(key);
+		Waiter waiter = new Waiter(priority, key, virtualTime, (previous != null) ? previous : 0.0,
+				1.0 / ((weight != null) ? weight : 1), now, sequence++);
+		lastFinish.put(key, waiter.finishTag);
+		waiters.add(waiter);
+		stats[priority.ordinal()].queued++;
+		return waiter;
+	}
+
+	/**
+	 * 許可を受け取らずに列を離れた waiter の分をテナントから差し引き、同じテナントの後ろの処理の仮想終了時刻を計算し直します。
+	 */
+	private void refund(Waiter waiter) {
+		double finish = waiter.previousFinish;
+		for(Waiter w : waiters) {
+			if(w.sequence > waiter.sequence && w.key.equals(waiter.key)) {
+				w.finishTag = Math.max(w.virtualTimeAtEnqueue, finish) + w.cost;
+				finish = w.finishTag;
+			}
+		}
+		if(finish > virtualTime) {
+			lastFinish.put(waiter.key, finish);
+		} else {
+			lastFinish.remove(waiter.key);
+		}
+	}
+
+	private Permit grant(Priority priority, long enqueued, boolean aged) {
+		long waited = System.nanoTime() - enqueued;
+		Stats s = stats[priority.ordinal()];
+		s.acquired++;
+		s.totalWaitNanos += waited;
+		s.maxWaitNanos = Math.max(s.maxWaitNanos, waited);
+		s.samples[(int)(s.sampleIndex++ % WAIT_SAMPLES)] = waited;
+		if(aged) {
+			s.aged++;
+		}
+		return new Permit();
+	}
+
+	private void release() {
+		lock.lock();
+		try {
+			busy = false;
+			Waiter next = selectNext(System.nanoTime());
+			if(next != null) {
+				waiters.remove(next);
+				stats[next.priority.ordinal()].queued--;
+				virtualTime = Math.max(virtualTime, next.finishTag);
+				// 仮想時刻に追い越されたテナントの仮想終了時刻は次の計算に使われないので取り除きます。
+				for(Iterator<Double> i = lastFinish.values().iterator(); i.hasNext(); ) {
+					if(i.next() <= virtualTime) {
+						i.remove();
+					}
+				}
+				next.granted = true;
+				busy = true;
+				changed.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * 待ち時間で繰り上げた実効クラスが最も高く、その中で仮想終了時刻が最も早い (同じなら先に並んだ) 処理を選びます。
+	 */
+	private Waiter selectNext(long now) {
+		long aging = agingIntervalNanos;
+		Waiter best = null;
+		int bestClass = Integer.MAX_VALUE;
+		for(Waiter w : waiters) {
+			int effective = w.priority.ordinal();
+			if(aging > 0) {
+				effective = (int)Math.max(0, effective - (now - w.enqueued) / aging);
+			}
+			if(best == null || effective < bestClass
+					|| (effective == bestClass && (w.finishTag < best.finishTag || (w.finishTag == best.finishTag && w.sequence < best.sequence)))) {
+				best = w;
+				bestClass = effective;
+			}
+		}
+		if(best != null && bestClass < best.priority.ordinal()) {
+			best.aged = true;
+		}
+		return best;
+	}
+
+	/**
+	 * クラスごとの待ち時間などの計測値を返します。
+	 */
+	public Metrics getMetrics(Priority priority) {
+		lock.lock();
+		try {
+			Stats s = stats[priority.ordinal()];
+			long[] samples = Arrays.copyOf(s.samples, (int)Math.min(s.sampleIndex, WAIT_SAMPLES));
+			Arrays.sort(samples);
+			return new Metrics(priority, s.acquired, s.queued, s.timeouts, s.aged, s.totalWaitNanos, s.maxWaitNanos, samples);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("CardScheduler[");
+		for(Priority priority : Priority.values()) {
+			if(priority.ordinal() > 0) {
+				sb.append(", ");
+			}
+			sb.append(getMetrics(priority));
+		}
+		return sb.append("]").toString();
+	}
+
+	/**
+	 * カードを使う許可です。閉じると次の処理に順番を譲ります。
+	 */
+	public class Permit implements Closeable {
+
+		private boolean released;
+
+		private Permit() {
+		}
+
+		@Override
+		public void close() {
+			lock.lock();
+			try {
+				if(released) {
+					return;
+				}
+				released = true;
+			} finally {
+				lock.unlock();
+			}
+			release();
+		}
+	}
+
+	/**
+	 * あるクラスについて、これまでの許可の数と待ち時間です。百分位数は直近 1024 件から計算します。
+	 */
+	public static class Metrics {
+
+		private final Priority priority;
+		private final long acquired;
+		private final long queued;
+		private final long timeouts;
+		private final long aged;
+		private final long totalWaitNanos;
+		private final long maxWaitNanos;
+		private final long[] recentWaits;
+
+		private Metrics(Priority priority, long acquired, long queued, long timeouts, long aged, long totalWaitNanos, long maxWaitNanos, long[] recentWaits) {
+			this.priority = priority;
+			this.acquired = acquired;
+			this.queued = queued;
+			this.timeouts = timeouts;
+			this.aged = aged;
+			this.totalWaitNanos = totalWaitNanos;
+			this.maxWaitNanos = maxWaitNanos;
+			this.recentWaits = recentWaits;
+		}
+
+		public Priority getPriority() {
+			return priority;
+		}
+
+		/** 許可した数 */
+		public long getAcquired() {
+			return acquired;
+		}
+
+		/** 現在順番を待っている数 */
+		public long getQueued() {
+			return queued;
+		}
+
+		/** 順番を待つ間にタイムアウトした数 */
+		public long getTimeouts() {
+			return timeouts;
+		}
+
+		/** 待ち時間によって高いクラスに繰り上げられてから許可された数 */
+		public long getAged() {
+			return aged;
+		}
+
+		public long getAverageWait(TimeUnit unit) {
+			return unit.convert((acquired > 0) ? totalWaitNanos / acquired : 0, TimeUnit.NANOSECONDS);
+		}
+
+		public long getMaxWait(TimeUnit unit) {
+			return unit.convert(maxWaitNanos, TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * 直近の待ち時間の p パーセンタイル (0 より大きく 100 以下) を返します。
+		 */
+		public long getWaitPercentile(double p, TimeUnit unit) {
+			if(recentWaits.length == 0) {
+				return 0;
+			}
+			int index = (int)Math.ceil(p / 100.0 * recentWaits.length) - 1;
+			return unit.convert(recentWaits[Math.max(0, Math.min(recentWaits.length - 1, index))], TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public String toString() {
+			return priority + "[acquired=" + acquired
+					+ ", queued=" + queued
+					+ ", timeouts=" + timeouts
+					+ ", aged=" + aged
+					+ ", avgWaitMs=" + getAverageWait(TimeUnit.MILLISECONDS)
+					+ ", p99WaitMs=" + getWaitPercentile(99, TimeUnit.MILLISECONDS)
+					+ ", maxWaitMs=" + getMaxWait(TimeUnit.MILLISECONDS) + "]";
+		}
+	}
+
+	private static class Waiter {
+		final Priority priority;
+		final String key;
+		final double virtualTimeAtEnqueue;
+		final double previousFinish;
+		final double cost;
+		final long enqueued;
+		final long sequence;
+		double finishTag;
+		boolean granted;
+		boolean aged;
+
+		Waiter(Priority priority, String key, double virtualTimeAtEnqueue, double previousFinish, double cost, long enqueued, long sequence) {
+			this.priority = priority;
+			this.key = key;
+			this.virtualTimeAtEnqueue = virtualTimeAtEnqueue;
+			this.previousFinish = previousFinish;
+			this.cost = cost;
+			this.enqueued = enqueued;
+			this.sequence = sequence;
+			this.finishTag = Math.max(virtualTimeAtEnqueue, previousFinish) + cost;
+		}
+	}
+
+	private static class Stats {
+		long acquired;
+		long queued;
+		long timeouts;
+		long aged;
+		long totalWaitNanos;
+		long maxWaitNanos;
+		final long[] samples = new long[WAIT_SAMPLES];
+		long sampleIndex;
+	}
+}
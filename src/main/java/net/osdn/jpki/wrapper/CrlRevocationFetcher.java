@@ -0,0 +1,121 @@
+package net.osdn.jpki.wrapper;
+
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.x509.CRLDistPoint;
+import org.bouncycastle.asn1.x509.DistributionPoint;
+import org.bouncycastle.asn1.x509.DistributionPointName;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 証明書の CRL 配布点から CRL をダウンロードする {@link RevocationFetcher} です。
+ * <p>
+ * CRL の署名が発行者によるものであることを確認します。証明書が失効している場合は IOException をスローします。
+ */
+public class CrlRevocationFetcher implements RevocationFetcher {
+
+	private volatile int connectTimeout = 10000;
+	private volatile int readTimeout = 60000;
+
+	public void setConnectTimeout(long timeout, TimeUnit unit) {
+		connectTimeout = (int)Math.min(Integer.MAX_VALUE, unit.toMillis(timeout));
+	}
+
+	public void setReadTimeout(long timeout, TimeUnit unit) {
+		readTimeout = (int)Math.min(Integer.MAX_VALUE, unit.toMillis(timeout));
+	}
+
+	@Override
+	public RevocationData fetch(X509Certificate certificate, X509Certificate issuer) throws IOException {
+		List<URL> urls = getDistributionPoints(certificate);
+		if(urls.isEmpty()) {
+			return null;
+		}
+		IOException failure = null;
+		for(URL url : urls) {
+			try {
+				byte[] encoded = get(url);
+				X509CRL crl = (X509CRL)CertificateFactory.getInstance("X.509").generateCRL(new ByteArrayInputStream(encoded));
+				crl.verify(issuer.getPublicKey());
+				X509CRLEntry entry = crl.getRevokedCertificate(certificate);
+				if(entry != null) {
+					throw new RevokedException("certificate has been revoked at " + entry.getRevocationDate()
+							+ ": " + certificate.getSubjectX500Principal());
+				}
+				return new RevocationData(RevocationData.Type.CRL, encoded, crl.getNextUpdate());
+			} catch(RevokedException e) {
+				throw e;
+			} catch(IOException e) {
+				failure = e;
+			} catch(GeneralSecurityException e) {
+				failure = new IOException("invalid CRL: " + url, e);
+			}
+		}
+		throw failure;
+	}
+
+	/* package private */ static List<URL> getDistributionPoints(X509Certificate certificate) throws IOException {
+		List<URL> urls = new ArrayList<URL>();
+		byte[] value = certificate.getExtensionValue(Extension.cRLDistributionPoints.getId());
+		if(value == null) {
+			return urls;
+		}
+		ASN1Primitive octets = ASN1Primitive.fromByteArray(DEROctetString.getInstance(value).getOctets());
+		for(DistributionPoint dp : CRLDistPoint.getInstance(octets).getDistributionPoints()) {
+			DistributionPointName dpn = dp.getDistributionPoint();
+			if(dpn == null || dpn.getType() != DistributionPointName.FULL_NAME) {
+				continue;
+			}
+			for(GeneralName name : GeneralNames.getInstance(dpn.getName()).getNames()) {
+				if(name.getTagNo() == GeneralName.uniformResourceIdentifier) {
+					String s = name.getName().toString();
+					if(s.startsWith("http://") || s.startsWith("https://")) {
+						urls.add(new URL(s));
+					}
+				}
+			}
+		}
+		return urls;
+	}
+
+	private byte[] get(URL url) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+		connection.setConnectTimeout(connectTimeout);
+		connection.setReadTimeout(readTimeout);
+		int status = connection.getResponseCode();
+		if(status != HttpURLConnection.HTTP_OK) {
+			InputStream err = connection.getErrorStream();
+			if(err != null) {
+				try { OcspRevocationFetcher.readFully(err); } finally { err.close(); }
+			}
+			throw new IOException("CRL distribution point responded with HTTP " + status + ": " + url);
+		}
+		try(InputStream in = connection.getInputStream()) {
+			return OcspRevocationFetcher.readFully(in);
+		}
+	}
+
+	private static class RevokedException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		RevokedException(String message) {
+			super(message);
+		}
+	}
+}
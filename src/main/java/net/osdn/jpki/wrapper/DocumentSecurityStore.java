@@ -0,0 +1,205 @@
+package net.osdn.jpki.wrapper;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.PDSignature;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * 署名済みの文書に、長期検証 (LTV) のための DSS 辞書を追加の増分更新として書き加えます。
+ */
+/* package private */ class DocumentSecurityStore {
+
+	private static final COSName DSS = COSName.getPDFName("DSS");
+	private static final COSName VRI = COSName.getPDFName("VRI");
+	private static final COSName CERTS = COSName.getPDFName("Certs");
+	private static final COSName OCSPS = COSName.getPDFName("OCSPs");
+	private static final COSName CRLS = COSName.getPDFName("CRLs");
+	private static final COSName CERT = COSName.getPDFName("Cert");
+	private static final COSName OCSP = COSName.getPDFName("OCSP");
+	private static final COSName CRL = COSName.getPDFName("CRL");
+	private static final COSName EXTENSIONS = COSName.getPDFName("Extensions");
+	private static final COSName ESIC = COSName.getPDFName("ESIC");
+	private static final COSName BASE_VERSION = COSName.getPDFName("BaseVersion");
+	private static final COSName EXTENSION_LEVEL = COSName.getPDFName("ExtensionLevel");
+
+	/**
+	 * signedPdf の最後の署名について、証明書と失効情報を DSS に追加して output に書き出します。
+	 * output には signedPdf の内容に続けて DSS を含む増分更新が書き込まれ、output は閉じられます。
+	 * 失効情報の検証に必要な証明書 (委任された OCSP レスポンダーの証明書) も /Certs に格納します。
+	 */
+	static void append(SpillingOutputStream signedPdf, List<X509Certificate> certificates, List<RevocationData> revocations, OutputStream output) throws IOException {
+		try(PDDocument document = signedPdf.load()) {
+			PDSignature signature = findLastSignature(document, signedPdf.size());
+			if(signature == null) {
+				throw new IOException("signature covering the whole document was not found");
+			}
+
+			COSDictionary catalog = document.getDocumentCatalog().getCOSObject();
+			COSDictionary dss = getOrCreateDictionary(catalog, DSS);
+			COSArray certs = getOrCreateArray(dss, CERTS);
+			COSArray ocsps = getOrCreateArray(dss, OCSPS);
+			COSArray crls = getOrCreateArray(dss, CRLS);
+
+			COSDictionary vri = new COSDictionary();
+			COSArray vriCerts = new COSArray();
+			COSArray vriOcsps = new COSArray();
+			COSArray vriCrls = new COSArray();
+			List<byte[]> encodedCertificates = new ArrayList<byte[]>();
+			try {
+				for(X509Certificate certificate : certificates) {
+					encodedCertificates.add(certificate.getEncoded());
+				}
+			} catch(CertificateEncodingException e) {
+				throw new IOException(e);
+			}
+			for(RevocationData data : revocations) {
+				encodedCertificates.addAll(data.getCertificates());
+			}
+			List<byte[]> added = new ArrayList<byte[]>();
+			for(byte[] encoded : encodedCertificates) {
+				if(contains(added, encoded)) {
+					continue;
+				}
+				added.add(encoded);
+				COSStream stream = createStream(document, encoded);
+				certs.add(stream);
+				vriCerts.add(stream);
+			}
+			for(RevocationData data : revocations) {
+				COSStream stream = createStream(document, data.getEncoded());
+				if(data.getType() == RevocationData.Type.OCSP) {
+					ocsps.add(stream);
+					vriOcsps.add(stream);
+				} else {
+					crls.add(stream);
+					vriCrls.add(stream);
+				}
+			}
+			vri.setItem(CERT, vriCerts);
+			if(vriOcsps.size() > 0) {
+				vri.setItem(OCSP, vriOcsps);
+			}
+			if(vriCrls.size() > 0) {
+				vri.setItem(CRL, vriCrls);
+			}
+			vri.setDate(COSName.getPDFName("TU"), Calendar.getInstance());
+			vri.setNeedToBeUpdated(true);
+
+			COSDictionary vris = getOrCreateDictionary(dss, VRI);
+			vris.setItem(COSName.getPDFName(getVriKey(signature.getContents())), vri);
+
+			for(COSArray array : new COSArray[] { certs, ocsps, crls, vriCerts, vriOcsps, vriCrls }) {
+				array.setNeedToBeUpdated(true);
+			}
+			if(ocsps.size() == 0) {
+				dss.removeItem(OCSPS);
+			}
+			if(crls.size() == 0) {
+				dss.removeItem(CRLS);
+			}
+			addExtension(catalog);
+
+			document.saveIncremental(output);
+		}
+	}
+
+	/**
+	 * ファイルの末尾までを対象とする署名、つまり直前に追加した署名を返します。
+	 */
+	private static PDSignature findLastSignature(PDDocument document, long length) throws IOException {
+		for(PDSignature signature : document.getSignatureDictionaries()) {
+			int[] byteRange = signature.getByteRange();
+			if(byteRange.length == 4 && (long)byteRange[2] + byteRange[3] == length) {
+				return signature;
+			}
+		}
+		return null;
+	}
+
+	private static boolean contains(List<byte[]> list, byte[] value) {
+		for(byte[] b : list) {
+			if(Arrays.equals(b, value)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * VRI のキーは署名の /Contents の値 (詰め物を含む) の SHA-1 を大文字の 16 進数で表したものです。
+	 */
+	private static String getVriKey(byte[] contents) throws IOException {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-1").digest(contents);
+			return AuditRecord.toHex(hash).toUpperCase();
+		} catch(NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static COSStream createStream(PDDocument document, byte[] data) throws IOException {
+		COSStream stream = document.getDocument().createCOSStream();
+		try(OutputStream out = stream.createOutputStream(COSName.FLATE_DECODE)) {
+			out.write(data);
+		}
+		stream.setNeedToBeUpdated(true);
+		return stream;
+	}
+
+	private static COSDictionary getOrCreateDictionary(COSDictionary parent, COSName key) {
+		COSBase base = parent.getDictionaryObject(key);
+		COSDictionary dictionary;
+		if(base instanceof COSDictionary) {
+			dictionary = (COSDictionary)base;
+		} else {
+			dictionary = new COSDictionary();
+			dictionary.setDirect(false);
+			parent.setItem(key, dictionary);
+		}
+		dictionary.setNeedToBeUpdated(true);
+		parent.setNeedToBeUpdated(true);
+		return dictionary;
+	}
+
+	private static COSArray getOrCreateArray(COSDictionary parent, COSName key) {
+		COSBase base = parent.getDictionaryObject(key);
+		COSArray array;
+		if(base instanceof COSArray) {
+			array = (COSArray)base;
+		} else {
+			array = new COSArray();
+			parent.setItem(key, array);
+		}
+		array.setNeedToBeUpdated(true);
+		return array;
+	}
+
+	/**
+	 * PDF 2.0 より前の文書では、DSS を使うことを Adobe 拡張レベル 5 として宣言します。
+	 */
+	private static void addExtension(COSDictionary catalog) {
+		COSDictionary extensions = getOrCreateDictionary(catalog, EXTENSIONS);
+		if(extensions.getDictionaryObject(ESIC) == null) {
+			COSDictionary esic = new COSDictionary();
+			esic.setItem(BASE_VERSION, COSName.getPDFName("1.7"));
+			esic.setInt(EXTENSION_LEVEL, 5);
+			esic.setDirect(true);
+			extensions.setItem(ESIC, esic);
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package net.osdn.jpki.wrapper;
+
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.tsp.TSPException;
+import org.bouncycastle.tsp.TimeStampRequest;
+import org.bouncycastle.tsp.TimeStampRequestGenerator;
+import org.bouncycastle.tsp.TimeStampResponse;
+import org.bouncycastle.tsp.TimeStampToken;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HTTP でタイムスタンプ局に問い合わせる {@link TimeStampClient} です。
+ * <p>
+ * 応答を最後まで読み取ってから閉じるので、HttpURLConnection の keep-alive によって
+ * 同じ TSA への接続は再利用されます。複数のスレッドから同時に使用できます。
+ * <p>
+ * 受け取ったトークンの最大長は TSA の URL ごとにプロセス内で共有され、署名にトークン用に確保するバイト数の見積もりに使われます。
+ * まだトークンを受け取っていない TSA については、{@link #setTokenSize(int)} で設定した長さ (既定では 8 KB) を確保します。
+ * 見積もりのために TSA に問い合わせることはありません。
+ */
+public class HttpTimeStampClient implements TimeStampClient {
+
+	private static final SecureRandom random = new SecureRandom();
+	private static final ConcurrentMap<String, AtomicLong> maxTokenSizes = new ConcurrentHashMap<String, AtomicLong>();
+
+	private final URL url;
+	private volatile ASN1ObjectIdentifier policy;
+	private volatile int connectTimeout = 10000;
+	private volatile int readTimeout = 30000;
+	private volatile int tokenSize;
+
+	public HttpTimeStampClient(String url) throws IOException {
+		this(new URL(url));
+	}
+
+	public HttpTimeStampClient(URL url) {
+		this.url = url;
+	}
+
+	public URL getUrl() {
+		return url;
+	}
+
+	/**
+	 * 要求するタイムスタンプ ポリシーの OID を設定します。null の場合は TSA の既定のポリシーになります。
+	 */
+	public void setPolicy(String oid) {
+		policy = (oid != null) ? new ASN1ObjectIdentifier(oid) : null;
+	}
+
+	public void setConnectTimeout(long timeout, TimeUnit unit) {
+		connectTimeout = (int)Math.min(Integer.MAX_VALUE, unit.toMillis(timeout));
+	}
+
+	public void setReadTimeout(long timeout, TimeUnit unit) {
+		readTimeout = (int)Math.min(Integer.MAX_VALUE, unit.toMillis(timeout));
+	}
+
+	/**
+	 * この TSA からまだトークンを受け取っていないときに確保するトークンの長さ (TSA の証明書チェーンを含む) を設定します。
+	 * 0 (既定) の場合は署名の既定の確保量 (8 KB) になります。既定の確保量に収まらない長い証明書チェーンを返す TSA では、最初の署名の前に設定してください。
+	 */
+	public void setTokenSize(int bytes) {
+		tokenSize = Math.max(0, bytes);
+	}
+
+	/**
+	 * この TSA から受け取ったトークンの最大長を返します。まだ受け取っていない場合は {@link #setTokenSize(int)} で設定した長さを返します。
+	 */
+	@Override
+	public int estimateTokenSize() {
+		int max = getMaxTokenSize();
+		return (max > 0) ? max : tokenSize;
+	}
+
+	/**
+	 * このプロセスでこの TSA から受け取ったトークンの最大長を返します。まだ受け取っていない場合は 0 を返します。
+	 */
+	public int getMaxTokenSize() {
+		AtomicLong max = maxTokenSizes.get(url.toExternalForm());
+		return (max != null) ? (int)max.get() : 0;
+	}
+
+	@Override
+	public byte[] getTimeStampToken(byte[] digest) throws IOException {
+		TimeStampRequestGenerator generator = new TimeStampRequestGenerator();
+		generator.setCertReq(true);
+		if(policy != null) {
+			generator.setReqPolicy(policy);
+		}
+		TimeStampRequest request = generator.generate(NISTObjectIdentifiers.id_sha256, digest, new BigInteger(64, random));
+		byte[] encoded = request.getEncoded();
+
+		HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+		connection.setConnectTimeout(connectTimeout);
+		connection.setReadTimeout(readTimeout);
+		connection.setDoOutput(true);
+		connection.setRequestMethod("POST");
+		connection.setRequestProperty("Content-Type", "application/timestamp-query");
+		connection.setFixedLengthStreamingMode(encoded.length);
+		try(OutputStream out = connection.getOutputStream()) {
+			out.write(encoded);
+		}
+
+		int status = connection.getResponseCode();
+		if(status != HttpURLConnection.HTTP_OK) {
+			// エラー応答も読み切って閉じないと接続が再利用されません。
+			InputStream err = connection.getErrorStream();
+			if(err != null) {
+				try { readFully(err); } finally { err.close(); }
+			}
+			throw new IOException("TSA responded with HTTP " + status + ": " + url);
+		}
+		byte[] body;
+		try(InputStream in = connection.getInputStream()) {
+			body = readFully(in);
+		}
+
+		try {
+			TimeStampResponse response = new TimeStampResponse(body);
+			response.validate(request);
+			TimeStampToken token = response.getTimeStampToken();
+			if(token == null) {
+				throw new IOException("TSA rejected the request: status=" + response.getStatus()
+						+ (response.getStatusString() != null ? ", " + response.getStatusString() : "") + ": " + url);
+			}
+			byte[] der = token.getEncoded();
+			updateMaxTokenSize(der.length);
+			return der;
+		} catch(TSPException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private void updateMaxTokenSize(int length) {
+		AtomicLong max = maxTokenSizes.get(url.toExternalForm());
+		if(max == null) {
+			AtomicLong created = new AtomicLong();
+			max = maxTokenSizes.putIfAbsent(url.toExternalForm(), created);
+			if(max == null) {
+				max = created;
+			}
+		}
+		Atomics.updateMax(max, length);
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+		byte[] buf = new byte[8192];
+		int len;
+		while((len = in.read(buf)) != -1) {
+			out.write(buf, 0, len);
+		}
+		return out.toByteArray();
+	}
+
+	@Override
+	public String toString() {
+		return "HttpTimeStampClient[" + url + "]";
+	}
+}
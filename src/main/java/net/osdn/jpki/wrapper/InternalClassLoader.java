@@ -9,9 +9,19 @@ import java.util.Map;
 import java.util.jar.JarEntry;
 import java.util.jar.JarInputStream;
 
+/**
+ * JAR に埋め込まれた内部モジュールのクラスを読み込むクラス ローダーです。
+ * <p>
+ * 並列読み込みに対応しており、クラス名ごとにロックするので、
+ * 複数のスレッドが同時に JpkiWrapper を初めて使う場合でも同じクラスが二重に定義されることはありません。
+ */
 public class InternalClassLoader extends URLClassLoader {
 
-	private Map<String, byte[]> entries = new HashMap<String, byte[]>();
+	static {
+		ClassLoader.registerAsParallelCapable();
+	}
+
+	private final Map<String, byte[]> entries = new HashMap<String, byte[]>();
 
 	public InternalClassLoader(URL[] urls, JarInputStream jar) throws IOException {
 		super(urls);
@@ -28,7 +38,14 @@ public class InternalClassLoader extends URLClassLoader {
 		String entryName = name.replace('.',  '/') + ".class";
 		byte[] bytes = entries.get(entryName);
 		if(bytes != null) {
-			return defineClass(name, bytes, 0, bytes.length);
+			// loadClass 以外から呼ばれた場合にも二重に定義しないように、クラス名ごとのロックの中で確認します。
+			synchronized (getClassLoadingLock(name)) {
+				Class<?> cls = findLoadedClass(name);
+				if(cls == null) {
+					cls = defineClass(name, bytes, 0, bytes.length);
+				}
+				return cls;
+			}
 		} else {
 			return super.findClass(name);
 		}
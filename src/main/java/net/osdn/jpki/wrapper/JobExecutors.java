@@ -0,0 +1,48 @@
+package net.osdn.jpki.wrapper;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一括署名や非同期の署名でファイルやネットワークの入出力を待つスレッドを生成します。
+ * <p>
+ * この実装はプラットフォーム スレッドを使用します。Java 21 以降の実行環境では、マルチリリース JAR の
+ * META-INF/versions/21 に含まれる実装に置き換えられ、処理ごとに仮想スレッドを使用します。
+ * どちらの実装でも、カードとの JNI 呼び出しはプラットフォーム スレッドで実行されます ({@link JpkiWrapper#setCardExecutor} を参照)。
+ */
+final class JobExecutors {
+
+	private JobExecutors() {
+	}
+
+	/**
+	 * 同時に parallelism 件まで処理を実行する ExecutorService を返します。
+	 * 使われていないスレッドは 60 秒で終了します。
+	 */
+	static ExecutorService newJobExecutor(String prefix, int parallelism) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(parallelism, parallelism, 60L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new JpkiJob.DaemonThreadFactory(prefix));
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * 処理ごとにスレッドを割り当てる ExecutorService を返します。この実装では使われていないスレッドを再利用し、60 秒で終了させます。
+	 */
+	static ExecutorService newThreadPerTaskExecutor(String prefix) {
+		return Executors.newCachedThreadPool(new JpkiJob.DaemonThreadFactory(prefix));
+	}
+
+	/** {@link #newJobExecutor(String, int)} が仮想スレッドを使用するかどうか */
+	static boolean isVirtualThreadSupported() {
+		return false;
+	}
+
+	/** thread が仮想スレッドかどうか */
+	static boolean isVirtual(Thread thread) {
+		return false;
+	}
+}
@@ -0,0 +1,260 @@
+package net.osdn.jpki.wrapper;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * JPKI 利用者ソフトのインストール先と、読み込む JAR ファイルを探します。
+ * <p>
+ * 登録された {@link JpkiLocator} に順に問い合わせ、最初に見つかったディレクトリーを使います。
+ * 結果は {@link #refresh()} を呼ぶまで保持されるので、レジストリや PATH の検索は 1 回しか行いません。
+ * 各方法の所要時間と結果は {@link Result#getSteps()} で確認できます。
+ * <p>
+ * 既定の順序は、システム プロパティ {@link JpkiWrapper#INSTALL_PATH_PROPERTY}、前回見つかったインストール先の記録、
+ * レジストリ、PATH です。記録を先に調べるので、2 回目以降の起動ではファイルを 1 つ読むだけで見つかります。
+ */
+public class JpkiDiscovery {
+
+	private static volatile JpkiDiscovery defaultDiscovery;
+
+	/**
+	 * 既定のインスタンスを返します。
+	 */
+	public static JpkiDiscovery getDefault() {
+		JpkiDiscovery discovery = defaultDiscovery;
+		if(discovery == null) {
+			synchronized (JpkiDiscovery.class) {
+				discovery = defaultDiscovery;
+				if(discovery == null) {
+					discovery = defaultDiscovery = new JpkiDiscovery(getDefaultLocators());
+				}
+			}
+		}
+		return discovery;
+	}
+
+	/**
+	 * 既定のインスタンスを置き換えます。最初の {@link JpkiWrapper} を生成する前に呼んでください。
+	 * 生成後に置き換えても、読み込み済みのクラスは変わりません。
+	 */
+	public static void setDefault(JpkiDiscovery discovery) {
+		defaultDiscovery = discovery;
+	}
+
+	/**
+	 * 既定の順序のロケーターを返します。
+	 */
+	public static List<JpkiLocator> getDefaultLocators() {
+		return Arrays.<JpkiLocator>asList(
+				new SystemPropertyJpkiLocator(JpkiWrapper.INSTALL_PATH_PROPERTY),
+				new LastKnownGoodJpkiLocator(),
+				new RegistryJpkiLocator(),
+				new PathJpkiLocator());
+	}
+
+	private final List<JpkiLocator> locators;
+	private volatile Result result;
+
+	public JpkiDiscovery(List<JpkiLocator> locators) {
+		this.locators = Collections.unmodifiableList(new ArrayList<JpkiLocator>(locators));
+	}
+
+	public List<JpkiLocator> getLocators() {
+		return locators;
+	}
+
+	/**
+	 * インストール先を探します。前回の結果があればそれを返します。
+	 */
+	public Result discover() {
+		Result r = result;
+		if(r != null) {
+			return r;
+		}
+		synchronized (this) {
+			r = result;
+			if(r == null) {
+				r = result = search();
+			}
+			return r;
+		}
+	}
+
+	/**
+	 * 保持している結果を破棄し、次の {@link #discover()} で探し直させます。
+	 */
+	public void refresh() {
+		result = null;
+	}
+
+	private Result search() {
+		long started = System.nanoTime();
+		List<Step> steps = new ArrayList<Step>();
+		for(int i = 0; i < locators.size(); i++) {
+			JpkiLocator locator = locators.get(i);
+			long t = System.nanoTime();
+			File dir = null;
+			String outcome;
+			try {
+				dir = locator.locate();
+				if(dir == null) {
+					outcome = "not found";
+				} else if(!dir.isDirectory()) {
+					outcome = "not a directory: " + dir;
+					dir = null;
+				} else {
+					outcome = "found: " + dir;
+				}
+			} catch(Exception e) {
+				outcome = "error: " + firstLine(e);
+			}
+			steps.add(new Step(locator.getName(), System.nanoTime() - t, outcome));
+			if(dir != null) {
+				remember(dir, i, steps);
+				return new Result(dir, locator.getName(), steps, System.nanoTime() - started);
+			}
+		}
+		return new Result(null, null, steps, System.nanoTime() - started);
+	}
+
+	/**
+	 * 見つけたロケーターより前にある {@link LastKnownGoodJpkiLocator} にインストール先を記録します。
+	 */
+	private void remember(File dir, int foundIndex, List<Step> steps) {
+		for(int i = 0; i < foundIndex; i++) {
+			JpkiLocator locator = locators.get(i);
+			if(locator instanceof LastKnownGoodJpkiLocator) {
+				long t = System.nanoTime();
+				String outcome;
+				try {
+					((LastKnownGoodJpkiLocator)locator).remember(dir);
+					outcome = "remembered: " + dir;
+				} catch(Exception e) {
+					outcome = "error: " + firstLine(e);
+				}
+				steps.add(new Step(locator.getName(), System.nanoTime() - t, outcome));
+			}
+		}
+	}
+
+	private static String firstLine(Exception e) {
+		String s = e.toString();
+		int i = s.indexOf('\n');
+		return (i >= 0) ? s.substring(0, i).trim() : s;
+	}
+
+	/* package private */ static boolean is64bitJavaVM() {
+		String s = System.getProperty("os.arch");
+		return s != null && s.contains("64");
+	}
+
+	/**
+	 * 探した結果です。
+	 */
+	public static class Result {
+
+		private final File installPath;
+		private final String locatorName;
+		private final List<Step> steps;
+		private final long elapsedNanos;
+
+		private Result(File installPath, String locatorName, List<Step> steps, long elapsedNanos) {
+			this.installPath = installPath;
+			this.locatorName = locatorName;
+			this.steps = Collections.unmodifiableList(steps);
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		/** インストール先。見つからなかった場合は null */
+		public File getInstallPath() {
+			return installPath;
+		}
+
+		/** インストール先を見つけたロケーターの名前。見つからなかった場合は null */
+		public String getLocatorName() {
+			return locatorName;
+		}
+
+		/** 問い合わせた順の各ロケーターの所要時間と結果 */
+		public List<Step> getSteps() {
+			return steps;
+		}
+
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		/** インストール先にある、この JVM のビット数に合った JPKI 利用者ソフトの JAR ファイル */
+		public List<File> getRuntimeJars() {
+			List<File> jars = new ArrayList<File>();
+			if(installPath != null) {
+				for(String name : getRuntimeJarNames()) {
+					File jar = new File(installPath, name);
+					if(jar.exists()) {
+						jars.add(jar);
+					}
+				}
+			}
+			return jars;
+		}
+
+		/** この JVM のビット数に合った内部モジュールの JAR ファイル名 */
+		public String getInternalJarName() {
+			return is64bitJavaVM() ? "jpki-wrapper-internal64.jar" : "jpki-wrapper-internal32.jar";
+		}
+
+		private static String[] getRuntimeJarNames() {
+			return is64bitJavaVM() ?
+					new String[] { "JPKICryptSignJNI64.jar", "JPKIUserCertService64.jar" }:
+					new String[] { "JPKICryptSignJNI.jar",   "JPKIUserCertService.jar" };
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("installPath=%s (%s, %.3f ms)%n",
+					installPath != null ? installPath.getPath() : "", locatorName != null ? locatorName : "not found", elapsedNanos / 1e6));
+			for(Step step : steps) {
+				sb.append("  ").append(step).append(System.lineSeparator());
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * 1 つのロケーターに問い合わせた結果です。
+	 */
+	public static class Step {
+
+		private final String locatorName;
+		private final long elapsedNanos;
+		private final String outcome;
+
+		private Step(String locatorName, long elapsedNanos, String outcome) {
+			this.locatorName = locatorName;
+			this.elapsedNanos = elapsedNanos;
+			this.outcome = outcome;
+		}
+
+		public String getLocatorName() {
+			return locatorName;
+		}
+
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		/** 結果 ("found: ..."、"not found"、"error: ..." など) */
+		public String getOutcome() {
+			return outcome;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-40s %9.3f ms  %s", locatorName, elapsedNanos / 1e6, outcome);
+		}
+	}
+}
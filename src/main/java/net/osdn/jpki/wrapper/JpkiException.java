@@ -8,6 +8,11 @@ public class JpkiException extends Exception {
 	public static final int SCARD_W_CHV_BLOCKED = 0x8010006C;
 	public static final int SCARD_W_CANCELLED_BY_USER = 0x8010006E;
 
+	public static final int WRAPPER_E_SELF_CHECK_FAILED = JpkiWrapperInternal.ERROR_SELF_CHECK_FAILED;
+	public static final int WRAPPER_E_CARD_BUSY = 1002;
+	public static final int WRAPPER_E_TIMEOUT = 1003;
+	public static final int WRAPPER_E_CANCELLED = 1004;
+
 	private int errorCode;
 	private int winErrorCode;
 	private String message;
@@ -74,6 +79,24 @@ public class JpkiException extends Exception {
 						"The action was cancelled by the user.",
 						"ユーザーによって操作は取り消されました。" };
 		}
+		switch (errorCode) {
+			case WRAPPER_E_SELF_CHECK_FAILED:
+				return new String[] {
+						"The signed output failed the integrity self-check.",
+						"署名済みの出力が整合性の自己検査に合格しませんでした。" };
+			case WRAPPER_E_CARD_BUSY:
+				return new String[] {
+						"Timed out waiting for the smart card, which is in use by another process.",
+						"ほかのプロセスがスマート カードを使用しているため、待機がタイムアウトしました。" };
+			case WRAPPER_E_TIMEOUT:
+				return new String[] {
+						"The signing job did not finish within its deadline.",
+						"署名処理が期限内に終了しませんでした。" };
+			case WRAPPER_E_CANCELLED:
+				return new String[] {
+						"The signing job was cancelled.",
+						"署名処理は取り消されました。" };
+		}
 		return null;
 	}
 }
@@ -0,0 +1,282 @@
+package net.osdn.jpki.wrapper;
+
+import java.io.File;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JPKI 利用者ソフトと IC カードの状態を監視用に報告します。
+ * <p>
+ * 状態は TTL の間キャッシュされ、レジストリの検索やカードの読み取りは TTL ごとに最大 1 回しか行いません。
+ * インストール先は {@link JpkiWrapper} が保持している結果を使わず、TTL ごとに探し直すので、
+ * 実行中に JPKI 利用者ソフトがアンインストールされたり、再インストールされたりしても報告に反映されます。
+ * 更新中に問い合わせたスレッドには、前回の状態がそのまま返されます (最初の 1 回だけは更新を待ちます)。
+ * 監視エンドポイントから 1 秒に何度も {@link #getStatus()} を呼んでも、カードを使用する署名処理の妨げにはなりません。
+ * <p>
+ * {@link JpkiWrapper} を指定した場合はカードから署名用電子証明書を読み取り、カードの有無、パスワードのロック、
+ * 証明書の主体者と有効期限を報告します。カードの読み取りは署名と同じように {@link CardArbiter} のリースを取得して行います。
+ * JPKI 利用者ソフトの設定によってはパスワードの入力を求められるので、無人の環境で使う場合は確認してください。
+ */
+public class JpkiHealth {
+
+	private final JpkiWrapper wrapper;
+	private final JpkiDiscovery discovery;
+	private final long ttlMillis;
+	private final Object refreshLock = new Object();
+	private volatile Status status;
+	private boolean refreshing;
+
+	/**
+	 * JPKI 利用者ソフトの状態だけを報告します。カードは使用しません。
+	 */
+	public JpkiHealth(long ttl, TimeUnit unit) {
+		this(null, ttl, unit);
+	}
+
+	/**
+	 * JPKI 利用者ソフトの状態に加えて、wrapper を使ってカードの状態を報告します。
+	 */
+	public JpkiHealth(JpkiWrapper wrapper, long ttl, TimeUnit unit) {
+		this(wrapper, new JpkiDiscovery(JpkiDiscovery.getDefaultLocators()), ttl, unit);
+	}
+
+	/**
+	 * discovery でインストール先を探します。discovery の結果は状態を更新するたびに破棄されるので、
+	 * {@link JpkiDiscovery#getDefault()} など、ほかで使っているインスタンスは指定しないでください。
+	 */
+	public JpkiHealth(JpkiWrapper wrapper, JpkiDiscovery discovery, long ttl, TimeUnit unit) {
+		this.wrapper = wrapper;
+		this.discovery = discovery;
+		this.ttlMillis = unit.toMillis(ttl);
+	}
+
+	/**
+	 * 現在の状態を返します。キャッシュした状態が TTL を過ぎていれば更新します。
+	 */
+	public Status getStatus() {
+		Status current = status;
+		if(current != null && System.currentTimeMillis() - current.time < ttlMillis) {
+			return current;
+		}
+		synchronized (refreshLock) {
+			current = status;
+			if(current != null && System.currentTimeMillis() - current.time < ttlMillis) {
+				return current;
+			}
+			if(refreshing) {
+				// ほかのスレッドが更新中です。前回の状態があればそれを返し、なければ更新を待ちます。
+				while(refreshing && status == null) {
+					try {
+						refreshLock.wait();
+					} catch(InterruptedException e) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+				return status;
+			}
+			refreshing = true;
+		}
+		try {
+			Status refreshed = probe(current);
+			status = refreshed;
+			return refreshed;
+		} finally {
+			synchronized (refreshLock) {
+				refreshing = false;
+				refreshLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * キャッシュを破棄して、次の {@link #getStatus()} で状態を更新させます。
+	 */
+	public void invalidate() {
+		status = null;
+	}
+
+	private Status probe(Status previous) {
+		Status s = new Status();
+		s.time = System.currentTimeMillis();
+		discovery.refresh();
+		JpkiDiscovery.Result result = discovery.discover();
+		s.installPath = result.getInstallPath();
+		s.internalJar = result.getInternalJarName();
+
+		if(wrapper != null && s.installPath != null) {
+			s.cardProbed = true;
+			try {
+				X509Certificate certificate = wrapper.getCertificate();
+				s.cardPresent = true;
+				s.subject = certificate.getSubjectX500Principal().getName();
+				s.notAfter = certificate.getNotAfter();
+			} catch(JpkiException e) {
+				switch(e.getWinErrorCode()) {
+					case JpkiException.SCARD_E_NOT_READY:
+						break;
+					case JpkiException.SCARD_W_CHV_BLOCKED:
+						s.cardPresent = true;
+						s.pinLocked = true;
+						break;
+					case JpkiException.SCARD_E_UNKNOWN_CARD:
+					case JpkiException.SCARD_W_CANCELLED_BY_USER:
+						s.cardPresent = true;
+						break;
+					default:
+						if(e.getErrorCode() == JpkiException.WRAPPER_E_CARD_BUSY && previous != null) {
+							// 署名処理がカードを使用中です。カードの状態は前回の結果を引き継ぎます。
+							s.cardProbed = previous.cardProbed;
+							s.cardPresent = previous.cardPresent;
+							s.pinLocked = previous.pinLocked;
+							s.subject = previous.subject;
+							s.notAfter = previous.notAfter;
+						}
+						break;
+				}
+			} catch(Exception e) {
+				s.probeError = e.toString();
+			}
+		}
+
+		if(wrapper != null) {
+			JpkiException lastError = wrapper.getLastError();
+			if(lastError != null) {
+				s.lastErrorCode = lastError.getErrorCode();
+				s.lastWinErrorCode = lastError.getWinErrorCode();
+				s.lastErrorMessage = lastError.getMessage();
+				s.lastErrorTime = wrapper.getLastErrorTime();
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * ある時点の JPKI 利用者ソフトと IC カードの状態です。
+	 */
+	public static class Status {
+
+		private long time;
+		private File installPath;
+		private String internalJar;
+		private boolean cardProbed;
+		private boolean cardPresent;
+		private boolean pinLocked;
+		private String subject;
+		private Date notAfter;
+		private String probeError;
+		private int lastErrorCode;
+		private int lastWinErrorCode;
+		private String lastErrorMessage;
+		private long lastErrorTime;
+
+		private Status() {
+		}
+
+		/** 状態を取得した日時 */
+		public Date getTime() {
+			return new Date(time);
+		}
+
+		/** JPKI 利用者ソフトのインストール先。見つからない場合は null */
+		public File getInstallPath() {
+			return installPath;
+		}
+
+		public boolean isAvailable() {
+			return installPath != null;
+		}
+
+		/** 使用する内部モジュールの JAR ファイル名 (jpki-wrapper-internal32.jar または jpki-wrapper-internal64.jar) */
+		public String getInternalJar() {
+			return internalJar;
+		}
+
+		/** カードの状態を確認したかどうか。false の場合、カードに関する値は意味を持ちません。 */
+		public boolean isCardProbed() {
+			return cardProbed;
+		}
+
+		public boolean isCardPresent() {
+			return cardPresent;
+		}
+
+		/** パスワードの入力試行が最大回数に達してロックされているかどうか */
+		public boolean isPinLocked() {
+			return pinLocked;
+		}
+
+		/** 署名用電子証明書の主体者 (RFC 2253 形式)。読み取れなかった場合は null */
+		public String getSubject() {
+			return subject;
+		}
+
+		/** 署名用電子証明書の有効期限。読み取れなかった場合は null */
+		public Date getNotAfter() {
+			return notAfter != null ? new Date(notAfter.getTime()) : null;
+		}
+
+		/** 状態を取得した時点で署名用電子証明書の有効期限が切れているかどうか */
+		public boolean isCertificateExpired() {
+			return notAfter != null && notAfter.getTime() < time;
+		}
+
+		/** カードの確認中に発生した JpkiException 以外のエラー。発生していない場合は null */
+		public String getProbeError() {
+			return probeError;
+		}
+
+		/** 最後に発生したエラーのエラー コード。発生していない場合は 0 */
+		public int getLastErrorCode() {
+			return lastErrorCode;
+		}
+
+		public int getLastWinErrorCode() {
+			return lastWinErrorCode;
+		}
+
+		public String getLastErrorMessage() {
+			return lastErrorMessage;
+		}
+
+		/** 最後に発生したエラーの日時。発生していない場合は null */
+		public Date getLastErrorTime() {
+			return lastErrorTime != 0 ? new Date(lastErrorTime) : null;
+		}
+
+		/**
+		 * 署名できる状態かどうかを返します。カードを確認していない場合は JPKI 利用者ソフトの有無だけで判断します。
+		 */
+		public boolean isHealthy() {
+			if(installPath == null) {
+				return false;
+			}
+			if(!cardProbed) {
+				return true;
+			}
+			return cardPresent && !pinLocked && subject != null && !isCertificateExpired();
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("time=%1$tFT%1$tT.%1$tL%1$tz%n", time));
+			sb.append("healthy=").append(isHealthy()).append(System.lineSeparator());
+			sb.append("installPath=").append(installPath != null ? installPath.getPath() : "").append(System.lineSeparator());
+			sb.append("internalJar=").append(internalJar).append(System.lineSeparator());
+			if(cardProbed) {
+				sb.append("cardPresent=").append(cardPresent).append(System.lineSeparator());
+				sb.append("pinLocked=").append(pinLocked).append(System.lineSeparator());
+				sb.append("subject=").append(subject != null ? subject : "").append(System.lineSeparator());
+				sb.append("notAfter=").append(notAfter != null ? String.format("%1$tFT%1$tT%1$tz", notAfter) : "").append(System.lineSeparator());
+			}
+			if(probeError != null) {
+				sb.append("probeError=").append(probeError).append(System.lineSeparator());
+			}
+			sb.append(String.format("lastErrorCode=%d%n", lastErrorCode));
+			sb.append(String.format("lastWinErrorCode=0x%08X%n", lastWinErrorCode));
+			return sb.toString();
+		}
+	}
+}
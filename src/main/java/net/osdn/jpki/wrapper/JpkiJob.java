@@ -0,0 +1,331 @@
+package net.osdn.jpki.wrapper;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link JpkiWrapper#submitSignature} で開始した署名処理のハンドルです。
+ * <p>
+ * 処理全体と段階ごとの期限を監視し、期限を過ぎるか {@link #cancel()} が呼ばれると
+ * カードのコンテキストを閉じて {@link JpkiException#WRAPPER_E_TIMEOUT} または
+ * {@link JpkiException#WRAPPER_E_CANCELLED} で処理を失敗させます。
+ * 閉じたコンテキストで新しいカードの呼び出しは始まらず、呼び出し中のコンテキストはその呼び出しが戻ったときに解放されます。
+ * カードの応答を待ったまま戻らないスレッドがあっても、呼び出し元はすぐに次の処理に進めます。
+ * そのスレッドが持っていた {@link CardScheduler} の順番と {@link CardArbiter} のリースもこのときに返すので、
+ * ほかの処理もカードを使えます。その後に残ったスレッドが出力に書き込もうとしても書き込まれません。
+ * <p>
+ * 処理は新しいスレッドで実行されます。仮想スレッドから開始した処理は仮想スレッドで実行され、
+ * カードとの JNI 呼び出しだけが {@link JpkiWrapper#setCardExecutor} のプラットフォーム スレッドで実行されます。
+ */
+public class JpkiJob {
+
+	private static final ExecutorService executor = Executors.newCachedThreadPool(new DaemonThreadFactory("jpki-job-"));
+	private static final ExecutorService virtualExecutor = JobExecutors.newThreadPerTaskExecutor("jpki-job-");
+	private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("jpki-watchdog-"));
+
+	/* package private */ interface Task {
+		void run(OutputStream output) throws JpkiException, IOException;
+	}
+
+	private final Task task;
+	private final JobOutputStream output;
+	private final long[] stageTimeoutNanos;
+	private final long deadline;
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	private Thread worker;
+	private boolean finished;
+	private Exception failure;
+	private boolean cancelled;
+	private volatile JpkiStage stage;
+	private volatile Closeable context;
+	private Closeable cardTurn;
+	private ScheduledFuture<?> jobTimer;
+	private ScheduledFuture<?> stageTimer;
+
+	/* package private */ JpkiJob(Task task, OutputStream output, long timeoutNanos, long[] stageTimeoutNanos) {
+		this.task = task;
+		this.output = new JobOutputStream(output);
+		this.stageTimeoutNanos = stageTimeoutNanos;
+		this.deadline = (timeoutNanos > 0) ? System.nanoTime() + timeoutNanos : 0;
+	}
+
+	/* package private */ void start(final ThreadLocal<JpkiJob> current) {
+		if(deadline != 0) {
+			synchronized (this) {
+				jobTimer = watchdog.schedule(new Runnable() {
+					@Override
+					public void run() {
+						fail(JpkiException.WRAPPER_E_TIMEOUT, new TimeoutException("signing job exceeded its deadline"
+								+ (stage != null ? " in stage " + stage : " before it reached the card")));
+					}
+				}, deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+			}
+		}
+		ExecutorService runner = JobExecutors.isVirtual(Thread.currentThread()) ? virtualExecutor : executor;
+		runner.execute(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (JpkiJob.this) {
+					if(finished) {
+						return;
+					}
+					worker = Thread.currentThread();
+				}
+				current.set(JpkiJob.this);
+				try {
+					task.run(output);
+					complete(null);
+				} catch(Exception e) {
+					complete(e);
+				} finally {
+					current.remove();
+					synchronized (JpkiJob.this) {
+						worker = null;
+					}
+					Thread.interrupted();
+				}
+			}
+		});
+	}
+
+	/**
+	 * 処理を取り消します。カードのコンテキストを使っていれば閉じます。
+	 *
+	 * @return 取り消した場合は true、すでに終了していた場合は false
+	 */
+	public boolean cancel() {
+		return fail(JpkiException.WRAPPER_E_CANCELLED, new CancellationException("signing job was cancelled"));
+	}
+
+	public synchronized boolean isDone() {
+		return finished;
+	}
+
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * 最後に開始したカードの段階を返します。カードを使う前に失敗した場合は null を返します。
+	 * null の場合はカードに触れていないので、そのまま再投入できます。
+	 */
+	public JpkiStage getStage() {
+		return stage;
+	}
+
+	public void get() throws JpkiException, IOException {
+		try {
+			done.await();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			cancel();
+		}
+		rethrow();
+	}
+
+	public boolean get(long timeout, TimeUnit unit) throws JpkiException, IOException {
+		try {
+			if(!done.await(timeout, unit)) {
+				return false;
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			cancel();
+		}
+		rethrow();
+		return true;
+	}
+
+	private void rethrow() throws JpkiException, IOException {
+		Exception e;
+		synchronized (this) {
+			e = failure;
+		}
+		if(e instanceof JpkiException) {
+			throw (JpkiException)e;
+		} else if(e instanceof IOException) {
+			throw (IOException)e;
+		} else if(e instanceof RuntimeException) {
+			throw (RuntimeException)e;
+		} else if(e != null) {
+			throw new IOException(e);
+		}
+	}
+
+	/* package private */ long getRemainingNanos() {
+		return (deadline != 0) ? deadline - System.nanoTime() : Long.MAX_VALUE;
+	}
+
+	/* package private */ void stageStarted(final JpkiStage stage, Closeable context) {
+		this.stage = stage;
+		if(context != null) {
+			this.context = context;
+		}
+		long timeout = stageTimeoutNanos[stage.ordinal()];
+		if(timeout > 0) {
+			synchronized (this) {
+				if(!finished) {
+					stageTimer = watchdog.schedule(new Runnable() {
+						@Override
+						public void run() {
+							fail(JpkiException.WRAPPER_E_TIMEOUT, new TimeoutException("stage " + stage + " exceeded its timeout"));
+						}
+					}, timeout, TimeUnit.NANOSECONDS);
+				}
+			}
+		}
+	}
+
+	/* package private */ synchronized void stageFinished() {
+		if(stageTimer != null) {
+			stageTimer.cancel(false);
+			stageTimer = null;
+		}
+	}
+
+	/**
+	 * カードのセッションのために順番やリースを得たときに呼ばれます。処理が中断された場合は turn も閉じます。
+	 * すでに中断されていた場合は、カードを使わせないように IOException をスローします。
+	 */
+	/* package private */ void cardSessionOpened(Closeable turn) throws IOException {
+		synchronized (this) {
+			if(!finished) {
+				cardTurn = turn;
+				return;
+			}
+		}
+		throw new IOException("signing job has already been terminated");
+	}
+
+	/* package private */ void cardSessionClosed() {
+		context = null;
+		synchronized (this) {
+			cardTurn = null;
+		}
+	}
+
+	private void complete(Exception e) {
+		synchronized (this) {
+			if(finished) {
+				return;
+			}
+			finished = true;
+			failure = e;
+			cancelTimers();
+		}
+		done.countDown();
+	}
+
+	private boolean fail(int errorCode, Exception cause) {
+		Closeable c;
+		Closeable turn;
+		synchronized (this) {
+			if(finished) {
+				return false;
+			}
+			finished = true;
+			cancelled = (errorCode == JpkiException.WRAPPER_E_CANCELLED);
+			failure = new JpkiException(errorCode, 0, cause);
+			cancelTimers();
+			output.abandon();
+			if(worker != null) {
+				worker.interrupt();
+			}
+			c = context;
+			turn = cardTurn;
+		}
+		if(c != null) {
+			// 以降のカードの呼び出しを止めます。呼び出し中であれば、コンテキストはその呼び出しが戻ったときに解放されます。
+			try { c.close(); } catch(Exception e) {}
+		}
+		if(turn != null) {
+			// 呼び出しが戻らなくても次の処理がカードを使えるように、順番とリースを返します。
+			try { turn.close(); } catch(Exception e) {}
+		}
+		done.countDown();
+		return true;
+	}
+
+	private void cancelTimers() {
+		if(jobTimer != null) {
+			jobTimer.cancel(false);
+		}
+		if(stageTimer != null) {
+			stageTimer.cancel(false);
+		}
+	}
+
+	private static class JobOutputStream extends FilterOutputStream {
+
+		private volatile boolean abandoned;
+
+		JobOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		void abandon() {
+			abandoned = true;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			check();
+			out.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			check();
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			check();
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if(!abandoned) {
+				out.close();
+			}
+		}
+
+		private void check() throws IOException {
+			if(abandoned) {
+				throw new IOException("signing job has already been terminated");
+			}
+		}
+	}
+
+	/* package private */ static class DaemonThreadFactory implements ThreadFactory {
+
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		DaemonThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, prefix + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
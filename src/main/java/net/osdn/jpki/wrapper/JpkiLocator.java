@@ -0,0 +1,18 @@
+package net.osdn.jpki.wrapper;
+
+import java.io.File;
+
+/**
+ * JPKI 利用者ソフトのインストール先を探す方法です。{@link JpkiDiscovery} が指定された順に問い合わせます。
+ */
+public interface JpkiLocator {
+
+	/** 診断情報に表示する名前 */
+	String getName();
+
+	/**
+	 * インストール先のディレクトリーを返します。見つからない場合は null を返します。
+	 * 例外をスローした場合は、診断情報に記録して次の方法に進みます。
+	 */
+	File locate() throws Exception;
+}
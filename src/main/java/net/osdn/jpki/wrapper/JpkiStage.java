@@ -0,0 +1,34 @@
+package net.osdn.jpki.wrapper;
+
+/**
+ * 署名処理の段階です。TIMESTAMP 以外は IC カードを使用します。
+ */
+public enum JpkiStage {
+
+	/** cryptAcquireContext でカードのコンテキストを取得する段階 */
+	ACQUIRE(JpkiWrapperInternal.STAGE_ACQUIRE),
+
+	/** カードから署名者証明書とルート証明書を読み取る段階 */
+	CERTIFICATE(JpkiWrapperInternal.STAGE_CERTIFICATE),
+
+	/** カードで署名値を計算する段階 */
+	SIGN(JpkiWrapperInternal.STAGE_SIGN),
+
+	/** カードを解放した後、タイムスタンプ局からトークンを取得する段階 */
+	TIMESTAMP(JpkiWrapperInternal.STAGE_TIMESTAMP);
+
+	private final int code;
+
+	JpkiStage(int code) {
+		this.code = code;
+	}
+
+	/* package private */ static JpkiStage valueOf(int code) {
+		for(JpkiStage stage : values()) {
+			if(stage.code == code) {
+				return stage;
+			}
+		}
+		return null;
+	}
+}
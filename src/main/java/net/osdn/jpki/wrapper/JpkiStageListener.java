@@ -0,0 +1,17 @@
+package net.osdn.jpki.wrapper;
+
+/**
+ * 署名処理の各段階の所要時間を受け取ります。
+ *
+ * @see JpkiWrapper#setStageListener(JpkiStageListener)
+ */
+public interface JpkiStageListener {
+
+	/**
+	 * 段階が正常に終了したときに、署名処理を実行しているスレッドから呼ばれます。
+	 *
+	 * @param stage 終了した段階
+	 * @param elapsedNanos 段階の開始から終了までの時間 (ナノ秒)
+	 */
+	void stageFinished(JpkiStage stage, long elapsedNanos);
+}
@@ -3,54 +3,127 @@ package net.osdn.jpki.wrapper;
 import com.sun.jna.Library;
 import com.sun.jna.Native;
 import com.sun.jna.Pointer;
-import com.sun.jna.platform.win32.Advapi32Util;
-import com.sun.jna.platform.win32.Win32Exception;
-import com.sun.jna.platform.win32.WinReg;
+import org.apache.pdfbox.pdfparser.PDFParser;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.interactive.digitalsignature.SignatureOptions;
 
+import java.io.Closeable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.math.BigInteger;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.jar.JarInputStream;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+/**
+ * JPKI 利用者ソフトを使って PDF に署名します。
+ * <p>
+ * 1 つのインスタンスを複数のスレッドで共有し、同時に {@link #addSignature} を呼び出すことができます。
+ * 署名ごとの状態はスレッドごとに保持され、カードの使用は {@link CardArbiter} を設定して順番に行わせます。
+ * 設定メソッドは署名中に呼び出しても構いませんが、実行中の署名に反映されるかどうかは保証されません。
+ * 複数のスレッドが同時に最初のインスタンスを生成した場合も、内部モジュールのクラス ローダーは 1 つだけ生成されます。
+ */
 public class JpkiWrapper {
 
+    /**
+     * JPKI 利用者ソフトのインストール先を指定するシステム プロパティの名前です。
+     * 存在するディレクトリーを指定した場合はレジストリや PATH を検索しません。負荷試験用のスタブ (jpki-stub) を使う場合にも指定します。
+     */
+    public static final String INSTALL_PATH_PROPERTY = "net.osdn.jpki.wrapper.installPath";
+
+    /**
+     * カードとの JNI 呼び出しの種類、所要時間、エラー コードを記録するファイルを指定するシステム プロパティの名前です。
+     * 鍵や証明書などの内容は記録しません。記録は jpki-stub の CardReplay で集計したり、スタブの応答として再生したりできます。
+     */
+    public static final String CARD_RECORDING_PROPERTY = "net.osdn.jpki.wrapper.cardRecording";
+
+    /** DSS を追加するときに署名済みの文書をメモリーに保持する上限のバイト数。超えると一時ファイルに書き出します。 */
+    private static final int VALIDATION_MEMORY_LIMIT = 16 * 1024 * 1024;
+
+    /** 仮想スレッドから署名するときに、カードとの JNI 呼び出しを実行する既定のプールのスレッド数 */
+    private static final int DEFAULT_CARD_THREADS = 4;
+
     private static volatile ClassLoader loader;
+    private static ExecutorService defaultCardExecutor;
 
+    /**
+     * JPKI 利用者ソフトがインストールされているかどうかを返します。
+     * インストール先を探すのは最初の呼び出しだけで、以降は保持した結果を返します ({@link JpkiDiscovery} を参照)。
+     */
     public static boolean isAvailable() {
         return getJpkiInstallPath() != null;
     }
 
     private String applicationName;
     private String applicationVersion;
-    private JpkiWrapperInternal impl;
+    private final JpkiWrapperInternal impl;
+    private volatile CardArbiter cardArbiter;
+    private volatile CardScheduler cardScheduler;
+    private volatile ExecutorService cardExecutor;
+    private volatile CardScheduler.Priority schedulingPriority;
+    private volatile String schedulingTenant;
+    private final ThreadLocal<CardTurn> cardTurn = new ThreadLocal<CardTurn>();
+    private final ThreadLocal<JpkiJob> currentJob = new ThreadLocal<JpkiJob>();
+    private volatile long timeoutNanos;
+    private final long[] stageTimeoutNanos = new long[JpkiStage.values().length];
+    private volatile AuditJournal auditJournal;
+    private volatile RevocationCache revocationCache;
+    private final ThreadLocal<CreatedSignature> createdSignature = new ThreadLocal<CreatedSignature>();
+    private volatile JpkiStageListener stageListener;
+    private final ThreadLocal<long[]> stageStartTimes = new ThreadLocal<long[]>();
+    private volatile JpkiException lastError;
+    private volatile long lastErrorTime;
+    private volatile int maxIncrementLength;
+
+    /** まだ署名していないときに、増分更新のために元の文書の長さに加えて確保するバイト数 */
+    private static final int DEFAULT_INCREMENT_SIZE = 64 * 1024;
+
+    /** これまでの増分更新の最大長に加えて確保するバイト数 */
+    private static final int INCREMENT_MARGIN = 4096;
 
     public JpkiWrapper() throws JpkiException, IOException, ReflectiveOperationException {
         if(loader == null) {
             synchronized (JpkiWrapper.class) {
                 if(loader == null) {
-                    File jpkiInstallPath = getJpkiInstallPath();
-                    if(jpkiInstallPath == null) {
+                    JpkiDiscovery.Result discovery = JpkiDiscovery.getDefault().discover();
+                    if(discovery.getInstallPath() == null) {
                         throw new JpkiException(
                                 "JPKI user software was not found. Make sure that the JPKI user software is correctly installed.",
                                 "JPKI利用者ソフトが見つかりませんでした。JPKI利用者ソフトが正しくインストールされていることを確認してください。",
                                 null
                         );
                     }
-                    loader = createLoader(jpkiInstallPath);
+                    loader = createLoader(discovery);
                 }
             }
         }
         Class<?> cls = loader.loadClass("net.osdn.jpki.wrapper.internal.JpkiWrapperImpl");
         impl = (JpkiWrapperInternal)cls.getConstructor().newInstance();
+        impl.setListener(new InternalListener());
+        impl.setCardCaller(new InternalCardCaller());
     }
 
     public void setApplicationName(String name) {
@@ -61,6 +134,122 @@ public class JpkiWrapper {
         applicationVersion = version;
     }
 
+    /**
+     * 署名後に出力を検証するかどうかを設定します。
+     * 有効にすると、書き込まれた /ByteRange を 1 回の走査で再ハッシュして署名したダイジェストと照合し、
+     * 一致しない場合は {@link JpkiException#WRAPPER_E_SELF_CHECK_FAILED} で失敗します。
+     */
+    public void setSelfCheck(boolean enabled) {
+        impl.setSelfCheck(enabled);
+    }
+
+    /**
+     * 署名の /Contents に確保する領域をカードの証明書と鍵長から計算するかどうかを設定します。既定は有効です。
+     * 有効な場合、{@link SignatureOptions#setPreferredSignatureSize(int)} が指定されていなければ、
+     * 必要なサイズにわずかな余裕を加えた分だけを確保します。
+     */
+    public void setExactSignatureSize(boolean enabled) {
+        impl.setExactSignatureSize(enabled);
+    }
+
+    /**
+     * カードを使用する間、複数のプロセスで共有する {@link CardArbiter} のリースを取得するように設定します。
+     * null を指定すると調停しません。
+     */
+    public void setCardArbiter(CardArbiter arbiter) {
+        cardArbiter = arbiter;
+    }
+
+    /**
+     * カードを使う前に、scheduler で priority と tenant に応じた順番を待つように設定します。null を指定すると順番を待ちません。
+     * 同じ JVM 内で優先度や呼び出し元の異なる処理が同じカードを使う場合は、処理ごとに JpkiWrapper を用意し、同じ scheduler を設定してください。
+     */
+    public void setCardScheduler(CardScheduler scheduler, CardScheduler.Priority priority, String tenant) {
+        schedulingPriority = priority;
+        schedulingTenant = tenant;
+        cardScheduler = scheduler;
+    }
+
+    /**
+     * 仮想スレッドから署名するときに、カードとの JNI 呼び出しを実行するプラットフォーム スレッドのプールを設定します。
+     * プラットフォーム スレッドを使うのは JNI の呼び出しの間だけで、文書の処理、順番待ち、タイムスタンプの取得、監査記録の書き込みは
+     * 呼び出し元の仮想スレッドのまま行います。プラットフォーム スレッドから署名する場合は、そのスレッドで呼び出します。
+     * null を指定すると、すべての JpkiWrapper で共有する 4 スレッドのプールを使います。
+     * カードの応答が戻らない呼び出しはプールのスレッドを占有し続けるので、プールが埋まった場合は別のプールを設定してください。
+     */
+    public void setCardExecutor(ExecutorService executor) {
+        cardExecutor = executor;
+    }
+
+    /**
+     * 段階ごとの所要時間を受け取るリスナーを設定します。null を指定すると通知しません。
+     */
+    public void setStageListener(JpkiStageListener listener) {
+        stageListener = listener;
+    }
+
+    /**
+     * 署名処理全体の期限を設定します。0 を指定すると期限を設けません。
+     * 期限を設定すると、{@link #addSignature} は別のスレッドで処理を実行し、期限を過ぎると
+     * カードのコンテキストを閉じて {@link JpkiException#WRAPPER_E_TIMEOUT} で失敗します。
+     * {@link CardArbiter} で順番を待つ時間も期限に含まれます。
+     */
+    public void setTimeout(long timeout, TimeUnit unit) {
+        timeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * カードを使用する段階ごとの期限を設定します。0 を指定すると期限を設けません。
+     */
+    public void setStageTimeout(JpkiStage stage, long timeout, TimeUnit unit) {
+        synchronized (stageTimeoutNanos) {
+            stageTimeoutNanos[stage.ordinal()] = unit.toNanos(timeout);
+        }
+    }
+
+    /**
+     * 署名するたびに、文書のダイジェスト、署名者証明書のシリアル番号、理由、日時、出力先を記録する監査ジャーナルを設定します。
+     * 記録がディスクに書き込まれるまで署名処理は完了しません。記録に失敗した場合は IOException で失敗します。
+     * null を指定すると記録しません。
+     */
+    public void setAuditJournal(AuditJournal journal) {
+        auditJournal = journal;
+    }
+
+    /**
+     * 署名にタイムスタンプ トークンを付加する (PAdES B-T) ように設定します。null を指定すると付加しません。
+     * トークンはカードを解放してから取得するので、複数のスレッドで署名すると TSA の往復時間がほかのスレッドのカードの処理と重なります。
+     * TSA への同時の要求数は {@link BoundedTimeStampClient} で制限できます。
+     * 署名にはカードを使う前に {@link TimeStampClient#estimateTokenSize()} で見積もったトークンの長さを確保します。
+     * {@link SignatureOptions#setPreferredSignatureSize(int)} を指定する場合は、トークンの分も含めてください。
+     */
+    public void setTimeStampClient(final TimeStampClient client) {
+        if(client == null) {
+            impl.setTimeStamper(null);
+            return;
+        }
+        impl.setTimeStamper(new JpkiWrapperInternal.TimeStamper() {
+            @Override
+            public byte[] getTimeStampToken(byte[] signatureDigest) throws IOException {
+                return client.getTimeStampToken(signatureDigest);
+            }
+
+            @Override
+            public int estimateTokenSize() throws IOException {
+                return client.estimateTokenSize();
+            }
+        });
+    }
+
+    /**
+     * 署名した文書に長期検証 (LTV) のための DSS 辞書を追加するように設定します。null を指定すると追加しません。
+     * 署名者証明書とルート証明書、署名者証明書の失効情報を DSS と署名の VRI に格納し、署名に続く増分更新として書き出します。
+     * 失効情報は指定したキャッシュから取得するので、同じ証明書で署名する文書は取得結果を共有します。
+     */
+    public void setRevocationCache(RevocationCache cache) {
+        revocationCache = cache;
+    }
+
     public void addSignature(OutputStream output, PDDocument document) throws JpkiException, IOException {
         addSignature(output, document, null, null, null, null, null, null);
     }
@@ -70,95 +259,536 @@ public class JpkiWrapper {
     }
 
     public void addSignature(OutputStream output, PDDocument document, String name, String reason, Date date, String location, String contact, SignatureOptions options) throws JpkiException, IOException {
+        addSignature(output, null, document, name, reason, date, location, contact, options);
+    }
+
+    /**
+     * 署名した文書をファイルに出力します。監査ジャーナルには出力先としてこのファイルのパスが記録されます。
+     * 署名済みの文書は同じディレクトリーの一時ファイルに書き込み、署名に成功した場合だけ出力先に移動します。
+     * 失敗した場合は一時ファイルを削除するので、出力先に書きかけのファイルが残ったり、既存のファイルが壊れたりすることはありません。
+     */
+    public void addSignature(File output, PDDocument document, String name, String reason, Date date, String location, String contact, SignatureOptions options) throws JpkiException, IOException {
+        File directory = output.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile("." + output.getName() + "-", ".tmp", directory);
+        boolean completed = false;
         try {
-            impl.addSignature(output, document, name, reason, date, location, contact, options, applicationName, applicationVersion);
-        } catch(IOException e) {
-            String message = e.getMessage();
-            if(message != null && message.charAt(0) == '!') {
-                Matcher m = ERROR_CODE_PATTERN.matcher(message);
-                if(m.matches()) {
-                    int errorCode = Integer.parseInt(m.group(1));
-                    int winErrorCode = Integer.parseInt(m.group(2));
-                    throw new JpkiException(errorCode, winErrorCode, e.getCause());
-                }
+            try(OutputStream out = new FileOutputStream(temp)) {
+                addSignature(out, output.getPath(), document, name, reason, date, location, contact, options);
+            }
+            try {
+                Files.move(temp.toPath(), output.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch(AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            completed = true;
+        } finally {
+            if(!completed) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * 署名した文書を ZIP アーカイブのエントリーとして出力します。エントリーはこの時点で予約され、予約した順にアーカイブに書き込まれます。
+     * 監査ジャーナルには出力先としてエントリー名が記録されます。
+     */
+    public void addSignature(ZipArchiveSink sink, String entryName, PDDocument document, String name, String reason, Date date, String location, String contact, SignatureOptions options) throws JpkiException, IOException {
+        addSignature(sink.reserve(entryName), document, name, reason, date, location, contact, options);
+    }
+
+    /**
+     * 署名した文書を予約済みの ZIP アーカイブのエントリーに出力します。
+     * 署名に失敗した場合、エントリーは破棄され、アーカイブには書き込まれません。
+     */
+    public void addSignature(ZipArchiveSink.Entry entry, PDDocument document, String name, String reason, Date date, String location, String contact, SignatureOptions options) throws JpkiException, IOException {
+        boolean completed = false;
+        try {
+            addSignature(entry, entry.getName(), document, name, reason, date, location, contact, options);
+            entry.close();
+            completed = true;
+        } finally {
+            if(!completed) {
+                entry.abort();
             }
+        }
+    }
+
+    private void addSignature(OutputStream output, String outputName, PDDocument document, String name, String reason, Date date, String location, String contact, SignatureOptions options) throws JpkiException, IOException {
+        try {
+            if(hasTimeout()) {
+                submitSignature(output, outputName, document, name, reason, date, location, contact, options).get();
+            } else {
+                sign(output, outputName, document, name, reason, date, location, contact, options);
+            }
+        } catch(JpkiException e) {
+            lastError = e;
+            lastErrorTime = System.currentTimeMillis();
             throw e;
         }
     }
 
-    private static Pattern ERROR_CODE_PATTERN = Pattern.compile("!ErrorCode=(-?[0-9]+),WinErrorCode=(-?[0-9]+)");
+    /**
+     * カードから署名用電子証明書を読み取ります。
+     * 署名と同じように {@link CardArbiter} のリースを取得してからカードを使用します。
+     * JPKI 利用者ソフトの設定によっては、パスワードの入力を求められることがあります。
+     */
+    public X509Certificate getCertificate() throws JpkiException, IOException {
+        try {
+            byte[][] certificates;
+            try {
+                certificates = impl.getCertificates();
+            } catch(IOException e) {
+                throw toJpkiException(e);
+            }
+            return toCertificate(certificates[0]);
+        } catch(JpkiException e) {
+            lastError = e;
+            lastErrorTime = System.currentTimeMillis();
+            throw e;
+        }
+    }
 
-    private static ClassLoader createLoader(File jpkiInstallPath) throws IOException {
-        String[] jarNames = is64bitJavaVM() ?
-                new String[] { "JPKICryptSignJNI64.jar", "JPKIUserCertService64.jar" }:
-                new String[] { "JPKICryptSignJNI.jar",   "JPKIUserCertService.jar" };
+    /**
+     * content に対する分離署名の CMS SignedData (DER) をカードで作成します。PDF 以外のデータに署名するときに使います。
+     * 署名と同じように {@link CardArbiter} のリースを取得してからカードを使用し、タイムスタンプ局が設定されていればトークンを付加します。
+     */
+    public byte[] signData(byte[] content) throws JpkiException, IOException {
+        try {
+            try {
+                return impl.signData(content);
+            } catch(IOException e) {
+                throw toJpkiException(e);
+            }
+        } catch(JpkiException e) {
+            lastError = e;
+            lastErrorTime = System.currentTimeMillis();
+            throw e;
+        }
+    }
 
-        List<URL> urls = new ArrayList<URL>();
-        for(String jarName : jarNames) {
-            File jar = new File(jpkiInstallPath, jarName);
-            if(jar.exists()) {
-                urls.add(jar.toURI().toURL());
+    /**
+     * このインスタンスで最後に発生した JpkiException を返します。発生していない場合は null を返します。
+     */
+    public JpkiException getLastError() {
+        return lastError;
+    }
+
+    /**
+     * {@link #getLastError()} が発生した日時 (エポックからのミリ秒) を返します。発生していない場合は 0 を返します。
+     */
+    public long getLastErrorTime() {
+        return lastErrorTime;
+    }
+
+    /**
+     * メモリー上の文書に署名し、署名済みの文書を返します。
+     * <p>
+     * source (ヒープまたはダイレクト) の position から limit までを文書として読みます。source の position と limit は変更しません。
+     * 文書は source からコピーせずに解析され、増分保存で元の内容を書き写すときも署名対象のハッシュを計算するときも source から直接読みます。
+     * 出力のバッファーは、元の文書の長さにこれまでの増分更新の最大長を加えた大きさで 1 回だけ確保します。
+     * 返されるバッファーはヒープ バッファーで、position は 0、limit は署名済みの文書の長さです。
+     * <p>
+     * PDFBox 2.0 は解析時に各ストリームの内容を内部のバッファーに読み込むので、その分のコピーは残ります。
+     * 署名処理が終わるまで source の内容を変更しないでください。
+     */
+    public ByteBuffer addSignature(ByteBuffer source, String name, String reason, Date date, String location, String contact, SignatureOptions options) throws JpkiException, IOException {
+        int sourceLength = source.remaining();
+        int max = maxIncrementLength;
+        long capacity = (long)sourceLength + ((max > 0) ? max + INCREMENT_MARGIN : DEFAULT_INCREMENT_SIZE);
+        PresizedOutputStream output = new PresizedOutputStream((int)Math.min(capacity, Integer.MAX_VALUE - 8));
+        PDFParser parser = new PDFParser(new ByteBufferRandomAccessRead(source));
+        // 解析に失敗した場合は、PDFParser が途中まで作った COSDocument を閉じてから例外をスローします。
+        parser.parse();
+        try(PDDocument document = parser.getPDDocument()) {
+            addSignature(output, null, document, name, reason, date, location, contact, options);
+        }
+        updateMaxIncrementLength(output.size() - sourceLength);
+        return output.toByteBuffer();
+    }
+
+    private synchronized void updateMaxIncrementLength(int length) {
+        if(length > maxIncrementLength) {
+            maxIncrementLength = length;
+        }
+    }
+
+    /**
+     * 複数の署名を順に付加し、署名ごとの増分更新を重ねた文書を output に出力します。
+     * 途中の版はメモリー上で次の署名に渡すので、一時ファイルへの保存や呼び出し元での読み込み直しは不要です。
+     * 各署名は {@link SignerSpec#getWrapper()} の設定 (未指定の場合はこのインスタンス) で行われます。
+     * 途中の署名が失敗した場合、output には何も書き込まれません。
+     * <p>
+     * PDFBox 2.0 のパーサーは増分更新の部分だけを読み込むことができないので、次の署名の前に直前の版全体を
+     * メモリー上のバイト列から解析し直します。
+     */
+    public void addSignatures(OutputStream output, PDDocument document, List<SignerSpec> signers) throws JpkiException, IOException {
+        if(signers.isEmpty()) {
+            throw new IllegalArgumentException("signers must not be empty");
+        }
+        PDDocument current = document;
+        try {
+            for(int i = 0; i < signers.size(); i++) {
+                SignerSpec signer = signers.get(i);
+                JpkiWrapper wrapper = (signer.getWrapper() != null) ? signer.getWrapper() : this;
+                boolean last = (i == signers.size() - 1);
+                ByteArrayOutputStream revision = last ? null : new ByteArrayOutputStream();
+                wrapper.addSignature(last ? output : revision, current, signer.getName(), signer.getReason(),
+                        signer.getDate(), signer.getLocation(), signer.getContact(), signer.getOptions());
+                if(!last) {
+                    if(current != document) {
+                        current.close();
+                    }
+                    current = null;
+                    current = PDDocument.load(revision.toByteArray());
+                }
+            }
+        } finally {
+            if(current != null && current != document) {
+                current.close();
             }
         }
+    }
 
-        String internalJar = is64bitJavaVM() ?
-                "/jpki-wrapper-internal64.jar":
-                "/jpki-wrapper-internal32.jar";
+    /**
+     * 署名処理を別のスレッドで開始し、取り消しや完了待ちに使うハンドルを返します。
+     * 処理が終わるまで document を操作しないでください。期限切れや取り消しで失敗した後も、
+     * カードの応答を待っていたスレッドが document を参照することがあります。
+     */
+    public JpkiJob submitSignature(OutputStream output, PDDocument document, String name, String reason, Date date, String location, String contact, SignatureOptions options) {
+        return submitSignature(output, null, document, name, reason, date, location, contact, options);
+    }
 
-        try(InputStream in = JpkiWrapper.class.getResourceAsStream(internalJar);
-                JarInputStream jar = new JarInputStream(in)) {
-            ClassLoader loader = new InternalClassLoader(urls.toArray(new URL[]{}), jar);
-            return loader;
+    private JpkiJob submitSignature(OutputStream output, final String outputName, final PDDocument document, final String name, final String reason, final Date date, final String location, final String contact, final SignatureOptions options) {
+        return submit(output, new JpkiJob.Task() {
+            @Override
+            public void run(OutputStream output) throws JpkiException, IOException {
+                sign(output, outputName, document, name, reason, date, location, contact, options);
+            }
+        });
+    }
+
+    private boolean hasTimeout() {
+        if(timeoutNanos > 0) {
+            return true;
+        }
+        synchronized (stageTimeoutNanos) {
+            for(long timeout : stageTimeoutNanos) {
+                if(timeout > 0) {
+                    return true;
+                }
+            }
         }
+        return false;
     }
 
-    private static boolean is64bitJavaVM() {
-        String s = System.getProperty("os.arch");
-        return s != null && s.contains("64");
+    private JpkiJob submit(OutputStream output, JpkiJob.Task task) {
+        long[] stageTimeouts;
+        synchronized (stageTimeoutNanos) {
+            stageTimeouts = stageTimeoutNanos.clone();
+        }
+        JpkiJob job = new JpkiJob(task, output, timeoutNanos, stageTimeouts);
+        job.start(currentJob);
+        return job;
     }
 
-    private static File getJpkiInstallPath() {
-        // find from registry
+    private void sign(OutputStream output, String outputName, PDDocument document, String name, String reason, Date date, String location, String contact, SignatureOptions options) throws JpkiException, IOException {
+        RevocationCache cache = revocationCache;
+        // DSS を追加するために署名済みの文書を読み直すので、大きな文書は一時ファイルに書き出します。
+        SpillingOutputStream signed = (cache != null) ? new SpillingOutputStream(VALIDATION_MEMORY_LIMIT) : null;
+        CreatedSignature created;
         try {
-            String path1 = Advapi32Util.registryGetStringValue(WinReg.HKEY_LOCAL_MACHINE, "SOFTWARE\\JPKI", "InstallPath");
-            if(path1 != null) {
-                File dir = new File(path1);
-                if(dir.isDirectory()) {
-                    return dir;
+            try {
+                impl.addSignature(signed != null ? signed : output, document, name, reason, date, location, contact, options, applicationName, applicationVersion);
+                created = createdSignature.get();
+            } catch(IOException e) {
+                throw toJpkiException(e);
+            } finally {
+                createdSignature.remove();
+            }
+
+            if(signed != null) {
+                if(created == null) {
+                    throw new IOException("signature information was not reported");
                 }
+                addValidationInformation(signed, created.certificates, cache, output);
             }
-        } catch(Exception e) {
-            if(e instanceof Win32Exception && ((Win32Exception)e).getErrorCode() == 2) {
-                //「指定されたファイルが見つかりません」の時はスタックトレースを出力しません。
-            } else {
-                e.printStackTrace();
+        } finally {
+            if(signed != null) {
+                signed.delete();
             }
         }
 
-        // find from PATH env
-        String path2 = findPath("JPKIMenu.exe");
-        if(path2 != null) {
-            return new File(path2).getParentFile();
+        // カードを解放してから記録するので、fsync を待つ間もほかの署名処理はカードを使えます。
+        AuditJournal journal = auditJournal;
+        if(journal != null && created != null) {
+            journal.append(new AuditRecord(created.date.getTime(), created.contentDigest,
+                    getSerialNumber(created.certificates[0]), created.name, created.reason, outputName));
         }
+    }
 
-        // not found
+    /**
+     * 内部モジュールがエラー コードを埋め込んだ IOException を JpkiException に変換します。
+     * エラー コードを含まない場合は e をそのままスローします。
+     */
+    private static JpkiException toJpkiException(IOException e) throws IOException {
+        String message = e.getMessage();
+        if(message != null && !message.isEmpty() && message.charAt(0) == '!') {
+            Matcher m = ERROR_CODE_PATTERN.matcher(message);
+            if(m.matches()) {
+                int errorCode = Integer.parseInt(m.group(1));
+                int winErrorCode = Integer.parseInt(m.group(2));
+                return new JpkiException(errorCode, winErrorCode, e.getCause());
+            }
+        }
+        throw e;
+    }
+
+    private static void addValidationInformation(SpillingOutputStream signed, byte[][] encodedCertificates, RevocationCache cache, OutputStream output) throws IOException {
+        List<X509Certificate> certificates = new ArrayList<X509Certificate>();
+        for(byte[] encoded : encodedCertificates) {
+            certificates.add(toCertificate(encoded));
+        }
+        List<RevocationData> revocations = new ArrayList<RevocationData>();
+        for(int i = 0; i < certificates.size(); i++) {
+            X509Certificate certificate = certificates.get(i);
+            X509Certificate issuer = findIssuer(certificate, certificates);
+            // 自己署名のルート証明書は失効情報を持たないので、トラストアンカーとして証明書だけを格納します。
+            if(issuer != null && issuer != certificate) {
+                revocations.add(cache.get(certificate, issuer));
+            }
+        }
+        DocumentSecurityStore.append(signed, certificates, revocations, output);
+    }
+
+    private static X509Certificate findIssuer(X509Certificate certificate, List<X509Certificate> candidates) {
+        for(X509Certificate candidate : candidates) {
+            if(candidate.getSubjectX500Principal().equals(certificate.getIssuerX500Principal())) {
+                try {
+                    certificate.verify(candidate.getPublicKey());
+                    return candidate;
+                } catch(Exception e) {
+                    // 名前は一致するが鍵が異なる
+                }
+            }
+        }
         return null;
     }
 
-    private static String findPath(String executableFilename) {
-        char[] pszPath = new char[1024];
-        Pointer ppszOtherDirs = Pointer.NULL;
+    private static X509Certificate toCertificate(byte[] encoded) throws IOException {
+        try {
+            CertificateFactory factory = CertificateFactory.getInstance("X.509");
+            return (X509Certificate)factory.generateCertificate(new ByteArrayInputStream(encoded));
+        } catch(CertificateException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static BigInteger getSerialNumber(byte[] certificate) throws IOException {
+        return toCertificate(certificate).getSerialNumber();
+    }
+
+    private static class CreatedSignature {
+        final byte[] contentDigest;
+        final byte[][] certificates;
+        final String name;
+        final String reason;
+        final Date date;
+
+        CreatedSignature(byte[] contentDigest, byte[][] certificates, String name, String reason, Date date) {
+            this.contentDigest = contentDigest;
+            this.certificates = certificates;
+            this.name = name;
+            this.reason = reason;
+            this.date = date;
+        }
+    }
+
+    /**
+     * カードのセッションのために得た {@link CardScheduler} の順番と {@link CardArbiter} のリースです。
+     * セッションを閉じたときのほか、期限切れや取り消しで処理を中断したときにも {@link JpkiJob} から閉じられるので、
+     * 何度閉じても構いません。
+     */
+    private static class CardTurn implements Closeable {
+        CardScheduler.Permit permit;
+        CardArbiter.Lease lease;
+
+        @Override
+        public synchronized void close() {
+            if(lease != null) {
+                try { lease.close(); } catch(IOException e) {}
+                lease = null;
+            }
+            if(permit != null) {
+                permit.close();
+                permit = null;
+            }
+        }
+    }
+
+    private static synchronized ExecutorService getDefaultCardExecutor() {
+        if(defaultCardExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_CARD_THREADS, DEFAULT_CARD_THREADS, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new JpkiJob.DaemonThreadFactory("jpki-card-"));
+            executor.allowCoreThreadTimeOut(true);
+            defaultCardExecutor = executor;
+        }
+        return defaultCardExecutor;
+    }
+
+    /**
+     * 仮想スレッドからのカードとの JNI 呼び出しを {@link #setCardExecutor(ExecutorService)} のプールで実行し、完了を待ちます。
+     * 仮想スレッドは待つ間キャリアを手放すので、JNI の呼び出しがキャリアを占有することはありません。
+     */
+    private class InternalCardCaller implements JpkiWrapperInternal.CardCaller {
+
+        @Override
+        public <T> T call(Callable<T> call, boolean cleanup) throws Exception {
+            if(!JobExecutors.isVirtual(Thread.currentThread())) {
+                return call.call();
+            }
+            ExecutorService executor = cardExecutor;
+            Future<T> future = ((executor != null) ? executor : getDefaultCardExecutor()).submit(call);
+            try {
+                return future.get();
+            } catch(ExecutionException e) {
+                Throwable cause = e.getCause();
+                if(cause instanceof Exception) {
+                    throw (Exception)cause;
+                } else if(cause instanceof Error) {
+                    throw (Error)cause;
+                }
+                throw e;
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if(!cleanup) {
+                    // まだ始まっていなければ取り消します。ハンドルの解放は取り消さずにプールで実行させます。
+                    future.cancel(false);
+                }
+                throw e;
+            }
+        }
+    }
+
+    private static IOException toInternalException(JpkiException e) {
+        return new IOException(String.format("!ErrorCode=%d,WinErrorCode=%d", e.getErrorCode(), e.getWinErrorCode()), e.getCause());
+    }
+
+    private class InternalListener implements JpkiWrapperInternal.Listener {
+
+        @Override
+        public void cardSessionOpening() throws IOException {
+            JpkiJob job = currentJob.get();
+            CardTurn turn = new CardTurn();
+            try {
+                CardScheduler scheduler = cardScheduler;
+                if(scheduler != null) {
+                    long timeout = scheduler.getAcquireTimeout(TimeUnit.NANOSECONDS);
+                    if(job != null) {
+                        timeout = Math.min(timeout, job.getRemainingNanos());
+                    }
+                    turn.permit = scheduler.acquire(schedulingPriority, schedulingTenant, timeout, TimeUnit.NANOSECONDS);
+                }
+                CardArbiter arbiter = cardArbiter;
+                if(arbiter != null) {
+                    long timeout = arbiter.getAcquireTimeout(TimeUnit.NANOSECONDS);
+                    if(job != null) {
+                        timeout = Math.min(timeout, job.getRemainingNanos());
+                    }
+                    turn.lease = arbiter.acquire(timeout, TimeUnit.NANOSECONDS);
+                }
+            } catch(JpkiException e) {
+                // セッションは開かれないので cardSessionClosed は呼ばれません。得た順番はここで譲ります。
+                turn.close();
+                throw toInternalException(e);
+            } catch(IOException e) {
+                turn.close();
+                throw e;
+            }
+            if(job != null) {
+                try {
+                    job.cardSessionOpened(turn);
+                } catch(IOException e) {
+                    turn.close();
+                    throw e;
+                }
+            }
+            cardTurn.set(turn);
+        }
+
+        @Override
+        public void cardSessionClosed() {
+            CardTurn turn = cardTurn.get();
+            if(turn != null) {
+                cardTurn.remove();
+                turn.close();
+            }
+            JpkiJob job = currentJob.get();
+            if(job != null) {
+                job.cardSessionClosed();
+            }
+        }
+
+        @Override
+        public void stageStarted(int stage, Closeable context) {
+            JpkiStage s = JpkiStage.valueOf(stage);
+            if(stageListener != null && s != null) {
+                long[] times = stageStartTimes.get();
+                if(times == null) {
+                    times = new long[JpkiStage.values().length];
+                    stageStartTimes.set(times);
+                }
+                times[s.ordinal()] = System.nanoTime();
+            }
+            JpkiJob job = currentJob.get();
+            if(job != null) {
+                job.stageStarted(s, context);
+            }
+        }
+
+        @Override
+        public void stageFinished(int stage) {
+            JpkiJob job = currentJob.get();
+            if(job != null) {
+                job.stageFinished();
+            }
+            JpkiStageListener listener = stageListener;
+            JpkiStage s = JpkiStage.valueOf(stage);
+            long[] times = stageStartTimes.get();
+            if(listener != null && s != null && times != null && times[s.ordinal()] != 0) {
+                long elapsed = System.nanoTime() - times[s.ordinal()];
+                times[s.ordinal()] = 0;
+                listener.stageFinished(s, elapsed);
+            }
+        }
+
+        @Override
+        public void signatureCreated(byte[] contentDigest, byte[][] certificates, String name, String reason, Date date) {
+            createdSignature.set(new CreatedSignature(contentDigest, certificates, name, reason, date));
+        }
+    }
+
+    private static final Pattern ERROR_CODE_PATTERN = Pattern.compile("!ErrorCode=(-?[0-9]+),WinErrorCode=(-?[0-9]+)");
+
+    private static ClassLoader createLoader(JpkiDiscovery.Result discovery) throws IOException {
+        List<URL> urls = new ArrayList<URL>();
+        for(File jar : discovery.getRuntimeJars()) {
+            urls.add(jar.toURI().toURL());
+        }
 
-        char[] src = executableFilename.toCharArray();
-        System.arraycopy(src, 0, pszPath, 0, src.length);
-        boolean ret = Shlwapi.INSTANCE.PathFindOnPathW(pszPath, ppszOtherDirs);
-        if(ret) {
-            return new String(pszPath).trim();
-        } else {
-            return null;
+        try(InputStream in = JpkiWrapper.class.getResourceAsStream("/" + discovery.getInternalJarName());
+                JarInputStream jar = new JarInputStream(in)) {
+            ClassLoader loader = new InternalClassLoader(urls.toArray(new URL[]{}), jar);
+            return loader;
         }
     }
 
+    /**
+     * {@link JpkiDiscovery#getDefault()} で JPKI 利用者ソフトのインストール先を探します。結果は保持されます。
+     */
+    /* package private */ static File getJpkiInstallPath() {
+        return JpkiDiscovery.getDefault().discover().getInstallPath();
+    }
+
     public interface Shlwapi extends Library {
         Shlwapi INSTANCE = Native.load("shlwapi", Shlwapi.class);
 
@@ -0,0 +1,85 @@
+package net.osdn.jpki.wrapper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * 前回見つかったインストール先をファイルに記録し、次回の起動ではそれを返します。
+ * <p>
+ * {@link JpkiDiscovery} は、このロケーターより後ろの方法でインストール先が見つかったときに {@link #remember(File)} を呼びます。
+ * 記録したディレクトリーがなくなっている場合は null を返すので、後ろの方法で探し直します。
+ */
+public class LastKnownGoodJpkiLocator implements JpkiLocator {
+
+	private final File file;
+
+	/**
+	 * 既定のファイル (%LOCALAPPDATA%\jpki-wrapper\install-path、LOCALAPPDATA がない場合はホーム ディレクトリーの .jpki-wrapper/install-path) を使います。
+	 */
+	public LastKnownGoodJpkiLocator() {
+		this(getDefaultFile());
+	}
+
+	public LastKnownGoodJpkiLocator(File file) {
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	public String getName() {
+		return "last-known-good:" + file.getPath();
+	}
+
+	@Override
+	public File locate() throws IOException {
+		if(!file.isFile()) {
+			return null;
+		}
+		String path = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+		if(path.isEmpty()) {
+			return null;
+		}
+		File dir = new File(path);
+		return dir.isDirectory() ? dir : null;
+	}
+
+	/**
+	 * インストール先を記録します。同じ内容が記録されている場合は書き込みません。
+	 */
+	public void remember(File installPath) throws IOException {
+		String path = installPath.getAbsolutePath();
+		if(file.isFile() && path.equals(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim())) {
+			return;
+		}
+		File dir = file.getAbsoluteFile().getParentFile();
+		if(dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("failed to create directory: " + dir);
+		}
+		// 途中まで書かれたファイルを読まないように、一時ファイルに書いてから置き換えます。
+		File tmp = File.createTempFile("install-path", ".tmp", dir);
+		try {
+			try(OutputStream out = new FileOutputStream(tmp)) {
+				out.write(path.getBytes(StandardCharsets.UTF_8));
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	private static File getDefaultFile() {
+		String localAppData = System.getenv("LOCALAPPDATA");
+		if(localAppData != null) {
+			return new File(new File(localAppData, "jpki-wrapper"), "install-path");
+		}
+		return new File(new File(System.getProperty("user.home"), ".jpki-wrapper"), "install-path");
+	}
+}
@@ -0,0 +1,227 @@
+package net.osdn.jpki.wrapper;
+
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.ocsp.OCSPObjectIdentifiers;
+import org.bouncycastle.asn1.x509.AccessDescription;
+import org.bouncycastle.asn1.x509.AuthorityInformationAccess;
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.cert.CertException;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPException;
+import org.bouncycastle.cert.ocsp.OCSPReq;
+import org.bouncycastle.cert.ocsp.OCSPReqBuilder;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.RevokedStatus;
+import org.bouncycastle.cert.ocsp.SingleResp;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.SecureRandom;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 証明書の AIA に記載された OCSP レスポンダーに問い合わせる {@link RevocationFetcher} です。
+ * <p>
+ * 応答の署名が発行者または発行者から委任されたレスポンダーによるものであることを確認します。
+ * 委任されたレスポンダーの証明書は、応答と一緒に DSS に格納されるように {@link RevocationData#getCertificates()} で返します。
+ * 既定では要求に nonce を含め、同じ nonce を含まない応答を拒否します。
+ * 証明書が失効している場合は IOException をスローします。
+ */
+public class OcspRevocationFetcher implements RevocationFetcher {
+
+	private static final SecureRandom random = new SecureRandom();
+
+	private final URL responder;
+	private volatile int connectTimeout = 10000;
+	private volatile int readTimeout = 30000;
+	private volatile boolean nonce = true;
+
+	/**
+	 * 証明書の AIA に記載されたレスポンダーを使います。
+	 */
+	public OcspRevocationFetcher() {
+		this(null);
+	}
+
+	/**
+	 * 証明書の記載にかかわらず、指定したレスポンダーを使います。
+	 */
+	public OcspRevocationFetcher(URL responder) {
+		this.responder = responder;
+	}
+
+	public void setConnectTimeout(long timeout, TimeUnit unit) {
+		connectTimeout = (int)Math.min(Integer.MAX_VALUE, unit.toMillis(timeout));
+	}
+
+	public void setReadTimeout(long timeout, TimeUnit unit) {
+		readTimeout = (int)Math.min(Integer.MAX_VALUE, unit.toMillis(timeout));
+	}
+
+	/**
+	 * 要求に nonce を含めるかどうかを設定します。既定は true で、応答が同じ nonce を含まなければ IOException をスローします。
+	 * nonce に対応せず事前に生成した応答を返すレスポンダーでは false にしてください。
+	 */
+	public void setNonce(boolean enabled) {
+		nonce = enabled;
+	}
+
+	@Override
+	public RevocationData fetch(X509Certificate certificate, X509Certificate issuer) throws IOException {
+		URL url = (responder != null) ? responder : getResponderUrl(certificate);
+		if(url == null) {
+			return null;
+		}
+		try {
+			X509CertificateHolder issuerHolder = new JcaX509CertificateHolder(issuer);
+			CertificateID id = new CertificateID(new JcaDigestCalculatorProviderBuilder().build().get(CertificateID.HASH_SHA1),
+					issuerHolder, certificate.getSerialNumber());
+			OCSPReqBuilder builder = new OCSPReqBuilder();
+			builder.addRequest(id);
+			byte[] nonce = null;
+			byte[] encodedNonce = null;
+			if(this.nonce) {
+				nonce = new byte[16];
+				random.nextBytes(nonce);
+				encodedNonce = new DEROctetString(nonce).getEncoded();
+				builder.setRequestExtensions(new Extensions(new Extension(OCSPObjectIdentifiers.id_pkix_ocsp_nonce, false, encodedNonce)));
+			}
+			OCSPReq request = builder.build();
+
+			byte[] body = post(url, request.getEncoded());
+			OCSPResp response = new OCSPResp(body);
+			if(response.getStatus() != OCSPResp.SUCCESSFUL) {
+				throw new IOException("OCSP responder returned status " + response.getStatus() + ": " + url);
+			}
+			BasicOCSPResp basic = (BasicOCSPResp)response.getResponseObject();
+			if(nonce != null) {
+				Extension nonceExtension = basic.getExtension(OCSPObjectIdentifiers.id_pkix_ocsp_nonce);
+				if(nonceExtension == null) {
+					throw new IOException("OCSP response does not contain the nonce of the request: " + url);
+				}
+				// 応答の nonce を OCTET STRING で包まずに返すレスポンダーもあるので、どちらの形でも受け入れます。
+				byte[] octets = nonceExtension.getExtnValue().getOctets();
+				if(!Arrays.equals(encodedNonce, octets) && !Arrays.equals(nonce, octets)) {
+					throw new IOException("OCSP response nonce does not match the request: " + url);
+				}
+			}
+			X509CertificateHolder signer = verifySignature(basic, issuerHolder, url);
+			List<byte[]> certificates = signer.equals(issuerHolder)
+					? Collections.<byte[]>emptyList() : Collections.singletonList(signer.getEncoded());
+
+			for(SingleResp single : basic.getResponses()) {
+				if(!single.getCertID().equals(id)) {
+					continue;
+				}
+				CertificateStatus status = single.getCertStatus();
+				if(status instanceof RevokedStatus) {
+					throw new IOException("certificate has been revoked at " + ((RevokedStatus)status).getRevocationTime()
+							+ ": " + certificate.getSubjectX500Principal());
+				} else if(status != CertificateStatus.GOOD) {
+					throw new IOException("OCSP responder does not know the certificate: " + certificate.getSubjectX500Principal());
+				}
+				return new RevocationData(RevocationData.Type.OCSP, body, single.getNextUpdate(), certificates);
+			}
+			throw new IOException("OCSP response does not contain the requested certificate: " + url);
+		} catch(OCSPException | OperatorCreationException | CertException | CertificateException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * 応答の署名を検証し、署名した証明書 (発行者または委任されたレスポンダー) を返します。
+	 */
+	private static X509CertificateHolder verifySignature(BasicOCSPResp basic, X509CertificateHolder issuer, URL url) throws IOException, OCSPException, OperatorCreationException, CertException, CertificateException {
+		X509CertificateHolder signer = issuer;
+		X509CertificateHolder[] certs = basic.getCerts();
+		if(certs.length > 0 && !certs[0].equals(issuer)) {
+			// 委任されたレスポンダー: 発行者が署名した OCSP 署名用の証明書であること
+			X509CertificateHolder delegated = certs[0];
+			ExtendedKeyUsage eku = ExtendedKeyUsage.fromExtensions(delegated.getExtensions());
+			if(eku == null || !eku.hasKeyPurposeId(KeyPurposeId.id_kp_OCSPSigning)
+					|| !delegated.isSignatureValid(new JcaContentVerifierProviderBuilder().build(issuer))) {
+				throw new IOException("OCSP responder certificate is not authorized by the issuer: " + url);
+			}
+			signer = delegated;
+		}
+		if(!basic.isSignatureValid(new JcaContentVerifierProviderBuilder().build(signer))) {
+			throw new IOException("OCSP response signature is invalid: " + url);
+		}
+		return signer;
+	}
+
+	/* package private */ static URL getResponderUrl(X509Certificate certificate) throws IOException {
+		byte[] value = certificate.getExtensionValue(Extension.authorityInfoAccess.getId());
+		if(value == null) {
+			return null;
+		}
+		ASN1Primitive octets = ASN1Primitive.fromByteArray(DEROctetString.getInstance(value).getOctets());
+		for(AccessDescription ad : AuthorityInformationAccess.getInstance(octets).getAccessDescriptions()) {
+			if(ad.getAccessMethod().equals(AccessDescription.id_ad_ocsp)) {
+				GeneralName name = ad.getAccessLocation();
+				if(name.getTagNo() == GeneralName.uniformResourceIdentifier) {
+					String s = name.getName().toString();
+					if(s.startsWith("http://") || s.startsWith("https://")) {
+						return new URL(s);
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	private byte[] post(URL url, byte[] request) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+		connection.setConnectTimeout(connectTimeout);
+		connection.setReadTimeout(readTimeout);
+		connection.setDoOutput(true);
+		connection.setRequestMethod("POST");
+		connection.setRequestProperty("Content-Type", "application/ocsp-request");
+		connection.setFixedLengthStreamingMode(request.length);
+		try(OutputStream out = connection.getOutputStream()) {
+			out.write(request);
+		}
+		int status = connection.getResponseCode();
+		if(status != HttpURLConnection.HTTP_OK) {
+			InputStream err = connection.getErrorStream();
+			if(err != null) {
+				try { readFully(err); } finally { err.close(); }
+			}
+			throw new IOException("OCSP responder responded with HTTP " + status + ": " + url);
+		}
+		try(InputStream in = connection.getInputStream()) {
+			return readFully(in);
+		}
+	}
+
+	/* package private */ static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+		byte[] buf = new byte[8192];
+		int len;
+		while((len = in.read(buf)) != -1) {
+			out.write(buf, 0, len);
+		}
+		return out.toByteArray();
+	}
+}
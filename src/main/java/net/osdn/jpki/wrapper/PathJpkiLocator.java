@@ -0,0 +1,36 @@
+package net.osdn.jpki.wrapper;
+
+import com.sun.jna.Pointer;
+
+import java.io.File;
+
+/**
+ * 環境変数 PATH から JPKIMenu.exe を探し、そのディレクトリーをインストール先とします。
+ */
+public class PathJpkiLocator implements JpkiLocator {
+
+	private static final String EXECUTABLE_FILENAME = "JPKIMenu.exe";
+
+	@Override
+	public String getName() {
+		return "path";
+	}
+
+	@Override
+	public File locate() throws Exception {
+		char[] pszPath = new char[1024];
+		char[] src = EXECUTABLE_FILENAME.toCharArray();
+		System.arraycopy(src, 0, pszPath, 0, src.length);
+		boolean ret;
+		try {
+			ret = JpkiWrapper.Shlwapi.INSTANCE.PathFindOnPathW(pszPath, Pointer.NULL);
+		} catch(LinkageError e) {
+			// Windows 以外では shlwapi を読み込めません。
+			throw new UnsupportedOperationException(e.toString(), e);
+		}
+		if(ret) {
+			return new File(new String(pszPath).trim()).getParentFile();
+		}
+		return null;
+	}
+}
@@ -0,0 +1,56 @@
+package net.osdn.jpki.wrapper;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 見積もった大きさで 1 回だけ確保したバッファーに書き込みます。
+ * 見積もりを超えた場合だけ拡張し、{@link #toByteBuffer()} はバッファーをコピーせずに返します。
+ */
+/* package private */ class PresizedOutputStream extends OutputStream {
+
+	private byte[] buf;
+	private int count;
+	private int reallocations;
+
+	PresizedOutputStream(int initialCapacity) {
+		buf = new byte[Math.max(initialCapacity, 32)];
+	}
+
+	@Override
+	public void write(int b) {
+		ensureCapacity(count + 1);
+		buf[count++] = (byte)b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		ensureCapacity(count + len);
+		System.arraycopy(b, off, buf, count, len);
+		count += len;
+	}
+
+	private void ensureCapacity(int minCapacity) {
+		if(minCapacity - buf.length > 0) {
+			buf = Arrays.copyOf(buf, Math.max(minCapacity, buf.length + (buf.length >> 1)));
+			reallocations++;
+		}
+	}
+
+	int size() {
+		return count;
+	}
+
+	/** 見積もりを超えてバッファーを拡張した回数 */
+	int getReallocations() {
+		return reallocations;
+	}
+
+	/**
+	 * 書き込んだ内容をバッファーをコピーせずに返します。以降はこのストリームに書き込まないでください。
+	 */
+	ByteBuffer toByteBuffer() {
+		return ByteBuffer.wrap(buf, 0, count);
+	}
+}
@@ -0,0 +1,35 @@
+package net.osdn.jpki.wrapper;
+
+import com.sun.jna.platform.win32.Advapi32Util;
+import com.sun.jna.platform.win32.Win32Exception;
+import com.sun.jna.platform.win32.WinReg;
+
+import java.io.File;
+
+/**
+ * レジストリの HKLM\SOFTWARE\JPKI の InstallPath をインストール先とします。
+ */
+public class RegistryJpkiLocator implements JpkiLocator {
+
+	@Override
+	public String getName() {
+		return "registry";
+	}
+
+	@Override
+	public File locate() throws Exception {
+		try {
+			String path = Advapi32Util.registryGetStringValue(WinReg.HKEY_LOCAL_MACHINE, "SOFTWARE\\JPKI", "InstallPath");
+			return (path != null) ? new File(path) : null;
+		} catch(Win32Exception e) {
+			if(e.getErrorCode() == 2) {
+				//「指定されたファイルが見つかりません」はキーがないだけなので、エラーとして扱いません。
+				return null;
+			}
+			throw e;
+		} catch(LinkageError e) {
+			// Windows 以外では Advapi32 を読み込めません。
+			throw new UnsupportedOperationException(e.toString(), e);
+		}
+	}
+}
@@ -0,0 +1,223 @@
+package net.osdn.jpki.wrapper;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 発行者とシリアル番号をキーに失効情報を保持するキャッシュです。
+ * <p>
+ * 保持期間 (既定は 1 時間、失効情報の nextUpdate が先に来る場合はそこまで) と件数の上限 (既定は 1000 件) を超えた
+ * 情報は破棄されます。件数が上限を超えたときは最も長く参照されていないものから破棄します。
+ * 同じ証明書の失効情報を複数のスレッドが同時に要求した場合、取得は 1 回だけ行い結果を共有します。
+ * <p>
+ * 取得には登録した {@link RevocationFetcher} を順に試し、最初に得られた情報を使います。
+ *
+ * @see JpkiWrapper#setRevocationCache(RevocationCache)
+ */
+public class RevocationCache {
+
+	private final List<RevocationFetcher> fetchers;
+	private volatile long timeToLiveMillis = TimeUnit.HOURS.toMillis(1);
+	private volatile int maximumSize = 1000;
+
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+	private final Map<Key, FutureTask<RevocationData>> inFlight = new HashMap<Key, FutureTask<RevocationData>>();
+
+	private long hitCount;
+	private long missCount;
+	private long fetchCount;
+	private long evictionCount;
+
+	/**
+	 * OCSP、CRL の順に試すキャッシュを作成します。
+	 */
+	public RevocationCache() {
+		this(new OcspRevocationFetcher(), new CrlRevocationFetcher());
+	}
+
+	public RevocationCache(RevocationFetcher... fetchers) {
+		this.fetchers = new ArrayList<RevocationFetcher>(Arrays.asList(fetchers));
+	}
+
+	public void setTimeToLive(long ttl, TimeUnit unit) {
+		timeToLiveMillis = unit.toMillis(ttl);
+	}
+
+	public void setMaximumSize(int size) {
+		if(size < 1) {
+			throw new IllegalArgumentException("size must be positive: " + size);
+		}
+		maximumSize = size;
+		synchronized (this) {
+			evict();
+		}
+	}
+
+	/**
+	 * 証明書の失効情報を返します。キャッシュにない場合や期限が切れている場合は取得します。
+	 */
+	public RevocationData get(final X509Certificate certificate, final X509Certificate issuer) throws IOException {
+		final Key key = new Key(issuer.getSubjectX500Principal().getEncoded(), certificate.getSerialNumber());
+		FutureTask<RevocationData> task;
+		boolean owner = false;
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if(entry != null) {
+				if(entry.expiresAt > System.currentTimeMillis()) {
+					hitCount++;
+					return entry.data;
+				}
+				entries.remove(key);
+			}
+			missCount++;
+			task = inFlight.get(key);
+			if(task == null) {
+				task = new FutureTask<RevocationData>(new Callable<RevocationData>() {
+					@Override
+					public RevocationData call() throws IOException {
+						return fetch(certificate, issuer);
+					}
+				});
+				inFlight.put(key, task);
+				owner = true;
+			}
+		}
+		if(owner) {
+			try {
+				task.run();
+			} finally {
+				synchronized (this) {
+					inFlight.remove(key);
+					fetchCount++;
+					try {
+						RevocationData data = task.get();
+						long now = System.currentTimeMillis();
+						long expiresAt = now + timeToLiveMillis;
+						Date nextUpdate = data.getNextUpdate();
+						if(nextUpdate != null && nextUpdate.getTime() < expiresAt) {
+							expiresAt = nextUpdate.getTime();
+						}
+						if(expiresAt > now) {
+							entries.put(key, new Entry(data, expiresAt));
+							evict();
+						}
+					} catch(Exception e) {
+						// 失敗した結果は保持しません。
+					}
+				}
+			}
+		}
+		try {
+			return task.get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while waiting for revocation data", e);
+		} catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) {
+				throw (IOException)cause;
+			} else if(cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	private RevocationData fetch(X509Certificate certificate, X509Certificate issuer) throws IOException {
+		for(RevocationFetcher fetcher : fetchers) {
+			RevocationData data = fetcher.fetch(certificate, issuer);
+			if(data != null) {
+				return data;
+			}
+		}
+		throw new IOException("no revocation information is available: " + certificate.getSubjectX500Principal());
+	}
+
+	private void evict() {
+		int max = maximumSize;
+		Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+		while(entries.size() > max && it.hasNext()) {
+			it.next();
+			it.remove();
+			evictionCount++;
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	/** 実際に取得した回数。同時に要求されて共有した取得は 1 回と数えます。 */
+	public synchronized long getFetchCount() {
+		return fetchCount;
+	}
+
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "RevocationCache[size=" + entries.size() + ", hits=" + hitCount + ", misses=" + missCount
+				+ ", fetches=" + fetchCount + ", evictions=" + evictionCount + "]";
+	}
+
+	private static class Key {
+		final byte[] issuer;
+		final BigInteger serialNumber;
+
+		Key(byte[] issuer, BigInteger serialNumber) {
+			this.issuer = issuer;
+			this.serialNumber = serialNumber;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key)obj;
+			return serialNumber.equals(other.serialNumber) && Arrays.equals(issuer, other.issuer);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * Arrays.hashCode(issuer) + serialNumber.hashCode();
+		}
+	}
+
+	private static class Entry {
+		final RevocationData data;
+		final long expiresAt;
+
+		Entry(RevocationData data, long expiresAt) {
+			this.data = data;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package net.osdn.jpki.wrapper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * 証明書 1 枚分の失効情報 (OCSP 応答または CRL) です。
+ */
+public class RevocationData {
+
+	public enum Type {
+		/** DER エンコードされた OCSPResponse */
+		OCSP,
+		/** DER エンコードされた CertificateList */
+		CRL
+	}
+
+	private final Type type;
+	private final byte[] encoded;
+	private final long nextUpdate;
+	private final List<byte[]> certificates;
+
+	/**
+	 * @param nextUpdate 次の更新予定日時。不明な場合は null
+	 */
+	public RevocationData(Type type, byte[] encoded, Date nextUpdate) {
+		this(type, encoded, nextUpdate, null);
+	}
+
+	/**
+	 * @param nextUpdate 次の更新予定日時。不明な場合は null
+	 * @param certificates 失効情報の検証に必要な証明書 (委任された OCSP レスポンダーの証明書など) の DER。ない場合は null
+	 */
+	public RevocationData(Type type, byte[] encoded, Date nextUpdate, List<byte[]> certificates) {
+		this.type = type;
+		this.encoded = encoded;
+		this.nextUpdate = (nextUpdate != null) ? nextUpdate.getTime() : 0;
+		this.certificates = (certificates != null) ? Collections.unmodifiableList(new ArrayList<byte[]>(certificates)) : Collections.<byte[]>emptyList();
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public byte[] getEncoded() {
+		return encoded;
+	}
+
+	/** 次の更新予定日時。不明な場合は null を返します。 */
+	public Date getNextUpdate() {
+		return (nextUpdate != 0) ? new Date(nextUpdate) : null;
+	}
+
+	/** 失効情報の検証に必要な証明書の DER。DSS の /Certs にも格納されます。 */
+	public List<byte[]> getCertificates() {
+		return certificates;
+	}
+
+	@Override
+	public String toString() {
+		return "RevocationData[" + type + ", " + encoded.length + " bytes" + (nextUpdate != 0 ? ", nextUpdate=" + getNextUpdate() : "") + "]";
+	}
+}
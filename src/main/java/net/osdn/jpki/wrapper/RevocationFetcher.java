@@ -0,0 +1,20 @@
+package net.osdn.jpki.wrapper;
+
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+
+/**
+ * 証明書の失効情報を取得します。
+ *
+ * @see RevocationCache
+ */
+public interface RevocationFetcher {
+
+	/**
+	 * @param certificate 失効情報を取得する証明書
+	 * @param issuer certificate の発行者の証明書
+	 * @return 失効情報。この方法では取得できない証明書 (配布点が記載されていないなど) の場合は null
+	 * @throws IOException 取得に失敗した場合、または証明書が失効している場合
+	 */
+	RevocationData fetch(X509Certificate certificate, X509Certificate issuer) throws IOException;
+}
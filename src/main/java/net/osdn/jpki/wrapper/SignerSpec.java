@@ -0,0 +1,94 @@
+package net.osdn.jpki.wrapper;
+
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.SignatureOptions;
+
+import java.util.Date;
+
+/**
+ * {@link JpkiWrapper#addSignatures} で付加する 1 つの署名の指定です。
+ * 指定しなかった項目は {@link JpkiWrapper#addSignature} と同じ既定値になります。
+ */
+public class SignerSpec {
+
+	private JpkiWrapper wrapper;
+	private String name;
+	private String reason;
+	private Date date;
+	private String location;
+	private String contact;
+	private SignatureOptions options;
+
+	public SignerSpec() {
+	}
+
+	public SignerSpec(String name, String reason) {
+		this.name = name;
+		this.reason = reason;
+	}
+
+	/**
+	 * この署名に使う {@link JpkiWrapper} を返します。null の場合は addSignatures を呼び出したインスタンスを使います。
+	 */
+	public JpkiWrapper getWrapper() {
+		return wrapper;
+	}
+
+	/**
+	 * この署名に使う {@link JpkiWrapper} を設定します。
+	 * 署名者ごとにカードの調停、期限、タイムスタンプ、監査ジャーナルなどの設定を変える場合に使います。
+	 */
+	public void setWrapper(JpkiWrapper wrapper) {
+		this.wrapper = wrapper;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public String getReason() {
+		return reason;
+	}
+
+	public void setReason(String reason) {
+		this.reason = reason;
+	}
+
+	public Date getDate() {
+		return date;
+	}
+
+	public void setDate(Date date) {
+		this.date = date;
+	}
+
+	public String getLocation() {
+		return location;
+	}
+
+	public void setLocation(String location) {
+		this.location = location;
+	}
+
+	public String getContact() {
+		return contact;
+	}
+
+	public void setContact(String contact) {
+		this.contact = contact;
+	}
+
+	/**
+	 * 署名の外観 (可視署名) や /Contents に確保するサイズを指定する SignatureOptions を返します。
+	 */
+	public SignatureOptions getOptions() {
+		return options;
+	}
+
+	public void setOptions(SignatureOptions options) {
+		this.options = options;
+	}
+}
@@ -0,0 +1,99 @@
+package net.osdn.jpki.wrapper;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * limit バイトまではメモリーに書き込み、超えると一時ファイルに移して書き込みを続けます。
+ * 大きな文書を読み直すときにヒープを使い切らないようにするためのものです。
+ * 書き込んだ文書を出力するときにストリームは閉じられるので、一時ファイルは読み終えてから {@link #delete()} で削除します。
+ */
+/* package private */ class SpillingOutputStream extends OutputStream {
+
+	private final int limit;
+	private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+	private File file;
+	private OutputStream out;
+	private long size;
+
+	SpillingOutputStream(int limit) {
+		this.limit = limit;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte)b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if(file == null && memory.size() + (long)len > limit) {
+			spill();
+		}
+		if(file != null) {
+			if(out == null) {
+				throw new IOException("stream has already been read");
+			}
+			out.write(b, off, len);
+		} else {
+			memory.write(b, off, len);
+		}
+		size += len;
+	}
+
+	private void spill() throws IOException {
+		file = File.createTempFile("jpki-wrapper-", ".pdf");
+		out = new BufferedOutputStream(new FileOutputStream(file), 65536);
+		memory.writeTo(out);
+		memory = null;
+	}
+
+	long size() {
+		return size;
+	}
+
+	boolean isSpilled() {
+		return file != null;
+	}
+
+	/**
+	 * 書き込んだ内容を読み取る PDDocument を返します。以降はこのストリームに書き込めません。
+	 */
+	PDDocument load() throws IOException {
+		if(file == null) {
+			return PDDocument.load(memory.toByteArray());
+		}
+		if(out != null) {
+			out.close();
+			out = null;
+		}
+		return PDDocument.load(file);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(out != null) {
+			out.close();
+			out = null;
+		}
+	}
+
+	/**
+	 * ストリームを閉じて一時ファイルを削除します。
+	 */
+	void delete() throws IOException {
+		try {
+			close();
+		} finally {
+			if(file != null && !file.delete()) {
+				file.deleteOnExit();
+			}
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package net.osdn.jpki.wrapper;
+
+import java.io.File;
+
+/**
+ * システム プロパティに指定されたディレクトリーをインストール先とします。
+ * 負荷試験用のスタブ (jpki-stub) を使う場合や、Windows 以外で試験する場合に使います。
+ */
+public class SystemPropertyJpkiLocator implements JpkiLocator {
+
+	private final String key;
+
+	public SystemPropertyJpkiLocator(String key) {
+		this.key = key;
+	}
+
+	@Override
+	public String getName() {
+		return "property:" + key;
+	}
+
+	@Override
+	public File locate() {
+		String path = System.getProperty(key);
+		return (path != null) ? new File(path) : null;
+	}
+}
@@ -0,0 +1,25 @@
+package net.osdn.jpki.wrapper;
+
+import java.io.IOException;
+
+/**
+ * RFC 3161 タイムスタンプ局 (TSA) からタイムスタンプ トークンを取得するクライアントです。
+ *
+ * @see JpkiWrapper#setTimeStampClient(TimeStampClient)
+ */
+public interface TimeStampClient {
+
+	/**
+	 * SHA-256 ダイジェストに対するタイムスタンプ トークンを取得します。
+	 *
+	 * @param digest 署名値の SHA-256 ダイジェスト
+	 * @return DER エンコードされたタイムスタンプ トークン (ContentInfo)
+	 */
+	byte[] getTimeStampToken(byte[] digest) throws IOException;
+
+	/**
+	 * 署名にトークン用に確保するバイト数の見積もり (証明書チェーンを含むトークンの長さ) を返します。見積もれない場合は 0 を返します。
+	 * 文書ごとにカードを使用する前に呼ばれるので、TSA には問い合わせず、設定された値やこれまでに受け取ったトークンの長さから見積もってください。
+	 */
+	int estimateTokenSize() throws IOException;
+}
@@ -0,0 +1,263 @@
+package net.osdn.jpki.wrapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * 署名した PDF を一時ファイルを介さずに ZIP アーカイブに書き込みます。
+ * <p>
+ * {@link #reserve(String)} でエントリーを予約した順にアーカイブに書き込まれます。
+ * 各エントリーへの出力はメモリー上に保持され、CRC とサイズは書き込みながら計算されます。
+ * 予約した順番が来たエントリーは、出力を終えたスレッドがそのままアーカイブに書き込むので、
+ * 文書の準備と署名を複数のスレッドで並列に行っても、アーカイブへの書き込みは 1 本の流れになります。
+ * <p>
+ * 既定ではエントリーを圧縮せずに格納します (PDF の多くはすでに圧縮されているため)。
+ * 書き込み待ちのエントリーがメモリーを占有しすぎないように、{@link #setMaxPendingEntries(int)} で予約数の上限を設定できます。
+ *
+ * @see JpkiWrapper#addSignature(ZipArchiveSink.Entry, org.apache.pdfbox.pdmodel.PDDocument, String, String, java.util.Date, String, String, org.apache.pdfbox.pdmodel.interactive.digitalsignature.SignatureOptions)
+ */
+public class ZipArchiveSink implements Closeable {
+
+	private final ZipOutputStream zip;
+	private final Deque<Entry> pending = new ArrayDeque<Entry>();
+	private final List<Entry> written = new ArrayList<Entry>();
+	private int method = ZipEntry.STORED;
+	private int maxPendingEntries = Integer.MAX_VALUE;
+	private long bytesWritten;
+	private IOException failure;
+	private boolean closed;
+
+	public ZipArchiveSink(OutputStream output) {
+		this.zip = new ZipOutputStream(output);
+	}
+
+	/**
+	 * エントリーを圧縮するかどうかを設定します。既定は圧縮しません。
+	 */
+	public synchronized void setCompressed(boolean compressed) {
+		method = compressed ? ZipEntry.DEFLATED : ZipEntry.STORED;
+	}
+
+	/**
+	 * 予約したまま書き込まれていないエントリーの上限を設定します。
+	 * 上限に達すると、先行するエントリーが書き込まれるまで {@link #reserve(String)} は待機します。
+	 */
+	public synchronized void setMaxPendingEntries(int max) {
+		if(max < 1) {
+			throw new IllegalArgumentException("max must be positive: " + max);
+		}
+		maxPendingEntries = max;
+		notifyAll();
+	}
+
+	/**
+	 * エントリーを予約します。エントリーは予約した順にアーカイブに書き込まれます。
+	 */
+	public synchronized Entry reserve(String name) throws IOException {
+		while(!closed && failure == null && pending.size() >= maxPendingEntries) {
+			try {
+				wait();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while waiting for a pending entry", e);
+			}
+		}
+		checkOpen();
+		Entry entry = new Entry(name);
+		pending.addLast(entry);
+		return entry;
+	}
+
+	/**
+	 * 書き込んだエントリーの一覧を返します。
+	 */
+	public synchronized List<Entry> getEntries() {
+		return Collections.unmodifiableList(new ArrayList<Entry>(written));
+	}
+
+	/** アーカイブに書き込んだエントリーの合計サイズ (圧縮前) */
+	public synchronized long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * 書き込み可能になったエントリーを書き込んでアーカイブを閉じます。
+	 * 出力を終えていないエントリーは書き込まれず、IOException がスローされます。
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if(closed) {
+			return;
+		}
+		closed = true;
+		List<String> unfinished = new ArrayList<String>();
+		for(Entry entry : pending) {
+			if(entry.state == Entry.OPEN) {
+				entry.state = Entry.ABORTED;
+				unfinished.add(entry.name);
+			}
+		}
+		drain();
+		notifyAll();
+		zip.close();
+		if(failure != null) {
+			throw failure;
+		}
+		if(!unfinished.isEmpty()) {
+			throw new IOException("entries were not completed: " + unfinished);
+		}
+	}
+
+	private void checkOpen() throws IOException {
+		if(failure != null) {
+			throw new IOException("archive is broken", failure);
+		}
+		if(closed) {
+			throw new IOException("archive is closed");
+		}
+	}
+
+	private synchronized void completed() {
+		try {
+			drain();
+		} finally {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * 先頭から順に、出力を終えたエントリーを書き込みます。
+	 */
+	private void drain() {
+		while(!pending.isEmpty() && pending.peekFirst().state != Entry.OPEN) {
+			Entry entry = pending.removeFirst();
+			if(entry.state == Entry.ABORTED || failure != null) {
+				entry.buffer = null;
+				continue;
+			}
+			try {
+				ZipEntry ze = new ZipEntry(entry.name);
+				ze.setMethod(method);
+				if(method == ZipEntry.STORED) {
+					ze.setSize(entry.size);
+					ze.setCompressedSize(entry.size);
+					ze.setCrc(entry.crc);
+				}
+				zip.putNextEntry(ze);
+				entry.buffer.writeTo(zip);
+				zip.closeEntry();
+				bytesWritten += entry.size;
+				written.add(entry);
+			} catch(IOException e) {
+				failure = e;
+			} finally {
+				entry.buffer = null;
+			}
+		}
+	}
+
+	/**
+	 * アーカイブの 1 エントリーへの出力です。閉じると出力を終えたものとして、順番が来ればアーカイブに書き込まれます。
+	 */
+	public class Entry extends OutputStream {
+
+		private static final int OPEN = 0;
+		private static final int COMPLETED = 1;
+		private static final int ABORTED = 2;
+
+		private final String name;
+		private final CRC32 checksum = new CRC32();
+		private ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * 1024);
+		private volatile int state = OPEN;
+		private long size;
+		private long crc;
+
+		private Entry(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/** エントリーのサイズ。出力を終えるまでは書き込み済みのバイト数です。 */
+		public long getSize() {
+			return size;
+		}
+
+		/** エントリーの CRC-32。出力を終えるまでは 0 です。 */
+		public long getCrc() {
+			return crc;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			check();
+			buffer.write(b);
+			checksum.update(b);
+			size++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			check();
+			buffer.write(b, off, len);
+			checksum.update(b, off, len);
+			size += len;
+		}
+
+		private void check() throws IOException {
+			if(state != OPEN) {
+				throw new IOException("entry is already closed: " + name);
+			}
+		}
+
+		/**
+		 * 出力を終えます。2 回目以降の呼び出しは何もしません。
+		 */
+		@Override
+		public void close() {
+			synchronized (ZipArchiveSink.this) {
+				if(state != OPEN) {
+					return;
+				}
+				crc = checksum.getValue();
+				state = COMPLETED;
+			}
+			completed();
+		}
+
+		/**
+		 * 出力を破棄します。このエントリーはアーカイブに書き込まれず、後続のエントリーの書き込みは続行されます。
+		 * すでに閉じている場合は何もしません。
+		 */
+		public void abort() {
+			synchronized (ZipArchiveSink.this) {
+				if(state != OPEN) {
+					return;
+				}
+				state = ABORTED;
+			}
+			completed();
+		}
+
+		public boolean isAborted() {
+			return state == ABORTED;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s\t%d\t%08x", name, size, crc);
+		}
+	}
+}
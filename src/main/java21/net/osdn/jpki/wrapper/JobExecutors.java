@@ -0,0 +1,104 @@
+package net.osdn.jpki.wrapper;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一括署名や非同期の署名でファイルやネットワークの入出力を待つスレッドを生成します。
+ * <p>
+ * Java 21 以降の実行環境で使われる実装です。処理ごとに仮想スレッドを生成するので、
+ * 入出力を待つ処理が多くてもスレッド プールの大きさを調整する必要はありません。
+ * カードとの JNI 呼び出しだけは、仮想スレッドから {@link JpkiWrapper#setCardExecutor} のプラットフォーム スレッドに渡されます。
+ */
+final class JobExecutors {
+
+	private JobExecutors() {
+	}
+
+	/**
+	 * 同時に parallelism 件まで処理を実行する ExecutorService を返します。
+	 * 処理ごとに仮想スレッドを生成し、上限を超えた処理は仮想スレッドの中で順番を待ちます。
+	 */
+	static ExecutorService newJobExecutor(String prefix, int parallelism) {
+		return new BoundedExecutorService(
+				Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(prefix, 1).factory()), parallelism);
+	}
+
+	/**
+	 * 処理ごとに仮想スレッドを生成する ExecutorService を返します。
+	 */
+	static ExecutorService newThreadPerTaskExecutor(String prefix) {
+		return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(prefix, 1).factory());
+	}
+
+	/** {@link #newJobExecutor(String, int)} が仮想スレッドを使用するかどうか */
+	static boolean isVirtualThreadSupported() {
+		return true;
+	}
+
+	/** thread が仮想スレッドかどうか */
+	static boolean isVirtual(Thread thread) {
+		return thread.isVirtual();
+	}
+
+	/**
+	 * 同時に実行する処理の数をセマフォで制限します。
+	 * 待機は仮想スレッドで行うので、プラットフォーム スレッドを占有しません。
+	 */
+	private static class BoundedExecutorService extends AbstractExecutorService {
+
+		private final ExecutorService delegate;
+		private final Semaphore permits;
+
+		BoundedExecutorService(ExecutorService delegate, int parallelism) {
+			this.delegate = delegate;
+			this.permits = new Semaphore(parallelism, true);
+		}
+
+		@Override
+		public void execute(Runnable command) {
+			delegate.execute(() -> {
+				try {
+					permits.acquire();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+				try {
+					command.run();
+				} finally {
+					permits.release();
+				}
+			});
+		}
+
+		@Override
+		public void shutdown() {
+			delegate.shutdown();
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			return delegate.shutdownNow();
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return delegate.isShutdown();
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return delegate.isTerminated();
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+			return delegate.awaitTermination(timeout, unit);
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package net.osdn.jpki.wrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+
+import org.junit.Test;
+
+/**
+ * 内部モジュールのクラス ローダーを、多数のスレッドが同時に初めて使う場合を試験します。
+ */
+public class InternalClassLoaderStressTest {
+
+	private static final int THREADS = 32;
+	private static final int ROUNDS = 20;
+
+	/**
+	 * 同じクラスを loadClass と findClass から同時に要求しても、クラスは 1 回だけ定義されます (LinkageError になりません)。
+	 */
+	@Test(timeout = 300000)
+	public void definesEachClassOnceUnderContention() throws Exception {
+		final List<String> names = getClassNames();
+		for(int round = 0; round < ROUNDS; round++) {
+			final InternalClassLoader loader = newLoader();
+			final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+			final ConcurrentMap<String, Class<?>> classes = new ConcurrentHashMap<String, Class<?>>();
+			final List<Throwable> failures = new CopyOnWriteArrayList<Throwable>();
+			List<Thread> threads = new ArrayList<Thread>();
+			for(int i = 0; i < THREADS; i++) {
+				final int id = i;
+				Thread thread = new Thread() {
+					@Override
+					public void run() {
+						try {
+							List<String> shuffled = new ArrayList<String>(names);
+							Collections.shuffle(shuffled, new Random(id));
+							barrier.await();
+							for(String name : shuffled) {
+								// 半分のスレッドは loadClass を経由せずに findClass を直接呼びます。
+								Class<?> cls = (id % 2 == 0) ? loader.loadClass(name) : loader.findClass(name);
+								Class<?> previous = classes.putIfAbsent(name, cls);
+								if(previous != null && previous != cls) {
+									throw new AssertionError("defined twice: " + name);
+								}
+							}
+						} catch(Throwable t) {
+							failures.add(t);
+						}
+					}
+				};
+				thread.start();
+				threads.add(thread);
+			}
+			for(Thread thread : threads) {
+				thread.join();
+			}
+			assertEquals("round " + round + ": " + failures, 0, failures.size());
+			assertEquals(names.size(), classes.size());
+		}
+	}
+
+	/**
+	 * 多数のスレッドが同時に最初の JpkiWrapper を生成しても、内部モジュールのクラス ローダーは 1 つだけ生成されます。
+	 * <p>
+	 * クラス ローダーは JVM で 1 回だけ生成されるので、ラウンドごとに JpkiWrapper が保持するクラス ローダーを破棄して初回の状態に戻します。
+	 */
+	@Test(timeout = 300000)
+	public void firstWrappersShareOneLoader() throws Exception {
+		Field loaderField = JpkiWrapper.class.getDeclaredField("loader");
+		loaderField.setAccessible(true);
+		final Field implField = JpkiWrapper.class.getDeclaredField("impl");
+		implField.setAccessible(true);
+		for(int round = 0; round < ROUNDS; round++) {
+			loaderField.set(null, null);
+			final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+			final List<ClassLoader> loaders = new CopyOnWriteArrayList<ClassLoader>();
+			final List<Throwable> failures = new CopyOnWriteArrayList<Throwable>();
+			List<Thread> threads = new ArrayList<Thread>();
+			for(int i = 0; i < THREADS; i++) {
+				Thread thread = new Thread() {
+					@Override
+					public void run() {
+						try {
+							barrier.await();
+							JpkiWrapper wrapper = new JpkiWrapper();
+							loaders.add(implField.get(wrapper).getClass().getClassLoader());
+						} catch(Throwable t) {
+							failures.add(t);
+						}
+					}
+				};
+				thread.start();
+				threads.add(thread);
+			}
+			for(Thread thread : threads) {
+				thread.join();
+			}
+			assertEquals("round " + round + ": " + failures, 0, failures.size());
+			assertEquals(THREADS, loaders.size());
+			for(ClassLoader loader : loaders) {
+				assertSame(loaders.get(0), loader);
+			}
+			assertSame(loaderField.get(null), loaders.get(0));
+		}
+	}
+
+	private static InternalClassLoader newLoader() throws IOException {
+		JpkiDiscovery.Result discovery = JpkiDiscovery.getDefault().discover();
+		List<URL> urls = new ArrayList<URL>();
+		for(File jar : discovery.getRuntimeJars()) {
+			urls.add(jar.toURI().toURL());
+		}
+		try(InputStream in = JpkiWrapper.class.getResourceAsStream("/" + discovery.getInternalJarName());
+				JarInputStream jar = new JarInputStream(in)) {
+			return new InternalClassLoader(urls.toArray(new URL[urls.size()]), jar);
+		}
+	}
+
+	private static List<String> getClassNames() throws IOException {
+		List<String> names = new ArrayList<String>();
+		try(InputStream in = JpkiWrapper.class.getResourceAsStream("/" + JpkiDiscovery.getDefault().discover().getInternalJarName());
+				JarInputStream jar = new JarInputStream(in)) {
+			JarEntry entry;
+			while((entry = jar.getNextJarEntry()) != null) {
+				String name = entry.getName();
+				// JpkiWrapperInternal は親のクラス ローダーから読み込まれるので、内部モジュール固有のクラスだけを対象にします。
+				if(name.startsWith("net/osdn/jpki/wrapper/internal/") && name.endsWith(".class")) {
+					names.add(name.substring(0, name.length() - ".class".length()).replace('/', '.'));
+				}
+			}
+		}
+		assertFalse("no classes in the internal module", names.isEmpty());
+		return names;
+	}
+}
@@ -0,0 +1,189 @@
+package net.osdn.jpki.wrapper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.PDSignature;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * 1 つの JpkiWrapper を共有するスレッド、別々の JpkiWrapper を使うスレッドから同時に署名し、
+ * スレッドごとの状態 (カードの順番、段階の計測、監査記録に渡す署名の情報) が混ざらないことを試験します。
+ */
+public class JpkiWrapperStressTest {
+
+	private static final int THREADS = 16;
+	private static final int DOCUMENTS = 8;
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	/**
+	 * 共有した JpkiWrapper では、カードのセッションが重ならず、すべての順番が返却され、
+	 * 監査記録のダイジェストはそれぞれの出力の署名範囲と一致します。
+	 */
+	@Test(timeout = 300000)
+	public void sharedWrapper() throws Exception {
+		final JpkiWrapper wrapper = new JpkiWrapper();
+		CardScheduler scheduler = new CardScheduler();
+		wrapper.setCardScheduler(scheduler, CardScheduler.Priority.NORMAL, "stress");
+		File journalFile = temp.newFile("audit.journal");
+		AuditJournal journal = new AuditJournal(journalFile);
+		wrapper.setAuditJournal(journal);
+		final AtomicInteger inSession = new AtomicInteger();
+		final AtomicInteger overlaps = new AtomicInteger();
+		final AtomicInteger signStages = new AtomicInteger();
+		wrapper.setStageListener(new JpkiStageListener() {
+			@Override
+			public void stageFinished(JpkiStage stage, long elapsedNanos) {
+				if(elapsedNanos < 0) {
+					throw new AssertionError("negative elapsed time: " + stage);
+				}
+				if(stage == JpkiStage.ACQUIRE && inSession.incrementAndGet() != 1) {
+					overlaps.incrementAndGet();
+				} else if(stage == JpkiStage.SIGN) {
+					inSession.decrementAndGet();
+					signStages.incrementAndGet();
+				}
+			}
+		});
+
+		final Map<String, byte[]> outputs = new ConcurrentHashMap<String, byte[]>();
+		run(new Worker() {
+			@Override
+			public void run(int thread) throws Exception {
+				byte[] pdf = TestDocuments.blank(1 + thread % 3);
+				for(int i = 0; i < DOCUMENTS; i++) {
+					String reason = "thread " + thread + " document " + i;
+					try(PDDocument document = PDDocument.load(pdf)) {
+						ByteArrayOutputStream out = new ByteArrayOutputStream();
+						wrapper.addSignature(out, document, null, reason, null, null, null, null);
+						outputs.put(reason, out.toByteArray());
+					}
+				}
+			}
+		});
+		journal.close();
+
+		assertEquals(THREADS * DOCUMENTS, outputs.size());
+		assertEquals(0, overlaps.get());
+		assertEquals(THREADS * DOCUMENTS, signStages.get());
+		assertEquals(THREADS * DOCUMENTS, scheduler.getMetrics(CardScheduler.Priority.NORMAL).getAcquired());
+		assertEquals(0, scheduler.getMetrics(CardScheduler.Priority.NORMAL).getQueued());
+		// すべての順番が返却されていれば、待たずに次の順番を得られます。
+		scheduler.acquire(CardScheduler.Priority.NORMAL, "check", 0, TimeUnit.MILLISECONDS).close();
+
+		final Map<String, byte[]> recorded = new ConcurrentHashMap<String, byte[]>();
+		AuditJournal.scan(journalFile, new AuditJournal.Visitor() {
+			@Override
+			public boolean visit(AuditRecord record) {
+				recorded.put(record.getReason(), record.getDocumentDigest());
+				return true;
+			}
+		});
+		assertEquals(outputs.size(), recorded.size());
+		for(Map.Entry<String, byte[]> e : outputs.entrySet()) {
+			byte[] pdf = e.getValue();
+			TestDocuments.verifySignatures(pdf);
+			try(PDDocument document = PDDocument.load(pdf)) {
+				PDSignature signature = document.getLastSignatureDictionary();
+				assertEquals(e.getKey(), signature.getReason());
+				byte[] digest = MessageDigest.getInstance("SHA-256").digest(signature.getSignedContent(pdf));
+				assertArrayEquals(e.getKey(), digest, recorded.get(e.getKey()));
+			}
+		}
+	}
+
+	/**
+	 * 別々の JpkiWrapper に設定したリスナーには、その JpkiWrapper を使うスレッドの段階だけが通知されます。
+	 */
+	@Test(timeout = 300000)
+	public void separateWrappers() throws Exception {
+		final List<Integer> signed = new CopyOnWriteArrayList<Integer>();
+		run(new Worker() {
+			@Override
+			public void run(final int thread) throws Exception {
+				final Thread owner = Thread.currentThread();
+				final AtomicInteger signStages = new AtomicInteger();
+				JpkiWrapper wrapper = new JpkiWrapper();
+				wrapper.setStageListener(new JpkiStageListener() {
+					@Override
+					public void stageFinished(JpkiStage stage, long elapsedNanos) {
+						if(Thread.currentThread() != owner) {
+							throw new AssertionError("stage of another thread: " + stage);
+						}
+						if(stage == JpkiStage.SIGN) {
+							signStages.incrementAndGet();
+						}
+					}
+				});
+				byte[] pdf = TestDocuments.blank(1);
+				for(int i = 0; i < DOCUMENTS; i++) {
+					try(PDDocument document = PDDocument.load(pdf)) {
+						ByteArrayOutputStream out = new ByteArrayOutputStream();
+						wrapper.addSignature(out, document);
+						assertNotNull(TestDocuments.verifySignatures(out.toByteArray()));
+					}
+				}
+				assertEquals(DOCUMENTS, signStages.get());
+				signed.add(thread);
+			}
+		});
+		assertEquals(THREADS, signed.size());
+	}
+
+	private interface Worker {
+		void run(int thread) throws Exception;
+	}
+
+	/**
+	 * THREADS 個のスレッドで worker を同時に開始し、すべて終わるまで待ちます。いずれかのスレッドが失敗すると AssertionError をスローします。
+	 */
+	private static void run(final Worker worker) throws InterruptedException {
+		final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+		final List<Throwable> failures = new CopyOnWriteArrayList<Throwable>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int i = 0; i < THREADS; i++) {
+			final int id = i;
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						barrier.await();
+						worker.run(id);
+					} catch(Throwable t) {
+						failures.add(t);
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		if(!failures.isEmpty()) {
+			AssertionError error = new AssertionError(failures.size() + " of " + THREADS + " threads failed");
+			for(Throwable t : failures) {
+				error.addSuppressed(t);
+			}
+			throw error;
+		}
+	}
+}
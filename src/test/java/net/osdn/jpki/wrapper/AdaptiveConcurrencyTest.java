@@ -0,0 +1,176 @@
+package net.osdn.jpki.wrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * 時計とヒープの空きを差し替え、段階の通知を合成して上限の調整を確かめます。
+ * <p>
+ * 1 回の round では上限と同じ数の文書を受け付けて並列に準備し、カードでは 1 件ずつ署名します。
+ * k 番目にカードを使う文書は、前の k 件の署名を待つので、上限を増やすとカードの順番待ちが延びます。
+ */
+public class AdaptiveConcurrencyTest {
+
+	@Test
+	public void limitIncreasesWhileTheCardIsIdle() throws Exception {
+		FakeAdaptiveConcurrency controller = new FakeAdaptiveConcurrency(1, 8);
+		controller.round(1000, 10);
+		assertEquals(2, controller.getLimit());
+		assertTrue(controller.getMetrics().getDecision(), controller.getMetrics().getDecision().startsWith("increase: card utilization "));
+
+		for(int i = 0; i < 10; i++) {
+			controller.round(1000, 10);
+		}
+		AdaptiveConcurrency.Metrics metrics = controller.getMetrics();
+		assertEquals(8, metrics.getLimit());
+		assertEquals(3, metrics.getIncreases());
+		assertEquals(0, metrics.getDecreases());
+		assertTrue(metrics.getDecision(), metrics.getDecision().endsWith(" at maximum limit"));
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(10), metrics.getCardSessionNanos());
+	}
+
+	@Test
+	public void limitDecreasesWhenDocumentsWaitForTheCard() throws Exception {
+		FakeAdaptiveConcurrency controller = new FakeAdaptiveConcurrency(1, 8);
+		for(int i = 0; i < 4; i++) {
+			controller.round(1000, 10);
+		}
+		assertEquals(8, controller.getLimit());
+
+		// カードが律速するようになり、8 件目の文書は準備の 100 ミリ秒に続けて 7 件の署名 (700 ミリ秒) を待ちます。
+		// ウィンドウは最初の署名で区切られるので、遅くなった文書がそろうのは次の round です。
+		for(int i = 0; i < 3 && controller.getMetrics().getDecreases() == 0; i++) {
+			controller.round(100, 100);
+		}
+		AdaptiveConcurrency.Metrics metrics = controller.getMetrics();
+		assertEquals(6, metrics.getLimit());
+		assertTrue(metrics.getQueuedDocuments() > 2.0);
+		assertTrue(metrics.getDecision(), metrics.getDecision().startsWith("decrease: "));
+		assertTrue(metrics.getDecision(), metrics.getDecision().endsWith(" documents waiting for the card"));
+
+		for(int i = 0; i < 20; i++) {
+			controller.round(100, 100);
+		}
+		// 順番待ちが 1 件から 2 件の間に収まったところで止まります。
+		metrics = controller.getMetrics();
+		assertEquals(4, metrics.getLimit());
+		assertTrue(metrics.getQueuedDocuments() >= 1.0 && metrics.getQueuedDocuments() <= 2.0);
+		assertTrue(metrics.getDecision(), metrics.getDecision().startsWith("hold: "));
+	}
+
+	/**
+	 * 文書が大きくなって処理時間そのものが延びても、カードが空いていれば上限は最大まで戻ります。
+	 * 最初の文書の処理時間をそのまま基準にすると、延びた分を順番待ちと取り違えて上限を減らしたままになります。
+	 */
+	@Test
+	public void slowerDocumentsAreNotMistakenForACardQueue() throws Exception {
+		FakeAdaptiveConcurrency controller = new FakeAdaptiveConcurrency(1, 4);
+		for(int i = 0; i < 4; i++) {
+			controller.round(1000, 10);
+		}
+		assertEquals(4, controller.getLimit());
+
+		for(int i = 0; i < 4; i++) {
+			controller.round(10000, 10);
+		}
+		assertTrue(controller.getMetrics().getDecreases() > 0);
+
+		for(int i = 0; i < 30; i++) {
+			controller.round(10000, 10);
+		}
+		AdaptiveConcurrency.Metrics metrics = controller.getMetrics();
+		assertEquals(4, metrics.getLimit());
+		assertTrue(metrics.getQueuedDocuments() < 1.0);
+		assertTrue(metrics.getDecision(), metrics.getDecision().endsWith(" at maximum limit"));
+	}
+
+	@Test
+	public void heapPressureDecreasesTheLimit() throws Exception {
+		FakeAdaptiveConcurrency controller = new FakeAdaptiveConcurrency(2, 16);
+		for(int i = 0; i < 4; i++) {
+			controller.round(1000, 10);
+		}
+		assertEquals(16, controller.getLimit());
+
+		controller.headroom = 0.1;
+		controller.round(1000, 10);
+		assertEquals(12, controller.getLimit());
+		assertEquals("decrease: heap headroom 10%", controller.getMetrics().getDecision());
+		assertEquals(0.1, controller.getMetrics().getHeapHeadroom(), 0.0);
+
+		for(int i = 0; i < 10; i++) {
+			controller.round(1000, 10);
+		}
+		assertEquals(2, controller.getLimit());
+		assertEquals("hold: heap headroom 10% at minimum limit", controller.getMetrics().getDecision());
+
+		// 空きが戻れば、1 件ずつ増やします。
+		long decreases = controller.getMetrics().getDecreases();
+		controller.headroom = 0.5;
+		controller.round(1000, 10);
+		assertEquals(3, controller.getLimit());
+		assertEquals(decreases, controller.getMetrics().getDecreases());
+	}
+
+	@Test
+	public void windowWithoutACardSessionIsNotEvaluated() throws Exception {
+		FakeAdaptiveConcurrency controller = new FakeAdaptiveConcurrency(1, 8);
+		long acquired = controller.acquire();
+		controller.advance(2000);
+		controller.release(acquired);
+		assertEquals(1, controller.getLimit());
+		assertEquals("start", controller.getMetrics().getDecision());
+	}
+
+	/**
+	 * 経過時間を進めるまで時計が止まっていて、ヒープの空きを設定できる AdaptiveConcurrency です。
+	 */
+	private static class FakeAdaptiveConcurrency extends AdaptiveConcurrency {
+
+		private long now;
+		volatile double headroom = 1.0;
+
+		FakeAdaptiveConcurrency(int minLimit, int maxLimit) {
+			super(minLimit, maxLimit);
+			setWindow(500, TimeUnit.MILLISECONDS);
+		}
+
+		void advance(long millis) {
+			now += TimeUnit.MILLISECONDS.toNanos(millis);
+		}
+
+		/**
+		 * 上限と同じ数の文書を受け付けて prepareMillis だけ準備し、1 件ずつカードで cardMillis だけ署名します。
+		 * カードのセッションは、コンテキストの取得に 1 ミリ秒、残りを署名値の計算に使います。
+		 */
+		void round(long prepareMillis, long cardMillis) throws InterruptedException {
+			int documents = getLimit();
+			long[] acquired = new long[documents];
+			for(int i = 0; i < documents; i++) {
+				acquired[i] = acquire();
+			}
+			advance(prepareMillis);
+			for(int i = 0; i < documents; i++) {
+				advance(1);
+				stageFinished(JpkiStage.ACQUIRE, TimeUnit.MILLISECONDS.toNanos(1));
+				advance(cardMillis - 1);
+				stageFinished(JpkiStage.SIGN, TimeUnit.MILLISECONDS.toNanos(cardMillis - 1));
+				release(acquired[i]);
+			}
+		}
+
+		@Override
+		long nanoTime() {
+			return now;
+		}
+
+		@Override
+		double heapHeadroom() {
+			return headroom;
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package net.osdn.jpki.wrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.PDSignature;
+import org.junit.Test;
+
+public class AddSignaturesTest {
+
+	@Test(timeout = 60000)
+	public void signersAreAppliedInOrder() throws Exception {
+		JpkiWrapper wrapper = new JpkiWrapper();
+		List<SignerSpec> signers = Arrays.asList(
+				new SignerSpec("Author", "作成"),
+				new SignerSpec("Reviewer", "確認"),
+				new SignerSpec("Approver", "承認"));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try(PDDocument document = PDDocument.load(TestDocuments.blank(1))) {
+			wrapper.addSignatures(out, document, signers);
+		}
+		byte[] pdf = out.toByteArray();
+		assertEquals(3, TestDocuments.verifySignatures(pdf).size());
+
+		List<String> names = new ArrayList<String>();
+		List<String> reasons = new ArrayList<String>();
+		try(PDDocument document = PDDocument.load(pdf)) {
+			for(PDSignature signature : document.getSignatureDictionaries()) {
+				names.add(signature.getName());
+				reasons.add(signature.getReason());
+			}
+		}
+		assertEquals(Arrays.asList("Author", "Reviewer", "Approver"), names);
+		assertEquals(Arrays.asList("作成", "確認", "承認"), reasons);
+	}
+
+	/**
+	 * 途中の署名が失敗した場合、最初の署名が成功していても output には何も書き込まれません。
+	 */
+	@Test(timeout = 60000)
+	public void failingSignerInTheMiddleLeavesTheOutputEmpty() throws Exception {
+		JpkiWrapper failing = new JpkiWrapper();
+		failing.setTimeStampClient(new TimeStampClient() {
+			@Override
+			public byte[] getTimeStampToken(byte[] digest) throws IOException {
+				throw new IOException("TSA is unavailable");
+			}
+
+			@Override
+			public int estimateTokenSize() {
+				return 0;
+			}
+		});
+		SignerSpec middle = new SignerSpec("Reviewer", "確認");
+		middle.setWrapper(failing);
+		List<SignerSpec> signers = Arrays.asList(new SignerSpec("Author", "作成"), middle, new SignerSpec("Approver", "承認"));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try(PDDocument document = PDDocument.load(TestDocuments.blank(1))) {
+			new JpkiWrapper().addSignatures(out, document, signers);
+			fail("the second signer must fail");
+		} catch(IOException e) {
+			assertEquals("TSA is unavailable", e.getMessage());
+		}
+		assertEquals(0, out.size());
+	}
+}
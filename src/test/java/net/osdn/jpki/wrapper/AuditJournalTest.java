@@ -0,0 +1,164 @@
+package net.osdn.jpki.wrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AuditJournalTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	@Test(timeout = 30000)
+	public void fieldsLongerThan64KiBRoundTrip() throws Exception {
+		File file = new File(temp.getRoot(), "audit.journal");
+		StringBuilder sb = new StringBuilder();
+		while(sb.length() < 100000) {
+			sb.append("署名の理由 reason ");
+		}
+		String reason = sb.toString();
+		try(AuditJournal journal = new AuditJournal(file)) {
+			journal.append(new AuditRecord(1000L, new byte[] { 1, 2, 3 }, BigInteger.valueOf(42), "名前", reason, "out.pdf"));
+		}
+		List<AuditRecord> records = read(file);
+		assertEquals(1, records.size());
+		assertEquals(reason, records.get(0).getReason());
+		assertEquals("名前", records.get(0).getName());
+		assertEquals(BigInteger.valueOf(42), records.get(0).getSerialNumber());
+	}
+
+	/**
+	 * 末尾の書きかけのレコードは開くときに切り詰められ、そのまま追記を再開できます。
+	 */
+	@Test(timeout = 30000)
+	public void tornTailIsTruncatedOnOpen() throws Exception {
+		File file = new File(temp.getRoot(), "audit.journal");
+		write(file, 0, 3);
+		long length = file.length();
+		try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			// 4 件目のヘッダーと本体の一部だけが書かれた状態を作ります。
+			raf.seek(length);
+			raf.writeInt(200);
+			raf.writeInt(0x12345678);
+			raf.write(new byte[] { 2, 0, 0, 0 });
+		}
+		try(AuditJournal journal = new AuditJournal(file)) {
+			assertEquals(length, file.length());
+			journal.append(record(3));
+		}
+		assertEquals(names(0, 4), outputs(read(file)));
+	}
+
+	/**
+	 * 途中のレコードが破損しても後ろの正しいレコードは切り詰められず、読み取るときは破損したレコードだけが飛ばされます。
+	 */
+	@Test(timeout = 30000)
+	public void corruptRecordInTheMiddleKeepsLaterRecords() throws Exception {
+		File file = new File(temp.getRoot(), "audit.journal");
+		write(file, 0, 5);
+		long length = file.length();
+		try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			// 2 件目の本体の 1 バイトを書き換えて CRC を不一致にします。
+			raf.seek(8);
+			long second = 8 + 8 + raf.readInt();
+			raf.seek(second + 8 + 12);
+			int b = raf.read();
+			raf.seek(second + 8 + 12);
+			raf.write(b ^ 0xFF);
+		}
+		try(AuditJournal journal = new AuditJournal(file)) {
+			assertEquals(length, file.length());
+			journal.append(record(5));
+		}
+		List<String> expected = names(0, 6);
+		expected.remove(1);
+		assertEquals(expected, outputs(read(file)));
+	}
+
+	@Test(timeout = 60000)
+	public void concurrentAppendsShareCommits() throws Exception {
+		File file = new File(temp.getRoot(), "audit.journal");
+		final AuditJournal journal = new AuditJournal(file);
+		journal.setCommitWindow(5, TimeUnit.MILLISECONDS);
+		List<Thread> threads = new ArrayList<Thread>();
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		for(int t = 0; t < 8; t++) {
+			final int base = t * 50;
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for(int i = 0; i < 50; i++) {
+							journal.append(record(base + i));
+						}
+					} catch(Throwable e) {
+						synchronized (failures) {
+							failures.add(e);
+						}
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		journal.close();
+		assertTrue(failures.toString(), failures.isEmpty());
+		assertEquals(400, journal.getRecordCount());
+		assertTrue("commits=" + journal.getCommitCount(), journal.getCommitCount() < 400);
+		assertEquals(400, read(file).size());
+	}
+
+	private static AuditRecord record(int i) {
+		return new AuditRecord(i, new byte[] { (byte)i }, BigInteger.valueOf(i), "name", "reason", "out-" + i + ".pdf");
+	}
+
+	private static void write(File file, int from, int to) throws IOException {
+		try(AuditJournal journal = new AuditJournal(file)) {
+			for(int i = from; i < to; i++) {
+				journal.append(record(i));
+			}
+		}
+	}
+
+	private static List<String> names(int from, int to) {
+		List<String> names = new ArrayList<String>();
+		for(int i = from; i < to; i++) {
+			names.add("out-" + i + ".pdf");
+		}
+		return names;
+	}
+
+	private static List<String> outputs(List<AuditRecord> records) {
+		List<String> outputs = new ArrayList<String>();
+		for(AuditRecord record : records) {
+			outputs.add(record.getOutput());
+		}
+		return outputs;
+	}
+
+	private static List<AuditRecord> read(File file) throws IOException {
+		final List<AuditRecord> records = new ArrayList<AuditRecord>();
+		AuditJournal.scan(file, new AuditJournal.Visitor() {
+			@Override
+			public boolean visit(AuditRecord record) {
+				records.add(record);
+				return true;
+			}
+		});
+		return records;
+	}
+}
@@ -0,0 +1,136 @@
+package net.osdn.jpki.wrapper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class BatchSealTest {
+
+	/**
+	 * 葉の数が 2 のべき乗でない木も含めて、どの文書の証明も署名された根にたどり着きます。
+	 */
+	@Test(timeout = 60000)
+	public void everyProofVerifies() throws Exception {
+		JpkiWrapper wrapper = new JpkiWrapper();
+		for(int count : new int[] { 1, 2, 3, 5, 7, 8 }) {
+			BatchSeal seal = new BatchSeal();
+			for(int i = 0; i < count; i++) {
+				assertEquals(i, seal.add(name(i), new ByteArrayInputStream(document(i))));
+			}
+			assertArrayEquals("root of " + count, referenceRoot(seal, 0, count), seal.getRoot());
+			seal.seal(wrapper);
+			for(int i = 0; i < count; i++) {
+				BatchSealProof proof = seal.getProof(i);
+				assertEquals(i, proof.getIndex());
+				assertEquals(count, proof.getCount());
+				assertNotNull(proof.verify(new ByteArrayInputStream(document(i))));
+			}
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void rejectsAnotherDocument() throws Exception {
+		BatchSeal seal = sealed(5);
+		try {
+			seal.getProof(2).verify(new ByteArrayInputStream(document(3)));
+			fail("the proof of document 2 must not verify document 3");
+		} catch(BatchSealProof.VerificationException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("digest"));
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void rejectsATamperedPath() throws Exception {
+		BatchSeal seal = sealed(5);
+		BatchSealProof proof = seal.getProof(1);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		proof.write(out);
+		String text = new String(out.toByteArray(), StandardCharsets.UTF_8);
+		int i = text.indexOf("path=") + "path=".length();
+		String tampered = text.substring(0, i) + (text.charAt(i) == '0' ? '1' : '0') + text.substring(i + 1);
+		try {
+			BatchSealProof.read(new ByteArrayInputStream(tampered.getBytes(StandardCharsets.UTF_8))).verify(new ByteArrayInputStream(document(1)));
+			fail("a tampered path must not verify");
+		} catch(BatchSealProof.VerificationException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("root"));
+		}
+	}
+
+	/**
+	 * 別のバッチの根と署名に差し替えた証明は、署名の検証で失敗します。
+	 */
+	@Test(timeout = 60000)
+	public void rejectsARootThatWasNotSigned() throws Exception {
+		BatchSeal seal = sealed(4);
+		BatchSeal other = sealed(2);
+		BatchSealProof proof = seal.getProof(0);
+		BatchSealProof forged = new BatchSealProof(proof.getName(), proof.getDigest(), proof.getIndex(), proof.getCount(),
+				proof.getRoot(), new byte[][] { BatchSeal.leafHash(digest(document(1)), name(1)), BatchSeal.nodeHash(
+						BatchSeal.leafHash(digest(document(2)), name(2)), BatchSeal.leafHash(digest(document(3)), name(3))) },
+				other.getSignature());
+		try {
+			forged.verify(new ByteArrayInputStream(document(0)));
+			fail("a signature over another root must not verify");
+		} catch(BatchSealProof.VerificationException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("signature"));
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void proofSurvivesWriteAndRead() throws Exception {
+		BatchSeal seal = sealed(3);
+		BatchSealProof proof = seal.getProof(2);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		proof.write(out);
+		BatchSealProof read = BatchSealProof.read(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(proof.getName(), read.getName());
+		assertEquals(2, read.getIndex());
+		assertEquals(3, read.getCount());
+		assertArrayEquals(seal.getRoot(), read.getRoot());
+		assertNotNull(read.verify(new ByteArrayInputStream(document(2))));
+	}
+
+	private static BatchSeal sealed(int count) throws Exception {
+		BatchSeal seal = new BatchSeal();
+		for(int i = 0; i < count; i++) {
+			seal.add(name(i), new ByteArrayInputStream(document(i)));
+		}
+		seal.seal(new JpkiWrapper());
+		return seal;
+	}
+
+	/**
+	 * RFC 9162 2.1.1 の定義どおりに、葉 [from, to) の木の根を計算します。
+	 */
+	private static byte[] referenceRoot(BatchSeal seal, int from, int to) throws Exception {
+		if(to - from == 1) {
+			return BatchSeal.leafHash(digest(document(from)), name(from));
+		}
+		int k = Integer.highestOneBit(to - from - 1);
+		return BatchSeal.nodeHash(referenceRoot(seal, from, from + k), referenceRoot(seal, from + k, to));
+	}
+
+	private static String name(int i) {
+		return "doc" + i + ".pdf";
+	}
+
+	private static byte[] document(int i) {
+		byte[] b = new byte[1000 + i];
+		Arrays.fill(b, (byte)i);
+		return b;
+	}
+
+	private static byte[] digest(byte[] b) throws Exception {
+		return MessageDigest.getInstance("SHA-256").digest(b);
+	}
+}
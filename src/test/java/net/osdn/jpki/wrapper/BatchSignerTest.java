@@ -0,0 +1,112 @@
+package net.osdn.jpki.wrapper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BatchSignerTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private String out;
+	private String err;
+
+	@After
+	public void clearStubDelays() {
+		System.clearProperty("jpki.stub.signDelay");
+	}
+
+	/**
+	 * ディレクトリーの PDF を並列に署名し、入力と同じ構成で出力ディレクトリーに書き出して、処理の結果を報告します。
+	 */
+	@Test(timeout = 120000)
+	public void signsEveryPdfUnderTheDirectory() throws Exception {
+		File input = temp.newFolder("in");
+		Files.write(new File(input, "a.pdf").toPath(), TestDocuments.blank(1));
+		new File(input, "sub").mkdir();
+		Files.write(new File(input, "sub/b.pdf").toPath(), TestDocuments.blank(2));
+		Files.write(new File(input, "readme.txt").toPath(), "not a PDF".getBytes("UTF-8"));
+		File output = new File(temp.getRoot(), "out");
+
+		int status = execute("-o", output.getPath(), "-t", "2", "--name", "Batch", input.getPath());
+		assertEquals(err, 0, status);
+		assertEquals(1, TestDocuments.verifySignatures(Files.readAllBytes(new File(output, "a.pdf").toPath())).size());
+		assertEquals(1, TestDocuments.verifySignatures(Files.readAllBytes(new File(output, "sub/b.pdf").toPath())).size());
+		assertEquals(Arrays.asList("a.pdf", "sub"), sorted(output.list()));
+		assertEquals(Arrays.asList("b.pdf"), sorted(new File(output, "sub").list()));
+
+		assertTrue(out, out.contains("documents: 2 signed, 0 failed"));
+		assertTrue(out, out.contains("bytes: in "));
+		assertTrue(out, out.matches("(?s).*\\ntotal +2 .*"));
+		assertTrue(out, out.matches("(?s).*\\nSIGN +2 .*"));
+		assertTrue(out, out.contains("peak heap: "));
+	}
+
+	/**
+	 * 期限切れで失敗した文書は終了コード 1 で報告され、既存の出力ファイルは書き換えられず、書きかけのファイルも残りません。
+	 */
+	@Test(timeout = 120000)
+	public void failedDocumentLeavesTheExistingOutputUntouched() throws Exception {
+		File input = temp.newFolder("in");
+		Files.write(new File(input, "a.pdf").toPath(), TestDocuments.blank(1));
+		File output = temp.newFolder("out");
+		byte[] previous = TestDocuments.blank(3);
+		Files.write(new File(output, "a.pdf").toPath(), previous);
+
+		System.setProperty("jpki.stub.signDelay", "3000");
+		int status = execute("-o", output.getPath(), "--timeout", "1", input.getPath());
+		assertEquals(1, status);
+		assertArrayEquals(previous, Files.readAllBytes(new File(output, "a.pdf").toPath()));
+		assertEquals(Arrays.asList("a.pdf"), sorted(output.list()));
+		assertTrue(out, out.contains("documents: 0 signed, 1 failed"));
+		assertTrue(err, err.contains("a.pdf"));
+	}
+
+	@Test(timeout = 60000)
+	public void invalidArgumentsPrintTheUsage() throws Exception {
+		assertEquals(2, execute("--threads", "0", temp.getRoot().getPath()));
+		assertTrue(err, err.startsWith("invalid value for --threads: 0"));
+		assertTrue(err, err.contains("usage: BatchSigner"));
+
+		assertEquals(2, execute(temp.newFolder("empty").getPath()));
+		assertTrue(err, err.contains("no input PDF files"));
+	}
+
+	/**
+	 * BatchSigner を実行し、標準出力と標準エラー出力に書き込まれた内容を out と err に保存します。
+	 */
+	private int execute(String... args) throws Exception {
+		ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+		ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+		PrintStream originalOut = System.out;
+		PrintStream originalErr = System.err;
+		System.setOut(new PrintStream(stdout, true, "UTF-8"));
+		System.setErr(new PrintStream(stderr, true, "UTF-8"));
+		try {
+			return BatchSigner.execute(args);
+		} finally {
+			System.setOut(originalOut);
+			System.setErr(originalErr);
+			out = new String(stdout.toByteArray(), "UTF-8").replace("\r\n", "\n");
+			err = new String(stderr.toByteArray(), "UTF-8").replace("\r\n", "\n");
+		}
+	}
+
+	private static List<String> sorted(String[] names) {
+		Arrays.sort(names);
+		return Arrays.asList(names);
+	}
+}
@@ -0,0 +1,145 @@
+package net.osdn.jpki.wrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.apache.pdfbox.cos.COSDocument;
+import org.junit.Test;
+
+public class ByteBufferSignatureTest {
+
+	@Test(timeout = 60000)
+	public void heapSourceIsSigned() throws Exception {
+		byte[] pdf = TestDocuments.blank(1);
+		ByteBuffer source = ByteBuffer.wrap(pdf);
+		ByteBuffer signed = new JpkiWrapper().addSignature(source, "Heap", null, null, null, null, null);
+
+		assertEquals(0, source.position());
+		assertEquals(pdf.length, source.limit());
+		assertEquals(0, signed.position());
+		assertTrue(signed.hasArray());
+		assertEquals(1, TestDocuments.verifySignatures(toBytes(signed)).size());
+	}
+
+	/**
+	 * ダイレクト バッファーの position から limit までを文書として読み、source の position と limit は変更しません。
+	 */
+	@Test(timeout = 60000)
+	public void directSourceIsReadFromPositionToLimit() throws Exception {
+		byte[] pdf = TestDocuments.blank(1);
+		ByteBuffer source = ByteBuffer.allocateDirect(pdf.length + 300);
+		for(int i = 0; i < 100; i++) {
+			source.put((byte)'x');
+		}
+		source.put(pdf);
+		for(int i = 0; i < 200; i++) {
+			source.put((byte)'y');
+		}
+		source.position(100).limit(100 + pdf.length);
+
+		ByteBuffer signed = new JpkiWrapper().addSignature(source, "Direct", null, null, null, null, null);
+		assertEquals(100, source.position());
+		assertEquals(100 + pdf.length, source.limit());
+		byte[] bytes = toBytes(signed);
+		for(int i = 0; i < pdf.length; i++) {
+			if(bytes[i] != pdf[i]) {
+				fail("the original revision differs at offset " + i);
+			}
+		}
+		assertEquals(1, TestDocuments.verifySignatures(bytes).size());
+	}
+
+	/**
+	 * 2 回目以降は、それまでの増分更新の最大長から確保するので、出力のバッファーを拡張しません。
+	 */
+	@Test(timeout = 60000)
+	public void secondCallNeedsNoReallocation() throws Exception {
+		byte[] pdf = TestDocuments.blank(1);
+		JpkiWrapper wrapper = new JpkiWrapper();
+		ByteBuffer first = wrapper.addSignature(ByteBuffer.wrap(pdf), null, null, null, null, null, null);
+		int increment = first.remaining() - pdf.length;
+
+		ByteBuffer second = wrapper.addSignature(ByteBuffer.wrap(pdf), null, null, null, null, null, null);
+		assertTrue(second.remaining() - pdf.length <= increment + 4096);
+		// 拡張していれば、バッファーの大きさは確保した大きさ (元の文書 + 増分更新の最大長 + 4096) と異なります。
+		assertEquals(pdf.length + increment + 4096, second.array().length);
+		assertEquals(1, TestDocuments.verifySignatures(toBytes(second)).size());
+	}
+
+	/**
+	 * 解析できない文書はパーサーの例外で失敗し、途中まで作られた COSDocument は閉じられます。
+	 * 閉じられていない COSDocument はファイナライザーで警告を記録するので、警告が記録されないことを確認します。
+	 */
+	@Test(timeout = 60000)
+	public void malformedSourceThrowsWithoutLeakingTheDocument() throws Exception {
+		final List<String> warnings = new ArrayList<String>();
+		Handler handler = new Handler() {
+			@Override
+			public void publish(LogRecord record) {
+				synchronized (warnings) {
+					warnings.add(record.getMessage());
+				}
+			}
+
+			@Override
+			public void flush() {
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		Logger logger = Logger.getLogger(COSDocument.class.getName());
+		logger.addHandler(handler);
+		try {
+			JpkiWrapper wrapper = new JpkiWrapper();
+			ByteBuffer source = ByteBuffer.wrap("%PDF-1.4\n1 0 obj\n<< /Foo 1 >>\nendobj\n%%EOF\n".getBytes(StandardCharsets.ISO_8859_1));
+			for(int i = 0; i < 20; i++) {
+				try {
+					wrapper.addSignature(source, null, null, null, null, null, null);
+					fail("a document without a catalog must not be parsed");
+				} catch(IOException e) {
+					assertEquals("Missing root object specification in trailer.", e.getMessage());
+				}
+				assertEquals(0, source.position());
+			}
+
+			// 閉じ忘れた COSDocument の警告が記録されるまでファイナライザーを動かします。
+			// 解析に失敗した文書はこれより前に参照されなくなっているので、閉じていなければ同じように警告が記録されます。
+			new COSDocument();
+			long deadline = System.nanoTime() + 20_000_000_000L;
+			while(countWarnings(warnings) == 0 && System.nanoTime() < deadline) {
+				System.gc();
+				System.runFinalization();
+				Thread.sleep(10);
+			}
+			System.gc();
+			System.runFinalization();
+			assertEquals("warnings: " + warnings, 1, countWarnings(warnings));
+		} finally {
+			logger.removeHandler(handler);
+		}
+	}
+
+	private static int countWarnings(List<String> warnings) {
+		synchronized (warnings) {
+			return warnings.size();
+		}
+	}
+
+	private static byte[] toBytes(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,180 @@
+package net.osdn.jpki.wrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CardArbiterTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	@Test(timeout = 30000)
+	public void grantsLeasesInArrivalOrder() throws Exception {
+		final CardArbiter arbiter = new CardArbiter(temp.newFile("card.lock"));
+		CardArbiter.Lease first = arbiter.acquire();
+		final List<Integer> order = new ArrayList<Integer>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int i = 0; i < 3; i++) {
+			final int id = i;
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						CardArbiter.Lease lease = arbiter.acquire();
+						synchronized (order) {
+							order.add(id);
+						}
+						lease.close();
+					} catch(Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			thread.start();
+			awaitWaiting(thread);
+			threads.add(thread);
+		}
+		first.close();
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals("[0, 1, 2]", order.toString());
+		assertEquals(4, arbiter.getAcquireCount());
+	}
+
+	/**
+	 * 順番待ちの間に割り込まれた (期限切れで中断された) 待機者の整理券は放棄され、後ろの待機者は引き取りの猶予を待たずに進みます。
+	 */
+	@Test(timeout = 30000)
+	public void interruptedWaiterAbandonsItsTicket() throws Exception {
+		final CardArbiter arbiter = new CardArbiter(temp.newFile("card.lock"));
+		arbiter.setClaimTimeout(1, TimeUnit.MINUTES);
+		CardArbiter.Lease held = arbiter.acquire();
+
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		final AtomicReference<Boolean> interrupted = new AtomicReference<Boolean>();
+		Thread waiter = new Thread() {
+			@Override
+			public void run() {
+				try {
+					arbiter.acquire().close();
+				} catch(Exception e) {
+					failure.set(e);
+				}
+				interrupted.set(Thread.currentThread().isInterrupted());
+			}
+		};
+		waiter.start();
+		awaitWaiting(waiter);
+		waiter.interrupt();
+		waiter.join();
+
+		assertTrue(String.valueOf(failure.get()), failure.get() instanceof JpkiException);
+		assertEquals(JpkiException.WRAPPER_E_CARD_BUSY, ((JpkiException)failure.get()).getErrorCode());
+		assertTrue("interrupt status must be restored", interrupted.get());
+
+		held.close();
+		long start = System.nanoTime();
+		CardArbiter.Lease next = arbiter.acquire(5, TimeUnit.SECONDS);
+		assertNotNull(next);
+		assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 5);
+		next.close();
+	}
+
+	/**
+	 * 同じロック ファイルを使う複数の JVM が jpki-stub で署名し、カードのセッションが重ならないことを確認します。
+	 * 各 JVM は cryptAcquireContext の後から署名値の計算までの間だけ印のファイルを作るので、
+	 * 印を作ろうとしてすでに存在していればセッションが重なったことになります。
+	 */
+	@Test(timeout = 180000)
+	public void jvmsSharingTheCardSignOneAtATime() throws Exception {
+		File lock = temp.newFile("card.lock");
+		File marker = new File(temp.getRoot(), "in-use");
+		String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+		List<Process> processes = new ArrayList<Process>();
+		List<File> logs = new ArrayList<File>();
+		for(int i = 0; i < 3; i++) {
+			File log = temp.newFile("jvm" + i + ".log");
+			ProcessBuilder builder = new ProcessBuilder(java,
+					"-cp", System.getProperty("java.class.path"),
+					"-D" + JpkiWrapper.INSTALL_PATH_PROPERTY + "=" + System.getProperty(JpkiWrapper.INSTALL_PATH_PROPERTY),
+					"-Djpki.stub.acquireDelay=5",
+					"-Djpki.stub.signDelay=20",
+					CardArbiterTest.class.getName(), lock.getPath(), marker.getPath(), "8");
+			builder.redirectErrorStream(true);
+			builder.redirectOutput(log);
+			processes.add(builder.start());
+			logs.add(log);
+		}
+		for(int i = 0; i < processes.size(); i++) {
+			Process process = processes.get(i);
+			assertTrue("jvm" + i + " did not finish", process.waitFor(150, TimeUnit.SECONDS));
+			String log = new String(Files.readAllBytes(logs.get(i).toPath()), StandardCharsets.UTF_8);
+			assertEquals(log, 0, process.exitValue());
+			assertTrue(log, log.contains("signed=8 overlaps=0"));
+		}
+	}
+
+	/**
+	 * {@link #jvmsSharingTheCardSignOneAtATime()} が起動する JVM で実行されます。
+	 * 引数はロック ファイル、印のファイル、署名する文書の数です。
+	 */
+	public static void main(String[] args) throws Exception {
+		final File marker = new File(args[1]);
+		int count = Integer.parseInt(args[2]);
+		final AtomicInteger overlaps = new AtomicInteger();
+		JpkiWrapper wrapper = new JpkiWrapper();
+		wrapper.setCardArbiter(new CardArbiter(new File(args[0])));
+		wrapper.setStageListener(new JpkiStageListener() {
+			@Override
+			public void stageFinished(JpkiStage stage, long elapsedNanos) {
+				try {
+					if(stage == JpkiStage.ACQUIRE && !marker.createNewFile()) {
+						overlaps.incrementAndGet();
+					} else if(stage == JpkiStage.SIGN) {
+						Files.deleteIfExists(marker.toPath());
+					}
+				} catch(IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		byte[] pdf = TestDocuments.blank(1);
+		int signed = 0;
+		for(int i = 0; i < count; i++) {
+			try(PDDocument document = PDDocument.load(pdf)) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				wrapper.addSignature(out, document);
+				TestDocuments.verifySignatures(out.toByteArray());
+				signed++;
+			}
+		}
+		System.out.println("signed=" + signed + " overlaps=" + overlaps.get());
+	}
+
+	/**
+	 * thread が順番待ち (時間指定の待機) に入るまで待ちます。
+	 */
+	private static void awaitWaiting(Thread thread) throws InterruptedException {
+		while(thread.getState() != Thread.State.TIMED_WAITING) {
+			Thread.sleep(1);
+		}
+	}
+}
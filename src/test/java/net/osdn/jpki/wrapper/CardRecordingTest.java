@@ -0,0 +1,185 @@
+package net.osdn.jpki.wrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.bouncycastle.cms.CMSSignedData;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * カードの呼び出しの記録 ({@link JpkiWrapper#CARD_RECORDING_PROPERTY}) と、jpki-stub での再生を確かめます。
+ */
+public class CardRecordingTest {
+
+	private static final int RECORD_LENGTH = 28;
+	private static final int OP_ACQUIRE_CONTEXT = 1;
+	private static final int OP_SIGN_HASH = 9;
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	@After
+	public void clearProperties() {
+		System.clearProperty(JpkiWrapper.CARD_RECORDING_PROPERTY);
+		System.clearProperty("jpki.stub.replay");
+		System.clearProperty("jpki.stub.notReady");
+		System.clearProperty("jpki.stub.acquireDelay");
+		System.clearProperty("jpki.stub.signDelay");
+	}
+
+	/**
+	 * カードが準備できていない状態 (SCARD_E_NOT_READY) を挟んで記録した呼び出しを再生すると、
+	 * エラーを注入しなくても同じ順番で同じエラーが起き、所要時間もほぼ同じになります。
+	 * 再生中の呼び出しも記録して、2 つの記録を比べます。
+	 */
+	@Test(timeout = 120000)
+	public void replayReproducesTheRecordedCalls() throws Exception {
+		File recorded = new File(temp.getRoot(), "recorded.bin");
+		System.setProperty("jpki.stub.acquireDelay", "50");
+		System.setProperty("jpki.stub.signDelay", "200");
+		System.setProperty(JpkiWrapper.CARD_RECORDING_PROPERTY, recorded.getPath());
+		byte[] pdf = run(true);
+		System.clearProperty("jpki.stub.acquireDelay");
+		System.clearProperty("jpki.stub.signDelay");
+
+		File replayed = new File(temp.getRoot(), "replayed.bin");
+		System.setProperty("jpki.stub.replay", recorded.getPath());
+		System.setProperty(JpkiWrapper.CARD_RECORDING_PROPERTY, replayed.getPath());
+		run(false);
+		System.clearProperty(JpkiWrapper.CARD_RECORDING_PROPERTY);
+		// 記録を使い切った再生は先頭のエラーに戻るので、これ以降は再生しません。
+		System.clearProperty("jpki.stub.replay");
+
+		List<Call> expected = read(recorded);
+		List<Call> actual = read(replayed);
+		assertEquals(OP_ACQUIRE_CONTEXT, expected.get(0).op);
+		assertEquals(JpkiException.SCARD_E_NOT_READY, expected.get(0).winErrorCode);
+		assertTrue(expected.get(0).durationMicros >= TimeUnit.MILLISECONDS.toMicros(50));
+		int signs = 0;
+		for(Call call : expected) {
+			if(call.op == OP_SIGN_HASH) {
+				assertTrue(call.durationMicros >= TimeUnit.MILLISECONDS.toMicros(200));
+				signs++;
+			}
+		}
+		assertEquals(1, signs);
+
+		assertEquals(toString(expected), expected.size(), actual.size());
+		for(int i = 0; i < expected.size(); i++) {
+			Call e = expected.get(i);
+			Call a = actual.get(i);
+			assertEquals("call " + i, e.op, a.op);
+			assertEquals("call " + i, e.errorCode, a.errorCode);
+			assertEquals("call " + i, e.winErrorCode, a.winErrorCode);
+			assertEquals("call " + i, e.dataLength, a.dataLength);
+			// 再生は記録した時間だけ待ってからスタブの処理を行うので、短くなることはありません。
+			assertTrue("call " + i + ": " + e + " replayed as " + a, a.durationMicros >= e.durationMicros - 1000);
+			assertTrue("call " + i + ": " + e + " replayed as " + a, a.durationMicros <= e.durationMicros + TimeUnit.MILLISECONDS.toMicros(100));
+		}
+
+		// 記録には証明書や署名値の内容が含まれません。
+		byte[] recording = Files.readAllBytes(recorded.toPath());
+		assertEquals(0, recording.length % RECORD_LENGTH);
+		CMSSignedData cms = TestDocuments.verifySignatures(pdf).get(0);
+		assertNotContained(recording, new JpkiWrapper().getCertificate().getEncoded());
+		assertNotContained(recording, cms.getSignerInfos().getSigners().iterator().next().getSignature());
+	}
+
+	/**
+	 * 証明書の読み取りがカードの準備できていないエラーで失敗した後、証明書を読み取って文書に署名し、署名した文書を返します。
+	 * inject が true の場合は jpki-stub にエラーを注入し、false の場合は再生される記録にエラーが含まれていることを期待します。
+	 */
+	private static byte[] run(boolean inject) throws Exception {
+		JpkiWrapper wrapper = new JpkiWrapper();
+		if(inject) {
+			System.setProperty("jpki.stub.notReady", "true");
+		}
+		try {
+			wrapper.getCertificate();
+			fail("the card must not be ready");
+		} catch(JpkiException e) {
+			assertEquals(JpkiException.SCARD_E_NOT_READY, e.getWinErrorCode());
+		} finally {
+			System.clearProperty("jpki.stub.notReady");
+		}
+
+		wrapper.getCertificate();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try(PDDocument document = PDDocument.load(TestDocuments.blank(1))) {
+			wrapper.addSignature(out, document);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * data の 16 バイト以上の部分が bytes に現れないことを確認します。
+	 */
+	private static void assertNotContained(byte[] bytes, byte[] data) {
+		int window = 16;
+		assertTrue(data.length >= window);
+		for(int i = 0; i + window <= data.length; i++) {
+			for(int j = 0; j + window <= bytes.length; j++) {
+				int k = 0;
+				while(k < window && bytes[j + k] == data[i + k]) {
+					k++;
+				}
+				if(k == window) {
+					fail("the recording contains bytes " + i + ".." + (i + window) + " of the data at offset " + j);
+				}
+			}
+		}
+	}
+
+	private static List<Call> read(File file) throws Exception {
+		ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+		List<Call> calls = new ArrayList<Call>();
+		while(buf.remaining() >= RECORD_LENGTH) {
+			assertEquals(1, buf.get());
+			Call call = new Call();
+			call.op = buf.get();
+			buf.getShort();
+			buf.getLong();
+			call.durationMicros = buf.getInt();
+			call.errorCode = buf.getInt();
+			call.winErrorCode = buf.getInt();
+			call.dataLength = buf.getInt();
+			calls.add(call);
+		}
+		assertEquals(0, buf.remaining());
+		return calls;
+	}
+
+	private static String toString(List<Call> calls) {
+		StringBuilder sb = new StringBuilder();
+		for(Call call : calls) {
+			sb.append(call).append(System.lineSeparator());
+		}
+		return sb.toString();
+	}
+
+	private static class Call {
+		int op;
+		int durationMicros;
+		int errorCode;
+		int winErrorCode;
+		int dataLength;
+
+		@Override
+		public String toString() {
+			return String.format("op=%d duration=%dus error=%d/0x%08X data=%d", op, durationMicros, errorCode, winErrorCode, dataLength);
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package net.osdn.jpki.wrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class CardSchedulerTest {
+
+	@Test(timeout = 30000)
+	public void grantsHigherClassesFirst() throws Exception {
+		CardScheduler scheduler = new CardScheduler();
+		scheduler.setAgingInterval(0, TimeUnit.SECONDS);
+		CardScheduler.Permit held = scheduler.acquire(CardScheduler.Priority.NORMAL, "held");
+		List<String> order = new ArrayList<String>();
+		List<Thread> threads = new ArrayList<Thread>();
+		threads.add(startWaiter(scheduler, CardScheduler.Priority.BATCH, "batch", order));
+		threads.add(startWaiter(scheduler, CardScheduler.Priority.NORMAL, "normal", order));
+		threads.add(startWaiter(scheduler, CardScheduler.Priority.INTERACTIVE, "interactive", order));
+		held.close();
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals("[interactive, normal, batch]", order.toString());
+		assertEquals(1, scheduler.getMetrics(CardScheduler.Priority.BATCH).getAcquired());
+	}
+
+	/**
+	 * 同じクラスで競合するテナントは、重みに比例した回数だけカードを使えます。
+	 */
+	@Test(timeout = 30000)
+	public void sharesTheCardByWeight() throws Exception {
+		CardScheduler scheduler = new CardScheduler();
+		scheduler.setAgingInterval(0, TimeUnit.SECONDS);
+		scheduler.setWeight("a", 2);
+		CardScheduler.Permit held = scheduler.acquire(CardScheduler.Priority.NORMAL, "held");
+		List<String> order = new ArrayList<String>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int i = 0; i < 6; i++) {
+			threads.add(startWaiter(scheduler, CardScheduler.Priority.NORMAL, "a", order));
+			threads.add(startWaiter(scheduler, CardScheduler.Priority.NORMAL, "b", order));
+		}
+		held.close();
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		int a = 0;
+		for(String tenant : order.subList(0, 6)) {
+			if(tenant.equals("a")) {
+				a++;
+			}
+		}
+		assertEquals(order.toString(), 4, a);
+		assertEquals(12, order.size());
+	}
+
+	/**
+	 * 待ち時間で繰り上げられた処理は、繰り上げ先のクラスの後から来た処理より先に許可されます。
+	 * 繰り上げられた BATCH の処理のテナントが以前に多くの許可を受けていても、仮想時刻は全クラスで共通なので追い越されません。
+	 */
+	@Test(timeout = 30000)
+	public void agedWaiterIsNotOvertakenByLaterArrivals() throws Exception {
+		CardScheduler scheduler = new CardScheduler();
+		scheduler.setAgingInterval(100, TimeUnit.MILLISECONDS);
+		CardScheduler.Permit held = scheduler.acquire(CardScheduler.Priority.NORMAL, "held");
+		List<String> warmUp = new ArrayList<String>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int i = 0; i < 10; i++) {
+			threads.add(startWaiter(scheduler, CardScheduler.Priority.BATCH, "batch", warmUp));
+		}
+		held.close();
+		for(Thread thread : threads) {
+			thread.join();
+		}
+
+		held = scheduler.acquire(CardScheduler.Priority.NORMAL, "held");
+		List<String> order = new ArrayList<String>();
+		threads.clear();
+		threads.add(startWaiter(scheduler, CardScheduler.Priority.BATCH, "batch", order));
+		Thread.sleep(250);
+		for(int i = 0; i < 3; i++) {
+			threads.add(startWaiter(scheduler, CardScheduler.Priority.INTERACTIVE, "interactive", order));
+		}
+		held.close();
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals("[batch, interactive, interactive, interactive]", order.toString());
+		assertEquals(1, scheduler.getMetrics(CardScheduler.Priority.BATCH).getAged());
+	}
+
+	/**
+	 * 順番を待つ間にタイムアウトした処理の分はテナントに課金されず、テナントの次の処理は同じ仮想終了時刻で並びます。
+	 */
+	@Test(timeout = 30000)
+	public void timedOutWaiterIsNotCharged() throws Exception {
+		CardScheduler scheduler = new CardScheduler();
+		scheduler.setAgingInterval(0, TimeUnit.SECONDS);
+		CardScheduler.Permit held = scheduler.acquire(CardScheduler.Priority.NORMAL, "held");
+		try {
+			scheduler.acquire(CardScheduler.Priority.NORMAL, "a", 50, TimeUnit.MILLISECONDS);
+			fail("the waiter must time out");
+		} catch(JpkiException e) {
+			assertEquals(JpkiException.WRAPPER_E_CARD_BUSY, e.getErrorCode());
+		}
+		List<String> order = new ArrayList<String>();
+		List<Thread> threads = new ArrayList<Thread>();
+		threads.add(startWaiter(scheduler, CardScheduler.Priority.NORMAL, "a", order));
+		threads.add(startWaiter(scheduler, CardScheduler.Priority.NORMAL, "b", order));
+		held.close();
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals("[a, b]", order.toString());
+		assertEquals(1, scheduler.getMetrics(CardScheduler.Priority.NORMAL).getTimeouts());
+	}
+
+	/**
+	 * 順番を待って許可を受け取ったら、その名前を order に記録してすぐに返すスレッドを開始します。
+	 * スレッドが順番待ちに入るまで戻りません。
+	 */
+	static Thread startWaiter(final CardScheduler scheduler, final CardScheduler.Priority priority, final String tenant, final List<String> order)
+			throws InterruptedException {
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					CardScheduler.Permit permit = scheduler.acquire(priority, tenant);
+					synchronized (order) {
+						order.add(tenant);
+					}
+					permit.close();
+				} catch(JpkiException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		thread.start();
+		while(thread.getState() != Thread.State.TIMED_WAITING) {
+			Thread.sleep(1);
+		}
+		return thread;
+	}
+}
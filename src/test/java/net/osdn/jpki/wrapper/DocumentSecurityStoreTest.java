@@ -0,0 +1,110 @@
+package net.osdn.jpki.wrapper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.junit.Test;
+
+public class DocumentSecurityStoreTest {
+
+	/**
+	 * 委任された OCSP レスポンダーの証明書も、署名者証明書とルート証明書と一緒に /DSS/Certs に格納されます。
+	 */
+	@Test(timeout = 60000)
+	public void storesTheDelegatedResponderCertificate() throws Exception {
+		try(final LocalOcspResponder responder = new LocalOcspResponder()) {
+			final OcspRevocationFetcher ocsp = new OcspRevocationFetcher(responder.start());
+			JpkiWrapper wrapper = new JpkiWrapper();
+			wrapper.setRevocationCache(new RevocationCache(new RevocationFetcher() {
+				@Override
+				public RevocationData fetch(X509Certificate certificate, X509Certificate issuer) throws IOException {
+					// スタブのカードの証明書にはレスポンダーがないので、試験用の CA の応答で代用します。
+					return ocsp.fetch(responder.getCertificate(), responder.getCaCertificate());
+				}
+			}));
+			byte[] signed = sign(wrapper, TestDocuments.blank(1));
+			assertEquals(1, TestDocuments.verifySignatures(signed).size());
+			List<byte[]> certs = readDss(signed, "Certs");
+			assertEquals(3, certs.size());
+			assertArrayEquals(responder.getResponderCertificate().getEncoded(), certs.get(2));
+			assertEquals(1, readDss(signed, "OCSPs").size());
+		}
+	}
+
+	/**
+	 * メモリーの上限を超える文書も一時ファイルを経由して DSS を追加できます。
+	 */
+	@Test(timeout = 120000)
+	public void largeDocumentsAreBufferedInATemporaryFile() throws Exception {
+		JpkiWrapper wrapper = new JpkiWrapper();
+		wrapper.setRevocationCache(new RevocationCache(new RevocationFetcher() {
+			@Override
+			public RevocationData fetch(X509Certificate certificate, X509Certificate issuer) {
+				return new RevocationData(RevocationData.Type.CRL, new byte[] { 0x30, 0x00 }, null);
+			}
+		}));
+		byte[] signed = sign(wrapper, TestDocuments.withPayload(20 * 1024 * 1024));
+		assertEquals(1, TestDocuments.verifySignatures(signed).size());
+		assertEquals(2, readDss(signed, "Certs").size());
+		assertEquals(1, readDss(signed, "CRLs").size());
+	}
+
+	@Test
+	public void spillingStreamMovesToAFileOverTheLimit() throws Exception {
+		byte[] pdf = TestDocuments.blank(1);
+		SpillingOutputStream small = new SpillingOutputStream(pdf.length);
+		small.write(pdf);
+		assertFalse(small.isSpilled());
+		small.delete();
+
+		SpillingOutputStream large = new SpillingOutputStream(pdf.length / 2);
+		large.write(pdf, 0, pdf.length / 3);
+		large.write(pdf, pdf.length / 3, pdf.length - pdf.length / 3);
+		assertTrue(large.isSpilled());
+		assertEquals(pdf.length, large.size());
+		try(PDDocument document = large.load()) {
+			assertEquals(1, document.getNumberOfPages());
+		}
+		large.delete();
+	}
+
+	private static byte[] sign(JpkiWrapper wrapper, byte[] pdf) throws Exception {
+		try(PDDocument document = PDDocument.load(pdf)) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(pdf.length + 65536);
+			wrapper.addSignature(out, document);
+			return out.toByteArray();
+		}
+	}
+
+	private static List<byte[]> readDss(byte[] pdf, String key) throws IOException {
+		List<byte[]> values = new ArrayList<byte[]>();
+		try(PDDocument document = PDDocument.load(pdf)) {
+			COSDictionary dss = (COSDictionary)document.getDocumentCatalog().getCOSObject().getDictionaryObject(COSName.getPDFName("DSS"));
+			COSArray array = (COSArray)dss.getDictionaryObject(COSName.getPDFName(key));
+			for(int i = 0; i < array.size(); i++) {
+				COSBase base = array.get(i);
+				COSStream stream = (COSStream)((base instanceof COSObject) ? ((COSObject)base).getObject() : base);
+				try(InputStream in = stream.createInputStream()) {
+					values.add(OcspRevocationFetcher.readFully(in));
+				}
+			}
+		}
+		return values;
+	}
+}
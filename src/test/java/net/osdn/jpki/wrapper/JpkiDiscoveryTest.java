@@ -0,0 +1,181 @@
+package net.osdn.jpki.wrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JpkiDiscoveryTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	/**
+	 * 登録した順に問い合わせ、最初に見つかったところで止めます。
+	 */
+	@Test
+	public void locatorsAreAskedInOrderUntilOneFindsTheDirectory() throws Exception {
+		File dir = temp.newFolder("jpki");
+		CountingLocator first = new CountingLocator("first", null);
+		CountingLocator second = new CountingLocator("second", dir);
+		CountingLocator third = new CountingLocator("third", temp.newFolder("other"));
+		JpkiDiscovery.Result result = new JpkiDiscovery(Arrays.<JpkiLocator>asList(first, second, third)).discover();
+
+		assertEquals(dir, result.getInstallPath());
+		assertEquals("second", result.getLocatorName());
+		assertEquals(Arrays.asList("first", "second"), getLocatorNames(result));
+		assertEquals("not found", result.getSteps().get(0).getOutcome());
+		assertEquals("found: " + dir, result.getSteps().get(1).getOutcome());
+		assertEquals(1, first.calls.get());
+		assertEquals(1, second.calls.get());
+		assertEquals(0, third.calls.get());
+	}
+
+	@Test
+	public void resultIsMemoizedUntilRefresh() throws Exception {
+		CountingLocator locator = new CountingLocator("counting", temp.newFolder("jpki"));
+		JpkiDiscovery discovery = new JpkiDiscovery(Arrays.<JpkiLocator>asList(locator));
+		JpkiDiscovery.Result first = discovery.discover();
+		assertSame(first, discovery.discover());
+		assertEquals(1, locator.calls.get());
+
+		discovery.refresh();
+		JpkiDiscovery.Result second = discovery.discover();
+		assertNotSame(first, second);
+		assertEquals(first.getInstallPath(), second.getInstallPath());
+		assertEquals(2, locator.calls.get());
+	}
+
+	/**
+	 * 例外をスローしたロケーターや、ディレクトリーでないパスを返したロケーターは結果に記録され、次のロケーターに進みます。
+	 */
+	@Test
+	public void failingLocatorsAreRecordedAsSteps() throws Exception {
+		File dir = temp.newFolder("jpki");
+		JpkiLocator throwing = new JpkiLocator() {
+			@Override
+			public String getName() {
+				return "throwing";
+			}
+
+			@Override
+			public File locate() throws Exception {
+				throw new IllegalStateException("registry is not available\nat line 2");
+			}
+		};
+		CountingLocator file = new CountingLocator("file", temp.newFile("not-a-directory"));
+		CountingLocator found = new CountingLocator("found", dir);
+		JpkiDiscovery.Result result = new JpkiDiscovery(Arrays.<JpkiLocator>asList(throwing, file, found)).discover();
+
+		assertEquals(dir, result.getInstallPath());
+		assertEquals(Arrays.asList("throwing", "file", "found"), getLocatorNames(result));
+		assertEquals("error: java.lang.IllegalStateException: registry is not available", result.getSteps().get(0).getOutcome());
+		assertTrue(result.getSteps().get(1).getOutcome().startsWith("not a directory: "));
+	}
+
+	@Test
+	public void nothingFoundReturnsAnEmptyResult() throws Exception {
+		JpkiDiscovery.Result result = new JpkiDiscovery(Arrays.<JpkiLocator>asList(new CountingLocator("none", null))).discover();
+		assertNull(result.getInstallPath());
+		assertNull(result.getLocatorName());
+		assertTrue(result.getRuntimeJars().isEmpty());
+		assertEquals(1, result.getSteps().size());
+	}
+
+	/**
+	 * 後ろのロケーターで見つかった場合だけ記録し、次回はその記録から見つけます。
+	 */
+	@Test
+	public void lastKnownGoodIsWrittenOnlyAfterALaterLocatorSucceeds() throws Exception {
+		File dir = temp.newFolder("jpki");
+		File record = new File(temp.getRoot(), "state/install-path");
+		LastKnownGoodJpkiLocator lastKnownGood = new LastKnownGoodJpkiLocator(record);
+
+		JpkiDiscovery.Result result = new JpkiDiscovery(Arrays.<JpkiLocator>asList(
+				lastKnownGood, new CountingLocator("none", null))).discover();
+		assertNull(result.getInstallPath());
+		assertFalse(record.exists());
+
+		CountingLocator registry = new CountingLocator("registry", dir);
+		result = new JpkiDiscovery(Arrays.<JpkiLocator>asList(lastKnownGood, registry)).discover();
+		assertEquals(dir, result.getInstallPath());
+		assertEquals(dir.getAbsolutePath(), new String(Files.readAllBytes(record.toPath()), StandardCharsets.UTF_8));
+		assertEquals(Arrays.asList(lastKnownGood.getName(), "registry", lastKnownGood.getName()), getLocatorNames(result));
+		assertEquals("remembered: " + dir, result.getSteps().get(2).getOutcome());
+
+		long modified = record.lastModified();
+		registry = new CountingLocator("registry", dir);
+		result = new JpkiDiscovery(Arrays.<JpkiLocator>asList(lastKnownGood, registry)).discover();
+		assertEquals(lastKnownGood.getName(), result.getLocatorName());
+		assertEquals(dir.getAbsoluteFile(), result.getInstallPath().getAbsoluteFile());
+		assertEquals(1, result.getSteps().size());
+		assertEquals(0, registry.calls.get());
+		assertEquals(modified, record.lastModified());
+	}
+
+	/**
+	 * 記録したディレクトリーがなくなっている場合は記録を使わず、後ろのロケーターで探し直して記録を更新します。
+	 */
+	@Test
+	public void lastKnownGoodIsIgnoredWhenItsDirectoryIsGone() throws Exception {
+		File gone = temp.newFolder("old");
+		File dir = temp.newFolder("new");
+		File record = temp.newFile("install-path");
+		Files.write(record.toPath(), gone.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+		assertTrue(gone.delete());
+		LastKnownGoodJpkiLocator lastKnownGood = new LastKnownGoodJpkiLocator(record);
+		assertNull(lastKnownGood.locate());
+
+		CountingLocator registry = new CountingLocator("registry", dir);
+		JpkiDiscovery.Result result = new JpkiDiscovery(Arrays.<JpkiLocator>asList(lastKnownGood, registry)).discover();
+		assertEquals(dir, result.getInstallPath());
+		assertEquals("not found", result.getSteps().get(0).getOutcome());
+		assertEquals(1, registry.calls.get());
+		assertEquals(dir.getAbsolutePath(), new String(Files.readAllBytes(record.toPath()), StandardCharsets.UTF_8));
+	}
+
+	private static List<String> getLocatorNames(JpkiDiscovery.Result result) {
+		List<String> names = new ArrayList<String>();
+		for(JpkiDiscovery.Step step : result.getSteps()) {
+			names.add(step.getLocatorName());
+		}
+		return names;
+	}
+
+	private static class CountingLocator implements JpkiLocator {
+
+		final AtomicInteger calls = new AtomicInteger();
+		private final String name;
+		private final File dir;
+
+		CountingLocator(String name, File dir) {
+			this.name = name;
+			this.dir = dir;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public File locate() {
+			calls.incrementAndGet();
+			return dir;
+		}
+	}
+}
@@ -0,0 +1,181 @@
+package net.osdn.jpki.wrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class JpkiHealthTest {
+
+	/**
+	 * TTL の間はキャッシュした状態を返し、インストール先の検索もカードの読み取りも行いません。
+	 * TTL を過ぎると両方をやり直すので、インストール先がなくなれば報告に反映されます。
+	 */
+	@Test(timeout = 60000)
+	public void statusIsCachedForTheTtlAndRediscoveredAfterIt() throws Exception {
+		CountingLocator locator = new CountingLocator();
+		CountingWrapper wrapper = new CountingWrapper();
+		wrapper.warmUp();
+		JpkiHealth health = new JpkiHealth(wrapper, discovery(locator), 500, TimeUnit.MILLISECONDS);
+
+		JpkiHealth.Status first = health.getStatus();
+		assertTrue(first.toString(), first.isHealthy());
+		assertEquals(getStubPath(), first.getInstallPath());
+		assertNotNull(first.getSubject());
+		assertSame(first, health.getStatus());
+		assertEquals(1, locator.calls.get());
+		assertEquals(1, wrapper.calls.get());
+
+		locator.installPath = null;
+		Thread.sleep(700);
+		JpkiHealth.Status second = health.getStatus();
+		assertEquals(2, locator.calls.get());
+		assertFalse(second.isAvailable());
+		assertFalse(second.isHealthy());
+
+		locator.installPath = getStubPath();
+		health.invalidate();
+		assertTrue(health.getStatus().isAvailable());
+		assertEquals(3, locator.calls.get());
+	}
+
+	/**
+	 * 最初の状態を同時に問い合わせても、カードを読み取るのは 1 回だけで、すべてのスレッドが同じ状態を受け取ります。
+	 */
+	@Test(timeout = 60000)
+	public void concurrentCallersShareOneProbe() throws Exception {
+		CountingLocator locator = new CountingLocator();
+		CountingWrapper wrapper = new CountingWrapper();
+		wrapper.delayMillis = 300;
+		final JpkiHealth health = new JpkiHealth(wrapper, discovery(locator), 1, TimeUnit.HOURS);
+
+		int threads = 8;
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<JpkiHealth.Status>> futures = new ArrayList<Future<JpkiHealth.Status>>();
+			for(int i = 0; i < threads; i++) {
+				futures.add(executor.submit(new Callable<JpkiHealth.Status>() {
+					@Override
+					public JpkiHealth.Status call() throws Exception {
+						start.await();
+						return health.getStatus();
+					}
+				}));
+			}
+			start.countDown();
+			JpkiHealth.Status status = futures.get(0).get();
+			assertNotNull(status);
+			for(Future<JpkiHealth.Status> future : futures) {
+				assertSame(status, future.get());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(1, locator.calls.get());
+		assertEquals(1, wrapper.calls.get());
+	}
+
+	/**
+	 * 署名処理がカードを使用中で読み取れなかった場合は、カードの状態を前回の結果から引き継ぎます。
+	 */
+	@Test(timeout = 60000)
+	public void cardBusyCarriesThePreviousCardState() throws Exception {
+		CountingWrapper wrapper = new CountingWrapper();
+		wrapper.warmUp();
+		JpkiHealth health = new JpkiHealth(wrapper, discovery(new CountingLocator()), 500, TimeUnit.MILLISECONDS);
+		JpkiHealth.Status first = health.getStatus();
+		assertTrue(first.isCardPresent());
+
+		wrapper.busy = true;
+		Thread.sleep(700);
+		JpkiHealth.Status second = health.getStatus();
+		assertEquals(2, wrapper.calls.get());
+		assertTrue(second.isCardProbed());
+		assertTrue(second.isCardPresent());
+		assertFalse(second.isPinLocked());
+		assertEquals(first.getSubject(), second.getSubject());
+		assertEquals(first.getNotAfter(), second.getNotAfter());
+		assertNull(second.getProbeError());
+		assertTrue(second.isHealthy());
+	}
+
+	private static JpkiDiscovery discovery(JpkiLocator locator) {
+		return new JpkiDiscovery(Collections.singletonList(locator));
+	}
+
+	private static File getStubPath() {
+		return new File(System.getProperty(JpkiWrapper.INSTALL_PATH_PROPERTY));
+	}
+
+	private static class CountingLocator implements JpkiLocator {
+
+		final AtomicInteger calls = new AtomicInteger();
+		volatile File installPath = getStubPath();
+
+		@Override
+		public String getName() {
+			return "counting";
+		}
+
+		@Override
+		public File locate() {
+			calls.incrementAndGet();
+			return installPath;
+		}
+	}
+
+	/**
+	 * カードの読み取りを数え、遅延や使用中のエラーを挟む JpkiWrapper です。
+	 */
+	private static class CountingWrapper extends JpkiWrapper {
+
+		final AtomicInteger calls = new AtomicInteger();
+		volatile long delayMillis;
+		volatile boolean busy;
+
+		CountingWrapper() throws Exception {
+		}
+
+		/**
+		 * 初回の読み取りはクラスの読み込みなどで遅く、TTL を超えることがあるので、先に 1 回読み取っておきます。
+		 */
+		void warmUp() throws Exception {
+			super.getCertificate();
+		}
+
+		@Override
+		public X509Certificate getCertificate() throws JpkiException, IOException {
+			calls.incrementAndGet();
+			if(delayMillis > 0) {
+				try {
+					Thread.sleep(delayMillis);
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			if(busy) {
+				throw new JpkiException(JpkiException.WRAPPER_E_CARD_BUSY, 0, null);
+			}
+			return super.getCertificate();
+		}
+	}
+}
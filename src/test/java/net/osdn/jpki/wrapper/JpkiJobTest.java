@@ -0,0 +1,178 @@
+package net.osdn.jpki.wrapper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JpkiJobTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	@After
+	public void clearStubDelays() {
+		System.clearProperty("jpki.stub.signDelay");
+		System.clearProperty("jpki.stub.ignoreInterrupt");
+	}
+
+	/**
+	 * 署名の段階 (SIGN) はカードの呼び出しだけを含み、文書のハッシュの計算を含みません。
+	 */
+	@Test(timeout = 120000)
+	public void signStageCoversOnlyTheCardCall() throws Exception {
+		byte[] pdf = TestDocuments.withPayload(32 * 1024 * 1024);
+		long hashNanos = Long.MAX_VALUE;
+		for(int i = 0; i < 3; i++) {
+			long start = System.nanoTime();
+			MessageDigest.getInstance("SHA-256").digest(pdf);
+			hashNanos = Math.min(hashNanos, System.nanoTime() - start);
+		}
+
+		final AtomicLong signNanos = new AtomicLong(Long.MAX_VALUE);
+		JpkiWrapper wrapper = new JpkiWrapper();
+		wrapper.setStageListener(new JpkiStageListener() {
+			@Override
+			public void stageFinished(JpkiStage stage, long elapsedNanos) {
+				if(stage == JpkiStage.SIGN) {
+					signNanos.set(Math.min(signNanos.get(), elapsedNanos));
+				}
+			}
+		});
+		// 初回の署名はクラスの読み込みなどで遅いので、小さな文書を先に署名しておきます。
+		try(PDDocument document = PDDocument.load(TestDocuments.blank(1))) {
+			wrapper.addSignature(new ByteArrayOutputStream(), document);
+		}
+		// ハッシュの計算と同じように、最も速かった回の所要時間で比べます。
+		signNanos.set(Long.MAX_VALUE);
+		for(int i = 0; i < 3; i++) {
+			try(PDDocument document = PDDocument.load(pdf)) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream(pdf.length + 65536);
+				wrapper.addSignature(out, document);
+				assertEquals(1, TestDocuments.verifySignatures(out.toByteArray()).size());
+			}
+		}
+		assertTrue(signNanos.get() > 0 && signNanos.get() != Long.MAX_VALUE);
+		assertTrue("SIGN took " + signNanos.get() / 1000 + " us, hashing the document takes " + hashNanos / 1000 + " us",
+				signNanos.get() < hashNanos / 4);
+	}
+
+	/**
+	 * 割り込みでは戻らないカードの呼び出しで処理が期限切れになっても、処理が持っていた順番とリースは返され、次の処理はすぐにカードを使えます。
+	 */
+	@Test(timeout = 60000)
+	public void timedOutJobReturnsItsTurnWhileTheCallIsStuck() throws Exception {
+		CardScheduler scheduler = new CardScheduler();
+		CardArbiter arbiter = new CardArbiter(temp.newFile("card.lock"));
+		JpkiWrapper stuck = new JpkiWrapper();
+		stuck.setCardScheduler(scheduler, CardScheduler.Priority.NORMAL, "stuck");
+		stuck.setCardArbiter(arbiter);
+		stuck.setStageTimeout(JpkiStage.SIGN, 200, TimeUnit.MILLISECONDS);
+		JpkiWrapper next = new JpkiWrapper();
+		next.setCardScheduler(scheduler, CardScheduler.Priority.NORMAL, "next");
+		next.setCardArbiter(arbiter);
+		byte[] pdf = TestDocuments.blank(1);
+
+		System.setProperty("jpki.stub.ignoreInterrupt", "true");
+		System.setProperty("jpki.stub.signDelay", "5000");
+		try(PDDocument document = PDDocument.load(pdf)) {
+			stuck.addSignature(new ByteArrayOutputStream(), document);
+			fail("the stuck job must time out");
+		} catch(JpkiException e) {
+			assertEquals(JpkiException.WRAPPER_E_TIMEOUT, e.getErrorCode());
+		}
+		System.clearProperty("jpki.stub.signDelay");
+
+		long start = System.nanoTime();
+		try(PDDocument document = PDDocument.load(pdf)) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			next.addSignature(out, document);
+			assertEquals(1, TestDocuments.verifySignatures(out.toByteArray()).size());
+		}
+		long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue("waited " + elapsedMillis + " ms for the card", elapsedMillis < 3000);
+		assertEquals(0, scheduler.getMetrics(CardScheduler.Priority.NORMAL).getTimeouts());
+	}
+
+	/**
+	 * カードが cryptSignHash の中にいる間に段階の期限が切れると、処理はその呼び出しを待たずに失敗します。
+	 * コンテキストは呼び出しが戻ってから解放されるので、解放済みのコンテキストで JNI が呼び出されることはありません。
+	 */
+	@Test(timeout = 60000)
+	public void stageTimeoutInsideSignHashReleasesTheContextAfterTheCall() throws Exception {
+		JpkiWrapper wrapper = new JpkiWrapper();
+		wrapper.setStageTimeout(JpkiStage.SIGN, 200, TimeUnit.MILLISECONDS);
+		long uses = getReleasedContextUseCount();
+
+		System.setProperty("jpki.stub.ignoreInterrupt", "true");
+		System.setProperty("jpki.stub.signDelay", "1500");
+		long start = System.nanoTime();
+		try(PDDocument document = PDDocument.load(TestDocuments.blank(1))) {
+			wrapper.addSignature(new ByteArrayOutputStream(), document);
+			fail("the job must time out");
+		} catch(JpkiException e) {
+			assertEquals(JpkiException.WRAPPER_E_TIMEOUT, e.getErrorCode());
+		}
+		long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue("timed out after " + elapsedMillis + " ms", elapsedMillis < 1500);
+
+		// 止まっていた cryptSignHash が戻り、処理のスレッドが後始末を終えるまで待ちます。
+		Thread.sleep(3000 - elapsedMillis);
+		assertEquals(uses, getReleasedContextUseCount());
+	}
+
+	/**
+	 * ファイルへの出力が期限切れで失敗しても、既存の出力ファイルはそのまま残り、書きかけの一時ファイルも残りません。
+	 */
+	@Test(timeout = 60000)
+	public void timedOutFileOutputLeavesTheExistingFileUntouched() throws Exception {
+		File directory = temp.newFolder("out");
+		File output = new File(directory, "signed.pdf");
+		byte[] previous = TestDocuments.blank(1);
+		Files.write(output.toPath(), previous);
+		JpkiWrapper wrapper = new JpkiWrapper();
+		wrapper.setStageTimeout(JpkiStage.SIGN, 200, TimeUnit.MILLISECONDS);
+
+		System.setProperty("jpki.stub.signDelay", "5000");
+		try(PDDocument document = PDDocument.load(TestDocuments.blank(2))) {
+			wrapper.addSignature(output, document, null, null, null, null, null, null);
+			fail("the job must time out");
+		} catch(JpkiException e) {
+			assertEquals(JpkiException.WRAPPER_E_TIMEOUT, e.getErrorCode());
+		}
+		assertArrayEquals(previous, Files.readAllBytes(output.toPath()));
+		assertEquals(Arrays.asList("signed.pdf"), Arrays.asList(directory.list()));
+
+		System.clearProperty("jpki.stub.signDelay");
+		try(PDDocument document = PDDocument.load(TestDocuments.blank(2))) {
+			wrapper.addSignature(output, document, null, null, null, null, null, null);
+		}
+		assertEquals(1, TestDocuments.verifySignatures(Files.readAllBytes(output.toPath())).size());
+		assertEquals(Arrays.asList("signed.pdf"), Arrays.asList(directory.list()));
+	}
+
+	/**
+	 * jpki-stub が数える、解放済みのコンテキストを使おうとした呼び出しの数を返します。スタブは内部モジュールのクラス ローダーから読み込まれます。
+	 */
+	private static long getReleasedContextUseCount() throws Exception {
+		Field field = JpkiWrapper.class.getDeclaredField("loader");
+		field.setAccessible(true);
+		ClassLoader loader = (ClassLoader)field.get(null);
+		return (Long)loader.loadClass("jp.go.jpki.appli.JPKICryptSignJNI").getMethod("getReleasedContextUseCount").invoke(null);
+	}
+}
@@ -0,0 +1,167 @@
+package net.osdn.jpki.wrapper;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.bouncycastle.asn1.ocsp.OCSPObjectIdentifiers;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.BasicOCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPReq;
+import org.bouncycastle.cert.ocsp.OCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.Req;
+import org.bouncycastle.cert.ocsp.RespID;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * プロセス内で動作する試験用の OCSP レスポンダーです。
+ * <p>
+ * 起動のたびに CA、CA が発行した証明書、CA から委任された OCSP 署名用の証明書を生成し、
+ * 委任された証明書で署名した GOOD の応答をループバックの HTTP エンドポイントで返します。
+ */
+public class LocalOcspResponder implements Closeable {
+
+	private final X509Certificate caCertificate;
+	private final X509Certificate certificate;
+	private final X509Certificate responderCertificate;
+	private final PrivateKey responderKey;
+	private final AtomicInteger requestCount = new AtomicInteger();
+	private volatile boolean echoNonce = true;
+	private HttpServer server;
+
+	public LocalOcspResponder() throws IOException {
+		try {
+			KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+			kpg.initialize(2048);
+			KeyPair ca = kpg.generateKeyPair();
+			KeyPair responder = kpg.generateKeyPair();
+			X500Name caName = new X500Name("CN=Local Test CA");
+			caCertificate = issue(caName, ca.getPrivate(), caName, ca.getPublic(), 1, new BasicConstraints(true), null);
+			certificate = issue(caName, ca.getPrivate(), new X500Name("CN=Local Test Signer"), kpg.generateKeyPair().getPublic(), 2, null, null);
+			responderCertificate = issue(caName, ca.getPrivate(), new X500Name("CN=Local OCSP Responder"), responder.getPublic(), 3,
+					null, new ExtendedKeyUsage(KeyPurposeId.id_kp_OCSPSigning));
+			responderKey = responder.getPrivate();
+		} catch(IOException e) {
+			throw e;
+		} catch(Exception e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static X509Certificate issue(X500Name issuer, PrivateKey issuerKey, X500Name subject, PublicKey key, long serial,
+			BasicConstraints constraints, ExtendedKeyUsage eku) throws Exception {
+		long now = System.currentTimeMillis();
+		JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(issuer, BigInteger.valueOf(serial),
+				new Date(now - 60000L), new Date(now + TimeUnit.DAYS.toMillis(365)), subject, key);
+		if(constraints != null) {
+			builder.addExtension(Extension.basicConstraints, true, constraints);
+		}
+		if(eku != null) {
+			builder.addExtension(Extension.extendedKeyUsage, false, eku);
+		}
+		return new JcaX509CertificateConverter().getCertificate(builder.build(new JcaContentSignerBuilder("SHA256withRSA").build(issuerKey)));
+	}
+
+	public X509Certificate getCaCertificate() {
+		return caCertificate;
+	}
+
+	/** CA が発行した、失効情報を問い合わせる対象の証明書です。 */
+	public X509Certificate getCertificate() {
+		return certificate;
+	}
+
+	/** 応答に署名する、CA から委任された証明書です。 */
+	public X509Certificate getResponderCertificate() {
+		return responderCertificate;
+	}
+
+	/**
+	 * 要求の nonce を応答に含めるかどうかを設定します。false にすると nonce に対応しないレスポンダーを模擬します。
+	 */
+	public void setEchoNonce(boolean enabled) {
+		echoNonce = enabled;
+	}
+
+	public int getRequestCount() {
+		return requestCount.get();
+	}
+
+	public synchronized URL start() throws IOException {
+		if(server == null) {
+			server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+			server.createContext("/", new HttpHandler() {
+				@Override
+				public void handle(HttpExchange exchange) throws IOException {
+					try {
+						byte[] body;
+						try(InputStream in = exchange.getRequestBody()) {
+							body = OcspRevocationFetcher.readFully(in);
+						}
+						byte[] response = respond(new OCSPReq(body));
+						exchange.getResponseHeaders().set("Content-Type", "application/ocsp-response");
+						exchange.sendResponseHeaders(200, response.length);
+						try(OutputStream out = exchange.getResponseBody()) {
+							out.write(response);
+						}
+					} catch(Exception e) {
+						exchange.sendResponseHeaders(500, -1);
+						exchange.close();
+					}
+				}
+			});
+			server.start();
+		}
+		return new URL("http", server.getAddress().getHostString(), server.getAddress().getPort(), "/");
+	}
+
+	private byte[] respond(OCSPReq request) throws Exception {
+		requestCount.incrementAndGet();
+		BasicOCSPRespBuilder builder = new BasicOCSPRespBuilder(new RespID(X500Name.getInstance(responderCertificate.getSubjectX500Principal().getEncoded())));
+		Date now = new Date();
+		for(Req req : request.getRequestList()) {
+			builder.addResponse(req.getCertID(), CertificateStatus.GOOD, now, new Date(now.getTime() + TimeUnit.DAYS.toMillis(1)));
+		}
+		Extension nonce = request.getExtension(OCSPObjectIdentifiers.id_pkix_ocsp_nonce);
+		if(nonce != null && echoNonce) {
+			builder.setResponseExtensions(new Extensions(nonce));
+		}
+		BasicOCSPResp basic = builder.build(new JcaContentSignerBuilder("SHA256withRSA").build(responderKey),
+				new X509CertificateHolder[] { new X509CertificateHolder(responderCertificate.getEncoded()) }, now);
+		return new OCSPRespBuilder().build(OCSPRespBuilder.SUCCESSFUL, basic).getEncoded();
+	}
+
+	@Override
+	public synchronized void close() {
+		if(server != null) {
+			server.stop(0);
+			server = null;
+		}
+	}
+}
@@ -0,0 +1,231 @@
+package net.osdn.jpki.wrapper;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.asn1.oiw.OIWObjectIdentifiers;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.bouncycastle.tsp.TSPAlgorithms;
+import org.bouncycastle.tsp.TimeStampRequest;
+import org.bouncycastle.tsp.TimeStampRequestGenerator;
+import org.bouncycastle.tsp.TimeStampResponse;
+import org.bouncycastle.tsp.TimeStampResponseGenerator;
+import org.bouncycastle.tsp.TimeStampTokenGenerator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * プロセス内で動作する試験用のタイムスタンプ局です。
+ * <p>
+ * 起動のたびに自己署名の TSA 証明書を生成します。長い証明書チェーンを返す TSA を模擬するために、トークンに余分な証明書を加えることもできます。
+ * {@link TimeStampClient} として直接使うことも、
+ * {@link #start(int)} でループバックの HTTP エンドポイントを開いて {@link HttpTimeStampClient} から使うこともできます。
+ * 発行するトークンは信頼できる時刻源に基づかないので、試験以外の用途には使わないでください。
+ */
+public class LocalTimeStampAuthority implements TimeStampClient, Closeable {
+
+	private static final ASN1ObjectIdentifier POLICY = new ASN1ObjectIdentifier("1.3.6.1.4.1.4146.1.2.1");
+
+	private final X509Certificate certificate;
+	private final TimeStampResponseGenerator responseGenerator;
+	private final AtomicLong serial = new AtomicLong();
+	private final AtomicInteger maxTokenSize = new AtomicInteger();
+	private volatile long latencyNanos;
+	private HttpServer server;
+
+	public LocalTimeStampAuthority() throws IOException {
+		this(0);
+	}
+
+	/**
+	 * @param extraCertificates トークンに TSA の証明書と一緒に加える、署名の検証には使われない証明書の数
+	 */
+	public LocalTimeStampAuthority(int extraCertificates) throws IOException {
+		try {
+			KeyPairGenerator kpg = KeyPairGenerator.getInstance("RSA");
+			kpg.initialize(2048);
+			KeyPair keyPair = kpg.generateKeyPair();
+
+			long now = System.currentTimeMillis();
+			X500Name subject = new X500Name("CN=Local Time Stamp Authority");
+			JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(subject, BigInteger.valueOf(now), new Date(now - 60000L),
+					new Date(now + TimeUnit.DAYS.toMillis(365)), subject, keyPair.getPublic());
+			builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(false));
+			builder.addExtension(Extension.extendedKeyUsage, true, new ExtendedKeyUsage(KeyPurposeId.id_kp_timeStamping));
+			ContentSigner signer = new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate());
+			X509CertificateHolder holder = builder.build(signer);
+			certificate = new JcaX509CertificateConverter().getCertificate(holder);
+
+			TimeStampTokenGenerator tokenGenerator = new TimeStampTokenGenerator(
+					new JcaSimpleSignerInfoGeneratorBuilder().build("SHA256withRSA", keyPair.getPrivate(), certificate),
+					new JcaDigestCalculatorProviderBuilder().build().get(new AlgorithmIdentifier(OIWObjectIdentifiers.idSHA1)),
+					POLICY);
+			List<X509Certificate> chain = new ArrayList<X509Certificate>();
+			chain.add(certificate);
+			for(int i = 0; i < extraCertificates; i++) {
+				X500Name extra = new X500Name("CN=Local Time Stamp Authority Intermediate " + i);
+				chain.add(new JcaX509CertificateConverter().getCertificate(new JcaX509v3CertificateBuilder(extra, BigInteger.valueOf(i + 1),
+						new Date(now - 60000L), new Date(now + TimeUnit.DAYS.toMillis(365)), extra, keyPair.getPublic()).build(signer)));
+			}
+			tokenGenerator.addCertificates(new JcaCertStore(chain));
+			responseGenerator = new TimeStampResponseGenerator(tokenGenerator, TSPAlgorithms.ALLOWED);
+		} catch(IOException e) {
+			throw e;
+		} catch(Exception e) {
+			throw new IOException(e);
+		}
+	}
+
+	/** TSA の証明書を返します。 */
+	public X509Certificate getCertificate() {
+		return certificate;
+	}
+
+	/**
+	 * 応答ごとに加える遅延を設定します。ネットワーク越しの TSA の往復時間を模擬するために使います。
+	 */
+	public void setLatency(long latency, TimeUnit unit) {
+		latencyNanos = unit.toNanos(latency);
+	}
+
+	@Override
+	public byte[] getTimeStampToken(byte[] digest) throws IOException {
+		TimeStampRequestGenerator generator = new TimeStampRequestGenerator();
+		generator.setCertReq(true);
+		TimeStampRequest request = generator.generate(NISTObjectIdentifiers.id_sha256, digest);
+		return respond(request).getTimeStampToken().getEncoded();
+	}
+
+	/**
+	 * これまでに発行したトークンの最大長を返します。
+	 */
+	@Override
+	public int estimateTokenSize() {
+		return maxTokenSize.get();
+	}
+
+	private TimeStampResponse respond(TimeStampRequest request) throws IOException {
+		delay();
+		TimeStampResponse response;
+		try {
+			synchronized (responseGenerator) {
+				response = responseGenerator.generate(request, BigInteger.valueOf(serial.incrementAndGet()), new Date());
+			}
+		} catch(Exception e) {
+			throw new IOException(e);
+		}
+		if(response.getTimeStampToken() != null) {
+			int length = response.getTimeStampToken().getEncoded().length;
+			int current;
+			while(length > (current = maxTokenSize.get())) {
+				if(maxTokenSize.compareAndSet(current, length)) {
+					break;
+				}
+			}
+		}
+		return response;
+	}
+
+	private void delay() throws IOException {
+		long latency = latencyNanos;
+		if(latency > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(latency);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted", e);
+			}
+		}
+	}
+
+	/** 発行したトークンの数を返します。 */
+	public long getIssuedCount() {
+		return serial.get();
+	}
+
+	/**
+	 * ループバック アドレスで HTTP エンドポイントを開きます。
+	 *
+	 * @param port ポート番号。0 を指定すると空いているポートを使います。
+	 * @return エンドポイントの URL
+	 */
+	public synchronized URL start(int port) throws IOException {
+		if(server == null) {
+			server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+			server.createContext("/", new HttpHandler() {
+				@Override
+				public void handle(HttpExchange exchange) throws IOException {
+					try {
+						byte[] body;
+						try(InputStream in = exchange.getRequestBody()) {
+							body = readFully(in);
+						}
+						byte[] response = respond(new TimeStampRequest(body)).getEncoded();
+						exchange.getResponseHeaders().set("Content-Type", "application/timestamp-reply");
+						exchange.sendResponseHeaders(200, response.length);
+						try(OutputStream out = exchange.getResponseBody()) {
+							out.write(response);
+						}
+					} catch(IOException e) {
+						exchange.sendResponseHeaders(400, -1);
+						exchange.close();
+					}
+				}
+			});
+			server.setExecutor(Executors.newCachedThreadPool(new JpkiJob.DaemonThreadFactory("jpki-local-tsa-")));
+			server.start();
+		}
+		return new URL("http", server.getAddress().getHostString(), server.getAddress().getPort(), "/");
+	}
+
+	@Override
+	public synchronized void close() {
+		if(server != null) {
+			server.stop(0);
+			server = null;
+		}
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+		byte[] buf = new byte[1024];
+		int len;
+		while((len = in.read(buf)) != -1) {
+			out.write(buf, 0, len);
+		}
+		return out.toByteArray();
+	}
+}
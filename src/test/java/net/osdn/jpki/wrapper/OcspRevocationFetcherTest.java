@@ -0,0 +1,42 @@
+package net.osdn.jpki.wrapper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class OcspRevocationFetcherTest {
+
+	@Test(timeout = 60000)
+	public void returnsTheDelegatedResponderCertificate() throws Exception {
+		try(LocalOcspResponder responder = new LocalOcspResponder()) {
+			OcspRevocationFetcher fetcher = new OcspRevocationFetcher(responder.start());
+			RevocationData data = fetcher.fetch(responder.getCertificate(), responder.getCaCertificate());
+			assertEquals(RevocationData.Type.OCSP, data.getType());
+			assertEquals(1, data.getCertificates().size());
+			assertArrayEquals(responder.getResponderCertificate().getEncoded(), data.getCertificates().get(0));
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void rejectsAResponseWithoutTheNonce() throws Exception {
+		try(LocalOcspResponder responder = new LocalOcspResponder()) {
+			responder.setEchoNonce(false);
+			OcspRevocationFetcher fetcher = new OcspRevocationFetcher(responder.start());
+			try {
+				fetcher.fetch(responder.getCertificate(), responder.getCaCertificate());
+				fail("a response without the nonce must be rejected");
+			} catch(IOException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("nonce"));
+			}
+
+			// nonce を送らなければ、nonce を含まない応答も受け入れます。
+			fetcher.setNonce(false);
+			assertEquals(RevocationData.Type.OCSP, fetcher.fetch(responder.getCertificate(), responder.getCaCertificate()).getType());
+		}
+	}
+}
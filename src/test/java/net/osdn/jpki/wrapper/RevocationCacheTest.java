@@ -0,0 +1,186 @@
+package net.osdn.jpki.wrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class RevocationCacheTest {
+
+	private static X509Certificate ca;
+	private static X509Certificate signer;
+	private static X509Certificate responder;
+
+	@BeforeClass
+	public static void createCertificates() throws IOException {
+		try(LocalOcspResponder r = new LocalOcspResponder()) {
+			ca = r.getCaCertificate();
+			signer = r.getCertificate();
+			responder = r.getResponderCertificate();
+		}
+	}
+
+	/**
+	 * 同じ証明書を同時に要求したスレッドは、1 回の取得の結果を共有します。
+	 */
+	@Test(timeout = 30000)
+	public void concurrentRequestsShareOneFetch() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		CountingFetcher fetcher = new CountingFetcher(null) {
+			@Override
+			public RevocationData fetch(X509Certificate certificate, X509Certificate issuer) throws IOException {
+				try {
+					release.await();
+				} catch(InterruptedException e) {
+					throw new IOException(e);
+				}
+				return super.fetch(certificate, issuer);
+			}
+		};
+		final RevocationCache cache = new RevocationCache(fetcher);
+		final List<RevocationData> results = new ArrayList<RevocationData>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int i = 0; i < 8; i++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						RevocationData data = cache.get(signer, ca);
+						synchronized (results) {
+							results.add(data);
+						}
+					} catch(IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+		while(cache.getMissCount() < threads.size()) {
+			Thread.sleep(1);
+		}
+		release.countDown();
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(1, fetcher.count.get());
+		assertEquals(8, results.size());
+		for(RevocationData data : results) {
+			assertSame(results.get(0), data);
+		}
+
+		assertSame(results.get(0), cache.get(signer, ca));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getFetchCount());
+	}
+
+	@Test
+	public void expiresAtNextUpdate() throws Exception {
+		CountingFetcher fetcher = new CountingFetcher(new Date(System.currentTimeMillis() + 300));
+		RevocationCache cache = new RevocationCache(fetcher);
+		cache.get(signer, ca);
+		cache.get(signer, ca);
+		assertEquals(1, fetcher.count.get());
+		Thread.sleep(400);
+		cache.get(signer, ca);
+		assertEquals(2, fetcher.count.get());
+	}
+
+	@Test
+	public void expiresAfterTimeToLive() throws Exception {
+		CountingFetcher fetcher = new CountingFetcher(null);
+		RevocationCache cache = new RevocationCache(fetcher);
+		cache.setTimeToLive(300, TimeUnit.MILLISECONDS);
+		cache.get(signer, ca);
+		cache.get(signer, ca);
+		assertEquals(1, fetcher.count.get());
+		Thread.sleep(400);
+		cache.get(signer, ca);
+		assertEquals(2, fetcher.count.get());
+	}
+
+	/**
+	 * 件数が上限を超えると、最も長く参照されていない情報から破棄します。
+	 */
+	@Test
+	public void evictsTheLeastRecentlyUsed() throws Exception {
+		CountingFetcher fetcher = new CountingFetcher(null);
+		RevocationCache cache = new RevocationCache(fetcher);
+		cache.setMaximumSize(2);
+		cache.get(signer, ca);
+		cache.get(responder, ca);
+		cache.get(signer, ca);
+		cache.get(ca, ca);
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictionCount());
+
+		cache.get(signer, ca);
+		assertEquals(3, fetcher.count.get());
+		cache.get(responder, ca);
+		assertEquals(4, fetcher.count.get());
+	}
+
+	@Test
+	public void doesNotCacheFailures() throws Exception {
+		final AtomicInteger calls = new AtomicInteger();
+		RevocationCache cache = new RevocationCache(new RevocationFetcher() {
+			@Override
+			public RevocationData fetch(X509Certificate certificate, X509Certificate issuer) throws IOException {
+				if(calls.incrementAndGet() == 1) {
+					throw new IOException("responder is down");
+				}
+				return new RevocationData(RevocationData.Type.OCSP, new byte[] { 1 }, null);
+			}
+		});
+		try {
+			cache.get(signer, ca);
+			fail("the failure must be reported");
+		} catch(IOException e) {
+			assertEquals("responder is down", e.getMessage());
+		}
+		assertEquals(0, cache.size());
+		assertEquals(RevocationData.Type.OCSP, cache.get(signer, ca).getType());
+		assertEquals(2, calls.get());
+	}
+
+	@Test
+	public void triesTheNextFetcher() throws Exception {
+		CountingFetcher crl = new CountingFetcher(null);
+		RevocationCache cache = new RevocationCache(new RevocationFetcher() {
+			@Override
+			public RevocationData fetch(X509Certificate certificate, X509Certificate issuer) {
+				return null;
+			}
+		}, crl);
+		assertEquals(RevocationData.Type.CRL, cache.get(signer, ca).getType());
+		assertEquals(1, crl.count.get());
+	}
+
+	private static class CountingFetcher implements RevocationFetcher {
+
+		final AtomicInteger count = new AtomicInteger();
+		private final Date nextUpdate;
+
+		CountingFetcher(Date nextUpdate) {
+			this.nextUpdate = nextUpdate;
+		}
+
+		@Override
+		public RevocationData fetch(X509Certificate certificate, X509Certificate issuer) throws IOException {
+			count.incrementAndGet();
+			return new RevocationData(RevocationData.Type.CRL, certificate.getSerialNumber().toByteArray(), nextUpdate);
+		}
+	}
+}
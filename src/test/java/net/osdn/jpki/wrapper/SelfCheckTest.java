@@ -0,0 +1,80 @@
+package net.osdn.jpki.wrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.bouncycastle.cms.CMSSignerDigestMismatchException;
+import org.junit.Test;
+
+public class SelfCheckTest {
+
+	@Test(timeout = 60000)
+	public void signatureOfAnUnchangedDocumentPasses() throws Exception {
+		JpkiWrapper wrapper = new JpkiWrapper();
+		wrapper.setSelfCheck(true);
+		try(PDDocument document = PDDocument.load(TestDocuments.blank(1))) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			wrapper.addSignature(out, document);
+			assertEquals(1, TestDocuments.verifySignatures(out.toByteArray()).size());
+		}
+	}
+
+	/**
+	 * 署名対象のハッシュを計算した後で、増分保存が書き写す元の文書の 1 バイトを書き換えます。
+	 * 出力の /ByteRange は署名したダイジェストと一致しなくなるので、自己検査で失敗します。
+	 */
+	@Test(timeout = 60000)
+	public void byteChangedInsideTheByteRangeFails() throws Exception {
+		byte[] pdf = TestDocuments.blank(1);
+		final ByteBuffer source = ByteBuffer.allocate(pdf.length);
+		source.put(pdf).flip();
+		JpkiWrapper wrapper = new JpkiWrapper();
+		wrapper.setSelfCheck(true);
+		wrapper.setStageListener(new JpkiStageListener() {
+			@Override
+			public void stageFinished(JpkiStage stage, long elapsedNanos) {
+				if(stage == JpkiStage.SIGN) {
+					source.put(11, (byte)(source.get(11) ^ 0x01));
+				}
+			}
+		});
+		try {
+			wrapper.addSignature(source, null, null, null, null, null, null);
+			fail("self-check must detect the changed byte");
+		} catch(JpkiException e) {
+			assertEquals(JpkiException.WRAPPER_E_SELF_CHECK_FAILED, e.getErrorCode());
+		}
+	}
+
+	/**
+	 * 自己検査を無効にすると、同じ書き換えは検出されず、出力の署名は検証できません。
+	 */
+	@Test(timeout = 60000)
+	public void byteChangedWithoutSelfCheckIsNotDetected() throws Exception {
+		byte[] pdf = TestDocuments.blank(1);
+		final ByteBuffer source = ByteBuffer.allocate(pdf.length);
+		source.put(pdf).flip();
+		JpkiWrapper wrapper = new JpkiWrapper();
+		wrapper.setStageListener(new JpkiStageListener() {
+			@Override
+			public void stageFinished(JpkiStage stage, long elapsedNanos) {
+				if(stage == JpkiStage.SIGN) {
+					source.put(11, (byte)(source.get(11) ^ 0x01));
+				}
+			}
+		});
+		ByteBuffer signed = wrapper.addSignature(source, null, null, null, null, null, null);
+		byte[] bytes = new byte[signed.remaining()];
+		signed.get(bytes);
+		try {
+			TestDocuments.verifySignatures(bytes);
+			fail("the signature must not verify");
+		} catch(CMSSignerDigestMismatchException e) {
+			// 期待どおり
+		}
+	}
+}
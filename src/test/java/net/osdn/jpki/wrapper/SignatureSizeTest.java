@@ -0,0 +1,121 @@
+package net.osdn.jpki.wrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.PDSignature;
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.SignatureOptions;
+import org.bouncycastle.asn1.ASN1InputStream;
+import org.junit.Test;
+
+public class SignatureSizeTest {
+
+	/** JPKISignatureInterface.getRequiredSize が CMS の長さに加える余裕 */
+	private static final int SIZE_MARGIN = 32;
+
+	/** JpkiWrapperImpl が見積もったトークンの長さに加える余裕 */
+	private static final int TIMESTAMP_TOKEN_MARGIN = 1024;
+
+	/**
+	 * 既定では、/Contents にカードの証明書と鍵長から計算した CMS の長さと余裕分だけを確保します。
+	 */
+	@Test(timeout = 60000)
+	public void reservesTheCmsLengthPlusTheMargin() throws Exception {
+		JpkiWrapper wrapper = new JpkiWrapper();
+		byte[] signed = sign(wrapper, null);
+		int reserved = getReservedSize(signed);
+		int cms = getCmsLength(signed);
+		assertTrue("reserved " + reserved + " < CMS " + cms, reserved >= cms);
+		assertTrue("reserved " + reserved + ", CMS " + cms, reserved - cms <= SIZE_MARGIN);
+	}
+
+	/**
+	 * タイムスタンプ トークンを付加する場合は、トークンの分も確保します。
+	 * 最初の署名はトークンの長さが分からないので既定の 8 KB を、以降は受け取ったトークンの最大長と余裕分を確保します。
+	 */
+	@Test(timeout = 60000)
+	public void reservesTheTimeStampTokenToo() throws Exception {
+		try(LocalTimeStampAuthority tsa = new LocalTimeStampAuthority()) {
+			JpkiWrapper wrapper = new JpkiWrapper();
+			wrapper.setTimeStampClient(tsa);
+			byte[] first = sign(wrapper, null);
+			assertTrue(getReservedSize(first) >= getCmsLength(first));
+			assertEquals(1, TestDocuments.verifySignatures(first).size());
+
+			byte[] second = sign(wrapper, null);
+			int reserved = getReservedSize(second);
+			int cms = getCmsLength(second);
+			assertTrue("reserved " + reserved + " < CMS " + cms, reserved >= cms);
+			assertTrue("reserved " + reserved + ", CMS " + cms, reserved - cms <= SIZE_MARGIN + TIMESTAMP_TOKEN_MARGIN);
+			assertEquals(1, TestDocuments.verifySignatures(second).size());
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void preferredSignatureSizeWins() throws Exception {
+		JpkiWrapper wrapper = new JpkiWrapper();
+		SignatureOptions options = new SignatureOptions();
+		try {
+			options.setPreferredSignatureSize(30000);
+			assertEquals(30000, getReservedSize(sign(wrapper, options)));
+		} finally {
+			options.close();
+		}
+	}
+
+	/**
+	 * 無効にすると、PDFBox の既定の大きさを確保します。
+	 */
+	@Test(timeout = 60000)
+	public void disabledExactSizeKeepsThePdfBoxDefault() throws Exception {
+		JpkiWrapper wrapper = new JpkiWrapper();
+		wrapper.setExactSignatureSize(false);
+		assertEquals(SignatureOptions.DEFAULT_SIGNATURE_SIZE, getReservedSize(sign(wrapper, null)));
+	}
+
+	private static byte[] sign(JpkiWrapper wrapper, SignatureOptions options) throws Exception {
+		try(PDDocument document = PDDocument.load(TestDocuments.blank(1))) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			wrapper.addSignature(out, document, options);
+			return out.toByteArray();
+		}
+	}
+
+	/**
+	 * 最後の署名の /Contents に確保されたバイト数 (16 進文字列の < > を除いた長さの半分) を返します。
+	 */
+	private static int getReservedSize(byte[] pdf) throws Exception {
+		try(PDDocument document = PDDocument.load(pdf)) {
+			int[] byteRange = getLastSignature(document).getByteRange();
+			return (byteRange[2] - byteRange[1] - 2) / 2;
+		}
+	}
+
+	/**
+	 * 最後の署名の /Contents のうち、CMS SignedData が符号化された長さ (末尾の詰め物を除いた長さ) を返します。
+	 */
+	private static int getCmsLength(byte[] pdf) throws Exception {
+		byte[] contents;
+		try(PDDocument document = PDDocument.load(pdf)) {
+			contents = getLastSignature(document).getContents(pdf);
+		}
+		// カードの署名は BER の不定長形式で符号化されるので、1 つの値を読み終えるまでに消費したバイト数を数えます。
+		ByteArrayInputStream in = new ByteArrayInputStream(contents);
+		try(ASN1InputStream asn1 = new ASN1InputStream(in)) {
+			asn1.readObject();
+		}
+		return contents.length - in.available();
+	}
+
+	private static PDSignature getLastSignature(PDDocument document) throws Exception {
+		PDSignature last = null;
+		for(PDSignature signature : document.getSignatureDictionaries()) {
+			last = signature;
+		}
+		return last;
+	}
+}
@@ -0,0 +1,79 @@
+package net.osdn.jpki.wrapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.PDSignature;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+
+/**
+ * テストで署名する文書を作成し、署名済みの文書を検証します。
+ */
+final class TestDocuments {
+
+	private TestDocuments() {
+	}
+
+	/**
+	 * 空白のページを pages 枚持つ PDF を返します。
+	 */
+	static byte[] blank(int pages) throws IOException {
+		try(PDDocument document = new PDDocument()) {
+			for(int i = 0; i < pages; i++) {
+				document.addPage(new PDPage());
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			document.save(out);
+			return out.toByteArray();
+		}
+	}
+
+	/**
+	 * 1 ページの文書に、圧縮されない乱数のストリームを size バイト加えた PDF を返します。ハッシュの計算に時間のかかる文書として使います。
+	 */
+	static byte[] withPayload(int size) throws IOException {
+		byte[] payload = new byte[size];
+		new Random(size).nextBytes(payload);
+		try(PDDocument document = new PDDocument()) {
+			document.addPage(new PDPage());
+			PDStream stream = new PDStream(document, new ByteArrayInputStream(payload));
+			document.getDocumentCatalog().getCOSObject().setItem(COSName.getPDFName("TestPayload"), stream);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(size + 4096);
+			document.save(out);
+			return out.toByteArray();
+		}
+	}
+
+	/**
+	 * 文書のすべての署名を検証し、署名の CMS SignedData を署名の順に返します。
+	 * 署名値が一致しない署名があれば AssertionError をスローします。
+	 */
+	static List<CMSSignedData> verifySignatures(byte[] pdf) throws Exception {
+		List<CMSSignedData> signatures = new ArrayList<CMSSignedData>();
+		try(PDDocument document = PDDocument.load(pdf)) {
+			for(PDSignature signature : document.getSignatureDictionaries()) {
+				CMSSignedData cms = new CMSSignedData(new CMSProcessableByteArray(signature.getSignedContent(pdf)), signature.getContents(pdf));
+				SignerInformation signer = cms.getSignerInfos().getSigners().iterator().next();
+				@SuppressWarnings("unchecked")
+				X509CertificateHolder certificate = (X509CertificateHolder)cms.getCertificates().getMatches(signer.getSID()).iterator().next();
+				if(!signer.verify(new JcaSimpleSignerInfoVerifierBuilder().build(certificate))) {
+					throw new AssertionError("signature does not verify: " + signature.getName());
+				}
+				signatures.add(cms);
+			}
+		}
+		return signatures;
+	}
+}
@@ -0,0 +1,84 @@
+package net.osdn.jpki.wrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URL;
+import java.util.List;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.junit.Test;
+
+public class TimeStampTest {
+
+	/**
+	 * 見積もりのために TSA に問い合わせることはありません。トークンを受け取るまでは設定した長さを、受け取った後はその最大長を返し、
+	 * 最大長は TSA の URL ごとに共有されます。
+	 */
+	@Test(timeout = 60000)
+	public void tokenSizeIsLearnedFromIssuedTokensAndSharedPerUrl() throws Exception {
+		try(LocalTimeStampAuthority tsa = new LocalTimeStampAuthority()) {
+			URL url = tsa.start(0);
+			HttpTimeStampClient client = new HttpTimeStampClient(url);
+			assertEquals(0, client.estimateTokenSize());
+			client.setTokenSize(6000);
+			assertEquals(6000, client.estimateTokenSize());
+			assertEquals(0, tsa.getIssuedCount());
+
+			int length = client.getTimeStampToken(new byte[32]).length;
+			assertEquals(1, tsa.getIssuedCount());
+			assertEquals(length, client.estimateTokenSize());
+			assertEquals(length, new HttpTimeStampClient(url).estimateTokenSize());
+			assertEquals(1, tsa.getIssuedCount());
+		}
+	}
+
+	/**
+	 * 最初の署名でも TSA に余分な要求は送らず、署名ごとに 1 回だけ問い合わせます。
+	 */
+	@Test(timeout = 60000)
+	public void signingSendsOneRequestPerSignature() throws Exception {
+		try(LocalTimeStampAuthority tsa = new LocalTimeStampAuthority()) {
+			JpkiWrapper wrapper = new JpkiWrapper();
+			wrapper.setTimeStampClient(new HttpTimeStampClient(tsa.start(0)));
+			for(int i = 1; i <= 2; i++) {
+				try(PDDocument document = PDDocument.load(TestDocuments.blank(1))) {
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					wrapper.addSignature(out, document);
+					assertEquals(1, TestDocuments.verifySignatures(out.toByteArray()).size());
+				}
+				assertEquals(i, tsa.getIssuedCount());
+			}
+		}
+	}
+
+	/**
+	 * 既定の確保量 (8 KB) に収まらない長い証明書チェーンのトークンでも、トークンの長さを設定しておけば最初の署名から収まります。
+	 */
+	@Test(timeout = 60000)
+	public void firstSignatureFitsALongTokenChain() throws Exception {
+		try(LocalTimeStampAuthority tsa = new LocalTimeStampAuthority(12)) {
+			HttpTimeStampClient http = new HttpTimeStampClient(tsa.start(0));
+			http.setTokenSize(16 * 1024);
+			try(BoundedTimeStampClient client = new BoundedTimeStampClient(http, 2)) {
+				JpkiWrapper wrapper = new JpkiWrapper();
+				wrapper.setTimeStampClient(client);
+				try(PDDocument document = PDDocument.load(TestDocuments.blank(1))) {
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					wrapper.addSignature(out, document);
+					List<CMSSignedData> signatures = TestDocuments.verifySignatures(out.toByteArray());
+					assertEquals(1, signatures.size());
+					SignerInformation signer = signatures.get(0).getSignerInfos().getSigners().iterator().next();
+					assertNotNull(signer.getUnsignedAttributes().get(PKCSObjectIdentifiers.id_aa_signatureTimeStampToken));
+				}
+				assertTrue("token size " + http.getMaxTokenSize(), http.getMaxTokenSize() > 8192);
+				assertEquals(1, client.getRequestCount());
+			}
+		}
+	}
+}
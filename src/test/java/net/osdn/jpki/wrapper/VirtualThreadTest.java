@@ -0,0 +1,116 @@
+package net.osdn.jpki.wrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * {@link JobExecutors#newJobExecutor(String, int)} のスレッド (Java 21 以降では仮想スレッド) から署名します。
+ * Java 21 の実行環境では java21Test タスクがマルチリリース JAR に対してこのテストを実行します。
+ */
+public class VirtualThreadTest {
+
+	@After
+	public void clearStubDelays() {
+		System.clearProperty("jpki.stub.signDelay");
+		System.clearProperty("jpki.stub.ignoreInterrupt");
+	}
+
+	/**
+	 * 仮想スレッドからの署名ではカードとの JNI 呼び出しだけが設定したプールで実行され、プラットフォーム スレッドからの署名ではプールは使われません。
+	 */
+	@Test(timeout = 120000)
+	public void cardCallsFromVirtualThreadsRunOnTheCardExecutor() throws Exception {
+		ThreadPoolExecutor card = new ThreadPoolExecutor(2, 2, 60L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new JpkiJob.DaemonThreadFactory("test-card-"));
+		final JpkiWrapper wrapper = new JpkiWrapper();
+		wrapper.setCardExecutor(card);
+		final byte[] pdf = TestDocuments.blank(1);
+		ExecutorService executor = JobExecutors.newJobExecutor("test-", 8);
+		try {
+			List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+			for(int i = 0; i < 16; i++) {
+				futures.add(executor.submit(new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws Exception {
+						try(PDDocument document = PDDocument.load(pdf)) {
+							ByteArrayOutputStream out = new ByteArrayOutputStream();
+							wrapper.addSignature(out, document);
+							return out.toByteArray();
+						}
+					}
+				}));
+			}
+			for(Future<byte[]> future : futures) {
+				assertEquals(1, TestDocuments.verifySignatures(future.get()).size());
+			}
+		} finally {
+			executor.shutdown();
+			card.shutdown();
+		}
+		card.awaitTermination(10, TimeUnit.SECONDS);
+		assertEquals(JobExecutors.isVirtualThreadSupported(), card.getCompletedTaskCount() > 0);
+	}
+
+	/**
+	 * 仮想スレッドからの署名で割り込みでは戻らないカードの呼び出しが期限切れになっても、ほかの仮想スレッドの署名は待たされません。
+	 */
+	@Test(timeout = 60000)
+	public void stuckCardCallDoesNotBlockOtherSigners() throws Exception {
+		final JpkiWrapper stuck = new JpkiWrapper();
+		stuck.setStageTimeout(JpkiStage.SIGN, 200, TimeUnit.MILLISECONDS);
+		final JpkiWrapper next = new JpkiWrapper();
+		final byte[] pdf = TestDocuments.blank(1);
+		ExecutorService executor = JobExecutors.newJobExecutor("test-", 2);
+		try {
+			System.setProperty("jpki.stub.ignoreInterrupt", "true");
+			System.setProperty("jpki.stub.signDelay", "5000");
+			try {
+				executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						try(PDDocument document = PDDocument.load(pdf)) {
+							stuck.addSignature(new ByteArrayOutputStream(), document);
+						}
+						return null;
+					}
+				}).get();
+				throw new AssertionError("the stuck job must time out");
+			} catch(ExecutionException e) {
+				assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof JpkiException);
+				assertEquals(JpkiException.WRAPPER_E_TIMEOUT, ((JpkiException)e.getCause()).getErrorCode());
+			}
+			System.clearProperty("jpki.stub.signDelay");
+
+			long start = System.nanoTime();
+			byte[] signed = executor.submit(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws Exception {
+					try(PDDocument document = PDDocument.load(pdf)) {
+						ByteArrayOutputStream out = new ByteArrayOutputStream();
+						next.addSignature(out, document);
+						return out.toByteArray();
+					}
+				}
+			}).get();
+			assertEquals(1, TestDocuments.verifySignatures(signed).size());
+			assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 3);
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
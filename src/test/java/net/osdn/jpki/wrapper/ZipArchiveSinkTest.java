@@ -0,0 +1,158 @@
+package net.osdn.jpki.wrapper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.Test;
+
+public class ZipArchiveSinkTest {
+
+	/**
+	 * 出力を終えた順番に関係なく、エントリーは予約した順にアーカイブに書き込まれます。
+	 */
+	@Test
+	public void writesEntriesInReservationOrder() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ZipArchiveSink sink = new ZipArchiveSink(out);
+		List<ZipArchiveSink.Entry> entries = new ArrayList<ZipArchiveSink.Entry>();
+		for(int i = 0; i < 5; i++) {
+			entries.add(sink.reserve("doc" + i + ".pdf"));
+		}
+		for(int i = entries.size() - 1; i >= 0; i--) {
+			entries.get(i).write(content(i));
+			entries.get(i).close();
+			// 先頭のエントリーが終わるまでは何も書き込まれません。
+			assertEquals(i == 0 ? 5 : 0, sink.getEntries().size());
+		}
+		sink.close();
+
+		List<String> names = new ArrayList<String>();
+		try(ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+			ZipEntry ze;
+			while((ze = zip.getNextEntry()) != null) {
+				int i = names.size();
+				names.add(ze.getName());
+				assertEquals(ZipEntry.STORED, ze.getMethod());
+				assertArrayEquals(content(i), readAll(zip));
+				CRC32 crc = new CRC32();
+				crc.update(content(i));
+				assertEquals(crc.getValue(), ze.getCrc());
+				assertEquals(content(i).length, ze.getSize());
+			}
+		}
+		assertEquals("[doc0.pdf, doc1.pdf, doc2.pdf, doc3.pdf, doc4.pdf]", names.toString());
+	}
+
+	@Test
+	public void skipsAbortedEntries() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ZipArchiveSink sink = new ZipArchiveSink(out);
+		sink.setCompressed(true);
+		ZipArchiveSink.Entry first = sink.reserve("first.pdf");
+		ZipArchiveSink.Entry failed = sink.reserve("failed.pdf");
+		ZipArchiveSink.Entry last = sink.reserve("last.pdf");
+		last.write(content(2));
+		last.close();
+		failed.write(content(1));
+		failed.abort();
+		first.write(content(0));
+		first.close();
+		sink.close();
+
+		assertTrue(failed.isAborted());
+		assertEquals(content(0).length + content(2).length, sink.getBytesWritten());
+		try(ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+			assertEquals("first.pdf", zip.getNextEntry().getName());
+			assertArrayEquals(content(0), readAll(zip));
+			assertEquals("last.pdf", zip.getNextEntry().getName());
+			assertArrayEquals(content(2), readAll(zip));
+			assertNull(zip.getNextEntry());
+		}
+	}
+
+	@Test
+	public void closeReportsUnfinishedEntries() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ZipArchiveSink sink = new ZipArchiveSink(out);
+		ZipArchiveSink.Entry done = sink.reserve("done.pdf");
+		done.write(content(0));
+		done.close();
+		sink.reserve("open.pdf");
+		try {
+			sink.close();
+			fail("an unfinished entry must be reported");
+		} catch(IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("open.pdf"));
+		}
+		try(ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+			assertEquals("done.pdf", zip.getNextEntry().getName());
+			assertNull(zip.getNextEntry());
+		}
+	}
+
+	/**
+	 * 予約数の上限に達すると、先頭のエントリーが書き込まれるまで次の予約は待たされます。
+	 */
+	@Test(timeout = 30000)
+	public void reserveWaitsForPendingEntries() throws Exception {
+		final ZipArchiveSink sink = new ZipArchiveSink(new ByteArrayOutputStream());
+		sink.setMaxPendingEntries(2);
+		ZipArchiveSink.Entry first = sink.reserve("a.pdf");
+		ZipArchiveSink.Entry second = sink.reserve("b.pdf");
+		final AtomicReference<ZipArchiveSink.Entry> third = new AtomicReference<ZipArchiveSink.Entry>();
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					third.set(sink.reserve("c.pdf"));
+				} catch(IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		thread.start();
+		while(thread.getState() != Thread.State.WAITING) {
+			Thread.sleep(1);
+		}
+		second.close();
+		thread.join(200);
+		assertTrue("b.pdf is written only after a.pdf", thread.isAlive());
+		first.close();
+		thread.join();
+		third.get().close();
+		sink.close();
+		assertEquals(3, sink.getEntries().size());
+	}
+
+	private static byte[] content(int i) {
+		StringBuilder sb = new StringBuilder();
+		for(int n = 0; n < 100 * (i + 1); n++) {
+			sb.append("entry ").append(i).append(' ').append(n).append('\n');
+		}
+		return sb.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static byte[] readAll(ZipInputStream zip) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int len;
+		while((len = zip.read(buf)) != -1) {
+			out.write(buf, 0, len);
+		}
+		return out.toByteArray();
+	}
+}